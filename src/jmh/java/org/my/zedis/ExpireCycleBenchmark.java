@@ -0,0 +1,77 @@
+package org.my.zedis;
+
+import org.my.ByteString;
+import org.my.ValueWithTTL;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Active expiry with the deadline heap against Redis style sampling, see {@link InMemorySharedStore#activeExpireCycle}.
+ * <p>
+ * Every iteration starts from a database of {@code keys} keys with a TTL, a quarter of them past their deadline and
+ * the rest due in one to two hours, and times one second of server time: ten cycles with the default budget of 25%
+ * of a 100ms period. The counters tell how many of the stale keys were reclaimed and how many still hold memory,
+ * summed over the measurement iterations.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@State(Scope.Thread)
+public class ExpireCycleBenchmark {
+    private static final int CYCLES = 10;
+    private static final long BUDGET_MICROS = 25_000;
+    private static final int HOUR = 3_600_000;
+
+    @Param({"1000000", "10000000"})
+    int keys;
+
+    @Param({"HEAP", "SAMPLE"})
+    InMemorySharedStore.ExpireStrategy strategy;
+
+    private InMemorySharedStore store;
+    private ServerStats stats;
+    private long stale;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Reclaim {
+        public long reclaimed;
+        public long lingering;
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        stats = new ServerStats();
+        store = StoreBuilder.store().stats(stats).build();
+        KeySpace db = store.getKeySpace(0, 0);
+        ByteString value = ByteString.of("v");
+        Random rand = new Random(42);
+        long now = System.currentTimeMillis();
+        stale = 0;
+        for (int i = 0; i < keys; i++) {
+            long deadline;
+            if (rand.nextInt(4) == 0) {
+                deadline = now - 1 - rand.nextInt(HOUR);
+                stale++;
+            } else {
+                deadline = now + HOUR + rand.nextInt(HOUR);
+            }
+            db.put("key:" + i, ValueWithTTL.ofString(value, deadline));
+        }
+        // both strategies start from a settled dict
+        while (db.rehash(100))
+            ;
+    }
+
+    @Benchmark
+    public void oneSecond(Reclaim counters) {
+        for (int i = 0; i < CYCLES; i++)
+            store.activeExpireCycle(0, strategy, BUDGET_MICROS);
+        counters.reclaimed = stats.getExpiredKeys();
+        counters.lingering = stale - counters.reclaimed;
+    }
+}
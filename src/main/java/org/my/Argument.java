@@ -1,46 +1,139 @@
 package org.my;
 
-import java.util.HashMap;
+import org.my.zedis.RespType;
+
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
-@lombok.Setter
+/**
+ * Parsed arguments of one command call, held in flat slots laid out by {@link Command}.
+ * <p>
+ * Instances are pooled per command and thread, lookups by name resolve to a slot by scanning the few names of the
+ * grammar, and {@link #valueAt}/{@link #bytesAt} read a value slot directly.
+ */
 public class Argument {
+    private final Command command;
+
     // mandatory
-    private Map<String, String> namedValues = new HashMap<>();
-    private Map<Integer, String> fixedTerms = new HashMap<>();
-    private String[] listValues;
+    private final RespType[] values;
+    private final String[] fixedTerms;
+    private RespType[] listValues;
+    private int listOffset;
+    private int listLength;
 
-    // optional
-    private Map<String, String[]> namedOptions = new HashMap<>();
+    // optional, a present option may have null values
+    private final String[][] options;
+    private final boolean[] present;
     private String anonymousOptionValue;
-    private Set<String> anonymousTerms = new HashSet<>();
+    private Set<String> anonymousTerms = Collections.emptySet();
+
+    Argument(Command command) {
+        this.command = command;
+        this.values = new RespType[command.getValueNames().length];
+        this.fixedTerms = new String[command.getTermSlots()];
+        this.options = new String[command.getOptionNames().length][];
+        this.present = new boolean[options.length];
+    }
+
+    void reset() {
+        Arrays.fill(values, null);
+        Arrays.fill(fixedTerms, null);
+        Arrays.fill(options, null);
+        Arrays.fill(present, false);
+        listValues = null;
+        anonymousOptionValue = null;
+        if (!anonymousTerms.isEmpty())
+            anonymousTerms = Collections.emptySet();
+    }
 
     //
-    void addNamedValue(String name, String value) {
-        namedValues.put(name, value);
+    void setValue(int slot, RespType value) {
+        values[slot] = value;
+    }
+
+    void setOption(int slot, String[] values) {
+        options[slot] = values;
+        present[slot] = true;
+    }
+
+    void setFixedTerm(int idx, String term) {
+        fixedTerms[idx] = term;
     }
 
-    void addNamedOption(String name, String[] values) {
-        namedOptions.put(name, values);
+    void setListValues(RespType[] args, int offset, int length) {
+        listValues = args;
+        listOffset = offset;
+        listLength = length;
     }
 
-    void addFixedTerm(int idx, String term) {
-        fixedTerms.put(idx, term);
+    void setAnonymousOptionValue(String value) {
+        anonymousOptionValue = value;
     }
 
     void addAnonymousTerm(String term) {
+        if (anonymousTerms.isEmpty())
+            anonymousTerms = new HashSet<>();
         anonymousTerms.add(term);
     }
 
     // operations
-    public String valueWithName(String name) { return namedValues.get(name); }
-    public String[] valueListDefault() { return listValues; }
-    public String termAtPos(int i) { return fixedTerms.get(i); }
+    public RespType valueAt(int slot) {
+        return values[slot];
+    }
 
-    public String[] optionWithName(String name) {  return namedOptions.get(name); }
-    public boolean hasOption(String name) { return namedOptions.containsKey(name); }
+    public ByteString bytesAt(int slot) {
+        RespType v = values[slot];
+        return v == null? null : v.asBytes();
+    }
+
+    public String valueWithName(String name) {
+        int slot = command.valueSlot(name);
+        RespType v = slot < 0? null : values[slot];
+        return v == null? null : v.asString();
+    }
+
+    public ByteString bytesWithName(String name) {
+        int slot = command.valueSlot(name);
+        return slot < 0? null : bytesAt(slot);
+    }
+
+    public String[] valueListDefault() {
+        if (listValues == null)
+            return null;
+        String[] list = new String[listLength];
+        for (int i = 0; i < listLength; i++)
+            list[i] = listValues[listOffset + i].asString();
+        return list;
+    }
+
+    public ByteString[] bytesListDefault() {
+        if (listValues == null)
+            return null;
+        ByteString[] list = new ByteString[listLength];
+        for (int i = 0; i < listLength; i++)
+            list[i] = listValues[listOffset + i].asBytes();
+        return list;
+    }
+    public String termAtPos(int i) { return i < fixedTerms.length? fixedTerms[i] : null; }
+
+    public boolean hasOptionAt(int slot) {
+        return present[slot];
+    }
+
+    public String[] optionAt(int slot) {
+        return options[slot];
+    }
+
+    public String[] optionWithName(String name) {
+        int slot = command.optionSlot(name);
+        return slot < 0? null : options[slot];
+    }
+    public boolean hasOption(String name) {
+        int slot = command.optionSlot(name);
+        return slot >= 0 && present[slot];
+    }
     public String optionValueAnonymous() { return anonymousOptionValue; }
     public Set<String> optionValueTerms() { return anonymousTerms; }
 }
@@ -0,0 +1,109 @@
+package org.my;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable, binary-safe byte sequence used for string values.
+ * <p>
+ * Bytes are kept exactly as received from the wire, so a value goes from the socket buffer into the store and
+ * back out without any charset conversion. The hash code is computed once and cached, which makes instances
+ * cheap to use as map keys.
+ * <p>
+ * Conversion to and from {@link String} uses ISO-8859-1, a 1:1 mapping between bytes and chars, so
+ * {@code ByteString.of(s.toString())} always round-trips and byte lengths equal char lengths.
+ */
+public final class ByteString implements Comparable<ByteString> {
+    public static final ByteString EMPTY = new ByteString(new byte[0]);
+
+    private final byte[] bytes;
+    private int hash;
+
+    private ByteString(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    // the array is owned by the new instance, caller must not modify it afterwards
+    public static ByteString wrap(byte[] bytes) {
+        return bytes.length == 0? EMPTY : new ByteString(bytes);
+    }
+
+    public static ByteString copyOf(byte[] bytes, int offset, int length) {
+        return wrap(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    public static ByteString of(String s) {
+        return wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public byte byteAt(int i) {
+        return bytes[i];
+    }
+
+    // direct access for writers, must not be modified
+    public byte[] array() {
+        return bytes;
+    }
+
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    public ByteString concat(ByteString other) {
+        if (other.bytes.length == 0)
+            return this;
+
+        byte[] b = Arrays.copyOf(bytes, bytes.length + other.bytes.length);
+        System.arraycopy(other.bytes, 0, b, bytes.length, other.bytes.length);
+        return wrap(b);
+    }
+
+    // [start, end)
+    public ByteString substring(int start, int end) {
+        if (start == 0 && end == bytes.length)
+            return this;
+        return copyOf(bytes, start, end - start);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof ByteString))
+            return false;
+
+        ByteString o = (ByteString) obj;
+        return bytes.length == o.bytes.length && hashCode() == o.hashCode() && Arrays.equals(bytes, o.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && bytes.length > 0) {
+            h = Arrays.hashCode(bytes);
+            hash = h;
+        }
+        return h;
+    }
+
+    // unsigned lexicographic order, same as memcmp() in Redis
+    @Override
+    public int compareTo(ByteString o) {
+        int n = Math.min(bytes.length, o.bytes.length);
+        for (int i = 0; i < n; i++) {
+            int c = (bytes[i] & 0xff) - (o.bytes[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return bytes.length - o.bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -1,22 +1,51 @@
 package org.my;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import org.my.zedis.Database;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session of one connection, kept in a channel attribute.
+ * <p>
+ * Only connection commands like SELECT or CLIENT SETNAME change it, and they run on the connection's own thread.
+ * The {@link Context} handed to the handlers is rebuilt when the db changes, so commands already started on other
+ * threads keep the one they began with.
+ */
 @lombok.Getter
 @lombok.Setter
 public class ClientConfig {
-    private static AtomicInteger MAX_ID = new AtomicInteger(0);
-    private int id;
+    private static final AtomicLong MAX_ID = new AtomicLong(0);
+
+    @lombok.Setter(lombok.AccessLevel.NONE)
+    private long id;
+    @lombok.Setter(lombok.AccessLevel.NONE)
+    private String clientKey;
+    @lombok.Setter(lombok.AccessLevel.NONE)
     private int db;
     private String connectionName;
+    private int respVersion = 2;
+    private int flags;
+
+    @lombok.Setter(lombok.AccessLevel.NONE)
+    private Context context;
 
-    public static ClientConfig defaultConfig() {
+    public static ClientConfig defaultConfig(String clientKey, Database store) {
         ClientConfig config = new ClientConfig();
-        config.db = 0;
-        config.id = MAX_ID.addAndGet(1);
+        config.id = MAX_ID.incrementAndGet();
+        config.clientKey = clientKey;
+        config.select(0, store);
         return config;
     }
 
-    public void reset() {
+    public void select(int db, Database store) {
+        this.db = db;
+        this.context = new Context(this, db, store);
+    }
+
+    public void reset(Database store) {
+        select(0, store);
+        connectionName = null;
+        respVersion = 2;
+        flags = 0;
     }
 }
@@ -2,8 +2,11 @@ package org.my;
 
 import org.my.zedis.RespType;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.stream.Stream;
@@ -15,6 +18,36 @@ public class Command {
     private final String explain;
     private final Part[] parts;
 
+    // argument names which hold a key
+    private static final Set<String> KEY_NAMES = new HashSet<>(Arrays.asList(
+            "key", "key1", "key2", "source", "destination", "newkey", "src", "dst", "destkey", "sourcekey"));
+
+    // where the keys are in the argument list, derived once from the grammar
+    private final List<Integer> keyPositions = new ArrayList<>();
+    private int keyListStart = -1;      // first argument of a key list
+    private int keyListStride = 1;
+    private boolean keyListCounted;     // the list is preceded by the number of keys
+    private int keyListTrailing;        // arguments after an uncounted list
+    private String keyOption;           // an option listing keys, like KEYS of MIGRATE
+    private int keyOptionFrom;          // searched for after the positional arguments
+    private boolean keysUnknown;
+
+    // may park the connection until another client writes one of its keys, see BlockedReply
+    private boolean blocking;
+
+    // may change the keyspace, so it goes to the append only file
+    private boolean write;
+
+    // parsed arguments go to flat slots: one per value name, option name and term position
+    private static final String[] NO_VALUES = new String[0];
+    private String[] valueNames;
+    private String[] optionNames;
+    private int termSlots;
+    // per part the end of the run of named options it starts, which may come in any order as in Redis, else -1
+    private int[] optionRunEnd;
+    @lombok.Getter(lombok.AccessLevel.NONE)
+    private final ThreadLocal<Argument> pool = ThreadLocal.withInitial(() -> new Argument(this));
+
     @lombok.Getter
     public static class Part {
         enum Type { Value, TermValue, ListValue, OptionAnonymous, OptionWithValue, OptionWithVarList, OptionWithTerms, OptionChoice}
@@ -32,15 +65,20 @@ public class Command {
 
         // List value
         String lengthRefer;
+        int trailing;       // mandatory arguments after an uncounted list, like the timeout of BLPOP
 
         // Option
         String optionName;
         int optionValueSize;
+        String[] optionValueNames;
         Set<String> optionTermSet = new HashSet<>();
 
         // Choice option
         Part[] choiceOption;
 
+        // argument slot of a value or named option
+        int slot = -1;
+
         Part(Type t, String showName, boolean optional, Integer cardinality) {
             this.type = t;
             this.showName = showName;
@@ -77,6 +115,13 @@ public class Command {
             return p;
         }
 
+        // Command: [a b [a b ...]]
+        public static Part ofOptionalListValue(String ...list) {
+            Part p = new Part(Type.ListValue, buildShowName(Arrays.stream(list), " "), true, list.length);
+            p.lengthRefer = null;
+            return p;
+        }
+
         // Command: length a [a ...]
         public static Part ofFixedLengthListValue(String length, String name) {
             Part p = new Part(Type.ListValue, name, false, 1);
@@ -121,6 +166,7 @@ public class Command {
 
             p.optionName = name;
             p.optionValueSize = -1;
+            p.optionValueNames = optionValues;
             return p;
         }
 
@@ -154,18 +200,267 @@ public class Command {
         this.syntax = syntax;
         this.explain = explain;
         this.parts = parts;
+        countTrailing();
+        buildKeySpec();
+        buildSlots();
+        buildOptionRuns();
     }
 
     public Command(BiFunction<Context, Argument, RespType> func, String syntax, String explain) {
         this(func, syntax, explain, (Part[]) null);
     }
 
+    // marks a command which may block, it then runs after all earlier commands of the connection and before any later one
+    public Command blocking() {
+        this.blocking = true;
+        return this;
+    }
+
+    // marks a command which changes the keyspace when it succeeds
+    public Command write() {
+        this.write = true;
+        return this;
+    }
+
+    /**
+     * Declares the value slots in the order the grammar lays them out, so the handler can read them by constant
+     * index with {@link Argument#valueAt}. Fails at startup if the grammar doesn't match.
+     */
+    public Command valueSlots(String... names) {
+        if (!Arrays.equals(names, valueNames))
+            throw new IllegalStateException(syntax + ": value slots are " + Arrays.toString(valueNames));
+        return this;
+    }
+
+    // same for the option slots, read with Argument#hasOptionAt and Argument#optionAt
+    public Command optionSlots(String... names) {
+        if (!Arrays.equals(names, optionNames))
+            throw new IllegalStateException(syntax + ": option slots are " + Arrays.toString(optionNames));
+        return this;
+    }
+
+    private void countTrailing() {
+        if (parts == null)
+            return;
+        int n = 0;
+        for (int i = parts.length - 1; i >= 0; i--) {
+            Part p = parts[i];
+            if (p.getType() == Part.Type.ListValue)
+                p.trailing = n;
+            if (p.getType() == Part.Type.Value || p.getType() == Part.Type.TermValue)
+                n++;
+        }
+    }
+
+    // keys can only be located if they come before any optional or variable length part
+    private void buildKeySpec() {
+        if (parts == null) {
+            keysUnknown = true;
+            return;
+        }
+
+        int pos = 0;
+        boolean fixed = true;
+        for (Part p: parts) {
+            switch (p.getType()) {
+                case Value:
+                    if (KEY_NAMES.contains(p.getValueName())) {
+                        if (!fixed) {
+                            keysUnknown = true;
+                            return;
+                        }
+                        keyPositions.add(pos);
+                    }
+                    pos++;
+                    break;
+                case TermValue:
+                    pos++;
+                    break;
+                case ListValue:
+                    if (KEY_NAMES.contains(p.getShowName().split(" ")[0])) {
+                        if (!fixed) {
+                            keysUnknown = true;
+                            return;
+                        }
+                        keyListStart = pos;
+                        keyListCounted = p.lengthRefer != null;
+                        keyListTrailing = keyListCounted? 0 : p.trailing;
+                        keyListStride = keyListCounted? 1 : p.getCardinality();
+                    }
+                    fixed = false;
+                    break;
+                case OptionWithVarList:
+                    if (KEY_NAMES.contains(p.optionValueNames[0])) {
+                        keyOption = p.getOptionName();
+                        keyOptionFrom = pos;
+                    }
+                    fixed = false;
+                    break;
+                default:
+                    fixed = false;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Keys referenced by the arguments of this command.
+     * @return the keys, an empty array for commands without keys, or null if they can't be located
+     */
+    public String[] extractKeys(RespType[] args) {
+        if (keysUnknown)
+            return null;
+
+        List<String> keys = new ArrayList<>(keyPositions.size());
+        for (int pos: keyPositions) {
+            if (pos < args.length)
+                keys.add(args[pos].asString());
+        }
+
+        if (keyListStart >= 0 && keyListStart < args.length) {
+            int start = keyListStart;
+            int end = args.length - keyListTrailing;
+            if (keyListCounted) {
+                try {
+                    int n = Integer.parseInt(args[start++].asString());
+                    end = Math.min(end, start + Math.max(n, 0));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            for (int i = start; i < end; i += keyListStride)
+                keys.add(args[i].asString());
+        }
+
+        if (keyOption != null) {
+            for (int i = keyOptionFrom; i < args.length; i++) {
+                if (matches(args[i], keyOption)) {
+                    while (++i < args.length)
+                        keys.add(args[i].asString());
+                }
+            }
+        }
+        return keys.toArray(new String[0]);
+    }
+
+    // compiles the grammar into slots, names sharing a slot overwrite each other like before
+    private void buildSlots() {
+        List<String> values = new ArrayList<>();
+        List<String> options = new ArrayList<>();
+        int terms = 0;
+        if (parts != null) {
+            for (Part p: parts) {
+                switch (p.getType()) {
+                    case Value:
+                        p.slot = slotOf(values, p.getValueName());
+                        break;
+                    case TermValue:
+                        terms = Math.max(terms, p.getTermPosition() + 1);
+                        break;
+                    case OptionChoice:
+                        for (Part c: p.getChoiceOption())
+                            c.slot = c.getOptionName() == null? -1 : slotOf(options, c.getOptionName());
+                        break;
+                    default:
+                        p.slot = p.getOptionName() == null? -1 : slotOf(options, p.getOptionName());
+                        break;
+                }
+            }
+        }
+        valueNames = values.toArray(new String[0]);
+        optionNames = options.toArray(new String[0]);
+        termSlots = terms;
+    }
+
+    private void buildOptionRuns() {
+        if (parts == null)
+            return;
+        optionRunEnd = new int[parts.length];
+        for (int i = parts.length - 1; i >= 0; i--) {
+            if (!isNamedOption(parts[i]))
+                optionRunEnd[i] = -1;
+            else
+                optionRunEnd[i] = i + 1 < parts.length && optionRunEnd[i + 1] >= 0? optionRunEnd[i + 1] : i + 1;
+        }
+    }
+
+    private static boolean isNamedOption(Part p) {
+        switch (p.getType()) {
+            case OptionWithValue:
+            case OptionWithTerms:
+            case OptionWithVarList:
+                return p.getOptionName() != null;
+            case OptionChoice:
+                return Arrays.stream(p.getChoiceOption()).allMatch(c -> c.getOptionName() != null);
+            default:
+                return false;
+        }
+    }
+
+    private static int slotOf(List<String> names, String name) {
+        int slot = names.indexOf(name);
+        if (slot < 0) {
+            slot = names.size();
+            names.add(name);
+        }
+        return slot;
+    }
+
+    // slot of a named value, -1 if the grammar has none
+    int valueSlot(String name) {
+        return indexOf(valueNames, name);
+    }
+
+    int optionSlot(String name) {
+        return indexOf(optionNames, name);
+    }
+
+    // names are literals in the handlers, so the identity check nearly always hits
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++)
+            if (names[i] == name)
+                return i;
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    // case-insensitive match of an argument against an upper case name, without decoding the argument
+    private static boolean matches(RespType arg, String name) {
+        ByteString b = arg.asBytes();
+        if (b == null || b.length() != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            int c = b.byteAt(i);
+            if (c >= 'a' && c <= 'z')
+                c -= 32;
+            if (c != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isOptionName(RespType arg) {
+        for (String name: optionNames)
+            if (matches(arg, name))
+                return true;
+        return false;
+    }
+
+    private static String matchTerm(RespType arg, Collection<String> terms) {
+        for (String t: terms)
+            if (matches(arg, t))
+                return t;
+        throw new IllegalArgumentException("bad command, unknown term: " + arg.asString());
+    }
+
     private int parseOption(RespType[] args, int idx, Argument argument, Part... parts) {
         int start = idx;
-        String optName = args[idx++].asString();
+        RespType opt = args[idx++];
         Part matched = null;
         for (Part co: parts) {
-            if (co.getOptionName() == null || optName.compareToIgnoreCase(co.getOptionName()) == 0) {
+            if (co.getOptionName() == null || matches(opt, co.getOptionName())) {
                 matched = co;
                 break;
             }
@@ -174,42 +469,39 @@ public class Command {
         if (matched == null) {
             idx--;
         } else {
-            String[] optValue = null;
             switch (matched.getType()) {
                 case OptionAnonymous: {
-                    argument.setAnonymousOptionValue(optName);
-                    if (matched.getOptionTermSet() != null && idx < args.length) {
-                        String term = args[idx++].asString();
-                        if (matched.optionTermSet.contains(term.toUpperCase()))
-                            argument.addAnonymousTerm(term.toUpperCase());
-                        else
-                            throw new IllegalArgumentException("bad command, unknown term: " + term);
-                    }
+                    argument.setAnonymousOptionValue(opt.asString());
+                    if (matched.getOptionTermSet() != null && idx < args.length)
+                        argument.addAnonymousTerm(matchTerm(args[idx++], matched.getOptionTermSet()));
                     break;
                 }
                 case OptionWithValue: {
-                    optValue = new String[matched.optionValueSize];
+                    String[] optValue = matched.optionValueSize == 0? NO_VALUES : new String[matched.optionValueSize];
                     for (int i = 0; i < matched.optionValueSize; i++) {
                         if (idx >= args.length)
                             throw new IllegalArgumentException("bad command, out of range");
                         optValue[i] = args[idx++].asString();
                     }
-                    argument.addNamedOption(optName.toUpperCase(), optValue);
+                    argument.setOption(matched.slot, optValue);
                     break;
                 }
                 case OptionWithTerms: {
-                    optValue = new String[matched.optionValueSize];
-                    String term = args[idx++].asString();
-                    if (!matched.optionTermSet.contains(term.toUpperCase()))
-                        optValue[0] = term;
-                    else
-                        throw new IllegalArgumentException("bad command, unknown term: " + term);
-                    argument.addNamedOption(optName.toUpperCase(), optValue);
+                    if (idx >= args.length)
+                        throw new IllegalArgumentException("bad command, out of range");
+                    argument.setOption(matched.slot, new String[]{matchTerm(args[idx++], matched.getOptionTermSet())});
                     break;
                 }
                 case OptionWithVarList: {
-                    // FIXME: Redis uses a wired syntax make parsing a little not straight and it may be cause issue
-                    argument.addNamedOption(optName.toUpperCase(), optValue);
+                    // the list runs to the end, or up to the name of another option when one can follow
+                    int end = idx;
+                    boolean last = matched == this.parts[this.parts.length - 1];
+                    while (end < args.length && (last || !isOptionName(args[end])))
+                        end++;
+                    String[] optValue = new String[end - idx];
+                    for (int i = 0; i < optValue.length; i++)
+                        optValue[i] = args[idx++].asString();
+                    argument.setOption(matched.slot, optValue);
                     break;
                 }
                 default:
@@ -219,38 +511,66 @@ public class Command {
         return idx - start;
     }
 
+    // the named options from part from to part to, each at most once and in any order
+    private int parseOptions(RespType[] args, int idx, Argument argument, int from, int to) {
+        int start = idx;
+        long seen = 0;
+        for (boolean progress = true; progress && idx < args.length; ) {
+            progress = false;
+            for (int i = from; i < to && idx < args.length; i++) {
+                if ((seen & (1L << (i - from))) != 0)
+                    continue;
+                Part p = parts[i];
+                int n = p.getType() == Part.Type.OptionChoice? parseOption(args, idx, argument, p.getChoiceOption())
+                        : parseOption(args, idx, argument, p);
+                if (n > 0) {
+                    idx += n;
+                    seen |= 1L << (i - from);
+                    progress = true;
+                }
+            }
+        }
+        return idx - start;
+    }
+
     private int parseTerms(RespType[] args, int idx, Argument argument, String[] terms, int position) {
-        String name = args[idx].asString();
-        boolean matched = false;
         for (String t: terms) {
-            if (t.compareToIgnoreCase(name) == 0) {
-                matched = true;
-                argument.addFixedTerm(position, t);
-                break;
+            if (matches(args[idx], t)) {
+                argument.setFixedTerm(position, t);
+                return 1;
             }
         }
-
-        if (matched) {
-            return 1;
-        } else
-            throw new IllegalArgumentException("bad term");
+        throw new IllegalArgumentException("bad term");
     }
 
+    /**
+     * Parses {@code args} against the grammar.
+     * <p>
+     * The returned {@link Argument} is reused by the next call on the same thread, it must not be kept after the
+     * command returns.
+     */
     public Argument parseArguments(RespType[] args) {
-        Argument argument = new Argument();
+        Argument argument = pool.get();
+        argument.reset();
         if (parts != null) {
             int idx = 0;
-            for (Part part: parts) {
+            for (int i = 0; i < parts.length; i++) {
+                Part part = parts[i];
                 if (idx >= args.length) {
                     if (!part.optional)
                         throw new IllegalArgumentException("incomplete command: "+ part.showName + " missed");
                     else
                         break;
                 }
+                if (optionRunEnd[i] > i + 1) {
+                    idx += parseOptions(args, idx, argument, i, optionRunEnd[i]);
+                    i = optionRunEnd[i] - 1;
+                    continue;
+                }
 
                 switch (part.getType()) {
                     case Value: {
-                        argument.addNamedValue(part.getValueName(), args[idx++].asString());
+                        argument.setValue(part.slot, args[idx++]);
                         break;
                     }
                     case OptionAnonymous:
@@ -267,15 +587,14 @@ public class Command {
                     case ListValue: {
                         int n;
                         if (part.lengthRefer == null) {
-                            n = args.length - idx;
+                            n = args.length - idx - part.trailing;
                         } else {
                             n = Integer.parseInt(args[idx++].asString());
                         }
-                        String[] value = new String[n];
-                        for (int i = 0; i < n; i++) {
-                            value[i] = args[idx++].asString();
-                        }
-                        argument.setListValues(value);
+                        if (n < 0 || n > args.length - idx)
+                            throw new IllegalArgumentException("bad command, out of range");
+                        argument.setListValues(args, idx, n);
+                        idx += n;
                         break;
                     }
                     case TermValue:
@@ -2,41 +2,27 @@ package org.my;
 
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class ConnectionManager {
-    private final Map<String, ClientConfig> clientConfigMap = new HashMap<>();
-    public void register(String remoteAddress) {
-        clientConfigMap.put(remoteAddress, ClientConfig.defaultConfig());
-    }
-
-    public void remove(String remoteAddress) {
-        clientConfigMap.remove(remoteAddress);
-    }
-
-    public void selectDb(String clientKey, int index) {
-        clientConfigMap.get(clientKey).setDb(index);
-    }
-
-    public int getDb(String clientKey) {
-        return clientConfigMap.get(clientKey).getDb();
-    }
+    // connections live on several event loops
+    private final Map<Long, ClientConfig> clientConfigMap = new ConcurrentHashMap<>();
 
-    public void reset(String clientKey) {
-        clientConfigMap.get(clientKey).reset();
+    public void register(ClientConfig session) {
+        clientConfigMap.put(session.getId(), session);
     }
 
-    public String getName(String clientKey) {
-        return clientConfigMap.get(clientKey).getConnectionName();
+    public void remove(ClientConfig session) {
+        clientConfigMap.remove(session.getId());
     }
 
-    public void setName(String clientKey, String connectionName) {
-        clientConfigMap.get(clientKey).setConnectionName(connectionName);
+    public ClientConfig get(long id) {
+        return clientConfigMap.get(id);
     }
 
-    public Long getId(String clientKey) {
-        return (long) clientConfigMap.get(clientKey).getId();
+    public int size() {
+        return clientConfigMap.size();
     }
 }
@@ -1,10 +1,15 @@
 package org.my;
 
-import java.util.Map;
+import org.my.zedis.Database;
 
 @lombok.Getter
 @lombok.AllArgsConstructor
 public class Context {
-    private final String clientKey;
-    private final Map<String, ValueWithTTL> store;
+    private final ClientConfig session;
+    private final int db;
+    private final Database store;
+
+    public String getClientKey() {
+        return session.getClientKey();
+    }
 }
@@ -1,12 +1,25 @@
 package org.my;
 
+import org.my.zedis.CompactMap;
+import org.my.zedis.CompactSet;
+import org.my.zedis.DictMap;
+import org.my.zedis.Encodings;
+import org.my.zedis.IntSet;
+import org.my.zedis.Listpack;
+import org.my.zedis.QuickList;
+import org.my.zedis.ZSkipList;
+
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.stream.Collectors;
+import java.util.function.BiConsumer;
 
 @lombok.Getter
 @lombok.Setter
 public class ValueWithTTL {
+    // longest string Redis embeds in its object header
+    private static final int EMBSTR_SIZE_LIMIT = 44;
+    // digits of the longest long
+    private static final int MAX_LONG_DIGITS = 20;
+
     private final ValueType type;
     private Object value;
     private Long expiredAt; // unix-time point in milliseconds, local time
@@ -25,48 +38,65 @@ public class ValueWithTTL {
         this.expiredAt = expiredAt;
     }
 
-    public static ValueWithTTL ofString(String value) {
-        return new ValueWithTTL(ValueType.String, value);
+    // int encoded if the value is an integer, see IntString
+    public static ValueWithTTL ofString(ByteString value) {
+        return ofString(value, (Long) null);
     }
 
-    public static ValueWithTTL ofString(String value, ValueWithTTL copyFrom) {
+    public static ValueWithTTL ofString(ByteString value, Long expiredAt) {
+        if (value.length() > 0 && value.length() <= MAX_LONG_DIGITS && (value.byteAt(0) == '-' || Character.isDigit(value.byteAt(0)))) {
+            String s = value.toString();
+            if (IntSet.isLong(s))
+                return new IntString(Long.parseLong(s), expiredAt);
+        }
+        return new ValueWithTTL(ValueType.String, value, expiredAt);
+    }
+
+    // always raw, as strings grown by APPEND or SETRANGE
+    public static ValueWithTTL ofString(ByteString value, ValueWithTTL copyFrom) {
         return new ValueWithTTL(ValueType.String, value, copyFrom.getExpiredAt());
     }
 
-    public static ValueWithTTL ofSetValue() {
-        return ofSetValue(getSet());
+    public static ValueWithTTL ofInteger(long value, ValueWithTTL copyFrom) {
+        return new IntString(value, copyFrom == null? null : copyFrom.getExpiredAt());
+    }
+
+    public static ValueWithTTL ofSetValue(Encodings encodings) {
+        return ofSetValue(getSet(encodings));
     }
 
     public static ValueWithTTL ofSetValue(Set<String> value) {
         return new ValueWithTTL(ValueType.Set, value);
     }
 
-    public static ValueWithTTL ofHashValue() {
-        return ofHashValue(getHash());
+    public static ValueWithTTL ofHashValue(Encodings encodings) {
+        return ofHashValue(getHash(encodings));
     }
 
-    public static ValueWithTTL ofHashValue(Map<String, Object> value) {
+    public static ValueWithTTL ofHashValue(Map<String, String> value) {
         return new ValueWithTTL(ValueType.Hash, value);
     }
 
-    public static ValueWithTTL ofListValue() {
-        return ofListValue(getList());
+    public static ValueWithTTL ofListValue(Encodings encodings) {
+        return ofListValue(getList(encodings));
     }
 
-    public static ValueWithTTL ofListValue(LinkedList<String> value) {
+    public static ValueWithTTL ofListValue(QuickList value) {
         return new ValueWithTTL(ValueType.List, value);
     }
 
-    public static ValueWithTTL ofSortedSetValue() {
-        return ofSortedSetValue(getSortedSet());
+    public static ValueWithTTL ofSortedSetValue(Encodings encodings) {
+        return ofSortedSetValue(getSortedSet(encodings));
     }
 
     public static ValueWithTTL ofSortedSetValue(ZSet value) {
         return new ValueWithTTL(ValueType.SortedSet, value);
     }
 
-    public static ValueWithTTL ofSortedSetValue(Set<ZSet.Item> value, ValueWithTTL copyFrom) {
-        return ofSortedSetValue(new ZSet(value), copyFrom);
+    public static ValueWithTTL ofSortedSetValue(Collection<ZSet.Item> value, ValueWithTTL copyFrom, Encodings encodings) {
+        ZSet zset = getSortedSet(encodings);
+        value.forEach(zset::add);
+        return ofSortedSetValue(zset, copyFrom);
     }
 
     public static ValueWithTTL ofSortedSetValue(ZSet value, ValueWithTTL copyFrom) {
@@ -74,20 +104,33 @@ public class ValueWithTTL {
     }
 
     // the only way to get internal structure, so that we can update this without affect all other codes
-    public static Set<String> getSet() {
-        return new HashSet<>();
+    public static Set<String> getSet(Encodings encodings) {
+        return new CompactSet(encodings.getSetMaxIntsetEntries());
     }
 
-    public static Map<String, Object> getHash() {
-        return new HashMap<>();
+    public static Map<String, String> getHash(Encodings encodings) {
+        return new CompactMap(encodings.getHashMaxListpackEntries(), encodings.getHashMaxListpackValue());
     }
 
-    public static LinkedList<String> getList() {
-        return new LinkedList<>();
+    public static QuickList getList(Encodings encodings) {
+        return new QuickList(encodings.getListFill(), encodings.getListCompressDepth());
     }
 
-    public static ZSet getSortedSet() {
-        return new ZSet();
+    public static ZSet getSortedSet(Encodings encodings) {
+        return new ZSet(encodings.getZsetMaxListpackEntries(), encodings.getZsetMaxListpackValue());
+    }
+
+    public boolean isExpired(long now) {
+        return expiredAt != null && expiredAt <= now;
+    }
+
+    // string values are kept as raw bytes, integers as an IntString
+    public ByteString getValueAsBytes() {
+        if (type != ValueType.String) {
+            throw new IllegalArgumentException("expect String type");
+        }
+
+        return value instanceof ByteString? (ByteString) value : ByteString.of(value.toString());
     }
 
     @SuppressWarnings("unchecked")
@@ -108,13 +151,12 @@ public class ValueWithTTL {
         return (Map<String, String>) value;
     }
 
-    @SuppressWarnings("unchecked")
-    public LinkedList<String> getValueAsList() {
+    public QuickList getValueAsList() {
         if (type != ValueType.List) {
             throw new IllegalArgumentException("expect List type");
         }
 
-        return (LinkedList<String>) value;
+        return (QuickList) value;
     }
 
     public ZSet getValueAsSortedSet() {
@@ -125,69 +167,428 @@ public class ValueWithTTL {
         return (ZSet) value;
     }
 
-    public enum ValueType { String, List, Hash, Set, SortedSet, Stream }
+    // as reported by OBJECT ENCODING
+    public String getEncoding() {
+        switch (type) {
+            case String:
+                if (this instanceof IntString)
+                    return "int";
+                return getValueAsBytes().length() <= EMBSTR_SIZE_LIMIT? "embstr" : "raw";
+            case List:
+                return "quicklist";
+            case Hash:
+                return value instanceof CompactMap? ((CompactMap) value).encoding() : "hashtable";
+            case Set:
+                return value instanceof CompactSet? ((CompactSet) value).encoding() : "hashtable";
+            case SortedSet:
+                return getValueAsSortedSet().encoding();
+            default:
+                return type.getTypeName();
+        }
+    }
+
+    /**
+     * String value in Redis' int encoding: an integer is kept as a primitive in place of its digits, so a counter
+     * costs no boxed value or byte array and INCR changes it in place without parsing or formatting. The digits of
+     * 0 to 9999 are shared, like Redis' shared integers.
+     */
+    public static final class IntString extends ValueWithTTL {
+        private static final int SHARED_INTEGERS = 10000;
+        private static final ByteString[] shared = new ByteString[SHARED_INTEGERS];
+
+        static {
+            for (int i = 0; i < SHARED_INTEGERS; i++)
+                shared[i] = ByteString.of(Integer.toString(i));
+        }
+
+        private long number;
+
+        IntString(long number, Long expiredAt) {
+            super(ValueType.String, null, expiredAt);
+            this.number = number;
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        // adds to the number in place, returning the result
+        public long incrBy(long by) {
+            long r = number + by;
+            if (((number ^ r) & (by ^ r)) < 0)
+                throw new IllegalArgumentException("increment or decrement would overflow");
+            number = r;
+            return r;
+        }
+
+        @Override
+        public Object getValue() {
+            return number;
+        }
+
+        @Override
+        public ByteString getValueAsBytes() {
+            return number >= 0 && number < SHARED_INTEGERS? shared[(int) number] : ByteString.of(Long.toString(number));
+        }
+    }
+
+    public enum ValueType {
+        String("string"), List("list"), Hash("hash"), Set("set"), SortedSet("zset"), Stream("stream");
+
+        // as reported by TYPE
+        @lombok.Getter
+        private final java.lang.String typeName;
+
+        ValueType(java.lang.String typeName) {
+            this.typeName = typeName;
+        }
+    }
+
+    /**
+     * Sorted set as in Redis: a {@link ZSkipList} ordered by score and member, which answers ranks and ranges in
+     * O(log n) plus the size of the result, and a hash from member to its node for lookups by member.
+     * <p>
+     * A small set is a {@link Listpack} of member and score pairs in the same order instead, the score as a packed
+     * double so it is compared without parsing, walked linearly, until
+     * it has more than {@code max-listpack-entries} members or a member longer than {@code max-listpack-value},
+     * as with Redis' zset-max-listpack-entries and zset-max-listpack-value. It never goes back.
+     */
+    public static class ZSet implements Iterable<ZSet.Item> {
+        private final int maxListpackEntries;
+        private final int maxListpackValue;
+        private Listpack packed = new Listpack();
+        private ZSkipList list;
+        private DictMap<String, ZSkipList.Node> nodes;
+
+        public ZSet(int maxListpackEntries, int maxListpackValue) {
+            this.maxListpackEntries = maxListpackEntries;
+            this.maxListpackValue = maxListpackValue;
+        }
+
+        // as reported by OBJECT ENCODING
+        public String encoding() {
+            return packed != null? "listpack" : "skiplist";
+        }
+
+        private void convert() {
+            list = new ZSkipList();
+            nodes = new DictMap<>(size());
+            for (int off = 0; off < packed.end(); off = packed.next(packed.next(off))) {
+                String member = packed.get(off);
+                nodes.put(member, list.insert(scoreAt(off), member));
+            }
+            packed = null;
+        }
+
+        // score of the pair whose member is at off
+        private double scoreAt(int off) {
+            return packed.getDouble(packed.next(off));
+        }
 
-    @lombok.NoArgsConstructor
-    public static class ZSet {
-        private final ConcurrentSkipListSet<ZSet.Item> impl = new ConcurrentSkipListSet<>();
-        private final HashMap<String, Double> scores = new HashMap<>();
+        private Item itemAt(int off) {
+            return new Item(packed.get(off), scoreAt(off));
+        }
 
-        public ZSet(Set<ZSet.Item> set) {
-            for (ZSet.Item s: set) {
-                impl.add(s);
-                scores.put(s.getKey(), s.getScore());
+        private void insertPacked(String member, double score) {
+            int off = 0;
+            while (off < packed.end()) {
+                double s = scoreAt(off);
+                if (s > score || (s == score && packed.get(off).compareTo(member) > 0))
+                    break;
+                off = packed.next(packed.next(off));
             }
+            packed.insert(off, member);
+            packed.insertDouble(packed.next(off), score);
+        }
+
+        // the pairs in ascending order
+        private List<Item> packedItems() {
+            List<Item> r = new ArrayList<>(size());
+            for (int off = 0; off < packed.end(); off = packed.next(packed.next(off)))
+                r.add(itemAt(off));
+            return r;
         }
 
         public boolean add(ZSet.Item e) {
-            scores.put(e.getKey(), e.getScore());
-            return impl.add(e);
+            return add(e.getKey(), e.getScore());
+        }
+
+        // adds the member or updates its score, true if it was new
+        public boolean add(String member, double score) {
+            if (packed != null) {
+                int off = packed.find(member, 2);
+                if (off >= 0) {
+                    if (scoreAt(off) != score) {
+                        packed.delete(off, 2);
+                        insertPacked(member, score);
+                    }
+                    return false;
+                }
+                if (member.length() <= maxListpackValue && size() < maxListpackEntries) {
+                    insertPacked(member, score);
+                    return true;
+                }
+                convert();
+            }
+
+            ZSkipList.Node n = nodes.get(member);
+            if (n == null) {
+                nodes.put(member, list.insert(score, member));
+                return true;
+            }
+            if (n.getScore() != score)
+                nodes.put(member, list.updateScore(n, score));
+            return false;
         }
 
         public boolean containsKey(String k) {
-            return scores.containsKey(k);
+            return packed != null? packed.find(k, 2) >= 0 : nodes.containsKey(k);
         }
 
         public boolean removeKey(String key) {
-            scores.remove(key);
-            return impl.remove(new Item(key, 0d));
+            if (packed != null) {
+                int off = packed.find(key, 2);
+                if (off >= 0)
+                    packed.delete(off, 2);
+                return off >= 0;
+            }
+            ZSkipList.Node n = nodes.remove(key);
+            return n != null && list.delete(n.getScore(), key);
         }
 
         public Double getScore(String key) {
-            return scores.get(key);
+            if (packed != null) {
+                int off = packed.find(key, 2);
+                return off < 0? null : scoreAt(off);
+            }
+            ZSkipList.Node n = nodes.get(key);
+            return n == null? null : n.getScore();
         }
 
         public Item getItem(String key) {
-            return new Item(key, getScore(key));
+            if (packed != null) {
+                int off = packed.find(key, 2);
+                return off < 0? null : itemAt(off);
+            }
+            ZSkipList.Node n = nodes.get(key);
+            return n == null? null : item(n);
+        }
+
+        // see DictMap.scan, all members at once while packed
+        public long scan(long cursor, BiConsumer<String, Double> consumer) {
+            if (packed != null) {
+                forEach(x -> consumer.accept(x.getKey(), x.getScore()));
+                return 0;
+            }
+            return nodes.scan(cursor, (k, n) -> consumer.accept(k, n.getScore()));
         }
 
         public Set<String> getKeySet() {
-            return impl.stream().map(Item::getKey).collect(Collectors.toSet());
+            if (packed != null) {
+                Set<String> r = new LinkedHashSet<>();
+                for (int off = 0; off < packed.end(); off = packed.next(packed.next(off)))
+                    r.add(packed.get(off));
+                return Collections.unmodifiableSet(r);
+            }
+            return Collections.unmodifiableSet(nodes.keySet());
         }
 
-        public int size() { return impl.size(); }
-        public ConcurrentSkipListSet<ZSet.Item> asSet() { return impl; }
-        public ZSet.Item first() { return impl.first(); }
-        public ZSet.Item last() { return impl.last(); }
-        public boolean remove(ZSet.Item e) { return impl.remove(e) && scores.remove(e.getKey()) != null; }
-        public boolean contains(ZSet.Item e) { return impl.contains(e); }
+        public int size() { return packed != null? packed.size() / 2 : list.size(); }
+        public boolean remove(ZSet.Item e) { return removeKey(e.getKey()); }
+        public boolean contains(ZSet.Item e) { return containsKey(e.getKey()); }
 
-        @lombok.AllArgsConstructor
-        @lombok.Getter
-        public static class Item implements Comparable<Item> {
-            String key;
-            Double score;
+        public ZSet.Item first() {
+            if (packed != null)
+                return size() == 0? null : itemAt(0);
+            return item(list.first());
+        }
 
-            @Override
-            public int compareTo(Item o) {
-                int keyComparison = this.key.compareTo(o.key);
-                if (keyComparison == 0)
+        public ZSet.Item last() {
+            if (packed != null)
+                return size() == 0? null : range(size() - 1, size() - 1, false).get(0);
+            return item(list.last());
+        }
+
+        private static Item item(ZSkipList.Node n) {
+            return n == null? null : new Item(n.getMember(), n.getScore());
+        }
+
+        /**
+         * Rank of a member, 0 based and counted from the highest score if {@code rev}.
+         * @return -1 if not found
+         */
+        public long rank(String member, boolean rev) {
+            long rank = -1;
+            if (packed != null) {
+                long i = 0;
+                for (int off = 0; off < packed.end(); off = packed.next(packed.next(off)), i++) {
+                    if (packed.equalsAt(off, member)) {
+                        rank = i;
+                        break;
+                    }
+                }
+            } else {
+                ZSkipList.Node n = nodes.get(member);
+                if (n != null)
+                    rank = list.rank(n);
+            }
+            return rank < 0 || !rev? rank : size() - 1 - rank;
+        }
+
+        // members from rank start to end, both inclusive and within the set, counted from the highest score if rev
+        public List<Item> range(long start, long end, boolean rev) {
+            if (packed != null) {
+                List<Item> all = packedItems();
+                if (rev)
+                    Collections.reverse(all);
+                return all.subList((int) start, (int) end + 1);
+            }
+
+            List<Item> r = new ArrayList<>((int) (end - start + 1));
+            ZSkipList.Node n = list.byRank(rev? size() - 1 - start : start);
+            for (long i = start; i <= end && n != null; i++) {
+                r.add(item(n));
+                n = rev? n.previous() : n.next();
+            }
+            return r;
+        }
+
+        /**
+         * Members within a range of scores or members, skipping {@code offset} of them and returning up to
+         * {@code count}, or all if {@code count} is negative.
+         */
+        public List<Item> range(ZSkipList.Range range, boolean rev, long offset, long count) {
+            List<Item> r = new ArrayList<>();
+            if (packed != null) {
+                List<Item> all = packedItems();
+                if (rev)
+                    Collections.reverse(all);
+                for (Item x: all) {
+                    if (count == 0)
+                        break;
+                    if (range.isEmpty() || !range.aboveMin(x.score, x.key) || !range.belowMax(x.score, x.key))
+                        continue;
+                    if (offset > 0) {
+                        offset--;
+                        continue;
+                    }
+                    r.add(x);
+                    count--;
+                }
+                return r;
+            }
+
+            ZSkipList.Node n = rev? list.lastInRange(range) : list.firstInRange(range);
+            if (n != null && offset > 0) {
+                // the skipped members are stepped over by rank instead of one by one
+                long rank = list.rank(n) + (rev? -offset : offset);
+                n = rank < 0 || rank >= size()? null : list.byRank(rank);
+            }
+            while (n != null && count-- != 0) {
+                if (rev? !range.aboveMin(n) : !range.belowMax(n))
+                    break;
+                r.add(item(n));
+                n = rev? n.previous() : n.next();
+            }
+            return r;
+        }
+
+        public long count(ZSkipList.Range range) {
+            if (packed != null)
+                return range(range, false, 0, -1).size();
+
+            ZSkipList.Node first = list.firstInRange(range);
+            if (first == null)
+                return 0;
+            return list.rank(list.lastInRange(range)) - list.rank(first) + 1;
+        }
+
+        // removes the members from rank start to end, both inclusive and 0 based
+        public long removeRange(long start, long end) {
+            if (packed != null) {
+                int off = 0;
+                for (long i = 0; i < start; i++)
+                    off = packed.next(packed.next(off));
+                packed.delete(off, (int) (end - start + 1) * 2);
+                return end - start + 1;
+            }
+            return list.deleteRangeByRank(start, end, n -> nodes.remove(n.getMember()));
+        }
+
+        public long removeRange(ZSkipList.Range range) {
+            if (packed != null) {
+                if (range.isEmpty())
                     return 0;
+                // the members in range are next to each other
+                int first = -1;
+                int n = 0;
+                for (int off = 0; off < packed.end(); off = packed.next(packed.next(off))) {
+                    double score = scoreAt(off);
+                    String member = packed.get(off);
+                    if (!range.belowMax(score, member))
+                        break;
+                    if (range.aboveMin(score, member)) {
+                        if (first < 0)
+                            first = off;
+                        n++;
+                    }
+                }
+                if (n > 0)
+                    packed.delete(first, n * 2);
+                return n;
+            }
+            return list.deleteRange(range, n -> nodes.remove(n.getMember()));
+        }
 
-                int scoreComparison = Double.compare(this.score, o.score);
-                return scoreComparison != 0? scoreComparison : keyComparison;
+        // in ascending order
+        @Override
+        public Iterator<Item> iterator() {
+            if (packed != null) {
+                Listpack p = packed;
+                return new Iterator<Item>() {
+                    private int off;
+
+                    @Override
+                    public boolean hasNext() {
+                        return off < p.end();
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Item x = itemAt(off);
+                        off = p.next(p.next(off));
+                        return x;
+                    }
+                };
             }
 
+            return new Iterator<Item>() {
+                private ZSkipList.Node next = list.first();
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Item next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    ZSkipList.Node n = next;
+                    next = n.next();
+                    return item(n);
+                }
+            };
+        }
+
+        @lombok.AllArgsConstructor
+        @lombok.Getter
+        public static class Item {
+            String key;
+            Double score;
+
             @Override
             public boolean equals(Object obj) {
                 if (this == obj) {
@@ -207,10 +608,6 @@ public class ValueWithTTL {
         }
     }
 
-    public static ZSet.Item ofItem(double score) {
-        return ofItem("", score);
-    }
-
     public static ZSet.Item ofItem(String key, double score) {
         return new ValueWithTTL.ZSet.Item(key, score);
     }
@@ -8,7 +8,7 @@ import org.springframework.stereotype.Component;
 
 @Component
 public class ConnectionHandler extends RedisCommandHandler {
-    ConnectionHandler(InMemorySharedStore sharedStore, ConnectionManager connectionManager) {
+    ConnectionHandler(InMemorySharedStore sharedStore) {
         super("Connection", sharedStore);
 
         commands.put("AUTH",
@@ -32,7 +32,7 @@ public class ConnectionHandler extends RedisCommandHandler {
         commands.put("CLIENT GETNAME",
                 new Command(
                         (ctx, args) -> {
-                            String name = connectionManager.getName(ctx.getClientKey());
+                            String name = ctx.getSession().getConnectionName();
                             return name == null? RespType.NullBulkString() : RespType.ofBulkString(name);
                         },
                         "CLIENT GETNAME",
@@ -42,7 +42,7 @@ public class ConnectionHandler extends RedisCommandHandler {
         commands.put("CLIENT GETREDIR",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofLong(connectionManager.getId(ctx.getClientKey()));
+                            return RespType.ofLong(ctx.getSession().getId());
                         },
                         "CLIENT GETREDIR",
                         "Returns the client ID to which the connection's tracking notifications are redirected."
@@ -50,7 +50,7 @@ public class ConnectionHandler extends RedisCommandHandler {
         );
         commands.put("CLIENT ID",
                 new Command(
-                        (ctx, args) -> RespType.ofLong(connectionManager.getId(ctx.getClientKey())),
+                        (ctx, args) -> RespType.ofLong(ctx.getSession().getId()),
                         "CLIENT ID",
                         "Returns the unique client ID of the connection."
                 )
@@ -131,7 +131,7 @@ public class ConnectionHandler extends RedisCommandHandler {
                 new Command(
                         (ctx, args) -> {
                             String connectionName = args.valueWithName("connection-name");
-                            connectionManager.setName(ctx.getClientKey(), connectionName);
+                            ctx.getSession().setConnectionName(connectionName);
                             return RespType.OK();
                         },
                         "CLIENT SETNAME connection-name",
@@ -215,7 +215,7 @@ public class ConnectionHandler extends RedisCommandHandler {
         commands.put("RESET",
                 new Command(
                         (ctx, args) -> {
-                            connectionManager.reset(ctx.getClientKey());
+                            ctx.getSession().reset(sharedStore.getDB(0));
                             return RespType.ofString("RESET");
                         },
                         "RESET",
@@ -229,7 +229,7 @@ public class ConnectionHandler extends RedisCommandHandler {
                             if (index >= InMemorySharedStore.MAX_DB_SIZE || index < 0)
                                 throw new IllegalArgumentException("db index is out of range");
 
-                            connectionManager.selectDb(ctx.getClientKey(), index);
+                            ctx.getSession().select(index, sharedStore.getDB(index));
                             return RespType.OK();
                         },
                         "SELECT index",
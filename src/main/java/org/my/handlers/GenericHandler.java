@@ -1,19 +1,22 @@
 package org.my.handlers;
 
 import org.my.*;
+import org.my.zedis.Database;
+import org.my.zedis.DumpPayload;
 import org.my.zedis.InMemorySharedStore;
+import org.my.zedis.MigrateClient;
 import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
 import org.springframework.stereotype.Component;
 
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 
 @Component
 public class GenericHandler extends RedisCommandHandler {
-    GenericHandler(InMemorySharedStore sharedStore) {
+    GenericHandler(InMemorySharedStore sharedStore, MigrateClient migrateClient) {
         super("Generic", sharedStore);
 
         commands.put("COPY",
@@ -22,19 +25,23 @@ public class GenericHandler extends RedisCommandHandler {
                             String sk = args.valueWithName("source");
                             String dk = args.valueWithName("destination");
                             boolean replace = args.hasOption("REPLACE");
-                            Map<String, ValueWithTTL> targetStore = ctx.getStore();
+                            Database targetStore = ctx.getStore();
+                            int idx = ctx.getDb();
                             if (args.hasOption("DB")) {
-                                int idx = Integer.parseInt(args.optionWithName("DB")[0]);
+                                idx = Integer.parseInt(args.optionWithName("DB")[0]);
                                 if (idx < 0 || idx >= InMemorySharedStore.MAX_DB_SIZE)
                                     throw new IllegalArgumentException("db index is out of range");
                                 targetStore = sharedStore.getDB(idx);
                             }
+                            if (sk.equals(dk) && idx == ctx.getDb())
+                                throw new IllegalArgumentException("source and destination objects are the same");
 
-                            if (targetStore.containsKey(dk) && replace)
-                                targetStore.remove(dk);
+                            ValueWithTTL v = ctx.getStore().get(sk);
+                            if (v == null || (!replace && targetStore.containsKey(dk)))
+                                return RespType.ofLong(0L);
 
-                            targetStore.put(sk, ctx.getStore().get(sk));
-                            return RespType.ofError("not implemented");
+                            targetStore.put(dk, DumpPayload.copy(v, targetStore.encodings()));
+                            return RespType.ofLong(1L);
                         },
                         "COPY source destination [DB destination-db] [REPLACE]",
                         "Copies the value of a key to a new key."
@@ -42,7 +49,7 @@ public class GenericHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofOptionNamedSimple("DB", "destination-db")
                         , Command.Part.ofOptionNamedSimple("REPLACE")
-                )
+                ).write()
         );
         commands.put("DEL",
                 new Command(
@@ -60,12 +67,15 @@ public class GenericHandler extends RedisCommandHandler {
                         "DEL key [key ...]",
                         "Deletes one or more keys."
                         , Command.Part.ofListValue("key")
-                )
+                ).write()
         );
         commands.put("DUMP",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
+                            if (v == null)
+                                return RespType.NullBulkString();
+                            return RespType.ofBulkString(ByteString.wrap(dumpPayload(v)));
                         },
                         "DUMP key",
                         "Returns a serialized representation of the value stored at a key."
@@ -106,9 +116,9 @@ public class GenericHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("NX"),
                                 Command.Part.ofOptionNamedSimple("XX"))
                         , Command.Part.ofOptionChoice(
-                                Command.Part.ofOptionNamedSimple("GX"),
-                                Command.Part.ofOptionNamedSimple("LX"))
-                )
+                                Command.Part.ofOptionNamedSimple("GT"),
+                                Command.Part.ofOptionNamedSimple("LT"))
+                ).write()
         );
         commands.put("EXPIREAT",
                 new Command(
@@ -127,9 +137,9 @@ public class GenericHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("NX"),
                                 Command.Part.ofOptionNamedSimple("XX"))
                         , Command.Part.ofOptionChoice(
-                                Command.Part.ofOptionNamedSimple("GX"),
-                                Command.Part.ofOptionNamedSimple("LX"))
-                )
+                                Command.Part.ofOptionNamedSimple("GT"),
+                                Command.Part.ofOptionNamedSimple("LT"))
+                ).write()
         );
         commands.put("EXPIRETIME",
                 new Command(
@@ -145,15 +155,15 @@ public class GenericHandler extends RedisCommandHandler {
         commands.put("KEYS",
                 new Command(
                         (ctx, args) -> {
-                            String pattern = args.valueWithName("pattern");
-                            PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
-                            RespType[] keys = ctx.getStore().keySet()
-                                    .stream()
-                                    .filter(k -> pathMatcher.matches(Paths.get(k)))
-                                    .map(RespType::ofBulkString)
-                                    .toArray(RespType[]::new);
-                            return RespType.ofArray(keys);
-                            // FIXME: use a better glob match library
+                            Predicate<String> matcher = globMatcher(args.valueWithName("pattern"));
+                            List<String> keys = new ArrayList<>();
+                            ctx.getStore().keySet().forEach(k -> {
+                                if (matcher.test(k))
+                                    keys.add(k);
+                            });
+                            // the lookup drops expired keys, once the keyspace is no longer being walked
+                            keys.removeIf(k -> !ctx.getStore().containsKey(k));
+                            return RespType.ofArray(keys.toArray(new String[0]));
                         },
                         "KEYS pattern",
                         "Returns all key names that match a pattern."
@@ -163,11 +173,69 @@ public class GenericHandler extends RedisCommandHandler {
         commands.put("MIGRATE",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String host = args.valueWithName("host");
+                            int port = Integer.parseInt(args.valueWithName("port"));
+                            int db = Integer.parseInt(args.valueWithName("destination-db"));
+                            long timeout = Long.parseLong(args.valueWithName("timeout"));
+                            if (timeout <= 0)
+                                timeout = 1000;
+                            String[] keys = new String[]{args.valueWithName("key")};
+                            if (args.hasOption("KEYS")) {
+                                if (!keys[0].isEmpty())
+                                    throw new IllegalArgumentException("When using MIGRATE KEYS option, the key argument must be set to the empty string");
+                                keys = args.optionWithName("KEYS");
+                            }
+                            String[] auth = args.hasOption("AUTH")? args.optionWithName("AUTH")
+                                    : args.hasOption("AUTH2")? args.optionWithName("AUTH2") : null;
+
+                            List<String> found = new ArrayList<>(keys.length);
+                            List<Long> ttls = new ArrayList<>(keys.length);
+                            List<byte[]> payloads = new ArrayList<>(keys.length);
+                            long now = System.currentTimeMillis();
+                            for (String k: keys) {
+                                ValueWithTTL v = ctx.getStore().get(k);
+                                if (v == null)
+                                    continue;
+                                found.add(k);
+                                ttls.add(v.getExpiredAt() == null? 0L : Math.max(v.getExpiredAt() - now, 1L));
+                                payloads.add(dumpPayload(v));
+                            }
+                            if (found.isEmpty())
+                                return RespType.ofString("NOKEY");
+
+                            MigrateClient.Result result = new MigrateClient.Result();
+                            IOException failure = null;
+                            try {
+                                migrateClient.migrate(host, port, timeout, auth, db, args.hasOption("REPLACE"),
+                                        found, ttls, payloads, result);
+                            } catch (IOException e) {
+                                failure = e;
+                            }
+                            if (!args.hasOption("COPY")) {
+                                BitSet stored = result.getStored();
+                                for (int i = stored.nextSetBit(0); i >= 0; i = stored.nextSetBit(i + 1))
+                                    ctx.getStore().remove(found.get(i));
+                            }
+                            if (failure != null)
+                                throw new IllegalArgumentException("IOERR error or timeout talking to the target instance");
+                            if (result.getError() != null)
+                                throw new IllegalArgumentException("ERR Target instance replied with error: " + result.getError());
+                            return RespType.OK();
                         },
-                        "MIGRATE host port destination-db timeout [COPY] [REPLACE]  [AUTH password | AUTH2 username password] [KEYS key [key ...]]",
+                        "MIGRATE host port <key | \"\"> destination-db timeout [COPY] [REPLACE] [AUTH password | AUTH2 username password] [KEYS key [key ...]]",
                         "Atomically transfers a key from one Redis instance to another."
-                )
+                        , Command.Part.ofValue("host")
+                        , Command.Part.ofValue("port")
+                        , Command.Part.ofValue("key")
+                        , Command.Part.ofValue("destination-db")
+                        , Command.Part.ofValue("timeout")
+                        , Command.Part.ofOptionNamedSimple("COPY")
+                        , Command.Part.ofOptionNamedSimple("REPLACE")
+                        , Command.Part.ofOptionChoice(
+                                Command.Part.ofOptionNamedSimple("AUTH", "password"),
+                                Command.Part.ofOptionNamedSimple("AUTH2", "username", "password"))
+                        , Command.Part.ofOptionNamedVarList("KEYS", "key")
+                ).write()
         );
         commands.put("MOVE",
                 new Command(
@@ -191,15 +259,17 @@ public class GenericHandler extends RedisCommandHandler {
                         "Moves a key to another database."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("db")
-                )
+                ).write()
         );
         commands.put("OBJECT ENCODING",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
+                            return v == null? RespType.NullBulkString() : RespType.ofBulkString(v.getEncoding());
                         },
                         "OBJECT ENCODING key",
                         "Returns the internal encoding of a Redis object."
+                        , Command.Part.ofValue("key")
                 )
         );
         commands.put("OBJECT FREQ",
@@ -235,11 +305,11 @@ public class GenericHandler extends RedisCommandHandler {
                             String key = args.valueWithName("key");
                             Long[] ret = new Long[1];
                             ret[0] = 0L;
-                            ctx.getStore().compute(key, (k, oldV) -> {
-                                if (oldV == null || oldV.getExpiredAt() == 0)
-                                    return null;
-                                oldV.setExpiredAt(null);
-                                ret[0] = 1L;
+                            ctx.getStore().computeIfPresent(key, (k, oldV) -> {
+                                if (oldV.getExpiredAt() != null) {
+                                    oldV.setExpiredAt(null);
+                                    ret[0] = 1L;
+                                }
                                 return oldV;
                             });
                             return RespType.ofLong(ret[0]);
@@ -247,7 +317,7 @@ public class GenericHandler extends RedisCommandHandler {
                         "PERSIST key",
                         "Removes the expiration time of a key."
                         , Command.Part.ofValue("key")
-                )
+                ).write()
         );
         commands.put("PEXPIRE",
                 new Command(
@@ -266,9 +336,9 @@ public class GenericHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("NX"),
                                 Command.Part.ofOptionNamedSimple("XX"))
                         , Command.Part.ofOptionChoice(
-                                Command.Part.ofOptionNamedSimple("GX"),
-                                Command.Part.ofOptionNamedSimple("LX"))
-                )
+                                Command.Part.ofOptionNamedSimple("GT"),
+                                Command.Part.ofOptionNamedSimple("LT"))
+                ).write()
         );
         commands.put("PEXPIREAT",
                 new Command(
@@ -287,9 +357,9 @@ public class GenericHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("NX"),
                                 Command.Part.ofOptionNamedSimple("XX"))
                         , Command.Part.ofOptionChoice(
-                                Command.Part.ofOptionNamedSimple("GX"),
-                                Command.Part.ofOptionNamedSimple("LX"))
-                )
+                                Command.Part.ofOptionNamedSimple("GT"),
+                                Command.Part.ofOptionNamedSimple("LT"))
+                ).write()
         );
         commands.put("PEXPIRETIME",
                 new Command(
@@ -316,10 +386,8 @@ public class GenericHandler extends RedisCommandHandler {
         commands.put("RANDOMKEY",
                 new Command(
                         (ctx, args) -> {
-                            Set<String> ks = ctx.getStore().keySet();
-                            int randomIndex = new Random().nextInt(ks.size());
-                            Optional<String> randomElement = ks.stream().skip(randomIndex).findFirst();
-                            return randomElement.map(RespType::ofBulkString).orElseGet(RespType::NullBulkString);
+                            String key = ctx.getStore().randomKey(ThreadLocalRandom.current());
+                            return key == null? RespType.NullBulkString() : RespType.ofBulkString(key);
                         },
                         "RANDOMKEY",
                         "Returns a random key name from the database."
@@ -346,7 +414,7 @@ public class GenericHandler extends RedisCommandHandler {
                         "Renames a key and overwrites the destination."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("newkey")
-                )
+                ).write()
         );
         commands.put("RENAMENX",
                 new Command(
@@ -370,24 +438,63 @@ public class GenericHandler extends RedisCommandHandler {
                         "Renames a key only when the target key name doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("newkey")
-                )
+                ).write()
         );
         commands.put("RESTORE",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String key = args.valueWithName("key");
+                            long ttl = Long.parseLong(args.valueWithName("ttl"));
+                            if (ttl < 0)
+                                throw new IllegalArgumentException("Invalid TTL value, must be >= 0");
+                            if (!args.hasOption("REPLACE") && ctx.getStore().containsKey(key))
+                                throw new IllegalArgumentException("BUSYKEY Target key name already exists.");
+
+                            // IDLETIME and FREQ are accepted, no access time or frequency is kept
+                            long now = System.currentTimeMillis();
+                            Long expiredAt = ttl == 0? null : args.hasOption("ABSTTL")? ttl : now + ttl;
+                            ValueWithTTL v = DumpPayload.restore(args.bytesWithName("serialized-value").array(), expiredAt,
+                                    ctx.getStore().encodings());
+                            if (expiredAt != null && expiredAt <= now)
+                                ctx.getStore().remove(key);
+                            else
+                                ctx.getStore().put(key, v);
+                            return RespType.OK();
                         },
-                        "RESTORE key ttl serialized-value [REPLACE] [ABSTTL]  [IDLETIME seconds] [FREQ frequency]",
+                        "RESTORE key ttl serialized-value [REPLACE] [ABSTTL] [IDLETIME seconds] [FREQ frequency]",
                         "Creates a key from the serialized representation of a value."
-                )
+                        , Command.Part.ofValue("key")
+                        , Command.Part.ofValue("ttl")
+                        , Command.Part.ofValue("serialized-value")
+                        , Command.Part.ofOptionNamedSimple("REPLACE")
+                        , Command.Part.ofOptionNamedSimple("ABSTTL")
+                        , Command.Part.ofOptionNamedSimple("IDLETIME", "seconds")
+                        , Command.Part.ofOptionNamedSimple("FREQ", "frequency")
+                ).write()
         );
         commands.put("SCAN",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            long cursor = parseCursor(args.valueWithName("cursor"));
+                            ScanOptions opts = scanOptions(args, true);
+                            int count = opts.getCount();
+                            Predicate<String> matcher = opts.getMatcher();
+                            String type = opts.getType();
+
+                            List<String> keys = new ArrayList<>();
+                            cursor = scanSteps(cursor, count, keys, c -> ctx.getStore().scan(c, keys::add));
+                            keys.removeIf(k -> {
+                                if (!matcher.test(k))
+                                    return true;
+                                ValueWithTTL v = type == null? null : ctx.getStore().get(k);
+                                return type != null && (v == null || !v.getType().getTypeName().equalsIgnoreCase(type));
+                            });
+                            return scanReply(cursor, keys);
                         },
                         "SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]",
                         "Iterates over the key names in the database."
+                        , Command.Part.ofValue("cursor")
+                        , Command.Part.ofOptionalListValue("option", "value")
                 )
         );
         commands.put("SORT",
@@ -431,12 +538,12 @@ public class GenericHandler extends RedisCommandHandler {
         commands.put("TYPE",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            return RespType.ofBulkString(ctx.getStore().containsKey(key)?
-                                    ctx.getStore().get("key").getType().toString() : null);
+                            ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
+                            return RespType.ofString(v == null? "none" : v.getType().getTypeName());
                         },
                         "TYPE key",
                         "Determines the type of value stored at a key."
+                        , Command.Part.ofValue("key")
                 )
         );
         commands.put("UNLINK",
@@ -468,6 +575,13 @@ public class GenericHandler extends RedisCommandHandler {
         );
     }
 
+    private static byte[] dumpPayload(ValueWithTTL v) {
+        byte[] payload = DumpPayload.dump(v);
+        if (payload == null)
+            throw new IllegalArgumentException("value of type " + v.getType().getTypeName() + " can't be serialized");
+        return payload;
+    }
+
     private Long expireTime(Context ctx, String key, boolean versionP) {
         ValueWithTTL v = ctx.getStore().get(key);
         return v == null? -2L
@@ -486,24 +600,22 @@ public class GenericHandler extends RedisCommandHandler {
 
     private Long handleExpire(Context ctx, String key, long unitTimeSeconds, boolean isNX, boolean isXX, boolean isGT, boolean isLT) {
         Long[] ret = new Long[1];
-        ctx.getStore().compute(key, (k, oldV) -> {
-            if (oldV == null) {
+        ret[0] = 0L;
+        ctx.getStore().computeIfPresent(key, (k, oldV) -> {
+            Long current = oldV.getExpiredAt();
+            if ((isNX && current != null)
+                || (isXX && current == null)
+                || (isGT && (current == null || unitTimeSeconds <= current))
+                || (isLT && current != null && unitTimeSeconds >= current)) {
                 ret[0] = 0L;
-                return null;
+                return oldV;
             }
 
-            if ((isNX && oldV.getExpiredAt() == null)
-                || (isXX && oldV.getExpiredAt() != null)
-                || (isGT && oldV.getExpiredAt() != null && unitTimeSeconds <= Long.parseLong(oldV.getExpiredAt().toString()))
-                || (isLT && (oldV.getExpiredAt() == null || unitTimeSeconds >= Long.parseLong(oldV.getExpiredAt().toString())))) {
-                if (oldV.getExpiredAt() == null) {
-                    oldV.setExpiredAt(unitTimeSeconds);
-                    ret[0] = 1L;
-                } else {
-                    ret[0] = 0L;
-                }
-            }
+            ret[0] = 1L;
+            if (unitTimeSeconds <= System.currentTimeMillis())
+                return null; // deadline already passed, delete it right away
 
+            oldV.setExpiredAt(unitTimeSeconds);
             return oldV;
         });
         return ret[0];
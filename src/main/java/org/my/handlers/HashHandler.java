@@ -1,18 +1,24 @@
 package org.my.handlers;
 
 import org.my.*;
+import org.my.zedis.CompactMap;
 import org.my.zedis.InMemorySharedStore;
 import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 @Component
 public class HashHandler extends RedisCommandHandler {
     private final ValueWithTTL.ValueType valueType = ValueWithTTL.ValueType.Hash;
 
+    // argument slots of the hot commands, checked against their grammar at startup
+    private static final int HGET_FIELD = 1;
+
     @SuppressWarnings("unchecked")
     private <T> T handleHash(Context ctx, String key, Function<Map<String, String>, T> func) {
         T[] ret = (T[]) new Object[1];
@@ -20,7 +26,7 @@ public class HashHandler extends RedisCommandHandler {
 
         ctx.getStore().compute(key, (k, v) -> {
             if (v == null) {
-                v = ValueWithTTL.ofHashValue();
+                v = ValueWithTTL.ofHashValue(ctx.getStore().encodings());
             }
 
             assertValueType(valueType, v);
@@ -32,6 +38,29 @@ public class HashHandler extends RedisCommandHandler {
         return ret[0];
     }
 
+    // twin of handleHash for the commands that never create the key, a missing key reads as an empty one
+    @SuppressWarnings("unchecked")
+    private <T> T handleExistingHash(Context ctx, String key, Function<Map<String, String>, T> func) {
+        T[] ret = (T[]) new Object[1];
+        boolean[] found = new boolean[1];
+
+        ctx.getStore().computeIfPresent(key, (k, v) -> {
+            assertValueType(valueType, v);
+            Map<String, String> map = v.getValueAsHash();
+            ret[0] = func.apply(map);
+            found[0] = true;
+            return map.size() == 0? null : v;
+        });
+        return found[0]? ret[0] : func.apply(ValueWithTTL.getHash(ctx.getStore().encodings()));
+    }
+
+    // for the read commands: goes through get, so reading is neither counted as a change nor copied for a running save
+    private <T> T readHash(Context ctx, String key, Function<Map<String, String>, T> func) {
+        ValueWithTTL v = ctx.getStore().get(key);
+        assertValueType(valueType, v);
+        return func.apply(v == null? ValueWithTTL.getHash(ctx.getStore().encodings()) : v.getValueAsHash());
+    }
+
     HashHandler(InMemorySharedStore sharedStore) {
         super("Hash", sharedStore);
 
@@ -40,7 +69,7 @@ public class HashHandler extends RedisCommandHandler {
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
                             String[] fields = args.valueListDefault();
-                            Integer n = handleHash(ctx, key, x -> {
+                            Integer n = handleExistingHash(ctx, key, x -> {
                                 int r = 0;
                                 for (String f: fields) {
                                     if (x.remove(f) != null)
@@ -54,14 +83,14 @@ public class HashHandler extends RedisCommandHandler {
                         "Deletes one or more fields and their values from a hash. Deletes the hash if no fields remain."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("field")
-                )
+                ).write()
         );
         commands.put("HEXISTS",
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
                             String field = args.valueWithName("field");
-                            Integer n = handleHash(ctx, key, x -> x.containsKey(field)? 1 : 0);
+                            Integer n = readHash(ctx, key, x -> x.containsKey(field)? 1 : 0);
                             return RespType.ofLong(n == null? 0 : n);
                         },
                         "HEXISTS key field",
@@ -73,19 +102,20 @@ public class HashHandler extends RedisCommandHandler {
         commands.put("HGET",
                 new Command(
                         (ctx, args) -> {
-                            String ret = handleHash(ctx, args.valueWithName("key"), x -> x.get(args.valueWithName("field")));
+                            String field = args.valueAt(HGET_FIELD).asString();
+                            String ret = readHash(ctx, args.valueAt(KEY).asString(), x -> x.get(field));
                             return ret == null? RespType.emptyArray() : RespType.ofBulkString(ret);
                         },
                         "HGET key field",
                         "Returns the value of a field in a hash."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("field")
-                )
+                ).valueSlots("key", "field")
         );
         commands.put("HGETALL",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleHash(ctx, args.valueWithName("key"), x -> {
+                            String[] ret = readHash(ctx, args.valueWithName("key"), x -> {
                                 List<String> r = new ArrayList<>();
                                 for (String k: x.keySet()) {
                                     r.add(k);
@@ -120,7 +150,7 @@ public class HashHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("field")
                         , Command.Part.ofValue("increment")
-                )
+                ).write()
         );
         commands.put("HINCRBYFLOAT",
                 new Command(
@@ -139,12 +169,12 @@ public class HashHandler extends RedisCommandHandler {
                         },
                         "HINCRBYFLOAT key field increment",
                         "Increments the floating point value of a field by a number. Uses 0 as initial value if the field doesn't exist."
-                )
+                ).write()
         );
         commands.put("HKEYS",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleHash(ctx, args.valueWithName("key"), x -> x.keySet().toArray(new String[0]));
+                            String[] ret = readHash(ctx, args.valueWithName("key"), x -> x.keySet().toArray(new String[0]));
                             return RespType.ofArray(ret);
                         },
                         "HKEYS key",
@@ -155,7 +185,7 @@ public class HashHandler extends RedisCommandHandler {
         commands.put("HLEN",
                 new Command(
                         (ctx, args) -> {
-                            int len = handleHash(ctx, args.valueWithName("key"), x -> x.keySet().size());
+                            int len = readHash(ctx, args.valueWithName("key"), x -> x.keySet().size());
                             return RespType.ofLong(len);
                         },
                         "HLEN key",
@@ -167,7 +197,7 @@ public class HashHandler extends RedisCommandHandler {
                 new Command(
                         (ctx, args) -> {
                             String[] fields = args.valueListDefault();
-                            String[] v = handleHash(ctx, args.valueWithName("key"), x -> {
+                            String[] v = readHash(ctx, args.valueWithName("key"), x -> {
                                 String[] nv = new String[fields.length];
                                 for (int i = 0; i < fields.length; i++)
                                     nv[i] = x.get(fields[i]);
@@ -196,11 +226,11 @@ public class HashHandler extends RedisCommandHandler {
                         "Sets the values of multiple fields."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("field", "value")
-                )
+                ).write()
         );
         commands.put("HRANDFIELD",
                 new Command(
-                        (ctx, args) -> handleHash(ctx, args.valueWithName("key"),
+                        (ctx, args) -> readHash(ctx, args.valueWithName("key"),
                                 x -> handleRandomSelect(x.keySet(), args.optionValueAnonymous(),
                                     args.optionValueTerms().contains("WITHVALUES"), x::get)),
                         "HRANDFIELD key [count [WITHVALUES]]",
@@ -212,21 +242,44 @@ public class HashHandler extends RedisCommandHandler {
         commands.put("HSCAN",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            long cursor = parseCursor(args.valueWithName("cursor"));
+                            ScanOptions opts = scanOptions(args, false);
+                            int count = opts.getCount();
+                            Predicate<String> matcher = opts.getMatcher();
+                            ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
+                            assertValueType(valueType, v);
+
+                            List<String> fields = new ArrayList<>();
+                            if (v != null) {
+                                Map<String, String> map = v.getValueAsHash();
+                                BiConsumer<String, String> collect = (f, value) -> {
+                                    if (matcher.test(f)) {
+                                        fields.add(f);
+                                        fields.add(value);
+                                    }
+                                };
+                                if (map instanceof CompactMap) {
+                                    // pairs only count once, as Redis counts fields
+                                    cursor = scanSteps(cursor, count * 2, fields, c -> ((CompactMap) map).scan(c, collect));
+                                } else {
+                                    map.forEach(collect);
+                                    cursor = 0;
+                                }
+                            }
+                            return scanReply(cursor, fields);
                         },
                         "HSCAN key cursor [MATCH pattern] [COUNT count]",
                         "Iterates over fields and values of a hash."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("cursor")
-                        , Command.Part.ofOptionNamedSimple("MATCH", "pattern")
-                        , Command.Part.ofOptionNamedSimple("COUNT", "count")
+                        , Command.Part.ofOptionalListValue("option", "value")
                 )
         );
         commands.put("HSET",
                 new Command(
                         (ctx, args) -> {
                             String[] kvs = args.valueListDefault();
-                            int n = handleHash(ctx, args.valueWithName("key"), x -> {
+                            int n = handleHash(ctx, args.valueAt(KEY).asString(), x -> {
                                 for (int i = 0; i < kvs.length / 2; i++)
                                     x.put(kvs[i * 2], kvs[i * 2 + 1]);
                                 return kvs.length / 2;
@@ -237,7 +290,7 @@ public class HashHandler extends RedisCommandHandler {
                         "Creates or modifies the value of a field in a hash."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("field", "value")
-                )
+                ).write().valueSlots("key")
         );
         commands.put("HSETNX",
                 new Command(
@@ -256,12 +309,12 @@ public class HashHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("field")
                         , Command.Part.ofValue("value")
-                )
+                ).write()
         );
         commands.put("HSTRLEN",
                 new Command(
                         (ctx, args) -> {
-                            Integer ret = handleHash(ctx, args.valueWithName("key"), x -> {
+                            Integer ret = readHash(ctx, args.valueWithName("key"), x -> {
                                 if (x.containsKey(args.valueWithName("field")))
                                     return x.get(args.valueWithName("field")).length();
                                 else
@@ -278,7 +331,7 @@ public class HashHandler extends RedisCommandHandler {
         commands.put("HVALS",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleHash(ctx, args.valueWithName("key"), x -> x.keySet().stream().map(x::get).toArray(String[]::new));
+                            String[] ret = readHash(ctx, args.valueWithName("key"), x -> x.keySet().stream().map(x::get).toArray(String[]::new));
                             return RespType.ofArray(ret);
                         },
                         "HVALS key",
@@ -2,6 +2,7 @@ package org.my.handlers;
 
 import org.my.*;
 import org.my.zedis.InMemorySharedStore;
+import org.my.zedis.QuickList;
 import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
 import org.springframework.stereotype.Component;
@@ -15,17 +16,17 @@ public class ListHandler extends RedisCommandHandler {
     private final ValueWithTTL.ValueType valueType = ValueWithTTL.ValueType.List;
 
     @SuppressWarnings("unchecked")
-    private <T> T handleList(Context ctx, String key, Function<LinkedList<String>, T> func) {
+    private <T> T handleList(Context ctx, String key, Function<QuickList, T> func) {
         T[] ret = (T[]) new Object[1];
         ret[0] = null;
 
         ctx.getStore().compute(key, (k, v) -> {
             if (v == null) {
-                v = ValueWithTTL.ofListValue();
+                v = ValueWithTTL.ofListValue(ctx.getStore().encodings());
             }
 
             assertValueType(valueType, v);
-            LinkedList<String> list = v.getValueAsList();
+            QuickList list = v.getValueAsList();
             T t = func.apply(list);
             ret[0] = t;
             return list.size() == 0? null : v;
@@ -33,33 +34,31 @@ public class ListHandler extends RedisCommandHandler {
         return ret[0];
     }
 
-    private String getNthElement(Deque<String> deque, int n) {
-        assert(n < deque.size());
-        Iterator<String> iterator = deque.iterator();
-        int count = 0;
-        String e = null;
-        while (iterator.hasNext()) {
-            e = iterator.next();
-            if (count == n) {
-                break;
-            }
-            count++;
-        }
+    // twin of handleList for the commands that never create the key, a missing key reads as an empty list
+    @SuppressWarnings("unchecked")
+    private <T> T handleExistingList(Context ctx, String key, Function<QuickList, T> func) {
+        T[] ret = (T[]) new Object[1];
+        boolean[] found = new boolean[1];
 
-        return e;
+        ctx.getStore().computeIfPresent(key, (k, v) -> {
+            assertValueType(valueType, v);
+            QuickList list = v.getValueAsList();
+            ret[0] = func.apply(list);
+            found[0] = true;
+            return list.size() == 0? null : v;
+        });
+        return found[0]? ret[0] : func.apply(ValueWithTTL.getList(ctx.getStore().encodings()));
     }
 
-    private int normalizeIndex(int idx, int listSize) {
-        if (idx < 0) {
-            idx += listSize;
-            if (idx < 0)
-                idx = 0;
-        }
-        return idx;
+    // read only twin of handleList, a missing key reads as an empty list
+    private <T> T readList(Context ctx, String key, Function<QuickList, T> func) {
+        ValueWithTTL v = ctx.getStore().get(key);
+        assertValueType(valueType, v);
+        return func.apply(v == null? ValueWithTTL.getList(ctx.getStore().encodings()) : v.getValueAsList());
     }
 
-    private RespType listPop(Context ctx, String key, String count, Function<LinkedList<String>, String> func) {
-        String[] ret = handleList(ctx, key, x -> {
+    private RespType listPop(Context ctx, String key, String count, Function<QuickList, String> func) {
+        String[] ret = handleExistingList(ctx, key, x -> {
             int n = 1;
             if (count != null) {
                 n = Integer.parseInt(count);
@@ -80,7 +79,7 @@ public class ListHandler extends RedisCommandHandler {
             return RespType.ofArray(ret);
     }
 
-    private RespType listPush(Context ctx, String key, String[] es, BiConsumer<LinkedList<String>, String> func) {
+    private RespType listPush(Context ctx, String key, String[] es, BiConsumer<QuickList, String> func) {
         int n = handleList(ctx, key, x -> {
             for (String e: es)
                 func.accept(x ,e);
@@ -89,8 +88,8 @@ public class ListHandler extends RedisCommandHandler {
         return RespType.ofLong(n);
     }
 
-    private RespType listPushX(Context ctx, String key, String[] es, BiConsumer<LinkedList<String>, String> func) {
-        int n = handleList(ctx, key, x -> {
+    private RespType listPushX(Context ctx, String key, String[] es, BiConsumer<QuickList, String> func) {
+        int n = handleExistingList(ctx, key, x -> {
             if (x.size() == 0)
                 return 0;
 
@@ -101,12 +100,61 @@ public class ListHandler extends RedisCommandHandler {
         return RespType.ofLong(n);
     }
 
+    // pops one element from the first non empty list, null if all are empty
+    private RespType listPopFirst(Context ctx, String[] keys, Function<QuickList, String> func) {
+        for (String key: keys) {
+            String e = handleExistingList(ctx, key, x -> x.size() == 0? null : func.apply(x));
+            if (e != null)
+                return RespType.ofArray(key, e);
+        }
+        return null;
+    }
+
+    // pops up to count elements from the first non empty list, null if all are empty
+    private RespType listMultiPop(Context ctx, String[] keys, boolean left, int count) {
+        for (String key: keys) {
+            String[] r = handleExistingList(ctx, key, x -> {
+                if (x.size() == 0)
+                    return null;
+
+                String[] t = new String[Math.min(count, x.size())];
+                for (int i = 0; i < t.length; i++)
+                    t[i] = left? x.removeFirst() : x.removeLast();
+                return t;
+            });
+            if (r != null)
+                return RespType.ofArray(RespType.ofBulkString(key), RespType.ofArray(r));
+        }
+        return null;
+    }
+
+    private static int multiPopCount(Argument args) {
+        if (!args.hasOption("COUNT"))
+            return 1;
+        int count = Integer.parseInt(args.optionWithName("COUNT")[0]);
+        if (count <= 0)
+            throw new IllegalArgumentException("count should be greater than 0");
+        return count;
+    }
+
     private RespType listElementMove(Context ctx, String src, String dst, boolean srcLeft, boolean dstLeft) {
-        String ret = handleList(ctx, src, x -> {
+        return RespType.ofBulkString(moveElement(ctx, src, dst, srcLeft, dstLeft));
+    }
+
+    private String moveElement(Context ctx, String src, String dst, boolean srcLeft, boolean dstLeft) {
+        // nothing to move leaves the destination unchecked, as in Redis
+        if (readList(ctx, src, QuickList::size) == 0)
+            return null;
+        // a WRONGTYPE after the pop would lose the element, so check the destination before touching the source
+        assertValueType(valueType, ctx.getStore().get(dst));
+
+        // the store can't be modified from inside compute(), so pop and push one after the other
+        String e = handleExistingList(ctx, src, x -> {
             if (x.size() == 0)
                 return null;
-
-            String e = srcLeft? x.removeFirst() : x.removeLast();
+            return srcLeft? x.removeFirst() : x.removeLast();
+        });
+        if (e != null) {
             handleList(ctx, dst, y -> {
                 if (dstLeft) {
                     y.addFirst(e);
@@ -115,9 +163,15 @@ public class ListHandler extends RedisCommandHandler {
                 }
                 return 0;
             });
-            return e;
+        }
+        return e;
+    }
+
+    private RespType blockingMove(Context ctx, String src, String dst, boolean srcLeft, boolean dstLeft, String timeout) {
+        return blockingPop(ctx, new String[]{src}, parseTimeout(timeout), RespType.NullArray(), () -> {
+            String e = moveElement(ctx, src, dst, srcLeft, dstLeft);
+            return e == null? null : RespType.ofBulkString(e);
         });
-        return RespType.ofBulkString(ret);
     }
 
     ListHandler(InMemorySharedStore sharedStore) {
@@ -125,68 +179,79 @@ public class ListHandler extends RedisCommandHandler {
 
         commands.put("BLMOVE",
                 new Command(
-                        (ctx, args) -> {
-                            return RespType.ofError("not implemented");
-                        },
-                        "BLMOVE source destination timeout",
+                        (ctx, args) -> blockingMove(ctx, args.valueWithName("source"), args.valueWithName("destination"),
+                                args.termAtPos(2).equals("LEFT"), args.termAtPos(3).equals("LEFT"), args.valueWithName("timeout")),
+                        "BLMOVE source destination <LEFT | RIGHT> <LEFT | RIGHT> timeout",
                         "Pops an element from a list, pushes it to another list and returns it. Blocks until an element is available otherwise. Deletes the list if the last element was moved."
                         , Command.Part.ofValue("source")
                         , Command.Part.ofValue("destination")
+                        , Command.Part.ofTermValue(2, "LEFT", "RIGHT")
+                        , Command.Part.ofTermValue(3, "LEFT", "RIGHT")
                         , Command.Part.ofValue("timeout")
-                )
+                ).blocking().write()
         );
         commands.put("BLMPOP",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String[] keys = args.valueListDefault();
+                            boolean left = args.termAtPos(1).equals("LEFT");
+                            int count = multiPopCount(args);
+                            return blockingPop(ctx, keys, parseTimeout(args.valueWithName("timeout")), RespType.NullArray(),
+                                    () -> listMultiPop(ctx, keys, left, count));
                         },
-                        "BLMPOP timeout numkeys key [key ...] [COUNT count]",
+                        "BLMPOP timeout numkeys key [key ...] <LEFT | RIGHT> [COUNT count]",
                         "Pops the first element from one of multiple lists. Blocks until an element is available otherwise. Deletes the list if the last element was popped."
                         , Command.Part.ofValue("timeout")
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
+                        , Command.Part.ofTermValue(1, "LEFT", "RIGHT")
                         , Command.Part.ofOptionNamedSimple("COUNT", "count")
-                )
+                ).blocking().write()
         );
         commands.put("BLPOP",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String[] keys = args.valueListDefault();
+                            return blockingPop(ctx, keys, parseTimeout(args.valueWithName("timeout")), RespType.NullArray(),
+                                    () -> listPopFirst(ctx, keys, QuickList::removeFirst));
                         },
                         "BLPOP key [key ...] timeout",
                         "Removes and returns the first element in a list. Blocks until an element is available otherwise. Deletes the list if the last element was popped."
                         , Command.Part.ofListValue("key")
                         , Command.Part.ofValue("timeout")
-                )
+                ).blocking().write()
         );
         commands.put("BRPOP",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String[] keys = args.valueListDefault();
+                            return blockingPop(ctx, keys, parseTimeout(args.valueWithName("timeout")), RespType.NullArray(),
+                                    () -> listPopFirst(ctx, keys, QuickList::removeLast));
                         },
                         "BRPOP key [key ...] timeout",
                         "Removes and returns the last element in a list. Blocks until an element is available otherwise. Deletes the list if the last element was popped."
                         , Command.Part.ofListValue("key")
                         , Command.Part.ofValue("timeout")
-                )
+                ).blocking().write()
         );
         commands.put("BRPOPLPUSH",
                 new Command(
-                        (ctx, args) -> {
-                            return RespType.ofError("not implemented");
-                        },
+                        (ctx, args) -> blockingMove(ctx, args.valueWithName("source"), args.valueWithName("destination"),
+                                false, true, args.valueWithName("timeout")),
                         "BRPOPLPUSH source destination timeout",
                         "Pops an element from a list, pushes it to another list and returns it. Block until an element is available otherwise. Deletes the list if the last element was popped."
                         , Command.Part.ofValue("source")
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofValue("timeout")
-                )
+                ).blocking().write()
         );
         commands.put("LINDEX",
                 new Command(
                         (ctx, args) -> {
-                            String ret = handleList(ctx, args.valueWithName("key"), x -> {
+                            String ret = readList(ctx, args.valueWithName("key"), x -> {
                                 int idx = Integer.parseInt(args.valueWithName("index"));
-                                return idx >= x.size()? null : getNthElement(x, idx);
+                                if (idx < 0)
+                                    idx += x.size();
+                                return idx < 0 || idx >= x.size()? null : x.get(idx);
                             });
                             return RespType.ofBulkString(ret);
                         },
@@ -199,7 +264,7 @@ public class ListHandler extends RedisCommandHandler {
         commands.put("LINSERT",
                 new Command(
                         (ctx, args) -> {
-                            int ret = handleList(ctx, args.valueWithName("key"), x -> {
+                            int ret = handleExistingList(ctx, args.valueWithName("key"), x -> {
                                 if (x.size() == 0)
                                     return 0;
                                 int idx = x.indexOf(args.valueWithName("pivot"));
@@ -207,15 +272,7 @@ public class ListHandler extends RedisCommandHandler {
                                     return -1;
 
                                 String e = args.valueWithName("element");
-                                if (args.termAtPos(0).equals("BEFORE")) {
-                                    x.add(idx, e);
-                                } else {
-                                    // AFTER case
-                                    if (idx == x.size())
-                                        x.addLast(e);
-                                    else
-                                        x.add(++idx, e);
-                                }
+                                x.add(args.termAtPos(1).equals("BEFORE")? idx : idx + 1, e);
                                 return x.size();
                             });
                             return RespType.ofLong(ret);
@@ -226,12 +283,12 @@ public class ListHandler extends RedisCommandHandler {
                         , Command.Part.ofTermValue(1, "BEFORE", "AFTER")
                         , Command.Part.ofValue("pivot")
                         , Command.Part.ofValue("element")
-                )
+                ).write()
         );
         commands.put("LLEN",
                 new Command(
                         (ctx, args) -> {
-                            int n = handleList(ctx, args.valueWithName("key"), LinkedList::size);
+                            int n = readList(ctx, args.valueWithName("key"), QuickList::size);
                             return RespType.ofLong(n);
                         },
                         "LLEN key",
@@ -242,72 +299,42 @@ public class ListHandler extends RedisCommandHandler {
         commands.put("LMOVE",
                 new Command(
                         (ctx, args) -> listElementMove(ctx, args.valueWithName("source"), args.valueWithName("destination"),
-                                args.termAtPos(0).equals("LEFT"), args.termAtPos(1).equals("LEFT")),
+                                args.termAtPos(2).equals("LEFT"), args.termAtPos(3).equals("LEFT")),
                         "LMOVE source destination <LEFT | RIGHT> <LEFT | RIGHT>",
                         "Returns an element after popping it from one list and pushing it to another. Deletes the list if the last element was moved."
                         , Command.Part.ofValue("source")
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofTermValue(2, "LEFT", "RIGHT")
                         , Command.Part.ofTermValue(3, "LEFT", "RIGHT")
-                )
+                ).write()
         );
         commands.put("LMPOP",
                 new Command(
                         (ctx, args) -> {
-                            boolean leftOrRight = args.termAtPos(1).equals("LEFT");
-                            Map<String, List<String>> ret = new HashMap<>();
-                            String[] keys = args.valueListDefault();
-                            Long[] count = new Long[1];
-                            count[0] = Long.parseLong(args.optionWithName("COUNT")[0]);
-                            for (String key: keys) {
-                                List<String> r = handleList(ctx, key, x ->  {
-                                    if (x.size() == 0)
-                                        return null;
-
-                                    List<String> t = new ArrayList<>();
-                                    while (x.size() > 0 && count[0] > 0) {
-                                        String i = leftOrRight? x.removeFirst() : x.removeLast();
-                                        t.add(i);
-                                        count[0]--;
-                                    }
-                                    return t;
-                                });
-
-                                if (r != null) {
-                                    ret.put(key, r);
-                                    break;
-                                }
-                            }
-
-                            RespType[] r = new RespType[ret.size() * 2];
-                            int n = 0;
-                            for (String k: ret.keySet()) {
-                                r[n*2] = RespType.ofBulkString(k);
-                                r[n*2+1] = RespType.ofArray(ret.get(k).toArray(new String[0]));
-                                n++;
-                            }
-                            return RespType.ofArray(r);
+                            RespType ret = listMultiPop(ctx, args.valueListDefault(), args.termAtPos(1).equals("LEFT"),
+                                    multiPopCount(args));
+                            return ret != null? ret : RespType.NullArray();
                         },
                         "LMPOP numkeys key [key ...] <LEFT | RIGHT> [COUNT count]",
                         "Returns multiple elements from a list after removing them. Deletes the list if the last element was popped."
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
                         , Command.Part.ofTermValue(1, "LEFT", "RIGHT")
                         , Command.Part.ofOptionNamedSimple("COUNT", "count")
-                )
+                ).write()
         );
         commands.put("LPOP",
                 new Command(
-                        (ctx, args) -> listPop(ctx, args.valueWithName("key"), args.optionValueAnonymous(), LinkedList::pop),
+                        (ctx, args) -> listPop(ctx, args.valueWithName("key"), args.optionValueAnonymous(), QuickList::removeFirst),
                         "LPOP key [count]",
                         "Returns the first elements in a list after removing it. Deletes the list if the last element was popped."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofOptionAnonymous("count")
-                )
+                ).write()
         );
         commands.put("LPOS",
                 new Command(
                         (ctx, args) -> {
-                            Integer[] pos = handleList(ctx, args.valueWithName("key"), x -> {
+                            Integer[] pos = readList(ctx, args.valueWithName("key"), x -> {
                                 int count = 0;
                                 if (args.hasOption("COUNT"))
                                     count = Integer.parseInt(args.optionWithName("COUNT")[0]);
@@ -369,43 +396,40 @@ public class ListHandler extends RedisCommandHandler {
         );
         commands.put("LPUSH",
                 new Command(
-                        (ctx, args) -> listPush(ctx, args.valueWithName("key"), args.valueListDefault(), LinkedList::addFirst),
+                        (ctx, args) -> listPush(ctx, args.valueAt(KEY).asString(), args.valueListDefault(), QuickList::addFirst),
                         "LPUSH key element [element ...]",
                         "Prepends one or more elements to a list. Creates the key if it doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("element")
-                )
+                ).write().valueSlots("key")
         );
         commands.put("LPUSHX",
                 new Command(
-                        (ctx, args) -> listPushX(ctx, args.valueWithName("key"), args.valueListDefault(), LinkedList::addFirst),
+                        (ctx, args) -> listPushX(ctx, args.valueWithName("key"), args.valueListDefault(), QuickList::addFirst),
                         "LPUSHX key element [element ...]",
                         "Prepends one or more elements to a list only when the list exists."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("element")
-                )
+                ).write()
         );
         commands.put("LRANGE",
                 new Command(
                         (ctx, args) -> {
-                            String [] ret = handleList(ctx, args.valueWithName("key"), x -> {
-                                if (x.size() == 0 )
-                                    return null;
-
-                                int start = normalizeIndex(Integer.parseInt(args.valueWithName("start")), x.size());
-                                if (start > x.size())
-                                    return null;
-
-                                int end = normalizeIndex(Integer.parseInt(args.valueWithName("stop")), x.size());
-                                if (end > x.size())
-                                    end = x.size() - 1;
+                            String [] ret = readList(ctx, args.valueWithName("key"), x -> {
+                                int start = Integer.parseInt(args.valueWithName("start"));
+                                if (start < 0)
+                                    start = Math.max(start + x.size(), 0);
+                                int end = Integer.parseInt(args.valueWithName("stop"));
+                                if (end < 0)
+                                    end += x.size();
+                                end = Math.min(end, x.size() - 1);
+                                if (start > end)
+                                    return new String[0];
 
                                 String[] r = new String[end - start + 1];
-                                ListIterator<String> iterator = x.listIterator(start);
-                                int n = 0;
-                                while (iterator.hasNext() && iterator.nextIndex() <= end) {
-                                    r[n++] = iterator.next();
-                                }
+                                Iterator<String> iterator = x.iterator(start);
+                                for (int n = 0; n < r.length; n++)
+                                    r[n] = iterator.next();
                                 return r;
                             });
                             return RespType.ofArray(ret);
@@ -420,7 +444,7 @@ public class ListHandler extends RedisCommandHandler {
         commands.put("LREM",
                 new Command(
                         (ctx, args) -> {
-                            int n = handleList(ctx, args.valueWithName("key"), x -> {
+                            int n = handleExistingList(ctx, args.valueWithName("key"), x -> {
                                 int count = Integer.parseInt(args.valueWithName("count"));
                                 String element = args.valueWithName("element");
                                 Iterator<String> iter = count >= 0? x.iterator() : x.descendingIterator();
@@ -443,22 +467,20 @@ public class ListHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("count")
                         , Command.Part.ofValue("element")
-                )
+                ).write()
         );
         commands.put("LSET",
                 new Command(
                         (ctx, args) -> {
-                            handleList(ctx, args.valueWithName("key"), x -> {
+                            handleExistingList(ctx, args.valueWithName("key"), x -> {
                                 int index = Integer.parseInt(args.valueWithName("index"));
                                 String element = args.valueWithName("element");
                                 if (index < 0)
                                     index += x.size();
-                                if (index < 0 || index > x.size())
+                                if (index < 0 || index >= x.size())
                                     throw new IllegalArgumentException("index out of range");
 
-                                ListIterator<String> listIterator = x.listIterator(index);
-                                listIterator.next();
-                                listIterator.set(element);
+                                x.set(index, element);
                                 return 0;
                             });
                             return RespType.OK();
@@ -468,12 +490,12 @@ public class ListHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("index")
                         , Command.Part.ofValue("element")
-                )
+                ).write()
         );
         commands.put("LTRIM",
                 new Command(
                         (ctx, args) -> {
-                            handleList(ctx, args.valueWithName("key"), x -> {
+                            handleExistingList(ctx, args.valueWithName("key"), x -> {
                                 if (x.size() == 0)
                                     return 0;
 
@@ -491,12 +513,12 @@ public class ListHandler extends RedisCommandHandler {
 
                                 // Remove elements after the end index
                                 if (x.size() > end + 1) {
-                                    x.subList(end + 1, x.size()).clear();
+                                    x.removeRange(end + 1, x.size());
                                 }
 
                                 // Remove elements before the start index
                                 if (start > 0) {
-                                    x.subList(0, start).clear();
+                                    x.removeRange(0, start);
                                 }
                                 return 0;
                             });
@@ -507,16 +529,16 @@ public class ListHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("start")
                         , Command.Part.ofValue("stop")
-                )
+                ).write()
         );
         commands.put("RPOP",
                 new Command(
-                        (ctx, args) -> listPop(ctx, args.valueWithName("key"), args.optionValueAnonymous(), LinkedList::removeLast),
+                        (ctx, args) -> listPop(ctx, args.valueWithName("key"), args.optionValueAnonymous(), QuickList::removeLast),
                         "RPOP key [count]",
                         "Returns and removes the last elements of a list. Deletes the list if the last element was popped."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofOptionAnonymous("count")
-                )
+                ).write()
         );
         commands.put("RPOPLPUSH",
                 new Command(
@@ -526,25 +548,25 @@ public class ListHandler extends RedisCommandHandler {
                         "Returns the last element of a list after removing and pushing it to another list. Deletes the list if the last element was popped."
                         , Command.Part.ofValue("source")
                         , Command.Part.ofValue("destination")
-                )
+                ).write()
         );
         commands.put("RPUSH",
                 new Command(
-                        (ctx, args) -> listPush(ctx, args.valueWithName("key"), args.valueListDefault(), LinkedList::addLast),
+                        (ctx, args) -> listPush(ctx, args.valueAt(KEY).asString(), args.valueListDefault(), QuickList::addLast),
                         "RPUSH key element [element ...]",
                         "Appends one or more elements to a list. Creates the key if it doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("element")
-                )
+                ).write().valueSlots("key")
         );
         commands.put("RPUSHX",
                 new Command(
-                        (ctx, args) -> listPushX(ctx, args.valueWithName("key"), args.valueListDefault(), LinkedList::addLast),
+                        (ctx, args) -> listPushX(ctx, args.valueWithName("key"), args.valueListDefault(), QuickList::addLast),
                         "RPUSHX key element [element ...]",
                         "Appends an element to a list only when the list exists."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("element")
-                )
+                ).write()
         );
     }
 }
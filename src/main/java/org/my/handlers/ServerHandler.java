@@ -1,22 +1,74 @@
 package org.my.handlers;
 
 import org.my.Command;
+import org.my.zedis.CommandDispatcher;
 import org.my.zedis.InMemorySharedStore;
+import org.my.zedis.Persistence;
 import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
+import org.my.zedis.ServerStats;
 import org.springframework.stereotype.Component;
 
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
 
 @Component
 public class ServerHandler extends RedisCommandHandler {
     HashMap<String, String> config = new HashMap<>();
 
-    ServerHandler(InMemorySharedStore sharedStore) {
+    // INFO sections in output order, each one yields its "field:value" lines
+    private final Map<String, Supplier<Map<String, Object>>> infoSections = new LinkedHashMap<>();
+
+    ServerHandler(InMemorySharedStore sharedStore, ServerStats stats, CommandDispatcher dispatcher, Persistence persistence) {
         super("Server", sharedStore);
-        config.put("SAVE", "3600 1 300 100 60 10000");
-        config.put("APPENDONLY", "no");
+        config.put("SAVE", persistence.getSaveParams());
+        config.put("DIR", persistence.getDir());
+        config.put("DBFILENAME", persistence.getDbFilename());
+        config.put("APPENDONLY", persistence.getAppendOnly());
+        config.put("APPENDFSYNC", persistence.getAppendFsync());
+        config.put("APPENDFILENAME", persistence.getAppendFilename());
+        config.put("APPENDDIRNAME", persistence.getAppendDirname());
+        config.put("AUTO-AOF-REWRITE-PERCENTAGE", Integer.toString(persistence.getAofRewritePercentage()));
+        config.put("AUTO-AOF-REWRITE-MIN-SIZE", Long.toString(persistence.getAofRewriteMinSize()));
+        config.put("AOF-REWRITE-RATE-LIMIT", Long.toString(persistence.getAofRewriteRateLimit()));
+
+        infoSections.put("server", () -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("transport", stats.getTransport());
+            return m;
+        });
+        infoSections.put("persistence", persistence::info);
+        infoSections.put("stats", () -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("total_commands_processed", stats.getCommandsProcessed());
+            m.put("total_flushes", stats.getFlushes());
+            m.put("commands_per_flush", String.format(Locale.ROOT, "%.2f", stats.getCommandsPerFlush()));
+            m.put("expired_keys", stats.getExpiredKeys());
+            m.put("expire_cycle_cpu_milliseconds", stats.getExpireCycleMillis());
+            return m;
+        });
+        infoSections.put("threads", () -> {
+            // 0 exec threads means commands run inline on the connection's thread
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("io_threads", dispatcher.getIoThreads());
+            m.put("exec_threads", dispatcher.getExecThreads());
+            m.put("exec_queue_depth", dispatcher.getExecQueueDepth());
+            m.put("io_queue_depth", dispatcher.getIoQueueDepth());
+            return m;
+        });
+        infoSections.put("keyspace", () -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            for (int i = 0; i < InMemorySharedStore.MAX_DB_SIZE; i++) {
+                int keys = sharedStore.getDB(i).size();
+                if (keys > 0)
+                    m.put("db" + i, "keys=" + keys + ",expires=" + sharedStore.expiresSize(i));
+            }
+            return m;
+        });
 
         commands.put("ACL CAT",
                 new Command(
@@ -128,20 +180,17 @@ public class ServerHandler extends RedisCommandHandler {
         );
         commands.put("BGREWRITEAOF",
                 new Command(
-                        (ctx, args) -> {
-                            return RespType.ofError("not implemented");
-                        },
+                        (ctx, args) -> RespType.ofString(persistence.bgrewriteaof()),
                         "BGREWRITEAOF",
                         "Asynchronously rewrites the append-only file to disk."
                 )
         );
         commands.put("BGSAVE",
                 new Command(
-                        (ctx, args) -> {
-                            return RespType.ofError("not implemented");
-                        },
+                        (ctx, args) -> RespType.ofString(persistence.bgsave(args.hasOption("SCHEDULE"))),
                         "BGSAVE [SCHEDULE]",
                         "Asynchronously saves the database(s) to disk."
+                        , Command.Part.ofOptionNamedSimple("SCHEDULE")
                 )
         );
         commands.put("COMMAND TEST",
@@ -248,7 +297,8 @@ public class ServerHandler extends RedisCommandHandler {
         commands.put("CONFIG RESETSTAT",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            stats.reset();
+                            return RespType.OK();
                         },
                         "CONFIG RESETSTAT",
                         "Resets the server's statistics."
@@ -271,7 +321,45 @@ public class ServerHandler extends RedisCommandHandler {
                                 throw new IllegalArgumentException("k/v pair not matched");
 
                             for (int i = 0; i < kv.length / 2; i++) {
-                                config.put(kv[i * 2].toUpperCase(), kv[i * 2 + 1]);
+                                String name = kv[i * 2].toUpperCase();
+                                String value = kv[i * 2 + 1];
+                                switch (name) {
+                                    case "SAVE":
+                                        persistence.setSaveParams(value);
+                                        value = persistence.getSaveParams();
+                                        break;
+                                    case "DIR":
+                                        persistence.setDir(value);
+                                        break;
+                                    case "DBFILENAME":
+                                        persistence.setDbFilename(value);
+                                        break;
+                                    case "APPENDONLY":
+                                        persistence.setAppendOnly(value);
+                                        value = persistence.getAppendOnly();
+                                        break;
+                                    case "APPENDFSYNC":
+                                        persistence.setAppendFsync(value);
+                                        value = persistence.getAppendFsync();
+                                        break;
+                                    case "APPENDFILENAME":
+                                        throw new IllegalArgumentException("appendfilename can't be changed at runtime");
+                                    case "APPENDDIRNAME":
+                                        throw new IllegalArgumentException("appenddirname can't be changed at runtime");
+                                    case "AUTO-AOF-REWRITE-PERCENTAGE":
+                                        persistence.setAofRewritePercentage(value);
+                                        value = Integer.toString(persistence.getAofRewritePercentage());
+                                        break;
+                                    case "AUTO-AOF-REWRITE-MIN-SIZE":
+                                        persistence.setAofRewriteMinSize(value);
+                                        value = Long.toString(persistence.getAofRewriteMinSize());
+                                        break;
+                                    case "AOF-REWRITE-RATE-LIMIT":
+                                        persistence.setAofRewriteRateLimit(value);
+                                        value = Long.toString(persistence.getAofRewriteRateLimit());
+                                        break;
+                                }
+                                config.put(name, value);
                             }
                             return RespType.OK();
                         },
@@ -304,7 +392,7 @@ public class ServerHandler extends RedisCommandHandler {
                         },
                         "FLUSHALL [ASYNC | SYNC]",
                         "Removes all keys from all databases."
-                )
+                ).write()
         );
         commands.put("FLUSHDB",
                 new Command(
@@ -314,22 +402,33 @@ public class ServerHandler extends RedisCommandHandler {
                         },
                         "FLUSHDB [ASYNC | SYNC]",
                         "Remove all keys from the current database."
-                )
+                ).write()
         );
         commands.put("INFO",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String section = args.optionValueAnonymous();
+                            boolean all = section == null || section.equalsIgnoreCase("all") || section.equalsIgnoreCase("everything");
+                            StringBuilder sb = new StringBuilder();
+                            infoSections.forEach((name, fields) -> {
+                                if (!all && !name.equalsIgnoreCase(section))
+                                    return;
+
+                                if (sb.length() > 0)
+                                    sb.append("\r\n");
+                                sb.append("# ").append(Character.toUpperCase(name.charAt(0))).append(name.substring(1)).append("\r\n");
+                                fields.get().forEach((k, v) -> sb.append(k).append(':').append(v).append("\r\n"));
+                            });
+                            return RespType.ofBulkString(sb.toString());
                         },
                         "INFO [section [section ...]]",
                         "Returns information and statistics about the server."
+                        , Command.Part.ofOptionAnonymous("section")
                 )
         );
         commands.put("LASTSAVE",
                 new Command(
-                        (ctx, args) -> {
-                            return RespType.ofError("not implemented");
-                        },
+                        (ctx, args) -> RespType.ofLong(persistence.getLastSave()),
                         "LASTSAVE",
                         "Returns the Unix timestamp of the last successful save to disk."
                 )
@@ -535,7 +634,8 @@ public class ServerHandler extends RedisCommandHandler {
         commands.put("SAVE",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            persistence.save();
+                            return RespType.OK();
                         },
                         "SAVE",
                         "Synchronously saves the database(s) to disk."
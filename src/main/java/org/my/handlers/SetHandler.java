@@ -1,6 +1,8 @@
 package org.my.handlers;
 
 import org.my.*;
+import org.my.zedis.CompactSet;
+import org.my.zedis.Database;
 import org.my.zedis.InMemorySharedStore;
 import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
@@ -9,6 +11,7 @@ import org.springframework.stereotype.Component;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static org.my.handlers.SortedSetHandler.zsetInterCard;
@@ -24,7 +27,7 @@ public class SetHandler extends RedisCommandHandler {
 
         ctx.getStore().compute(key, (k, v) -> {
             if (v == null) {
-                v = ValueWithTTL.ofSetValue();
+                v = ValueWithTTL.ofSetValue(ctx.getStore().encodings());
             }
 
             assertValueType(valueType, v);
@@ -37,23 +40,47 @@ public class SetHandler extends RedisCommandHandler {
 
     }
 
-    private RespType setX(Context ctx, String[] keys, BiFunction<String[], Map<String, ValueWithTTL>, Set<String>> op) {
+    // twin of handleSet for the commands that never create the key, a missing key reads as an empty one
+    @SuppressWarnings("unchecked")
+    private <T> T handleExistingSet(Context ctx, String key, Function<Set<String>, T> func) {
+        T[] ret = (T[]) new Object[1];
+        boolean[] found = new boolean[1];
+
+        ctx.getStore().computeIfPresent(key, (k, v) -> {
+            assertValueType(valueType, v);
+            Set<String> set = v.getValueAsSet();
+            ret[0] = func.apply(set);
+            found[0] = true;
+            return set.size() == 0? null : v;
+        });
+        return found[0]? ret[0] : func.apply(ValueWithTTL.getSet(ctx.getStore().encodings()));
+    }
+
+    // read only twin of handleSet
+    private <T> T readSet(Context ctx, String key, Function<Set<String>, T> func) {
+        ValueWithTTL v = ctx.getStore().get(key);
+        assertValueType(valueType, v);
+        return func.apply(v == null? ValueWithTTL.getSet(ctx.getStore().encodings()) : v.getValueAsSet());
+    }
+
+    private RespType setX(Context ctx, String[] keys, BiFunction<String[], Database, Set<String>> op) {
         Set<String> r = op.apply(keys, ctx.getStore());
         return RespType.ofArray(r.toArray(new String[0]));
     }
 
-    private RespType setXStore(Context ctx, String[] keys, String dest, BiFunction<String[], Map<String, ValueWithTTL>, Set<String>> op) {
+    private RespType setXStore(Context ctx, String[] keys, String dest, BiFunction<String[], Database, Set<String>> op) {
         Set<String> d = op.apply(keys, ctx.getStore());
         ctx.getStore().put(dest, ValueWithTTL.ofSetValue(d));
         return RespType.ofLong(d.size());
     }
 
-    private static Set<String> diff(String[] keys, Map<String, ValueWithTTL> store) {
+    private static Set<String> diff(String[] keys, Database store) {
         ValueWithTTL v = store.get(keys[0]);
         if (v == null) {
-            return ValueWithTTL.getSet();
+            return ValueWithTTL.getSet(store.encodings());
         } else {
-            Set<String> src = v.getValueAsSet();
+            Set<String> src = ValueWithTTL.getSet(store.encodings());
+            src.addAll(v.getValueAsSet());
             for (int i = 1; i < keys.length; i++) {
                 ValueWithTTL t = store.get(keys[i]);
                 if (t != null) {
@@ -64,16 +91,16 @@ public class SetHandler extends RedisCommandHandler {
         }
     }
 
-    private static Set<String> inter(String[] keys, Map<String, ValueWithTTL> store) {
+    private static Set<String> inter(String[] keys, Database store) {
         Set<String> minSet = Arrays.stream(keys).map(x -> {
             ValueWithTTL v = store.get(x);
-            return v == null? ValueWithTTL.getSet() : v.getValueAsSet();
-        }).min(Comparator.comparingInt(Set::size)).orElse(ValueWithTTL.getSet());
+            return v == null? ValueWithTTL.getSet(store.encodings()) : v.getValueAsSet();
+        }).min(Comparator.comparingInt(Set::size)).orElse(ValueWithTTL.getSet(store.encodings()));
 
         if (minSet.size() == 0)
             return minSet;
 
-        Set<String> ret = ValueWithTTL.getSet();
+        Set<String> ret = ValueWithTTL.getSet(store.encodings());
         ret.addAll(minSet);
 
         for (String k: keys) {
@@ -85,16 +112,15 @@ public class SetHandler extends RedisCommandHandler {
         return ret;
     }
 
-    private static Set<String> union(String[] keys, Map<String, ValueWithTTL> store) {
+    private static Set<String> union(String[] keys, Database store) {
         return Arrays
                 .stream(keys)
                 .map(x -> {
                     ValueWithTTL v = store.get(x);
-                    return v == null? ValueWithTTL.getSet() : v.getValueAsSet();
+                    return v == null? ValueWithTTL.getSet(store.encodings()) : v.getValueAsSet();
                 })
                 .flatMap(Set::stream)
-                .map(Object::toString)
-                .collect(Collectors.toSet());
+                .collect(Collectors.toCollection(() -> ValueWithTTL.getSet(store.encodings())));
     }
 
     private static RespType accessAndDelete(Context ctx, String key, String count) {
@@ -139,7 +165,7 @@ public class SetHandler extends RedisCommandHandler {
         commands.put("SADD",
                 new Command(
                         (ctx, args) -> {
-                            int n = handleSet(ctx, args.valueWithName("key"), x -> {
+                            int n = handleSet(ctx, args.valueAt(KEY).asString(), x -> {
                                 int i = 0;
                                 for (String m: args.valueListDefault()) {
                                     if (!x.contains(m)) {
@@ -155,12 +181,12 @@ public class SetHandler extends RedisCommandHandler {
                         "Adds one or more members to a set. Creates the key if it doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("member")
-                )
+                ).write().valueSlots("key")
         );
         commands.put("SCARD",
                 new Command(
                         (ctx, args) -> {
-                            int ret = handleSet(ctx, args.valueWithName("key"), Set::size);
+                            int ret = readSet(ctx, args.valueWithName("key"), Set::size);
                             return RespType.ofLong(ret);
                         },
                         "SCARD key",
@@ -183,7 +209,7 @@ public class SetHandler extends RedisCommandHandler {
                         "Stores the difference of multiple sets in a key."
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofListValue("key")
-                )
+                ).write()
         );
         commands.put("SINTER",
                 new Command(
@@ -212,12 +238,12 @@ public class SetHandler extends RedisCommandHandler {
                         "Stores the intersect of multiple sets in a key."
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofListValue("key")
-                )
+                ).write()
         );
         commands.put("SISMEMBER",
                 new Command(
                         (ctx, args) -> {
-                            boolean is = handleSet(ctx, args.valueWithName("key"), x -> x.contains(args.valueWithName("member")));
+                            boolean is = readSet(ctx, args.valueWithName("key"), x -> x.contains(args.valueWithName("member")));
                             return RespType.ofLong(is? 1 : 0);
                         },
                         "SISMEMBER key member",
@@ -229,7 +255,7 @@ public class SetHandler extends RedisCommandHandler {
         commands.put("SMEMBERS",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleSet(ctx, args.valueWithName("key"), x -> x.toArray(new String[0]));
+                            String[] ret = readSet(ctx, args.valueWithName("key"), x -> x.toArray(new String[0]));
                             return RespType.ofArray(ret);
                         },
                         "SMEMBERS key",
@@ -243,12 +269,12 @@ public class SetHandler extends RedisCommandHandler {
                             String key = args.valueWithName("key");
                             String[] members = args.valueListDefault();
 
-                            Integer[] ret = new Integer[members.length];
-                            ctx.getStore().computeIfPresent(key, (k, v) -> {
+                            Integer[] ret = readSet(ctx, key, x -> {
+                                Integer[] r = new Integer[members.length];
                                 for (int i = 0; i < members.length; i++) {
-                                    ret[i] = v.getValueAsSet().contains(members[i])? 1 : 0;
+                                    r[i] = x.contains(members[i])? 1 : 0;
                                 }
-                                return v;
+                                return r;
                             });
                             return RespType.ofArray(ret);
                         },
@@ -261,7 +287,7 @@ public class SetHandler extends RedisCommandHandler {
         commands.put("SMOVE",
                 new Command(
                         (ctx, args) -> {
-                            int ret = handleSet(ctx, args.valueWithName("source"), s -> {
+                            int ret = handleExistingSet(ctx, args.valueWithName("source"), s -> {
                                 String member = args.valueWithName("member");
                                 if (s.contains(member)) {
                                     boolean done = handleSet(ctx, args.valueWithName("destination"), d -> d.add(member));
@@ -280,7 +306,7 @@ public class SetHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("source")
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofValue("member")
-                )
+                ).write()
         );
         commands.put("SPOP",
                 new Command(
@@ -289,11 +315,11 @@ public class SetHandler extends RedisCommandHandler {
                         "Returns one or more random members from a set after removing them. Deletes the set if the last member was popped."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofOptionAnonymous("count")
-                )
+                ).write()
         );
         commands.put("SRANDMEMBER",
                 new Command(
-                        (ctx, args) -> handleSet(ctx, args.valueWithName("key"),
+                        (ctx, args) -> readSet(ctx, args.valueWithName("key"),
                                 x -> handleRandomSelect(x,args.optionValueAnonymous(), false, null)),
                         "SRANDMEMBER key [count]",
                         "Get one or multiple random members from a set"
@@ -304,7 +330,7 @@ public class SetHandler extends RedisCommandHandler {
         commands.put("SREM",
                 new Command(
                         (ctx, args) -> {
-                            int n = handleSet(ctx, args.valueWithName("key"), x -> {
+                            int n = handleExistingSet(ctx, args.valueWithName("key"), x -> {
                                 int c = 0;
                                 String[] members = args.valueListDefault();
                                 for (String m: members) {
@@ -321,19 +347,36 @@ public class SetHandler extends RedisCommandHandler {
                         "Removes one or more members from a set. Deletes the set if the last member was removed."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("member")
-                )
+                ).write()
         );
         commands.put("SSCAN",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            long cursor = parseCursor(args.valueWithName("cursor"));
+                            ScanOptions opts = scanOptions(args, false);
+                            int count = opts.getCount();
+                            Predicate<String> matcher = opts.getMatcher();
+                            ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
+                            assertValueType(valueType, v);
+
+                            List<String> members = new ArrayList<>();
+                            if (v != null) {
+                                Set<String> set = v.getValueAsSet();
+                                if (set instanceof CompactSet) {
+                                    cursor = scanSteps(cursor, count, members, c -> ((CompactSet) set).scan(c, members::add));
+                                } else {
+                                    members.addAll(set);
+                                    cursor = 0;
+                                }
+                            }
+                            members.removeIf(matcher.negate());
+                            return scanReply(cursor, members);
                         },
                         "SSCAN key cursor [MATCH pattern] [COUNT count]",
                         "Iterates over members of a set."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("cursor")
-                        , Command.Part.ofOptionNamedSimple("MATCH", "pattern")
-                        , Command.Part.ofOptionNamedSimple("COUNT", "count")
+                        , Command.Part.ofOptionalListValue("option", "value")
                 )
         );
         commands.put("SUNION",
@@ -351,7 +394,7 @@ public class SetHandler extends RedisCommandHandler {
                         "Stores the union of multiple sets in a key."
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofListValue("key")
-                )
+                ).write()
         );
     }
 }
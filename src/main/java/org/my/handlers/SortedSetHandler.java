@@ -1,16 +1,19 @@
 package org.my.handlers;
 
+import org.my.Argument;
 import org.my.Command;
 import org.my.Context;
 import org.my.ValueWithTTL;
 import org.my.zedis.InMemorySharedStore;
 import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
+import org.my.zedis.ZSkipList;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @Component
@@ -24,7 +27,7 @@ public class SortedSetHandler extends RedisCommandHandler {
 
         ctx.getStore().compute(key, (k, v) -> {
             if (v == null) {
-                v = ValueWithTTL.ofSortedSetValue();
+                v = ValueWithTTL.ofSortedSetValue(ctx.getStore().encodings());
             }
 
             assertValueType(valueType, v);
@@ -37,20 +40,34 @@ public class SortedSetHandler extends RedisCommandHandler {
 
     }
 
-    SortedSet<ValueWithTTL.ZSet.Item> rankByScore(ValueWithTTL.ZSet set, String min, String max) {
-        boolean minInclusive = !min.startsWith("(");
-        boolean maxInclusive = !max.startsWith("(");
-        double minV = Double.parseDouble(min.replaceFirst("^\\(", ""));
-        double maxV = Double.parseDouble(max.replaceFirst("^\\(", ""));
-        return set.asSet().subSet(ValueWithTTL.ofItem(minV), minInclusive,
-                ValueWithTTL.ofItem(maxV), maxInclusive);
+    // twin of handleSortSet for the commands that never create the key, a missing key reads as an empty one
+    @SuppressWarnings("unchecked")
+    private <T> T handleExistingSortSet(Context ctx, String key, Function<ValueWithTTL.ZSet, T> func) {
+        T[] ret = (T[]) new Object[1];
+        boolean[] found = new boolean[1];
+
+        ctx.getStore().computeIfPresent(key, (k, v) -> {
+            assertValueType(valueType, v);
+            ValueWithTTL.ZSet set = v.getValueAsSortedSet();
+            ret[0] = func.apply(set);
+            found[0] = true;
+            return set.size() == 0? null : v;
+        });
+        return found[0]? ret[0] : func.apply(ValueWithTTL.getSortedSet(ctx.getStore().encodings()));
+    }
+
+    // read only twin of handleSortSet
+    private <T> T readSortSet(Context ctx, String key, Function<ValueWithTTL.ZSet, T> func) {
+        ValueWithTTL v = ctx.getStore().get(key);
+        assertValueType(valueType, v);
+        return func.apply(v == null? ValueWithTTL.getSortedSet(ctx.getStore().encodings()) : v.getValueAsSortedSet());
     }
 
     ValueWithTTL.ZSet zsetDiff(Context ctx, String[] keys) {
-        ValueWithTTL.ZSet src = new ValueWithTTL.ZSet();
-        ctx.getStore().get(keys[0]).getValueAsSortedSet().asSet().forEach(src::add);
+        ValueWithTTL.ZSet src = ValueWithTTL.getSortedSet(ctx.getStore().encodings());
+        ctx.getStore().get(keys[0]).getValueAsSortedSet().forEach(src::add);
         for (int i = 1; i < keys.length; i++) {
-            ctx.getStore().get(keys[i]).getValueAsSortedSet().asSet().forEach(src::remove);
+            ctx.getStore().get(keys[i]).getValueAsSortedSet().forEach(src::remove);
         }
         return src;
     }
@@ -58,8 +75,8 @@ public class SortedSetHandler extends RedisCommandHandler {
     public static long zsetInterCard(Context ctx, String[] keys, String limit) {
         Set<String> minSet = Arrays.stream(keys).map(x -> {
             ValueWithTTL v = ctx.getStore().get(x);
-            return v == null? ValueWithTTL.getSet() : v.getValueAsSet();
-        }).min(Comparator.comparingInt(Set::size)).orElse(ValueWithTTL.getSet());
+            return v == null? ValueWithTTL.getSet(ctx.getStore().encodings()) : v.getValueAsSet();
+        }).min(Comparator.comparingInt(Set::size)).orElse(ValueWithTTL.getSet(ctx.getStore().encodings()));
 
         if (minSet.size() == 0)
             return 0;
@@ -88,10 +105,10 @@ public class SortedSetHandler extends RedisCommandHandler {
 
         Set<String> minSet = Arrays.stream(keys).map(x -> {
             ValueWithTTL v = ctx.getStore().get(x);
-            return v == null? ValueWithTTL.getSet() : v.getValueAsSet();
-        }).min(Comparator.comparingInt(Set::size)).orElse(ValueWithTTL.getSet());
+            return v == null? ValueWithTTL.getSet(ctx.getStore().encodings()) : v.getValueAsSet();
+        }).min(Comparator.comparingInt(Set::size)).orElse(ValueWithTTL.getSet(ctx.getStore().encodings()));
 
-        ValueWithTTL.ZSet src = new ValueWithTTL.ZSet();
+        ValueWithTTL.ZSet src = ValueWithTTL.getSortedSet(ctx.getStore().encodings());
         if (minSet.size() == 0)
             return src;
 
@@ -137,16 +154,14 @@ public class SortedSetHandler extends RedisCommandHandler {
                 .stream(keys)
                 .map(x -> {
                     ValueWithTTL.ZSet v = ctx.getStore().get(x).getValueAsSortedSet();
-                    return v == null? ValueWithTTL.getSortedSet() : v;
+                    return v == null? ValueWithTTL.getSortedSet(ctx.getStore().encodings()) : v;
                 })
-                .map(ValueWithTTL.ZSet::asSet)
-                .flatMap(Set::stream)
-                .map(Object::toString)
+                .flatMap(x -> x.getKeySet().stream())
                 .collect(Collectors.toSet());
 
         Double[] factor = Arrays.stream(weights).map(Double::parseDouble).toArray(Double[]::new);
         Function<List<Double>, Double> func = AGGREGATE_FUNCS.get(aggregate);
-        ValueWithTTL.ZSet src = new ValueWithTTL.ZSet();
+        ValueWithTTL.ZSet src = ValueWithTTL.getSortedSet(ctx.getStore().encodings());
         for (String x: keySet) {
             double v = aggregateSetMember(ctx, keys, factor, x, func);
             src.add(ValueWithTTL.ofItem(x, v));
@@ -155,148 +170,58 @@ public class SortedSetHandler extends RedisCommandHandler {
         return src;
     }
 
-    Set<ValueWithTTL.ZSet.Item> zsetRange(Context ctx, String key, String min, String max, boolean byScoreOrLex, boolean isRev, String offset, String count) {
-        // FIXME: this does not work as REDIS
-        String startStr = isRev? max : min;
-        String endStr = isRev? min : max;
-
-        if (byScoreOrLex) {
-            double start;
-            boolean startInclusive = !startStr.startsWith("(");
-            if (startStr.equals("-inf")) {
-                start = Double.MIN_VALUE;
-            } else {
-                if (!startInclusive) {
-                    startStr = startStr.substring(1);
-                }
-                start = Double.parseDouble(startStr);
-            }
-
-            double end;
-            boolean endInclusive = !endStr.startsWith("(");
-            if (endStr.equals("+inf")) {
-                end = Double.MAX_VALUE;
-            } else {
-                if (!endInclusive) {
-                    endStr = endStr.substring(1);
-                }
-                end = Double.parseDouble(endStr);
-            }
-
-            if (start > end) {
-                throw new IllegalArgumentException("invalid min/max value");
-            }
-
-            SortedSet<ValueWithTTL.ZSet.Item> r = handleSortSet(ctx, key,
-                    x -> x.asSet().subSet(ValueWithTTL.ofItem(start), startInclusive, ValueWithTTL.ofItem(end), endInclusive));
-            if (offset != null) {
-                int o = Integer.parseInt(offset);
-                if (o < 0) {
-                    return new ValueWithTTL.ZSet().asSet();
-                }
-                int c = Integer.parseInt(count);
-                if (c < 0) {
-                    return r.stream().skip(o).collect(Collectors.toSet());
-                } else {
-                    return r.stream().skip(o).limit(c).collect(Collectors.toSet());
-                }
-            } else {
-                return r;
-            }
-        } else {
-            boolean startInclusive;
-            if (startStr.startsWith("["))
-                startInclusive = true;
-            else if (startStr.startsWith("("))
-                startInclusive = false;
-            else {
-                startInclusive = false;
-                if (!startStr.equals("-"))
-                    throw new IllegalArgumentException("syntax error");
-            }
-
-            boolean endInclusive;
-            if (endStr.startsWith("["))
-                endInclusive = true;
-            else if (endStr.startsWith("("))
-                endInclusive = false;
-            else {
-                endInclusive = false;
-                if (!endStr.equals("+"))
-                    throw new IllegalArgumentException("syntax error");
-            }
-
-            final String start = startStr.replaceAll("^[(\\[]", "");
-            final String end = endStr.replaceAll("^[(\\[]", "");
-            ValueWithTTL.ZSet.Item[] r = handleSortSet(ctx, key, x -> {
-                String[] keys = x.asSet().stream().map(ValueWithTTL.ZSet.Item::getKey).toArray(String[]::new);
-                int a = start.equals("-") ? 0 : searchValueOrBoundary(keys, start, BoundaryType.UPPER_BOUNDARY, startInclusive);
-                int b = end.equals("+") ? keys.length - 1 : searchValueOrBoundary(keys, end, BoundaryType.LOWER_BOUNDARY, endInclusive);
-                return Arrays.stream(Arrays.copyOfRange(keys, a, b + 1))
-                        .map(i -> ValueWithTTL.ofItem(i, 0.0))
-                        .toArray(ValueWithTTL.ZSet.Item[]::new);
+    enum RangeBy { INDEX, SCORE, LEX }
+
+    /**
+     * Members of a sorted set in the order of ZRANGE: {@code start} and {@code stop} are ranks, or the bounds of
+     * a score or lex range, and with {@code rev} the order is reversed and start is the upper bound.
+     */
+    List<ValueWithTTL.ZSet.Item> zsetRange(Context ctx, String key, String start, String stop, RangeBy by, boolean rev,
+                                           String offset, String count) {
+        if (by == RangeBy.INDEX) {
+            if (offset != null)
+                throw new IllegalArgumentException("syntax error, LIMIT is only supported in combination with either BYSCORE or BYLEX");
+            return readSortSet(ctx, key, x -> {
+                long[] r = rankRange(x, start, stop);
+                return r == null? Collections.emptyList() : x.range(r[0], r[1], rev);
             });
-
-            if (offset != null) {
-                int o = Integer.parseInt(offset);
-                if (o < 0) {
-                    return new ValueWithTTL.ZSet().asSet();
-                }
-                int c = Integer.parseInt(count);
-                if (c < 0) {
-                    return Arrays.stream(r).skip(o).collect(Collectors.toSet());
-                } else {
-                    return Arrays.stream(r).skip(o).limit(c).collect(Collectors.toSet());
-                }
-            } else {
-                return Arrays.stream(r).collect(Collectors.toSet());
-            }
         }
-    }
 
-    enum BoundaryType {
-        LOWER_BOUNDARY,
-        UPPER_BOUNDARY
+        ZSkipList.Range range = zsetRange(by, rev? stop : start, rev? start : stop);
+        long o = offset == null? 0 : Long.parseLong(offset);
+        long c = count == null? -1 : Long.parseLong(count);
+        if (o < 0)
+            return Collections.emptyList();
+        return readSortSet(ctx, key, x -> x.range(range, rev, o, c));
     }
 
-    private static int searchValueOrBoundary(String[] array, String key, BoundaryType type, boolean inclusive) {
-        int low = 0;
-        int high = array.length - 1;
-        int resultIndex = -1;
-
-        while (low <= high) {
-            int mid = low + (high - low) / 2;
-            if (array[mid].compareTo(key) == 0) {
-                return inclusive? mid :
-                        type == BoundaryType.LOWER_BOUNDARY? mid - 1 : mid + 1; // Value found
-            } else if (array[mid].compareTo(key) < 0) {
-                resultIndex = mid;
-                low = mid + 1;
-            } else {
-                high = mid - 1;
-            }
-        }
+    private static ZSkipList.Range zsetRange(RangeBy by, String min, String max) {
+        return by == RangeBy.SCORE? ZSkipList.scoreRange(min, max) : ZSkipList.lexRange(min, max);
+    }
 
-        if (type == BoundaryType.LOWER_BOUNDARY) {
-            return resultIndex;
-        } else {
-            return high;
-        }
+    // ranks from start to stop, negative ones counted from the end, clamped to the set, null if none is left
+    private static long[] rankRange(ValueWithTTL.ZSet x, String start, String stop) {
+        long size = x.size();
+        long a = Long.parseLong(start);
+        long b = Long.parseLong(stop);
+        if (a < 0)
+            a = Math.max(a + size, 0);
+        if (b < 0)
+            b += size;
+        if (b >= size)
+            b = size - 1;
+        return a > b? null : new long[]{a, b};
     }
 
     Long zsetRank(Context ctx, String key, String member, boolean isRev) {
-        return handleSortSet(ctx, key, x -> {
-            if (x.size() == 0 || !x.containsKey(member))
-                return null;
-
-            ValueWithTTL.ZSet.Item i = x.getItem(member);
-            int n = x.asSet().headSet(i, true).size();
-            return (long) (isRev? x.size() - n : n - 1);
+        return readSortSet(ctx, key, x -> {
+            long rank = x.rank(member, isRev);
+            return rank < 0? null : rank;
         });
     }
 
     long zsetRemByKey(Context ctx, String key, String[] members) {
-        return handleSortSet(ctx, key, x -> {
+        return handleExistingSortSet(ctx, key, x -> {
             if (x.size() == 0)
                 return 0L;
 
@@ -308,43 +233,15 @@ public class SortedSetHandler extends RedisCommandHandler {
         });
     }
 
-    long zsetRemByRange(Context ctx, String key, String min, String max, boolean byScoreOrLex) {
-        Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, byScoreOrLex, false, null, null);
-        return handleSortSet(ctx, key, x -> {
-            zset.forEach(x::remove);
-            return (long) zset.size();
-        });
+    long zsetRemByRange(Context ctx, String key, String min, String max, RangeBy by) {
+        ZSkipList.Range range = zsetRange(by, min, max);
+        return handleExistingSortSet(ctx, key, x -> x.removeRange(range));
     }
 
-    long zsetRemByRank(Context ctx, String key, String min, String max) {
-        long a = Integer.parseInt(min);
-        if (a < 0) {
-            a += ctx.getStore().size();
-            if (a < 0)
-                a = 0;
-        }
-        long b = Integer.parseInt(max);
-        if (b < 0) {
-            b += ctx.getStore().size();
-            if (b < 0)
-                b = 0;
-        }
-
-        if (a > b)
-            return 0;
-
-        Long[] in = new Long[2];
-        in[0] = a;
-        in[1] = b;
-        return handleSortSet(ctx, key, x -> {
-            if (in[0] >= x.size())
-                return 0L;
-            if (in[1] >= x.size())
-                in[1] = x.size() - 1L;
-
-            AtomicInteger c = new AtomicInteger();
-            x.asSet().stream().skip(in[1]).limit(in[1] - in[0] + 1).forEach(e -> { x.asSet().remove(e); c.getAndIncrement(); });
-            return c.longValue();
+    long zsetRemByRank(Context ctx, String key, String start, String stop) {
+        return handleExistingSortSet(ctx, key, x -> {
+            long[] r = rankRange(x, start, stop);
+            return r == null? 0L : x.removeRange(r[0], r[1]);
         });
     }
 
@@ -359,6 +256,7 @@ public class SortedSetHandler extends RedisCommandHandler {
         List<String> r = new ArrayList<>();
         while (c-- > 0 && zSet.size() > 0) {
             ValueWithTTL.ZSet.Item item = func.apply(zSet);
+            zSet.remove(item);
             r.add(item.getKey());
             r.add(item.getScore().toString());
         }
@@ -366,18 +264,54 @@ public class SortedSetHandler extends RedisCommandHandler {
         return r.toArray(new String[0]);
     }
 
-    private RespType toRespType(Set<ValueWithTTL.ZSet.Item> zset, boolean withScores) {
-        return RespType.ofArray(zset.stream()
-                .map(x -> {
-                    if (withScores) {
-                        return new String[] { x.getKey(), x.getScore().toString() };
-                    } else {
-                        return new String[] { x.getKey() };
-                    }
-                })
-                .flatMap(Arrays::stream)
-                .toArray(String[]::new)
-        );
+    // pops one member from the first non empty sorted set, null if all are empty
+    private RespType zsetPopFirst(Context ctx, String[] keys, Function<ValueWithTTL.ZSet, ValueWithTTL.ZSet.Item> func) {
+        for (String key: keys) {
+            String[] r = handleExistingSortSet(ctx, key, x -> x.size() == 0? null : zsetPop(null, x, func));
+            if (r != null)
+                return RespType.ofArray(key, r[0], r[1]);
+        }
+        return null;
+    }
+
+    // pops up to count members from the first non empty sorted set, null if all are empty
+    private RespType zsetMultiPop(Context ctx, String[] keys, boolean min, int count) {
+        for (String key: keys) {
+            RespType[] r = handleExistingSortSet(ctx, key, x -> {
+                if (x.size() == 0)
+                    return null;
+
+                RespType[] t = new RespType[Math.min(count, x.size())];
+                for (int i = 0; i < t.length; i++) {
+                    ValueWithTTL.ZSet.Item item = min? x.first() : x.last();
+                    x.remove(item);
+                    t[i] = RespType.ofArray(item.getKey(), item.getScore().toString());
+                }
+                return t;
+            });
+            if (r != null)
+                return RespType.ofArray(RespType.ofBulkString(key), RespType.ofArray(r));
+        }
+        return null;
+    }
+
+    private static int multiPopCount(Argument args) {
+        if (!args.hasOption("COUNT"))
+            return 1;
+        int count = Integer.parseInt(args.optionWithName("COUNT")[0]);
+        if (count <= 0)
+            throw new IllegalArgumentException("count should be greater than 0");
+        return count;
+    }
+
+    private RespType toRespType(Iterable<ValueWithTTL.ZSet.Item> zset, boolean withScores) {
+        List<String> r = new ArrayList<>();
+        for (ValueWithTTL.ZSet.Item x: zset) {
+            r.add(x.getKey());
+            if (withScores)
+                r.add(x.getScore().toString());
+        }
+        return RespType.ofArray(r.toArray(new String[0]));
     }
 
     SortedSetHandler(InMemorySharedStore sharedStore) {
@@ -386,36 +320,45 @@ public class SortedSetHandler extends RedisCommandHandler {
         commands.put("BZMPOP",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String[] keys = args.valueListDefault();
+                            boolean min = args.termAtPos(1).equals("MIN");
+                            int count = multiPopCount(args);
+                            return blockingPop(ctx, keys, parseTimeout(args.valueWithName("timeout")), RespType.NullArray(),
+                                    () -> zsetMultiPop(ctx, keys, min, count));
                         },
-                        "BZMPOP timeout numkeys key [key ...] [COUNT count]",
+                        "BZMPOP timeout numkeys key [key ...] <MIN | MAX> [COUNT count]",
                         "Removes and returns a member by score from one or more sorted sets. Blocks until a member is available otherwise. Deletes the sorted set if the last element was popped."
                         , Command.Part.ofValue("timeout")
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
+                        , Command.Part.ofTermValue(1, "MIN", "MAX")
                         , Command.Part.ofOptionNamedSimple("COUNT", "count")
-                )
+                ).blocking().write()
         );
         commands.put("BZPOPMAX",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String[] keys = args.valueListDefault();
+                            return blockingPop(ctx, keys, parseTimeout(args.valueWithName("timeout")), RespType.NullArray(),
+                                    () -> zsetPopFirst(ctx, keys, ValueWithTTL.ZSet::last));
                         },
                         "BZPOPMAX key [key ...] timeout",
                         "Removes and returns the member with the highest score from one or more sorted sets. Blocks until a member available otherwise.  Deletes the sorted set if the last element was popped."
-                        , Command.Part.ofListValue("key") // FIXME: value after var-length list
+                        , Command.Part.ofListValue("key")
                         , Command.Part.ofValue("timeout")
-                )
+                ).blocking().write()
         );
         commands.put("BZPOPMIN",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            String[] keys = args.valueListDefault();
+                            return blockingPop(ctx, keys, parseTimeout(args.valueWithName("timeout")), RespType.NullArray(),
+                                    () -> zsetPopFirst(ctx, keys, ValueWithTTL.ZSet::first));
                         },
                         "BZPOPMIN key [key ...] timeout",
                         "Removes and returns the member with the lowest score from one or more sorted sets. Blocks until a member is available otherwise. Deletes the sorted set if the last element was popped."
-                        , Command.Part.ofListValue("key") // FIXME: value after var-length list
+                        , Command.Part.ofListValue("key")
                         , Command.Part.ofValue("timeout")
-                )
+                ).blocking().write()
         );
         commands.put("ZADD",
                 new Command(
@@ -457,12 +400,12 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofOptionNamedSimple("CH")
                         , Command.Part.ofOptionNamedSimple("INCR")
                         , Command.Part.ofListValue("score", "member")
-                )
+                ).write()
         );
         commands.put("ZCARD",
                 new Command(
                         (ctx, args) -> {
-                            int ret = handleSortSet(ctx, args.valueWithName("key"), ValueWithTTL.ZSet::size);
+                            int ret = readSortSet(ctx, args.valueWithName("key"), ValueWithTTL.ZSet::size);
                             return RespType.ofLong(ret);
                         },
                         "ZCARD key",
@@ -473,8 +416,8 @@ public class SortedSetHandler extends RedisCommandHandler {
         commands.put("ZCOUNT",
                 new Command(
                         (ctx, args) -> {
-                            int ret = handleSortSet(ctx, args.valueWithName("key"),
-                                    x -> rankByScore(x, args.valueWithName("min"), args.valueWithName("max")).size());
+                            ZSkipList.Range range = ZSkipList.scoreRange(args.valueWithName("min"), args.valueWithName("max"));
+                            long ret = readSortSet(ctx, args.valueWithName("key"), x -> x.count(range));
                             return RespType.ofLong(ret);
                         },
                         "ZCOUNT key min max",
@@ -488,7 +431,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                 new Command(
                         (ctx, args) -> {
                             ValueWithTTL.ZSet diff = zsetDiff(ctx, args.valueListDefault());
-                            return toRespType(diff.asSet(), args.hasOption("WITHSCORES"));
+                            return toRespType(diff, args.hasOption("WITHSCORES"));
                         },
                         "ZDIFF numkeys key [key ...] [WITHSCORES]",
                         "Returns the difference between multiple sorted sets."
@@ -507,7 +450,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                         "Stores the difference of multiple sorted sets in a key."
                         , Command.Part.ofValue("destination")
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
-                )
+                ).write()
         );
         commands.put("ZINCRBY",
                 new Command(
@@ -530,14 +473,14 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("increment")
                         , Command.Part.ofValue("member")
-                )
+                ).write()
         );
         commands.put("ZINTER",
                 new Command(
                         (ctx, args) -> {
                             ValueWithTTL.ZSet zset = zsetInter(ctx, args.valueListDefault(), args.optionWithName("WEIGHTS"),
                                     args.optionWithName("AGGREGATE")[0]);
-                            return toRespType(zset.asSet(), args.hasOption("WITHSCORES"));
+                            return toRespType(zset, args.hasOption("WITHSCORES"));
                         },
                         "ZINTER numkeys key [key ...] [WEIGHTS weight [weight ...]] [AGGREGATE <SUM | MIN | MAX>] [WITHSCORES]",
                         "Returns the intersect of multiple sorted sets."
@@ -573,15 +516,14 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
                         , Command.Part.ofOptionNamedVarList("WEIGHTS", "weight")
                         , Command.Part.ofOptionNamedTerms("AGGREGATE", "SUM", "MIN", "MAX")
-                )
+                ).write()
         );
         commands.put("ZLEXCOUNT",
                 new Command(
                         (ctx, args) -> {
-                            String min = args.valueWithName("min");
-                            String max = args.valueWithName("max");
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, args.valueWithName("key"), min, max, true, false, null, null);
-                            return RespType.ofLong(zset.size());
+                            ZSkipList.Range range = ZSkipList.lexRange(args.valueWithName("min"), args.valueWithName("max"));
+                            long ret = readSortSet(ctx, args.valueWithName("key"), x -> x.count(range));
+                            return RespType.ofLong(ret);
                         },
                         "ZLEXCOUNT key min max",
                         "Returns the number of members in a sorted set within a lexicographical range."
@@ -593,57 +535,21 @@ public class SortedSetHandler extends RedisCommandHandler {
         commands.put("ZMPOP",
                 new Command(
                         (ctx, args) -> {
-                            boolean byMinOrMax = args.termAtPos(1).equals("MIN");
-                            Map<String, List<ValueWithTTL.ZSet.Item>> ret = new HashMap<>();
-                            String[] keys = args.valueListDefault();
-                            Long[] count = new Long[1];
-                            count[0] = Long.parseLong(args.optionWithName("COUNT")[0]);
-                            for (String key: keys) {
-                                List<ValueWithTTL.ZSet.Item> r = handleSortSet(ctx, key, x ->  {
-                                    if (x.size() == 0)
-                                        return null;
-
-                                    List<ValueWithTTL.ZSet.Item> t = new ArrayList<>();
-                                    while (x.size() > 0 && count[0] > 0) {
-                                        ValueWithTTL.ZSet.Item i = byMinOrMax? x.first() : x.last();
-                                        t.add(i);
-                                        x.remove(i);
-                                        count[0]--;
-                                    }
-                                    return t;
-                                });
-
-                                if (r != null) {
-                                    ret.put(key, r);
-                                    break;
-                                }
-                            }
-
-                            RespType[] r = new RespType[ret.size() * 2];
-                            int n = 0;
-                            for (String k: ret.keySet()) {
-                                r[n*2] = RespType.ofBulkString(k);
-                                r[n*2+1] = RespType.ofArray(ret.get(k)
-                                            .stream()
-                                        .map(x -> RespType.ofArray(RespType.ofBulkString(x.getKey()),
-                                                RespType.ofBulkString(x.getScore().toString())))
-                                        .toArray(RespType[]::new))
-                                ;
-                                n++;
-                            }
-                            return RespType.ofArray(r);
+                            RespType ret = zsetMultiPop(ctx, args.valueListDefault(), args.termAtPos(1).equals("MIN"),
+                                    multiPopCount(args));
+                            return ret != null? ret : RespType.NullArray();
                         },
                         "ZMPOP numkeys key [key ...] <MIN | MAX> [COUNT count]",
                         "Returns the highest- or lowest-scoring members from one or more sorted sets after removing them. Deletes the sorted set if the last member was popped."
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
                         , Command.Part.ofTermValue(1, "MIN", "MAX")
                         , Command.Part.ofOptionNamedSimple("COUNT", "count")
-                )
+                ).write()
         );
         commands.put("ZMSCORE",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleSortSet(ctx, args.valueWithName("key"), x -> {
+                            String[] ret = readSortSet(ctx, args.valueWithName("key"), x -> {
                                 String[] ms = args.valueListDefault();
                                 String[] r = new String[ms.length];
                                 for (int i = 0; i < ms.length; i++)
@@ -661,7 +567,7 @@ public class SortedSetHandler extends RedisCommandHandler {
         commands.put("ZPOPMAX",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleSortSet(ctx, args.valueWithName("key"),
+                            String[] ret = handleExistingSortSet(ctx, args.valueWithName("key"),
                                     x -> zsetPop(args.optionValueAnonymous(), x, ValueWithTTL.ZSet::last));
                             return RespType.ofArray(ret);
                         },
@@ -669,12 +575,12 @@ public class SortedSetHandler extends RedisCommandHandler {
                         "Returns the highest-scoring members from a sorted set after removing them. Deletes the sorted set if the last member was popped."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofOptionAnonymous("count")
-                )
+                ).write()
         );
         commands.put("ZPOPMIN",
                 new Command(
                         (ctx, args) -> {
-                            String[] ret = handleSortSet(ctx, args.valueWithName("key"),
+                            String[] ret = handleExistingSortSet(ctx, args.valueWithName("key"),
                                     x -> zsetPop(args.optionValueAnonymous(), x, ValueWithTTL.ZSet::first));
                             return RespType.ofArray(ret);
                         },
@@ -682,11 +588,11 @@ public class SortedSetHandler extends RedisCommandHandler {
                         "Returns the lowest-scoring members from a sorted set after removing them. Deletes the sorted set if the last member was popped."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofOptionAnonymous("count")
-                )
+                ).write()
         );
         commands.put("ZRANDMEMBER",
                 new Command(
-                        (ctx, args) -> handleSortSet(ctx, args.valueWithName("key"),
+                        (ctx, args) -> readSortSet(ctx, args.valueWithName("key"),
                                 x -> handleRandomSelect(x.getKeySet(), args.optionValueAnonymous(),
                                         args.optionValueTerms().contains("WITHSCORES"), k -> x.getScore(k).toString())),
                         "ZRANDMEMBER key [count [WITHSCORES]]",
@@ -701,9 +607,9 @@ public class SortedSetHandler extends RedisCommandHandler {
                             String key = args.valueWithName("key");
                             String min = args.valueWithName("start");
                             String max = args.valueWithName("stop");
-                            boolean byScoreOrLex = !args.hasOption("BYLEX");
+                            RangeBy by = args.hasOption("BYSCORE")? RangeBy.SCORE : args.hasOption("BYLEX")? RangeBy.LEX : RangeBy.INDEX;
                             boolean withScores = args.hasOption("WITHSCORES");
-                            if (!byScoreOrLex && withScores)
+                            if (by == RangeBy.LEX && withScores)
                                 throw new IllegalArgumentException("incompatible option: BYLEX && WITHSCORES");
                             boolean isRev = args.hasOption("REV");
                             String offset = null, count = null;
@@ -712,8 +618,8 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 count = args.optionWithName("LIMIT")[1];
                             }
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, byScoreOrLex, isRev, offset, count);
-                            return toRespType(zset, byScoreOrLex && withScores);
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, by, isRev, offset, count);
+                            return toRespType(zset, withScores);
                         },
                         "ZRANGE key start stop [BYSCORE | BYLEX] [REV] [LIMIT offset count] [WITHSCORES]",
                         "Returns members in a sorted set within a range of indexes."
@@ -740,7 +646,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 count = args.optionWithName("LIMIT")[1];
                             }
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, true, false, offset, count);
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, RangeBy.LEX, false, offset, count);
                             return toRespType(zset, false);
                         },
                         "ZRANGEBYLEX key min max [LIMIT offset count]",
@@ -763,7 +669,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 count = args.optionWithName("LIMIT")[1];
                             }
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, true, false, offset, count);
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, RangeBy.SCORE, false, offset, count);
                             return toRespType(zset, args.hasOption("WITHSCORES"));
                         },
                         "ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]",
@@ -781,7 +687,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                             String key = args.valueWithName("src");
                             String min = args.valueWithName("min");
                             String max = args.valueWithName("max");
-                            boolean byScoreOrLex = !args.hasOption("BYLEX");
+                            RangeBy by = args.hasOption("BYSCORE")? RangeBy.SCORE : args.hasOption("BYLEX")? RangeBy.LEX : RangeBy.INDEX;
                             boolean isRev = args.hasOption("REV");
                             String offset = null, count = null;
                             if (args.hasOption("LIMIT")) {
@@ -789,8 +695,8 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 count = args.optionWithName("LIMIT")[1];
                             }
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, byScoreOrLex, isRev, offset, count);
-                            ctx.getStore().compute(args.valueWithName("dst"), (k, v) -> ValueWithTTL.ofSortedSetValue(zset, v));
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, by, isRev, offset, count);
+                            ctx.getStore().compute(args.valueWithName("dst"), (k, v) -> zset.isEmpty()? null : ValueWithTTL.ofSortedSetValue(zset, v, ctx.getStore().encodings()));
                             return RespType.ofLong(zset.size());
                         },
                         "ZRANGESTORE dst src min max [BYSCORE | BYLEX] [REV] [LIMIT offset  count]",
@@ -804,7 +710,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("BYLEX"))
                         , Command.Part.ofOptionNamedSimple("REV")
                         , Command.Part.ofOptionNamedSimple("LIMIT", "offset", "count")
-                )
+                ).write()
         );
         commands.put("ZRANK",
                 new Command(
@@ -814,7 +720,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 return RespType.NullBulkString();
 
                             if (args.hasOption("WITHSCORE")) {
-                                Double s = handleSortSet(ctx, args.valueWithName("key"),
+                                Double s = readSortSet(ctx, args.valueWithName("key"),
                                         x -> x.getScore(args.valueWithName("member")));
                                 return RespType.ofArray(RespType.ofLong(rank), RespType.ofBulkString(s.toString()));
                             } else {
@@ -838,14 +744,14 @@ public class SortedSetHandler extends RedisCommandHandler {
                         "Removes one or more members from a sorted set. Deletes the sorted set if all members were removed."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofListValue("member")
-                )
+                ).write()
         );
         commands.put("ZREMRANGEBYLEX",
                 new Command(
                         (ctx, args) -> {
                             String min = args.valueWithName("min");
                             String max = args.valueWithName("max");
-                            long n = zsetRemByRange(ctx, args.valueWithName("key"), min, max, false);
+                            long n = zsetRemByRange(ctx, args.valueWithName("key"), min, max, RangeBy.LEX);
                             return RespType.ofLong(n);
                         },
                         "ZREMRANGEBYLEX key min max",
@@ -853,7 +759,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("min")
                         , Command.Part.ofValue("max")
-                )
+                ).write()
         );
         commands.put("ZREMRANGEBYRANK",
                 new Command(
@@ -868,14 +774,14 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("start")
                         , Command.Part.ofValue("stop")
-                )
+                ).write()
         );
         commands.put("ZREMRANGEBYSCORE",
                 new Command(
                         (ctx, args) -> {
                             String min = args.valueWithName("min");
                             String max = args.valueWithName("max");
-                            long n = zsetRemByRange(ctx, args.valueWithName("key"), min, max, true);
+                            long n = zsetRemByRange(ctx, args.valueWithName("key"), min, max, RangeBy.SCORE);
                             return RespType.ofLong(n);
                         },
                         "ZREMRANGEBYSCORE key min max",
@@ -883,7 +789,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("min")
                         , Command.Part.ofValue("max")
-                )
+                ).write()
         );
         commands.put("ZREVRANGE",
                 new Command(
@@ -892,7 +798,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                             String min = args.valueWithName("start");
                             String max = args.valueWithName("stop");
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, true, true, null, null);
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, RangeBy.INDEX, true, null, null);
                             return toRespType(zset, args.hasOption("WITHSCORES"));
                         },
                         "ZREVRANGE key start stop [WITHSCORES]",
@@ -915,7 +821,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 count = args.optionWithName("LIMIT")[1];
                             }
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, false, true, offset, count);
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, max, min, RangeBy.LEX, true, offset, count);
                             return toRespType(zset, false);
                         },
                         "ZREVRANGEBYLEX key max min [LIMIT offset count]",
@@ -938,7 +844,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 count = args.optionWithName("LIMIT")[1];
                             }
 
-                            Set<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, min, max, false, true, offset, count);
+                            List<ValueWithTTL.ZSet.Item> zset = zsetRange(ctx, key, max, min, RangeBy.SCORE, true, offset, count);
                             return toRespType(zset, args.hasOption("WITHSCORES"));
                         },
                         "ZREVRANGEBYSCORE key max min [WITHSCORES] [LIMIT offset count]",
@@ -958,7 +864,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                                 return RespType.NullBulkString();
 
                             if (args.hasOption("WITHSCORE")) {
-                                Double s = handleSortSet(ctx, args.valueWithName("key"),
+                                Double s = readSortSet(ctx, args.valueWithName("key"),
                                         x -> x.getScore(args.valueWithName("member")));
                                 return RespType.ofArray(RespType.ofLong(rank), RespType.ofBulkString(s.toString()));
                             } else {
@@ -975,20 +881,36 @@ public class SortedSetHandler extends RedisCommandHandler {
         commands.put("ZSCAN",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            long cursor = parseCursor(args.valueWithName("cursor"));
+                            ScanOptions opts = scanOptions(args, false);
+                            int count = opts.getCount();
+                            Predicate<String> matcher = opts.getMatcher();
+                            ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
+                            assertValueType(valueType, v);
+
+                            List<String> members = new ArrayList<>();
+                            if (v != null) {
+                                ValueWithTTL.ZSet zset = v.getValueAsSortedSet();
+                                cursor = scanSteps(cursor, count * 2, members, c -> zset.scan(c, (m, score) -> {
+                                    if (matcher.test(m)) {
+                                        members.add(m);
+                                        members.add(score.toString());
+                                    }
+                                }));
+                            }
+                            return scanReply(cursor, members);
                         },
                         "ZSCAN key cursor [MATCH pattern] [COUNT count]",
                         "Iterates over members and scores of a sorted set."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("cursor")
-                        , Command.Part.ofOptionNamedSimple("MATCH", "pattern")
-                        , Command.Part.ofOptionNamedSimple("COUNT", "count")
+                        , Command.Part.ofOptionalListValue("option", "value")
                 )
         );
         commands.put("ZSCORE",
                 new Command(
                         (ctx, args) -> {
-                            Double s = handleSortSet(ctx, args.valueWithName("key"), x -> x.getScore(args.valueWithName("member")));
+                            Double s = readSortSet(ctx, args.valueWithName("key"), x -> x.getScore(args.valueWithName("member")));
                             return RespType.ofBulkString(s.toString());
                         },
                         "ZSCORE key member",
@@ -1002,7 +924,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                         (ctx, args) -> {
                             ValueWithTTL.ZSet zset = zsetUnion(ctx, args.valueListDefault(),
                                     args.optionWithName("WEIGHTS"), args.optionWithName("AGGREGATE")[0]);
-                            return toRespType(zset.asSet(), args.hasOption("WITHSCORES"));
+                            return toRespType(zset, args.hasOption("WITHSCORES"));
                         },
                         "ZUNION numkeys key [key ...] [WEIGHTS weight [weight ...]] [AGGREGATE <SUM | MIN | MAX>] [WITHSCORES]",
                         "Returns the union of multiple sorted sets."
@@ -1026,7 +948,7 @@ public class SortedSetHandler extends RedisCommandHandler {
                         , Command.Part.ofFixedLengthListValue("numkeys", "key")
                         , Command.Part.ofOptionNamedVarList("WEIGHTS", "weight")
                         , Command.Part.ofOptionNamedTerms("AGGREGATE", "SUM", "MIN", "MAX")
-                )
+                ).write()
         );
     }
 }
@@ -6,10 +6,21 @@ import org.my.zedis.RedisCommandHandler;
 import org.my.zedis.RespType;
 import org.springframework.stereotype.Component;
 
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.stream.Stream;
 
 @Component
 public class StringHandler extends RedisCommandHandler {
+    // proto-max-bulk-len of Redis
+    private static final long MAX_STRING_LENGTH = 512 * 1024 * 1024;
+
+    // argument slots of the hot commands, checked against their grammar at startup
+    private static final int SET_VALUE = 1;
+    private static final int SET_NX = 0, SET_XX = 1, SET_GET = 2, SET_EX = 3, SET_PX = 4, SET_EXAT = 5, SET_PXAT = 6,
+            SET_KEEPTTL = 7;
+    private static final int INCRBY_INCREMENT = 1;
+
     StringHandler(InMemorySharedStore inMemorySharedStore) {
         super("String", inMemorySharedStore);
 
@@ -17,7 +28,7 @@ public class StringHandler extends RedisCommandHandler {
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
-                            String value = args.valueWithName("value");
+                            ByteString value = args.bytesWithName("value");
                             Integer[] v = new Integer[1];
                             ctx.getStore().compute(key, (k, oldV) -> {
                                 assertValueType(oldV);
@@ -25,7 +36,7 @@ public class StringHandler extends RedisCommandHandler {
                                     v[0] = value.length();
                                     return ValueWithTTL.ofString(value);
                                 } else {
-                                    String nv = oldV.getValue().toString() + value;
+                                    ByteString nv = oldV.getValueAsBytes().concat(value);
                                     v[0] = nv.length();
                                     return ValueWithTTL.ofString(nv, oldV);
                                 }
@@ -36,54 +47,43 @@ public class StringHandler extends RedisCommandHandler {
                         "Appends a string to the value of a key. Creates the key if it doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("value")
-                )
+                ).write()
         );
         commands.put("DECR",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            Long[] v = new Long[1];
-                            ctx.getStore().compute(key, (k, oldV) -> {
-                                assertValueType(oldV);
-                                return decrBy(v, oldV, 1);
-                            });
-                            return RespType.ofLong(v[0]);
+                            return RespType.ofLong(incrBy(ctx, args.valueAt(KEY).asString(), -1));
                         },
                         "DECR key",
                         "Decrements the integer value of a key by one. Uses 0 as initial value if the key doesn't exist."
                         , Command.Part.ofValue("key")
-                )
+                ).write().valueSlots("key")
         );
         commands.put("DECRBY",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            String decrement = args.valueWithName("decrement");
-                            Long[] v = new Long[1];
-                            ctx.getStore().compute(key, (k, oldV) -> {
-                                assertValueType(oldV);
-                                return decrBy(v, oldV, Integer.parseInt(decrement));
-                            });
-                            return RespType.ofLong(v[0]);
+                            long decrement = parseInteger(args.valueWithName("decrement"));
+                            if (decrement == Long.MIN_VALUE)
+                                throw new IllegalArgumentException("decrement would overflow");
+                            return RespType.ofLong(incrBy(ctx, args.valueWithName("key"), -decrement));
                         },
                         "DECRBY key decrement",
                         "Decrements a number from the integer value of a key. Uses 0 as initial value if the key doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("decrement")
-                )
+                ).write()
         );
         commands.put("GET",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            ValueWithTTL v = ctx.getStore().get(key);
+                            ValueWithTTL v = ctx.getStore().get(args.valueAt(KEY).asString());
                             assertValueType(v);
-                            return v == null? RespType.NullBulkString() : RespType.ofBulkString(v.getValue().toString());
+                            return v == null? RespType.NullBulkString() : RespType.ofBulkString(v.getValueAsBytes());
                         },
                         "GET key",
                         "Returns the string value of a key."
                         , Command.Part.ofValue("key")
-                )
+                ).valueSlots("key")
         );
         commands.put("GETDEL",
                 new Command(
@@ -93,12 +93,12 @@ public class StringHandler extends RedisCommandHandler {
                             assertValueType(v);
                             if (v != null)
                                 ctx.getStore().remove(key);
-                            return v == null? RespType.NullBulkString() : RespType.ofBulkString(v.getValue().toString());
+                            return v == null? RespType.NullBulkString() : RespType.ofBulkString(v.getValueAsBytes());
                         },
                         "GETDEL key",
                         "Returns the string value of a key after deleting the key."
                         , Command.Part.ofValue("key")
-                )
+                ).write()
         );
         commands.put("GETEX",
                 new Command(
@@ -107,29 +107,27 @@ public class StringHandler extends RedisCommandHandler {
                             boolean isPersist = args.hasOption("PERSIST");
                             Long expiredAt;
                             if (args.hasOption("EX"))
-                                expiredAt = System.currentTimeMillis() + Integer.parseInt(args.optionWithName("EX")[0]) * 1000;
+                                expiredAt = System.currentTimeMillis() + Long.parseLong(args.optionWithName("EX")[0]) * 1000;
                             else if (args.hasOption("PX"))
-                                expiredAt = System.currentTimeMillis() + Integer.parseInt(args.optionWithName("PX")[0]);
+                                expiredAt = System.currentTimeMillis() + Long.parseLong(args.optionWithName("PX")[0]);
                             else if (args.hasOption("EXAT"))
                                 expiredAt = Long.parseLong(args.optionWithName("EXAT")[0]) * 1000;
                             else if (args.hasOption("PXAT"))
                                 expiredAt = Long.parseLong(args.optionWithName("PXAT")[0]);
-                            else if (args.hasOption("KEEPTTL"))
-                                expiredAt = Long.parseLong(args.optionWithName("PXAT")[0]);
                             else
                                 expiredAt = null;
 
                             ValueWithTTL[] last = new ValueWithTTL[1];
-                            ctx.getStore().compute(key, (k, v) -> {
+                            ctx.getStore().computeIfPresent(key, (k, v) -> {
                                 assertValueType(v);
                                 last[0] = v;
-                                if (v != null) {
-                                    v.setExpiredAt(isPersist? null : expiredAt);
+                                if (isPersist || expiredAt != null) {
+                                    v.setExpiredAt(expiredAt);
                                 }
                                 return v;
                             });
 
-                            return last[0] == null? RespType.NullBulkString() : RespType.ofBulkString(last[0].getValue().toString());
+                            return last[0] == null? RespType.NullBulkString() : RespType.ofBulkString(last[0].getValueAsBytes());
                         },
                         "GETEX key [EX seconds | PX milliseconds | EXAT unix-time-seconds |  PXAT unix-time-milliseconds | PERSIST]",
                         "Returns the string value of a key after setting its expiration time."
@@ -140,9 +138,9 @@ public class StringHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("EXAT", "unix-time-seconds"),
                                 Command.Part.ofOptionNamedSimple("PXAT", "unix-time-milliseconds"),
                                 Command.Part.ofOptionNamedSimple("PERSIST"))
-                )
+                ).write()
         );
-        // REDIS GETRANGE cannot handle unicode correctly
+        // offsets are in bytes, same as Redis
         commands.put("GETRANGE",
                 new Command(
                         (ctx, args) -> {
@@ -154,7 +152,7 @@ public class StringHandler extends RedisCommandHandler {
                             if (v == null) {
                                 return RespType.ofBulkString("");
                             } else {
-                                String vv = v.getValue().toString();
+                                ByteString vv = v.getValueAsBytes();
                                 if (start < 0)
                                     start = vv.length() + start;
                                 if (end < 0)
@@ -166,7 +164,7 @@ public class StringHandler extends RedisCommandHandler {
                                 if (end >= vv.length())
                                     end = vv.length() - 1;
 
-                                return RespType.ofBulkString(vv.substring(start, end+1));
+                                return RespType.ofBulkString(vv.substring(start, end + 1));
                             }
                         },
                         "GETRANGE key start end",
@@ -180,13 +178,13 @@ public class StringHandler extends RedisCommandHandler {
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
-                            String value = args.valueWithName("value");
+                            ByteString value = args.bytesWithName("value");
 
-                            String[] ret = new String[1];
+                            ByteString[] ret = new ByteString[1];
                             ctx.getStore().compute(key, (k, oldV) ->  {
                                 assertValueType(oldV);
-                                ret[0] = oldV == null? null : oldV.toString();
-                                return new ValueWithTTL(ValueWithTTL.ValueType.String, value);
+                                ret[0] = oldV == null? null : oldV.getValueAsBytes();
+                                return ValueWithTTL.ofString(value);
                             });
 
                             return ret[0] == null? RespType.NullBulkString() : RespType.ofBulkString(ret[0]);
@@ -195,52 +193,57 @@ public class StringHandler extends RedisCommandHandler {
                         "Returns the previous string value of a key after setting it to a new value."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("value")
-                )
+                ).write()
         );
         commands.put("INCR",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            Long[] v = new Long[1];
-                            ctx.getStore().compute(key, (k, oldV) -> {
-                                assertValueType(oldV);
-                                return decrBy(v, oldV, -1);
-                            });
-                            return RespType.ofLong(v[0]);
+                            return RespType.ofLong(incrBy(ctx, args.valueAt(KEY).asString(), 1));
                         },
                         "INCR key",
                         "Increments the integer value of a key by one. Uses 0 as initial value if the key doesn't exist."
                         , Command.Part.ofValue("key")
-                )
+                ).write().valueSlots("key")
         );
         commands.put("INCRBY",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            String increment = args.valueWithName("increment");
-                            Long[] v = new Long[1];
-                            ctx.getStore().compute(key, (k, oldV) -> {
-                                assertValueType(oldV);
-                                return decrBy(v, oldV, -Integer.parseInt(increment));
-                            });
-                            return RespType.ofLong(v[0]);
+                            long increment = parseInteger(args.valueAt(INCRBY_INCREMENT).asString());
+                            return RespType.ofLong(incrBy(ctx, args.valueAt(KEY).asString(), increment));
                         },
                         "INCRBY key increment",
                         "Increments the integer value of a key by a number. Uses 0 as initial value if the key doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("increment")
-                )
+                ).write().valueSlots("key", "increment")
         );
         commands.put("INCRBYFLOAT",
                 new Command(
                         (ctx, args) -> {
-                            return RespType.ofError("not implemented");
+                            double increment = parseFloat(args.valueWithName("increment"));
+                            ByteString[] ret = new ByteString[1];
+                            ctx.getStore().compute(args.valueWithName("key"), (k, oldV) -> {
+                                assertValueType(oldV);
+                                double n;
+                                if (oldV == null)
+                                    n = 0;
+                                else if (oldV instanceof ValueWithTTL.IntString)
+                                    n = ((ValueWithTTL.IntString) oldV).getNumber();
+                                else
+                                    n = parseFloat(oldV.getValueAsBytes().toString());
+                                n += increment;
+                                if (Double.isNaN(n) || Double.isInfinite(n))
+                                    throw new IllegalArgumentException("increment would produce NaN or Infinity");
+                                ret[0] = ByteString.of(formatFloat(n));
+                                return ValueWithTTL.ofString(ret[0], oldV == null? null : oldV.getExpiredAt());
+                            });
+                            return RespType.ofBulkString(ret[0]);
                         },
                         "INCRBYFLOAT key increment",
                         "Increment the floating point value of a key by a number. Uses 0 as initial value if the key doesn't exist."
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("increment")
-                )
+                ).write()
         );
         commands.put("LCS",
                 new Command(
@@ -265,7 +268,7 @@ public class StringHandler extends RedisCommandHandler {
                                 RespType[] ret = Stream.of(keys)
                                         .map(ctx.getStore()::get)
                                         .map(x -> x == null || x.getType() != ValueWithTTL.ValueType.String?
-                                                RespType.NullBulkString() : RespType.ofString(x.getValue().toString()))
+                                                RespType.NullBulkString() : RespType.ofBulkString(x.getValueAsBytes()))
                                         .toArray(RespType[]::new);
                                 return RespType.ofArray(ret);
                             }
@@ -278,11 +281,11 @@ public class StringHandler extends RedisCommandHandler {
         commands.put("MSET",
                 new Command(
                         (ctx, args) -> {
-                            String[] kvs = args.valueListDefault();
+                            ByteString[] kvs = args.bytesListDefault();
                             assert (kvs.length %2 == 0);
                             synchronized (ctx.getStore()) {
                                 for (int i = 0; i < kvs.length/2; ++i) {
-                                    ctx.getStore().put(kvs[i * 2], new ValueWithTTL(ValueWithTTL.ValueType.String, kvs[i * 2 + 1]));
+                                    ctx.getStore().put(kvs[i * 2].toString(), ValueWithTTL.ofString(kvs[i * 2 + 1]));
                                 }
                             }
                             return RespType.OK();
@@ -290,22 +293,22 @@ public class StringHandler extends RedisCommandHandler {
                         "MSET key value [key value ...]",
                         "Atomically creates or modifies the string values of one or more keys."
                         , Command.Part.ofListValue("key", "value")
-                )
+                ).write()
         );
         commands.put("MSETNX",
                 new Command(
                         (ctx, args) -> {
-                            String[] kvs = args.valueListDefault();
+                            ByteString[] kvs = args.bytesListDefault();
                             assert (kvs.length %2 == 0);
                             synchronized (ctx.getStore()) {
                                 for (int i = 0; i < kvs.length/2; ++i) {
-                                    if (ctx.getStore().containsKey(kvs[i * 2])) {
+                                    if (ctx.getStore().containsKey(kvs[i * 2].toString())) {
                                         return RespType.ofLong(0L);
                                     }
                                 }
 
                                 for (int i = 0; i < kvs.length/2; ++i) {
-                                    ctx.getStore().put(kvs[i * 2], new ValueWithTTL(ValueWithTTL.ValueType.String, kvs[i * 2 + 1]));
+                                    ctx.getStore().put(kvs[i * 2].toString(), ValueWithTTL.ofString(kvs[i * 2 + 1]));
                                 }
                                 return RespType.ofLong(1L);
                             }
@@ -313,19 +316,19 @@ public class StringHandler extends RedisCommandHandler {
                         "MSETNX key value [key value ...]",
                         "Atomically modifies the string values of one or more keys only when all keys don't exist."
                         , Command.Part.ofListValue("key", "value")
-                )
+                ).write()
         );
         commands.put("PSETEX",
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
                             int milliseconds = Integer.parseInt(args.valueWithName("milliseconds"));
-                            String value = args.valueWithName("value");
+                            ByteString value = args.bytesWithName("value");
                             if (milliseconds <= 0) {
                                 return RespType.ofError("invalid expire time");
                             } else {
-                                ctx.getStore().put(key, new ValueWithTTL(ValueWithTTL.ValueType.String, value, System.currentTimeMillis() + milliseconds));
-                                return RespType.ofError("not implemented");
+                                ctx.getStore().put(key, ValueWithTTL.ofString(value, System.currentTimeMillis() + milliseconds));
+                                return RespType.OK();
                             }
                         },
                         "PSETEX key milliseconds value",
@@ -333,28 +336,26 @@ public class StringHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("milliseconds")
                         , Command.Part.ofValue("value")
-                )
+                ).write()
         );
         commands.put("SET",
                 new Command(
                         (ctx, args) -> {
-                            String key = args.valueWithName("key");
-                            String value = args.valueWithName("value");
-                            boolean isGet = args.hasOption("GET");
-                            boolean isNx = args.hasOption("NX");
-                            boolean isXx = args.hasOption("XX");
-                            boolean isKeepTtl = args.hasOption("KEEPTTL");
+                            String key = args.valueAt(KEY).asString();
+                            ByteString value = args.bytesAt(SET_VALUE);
+                            boolean isGet = args.hasOptionAt(SET_GET);
+                            boolean isNx = args.hasOptionAt(SET_NX);
+                            boolean isXx = args.hasOptionAt(SET_XX);
+                            boolean isKeepTtl = args.hasOptionAt(SET_KEEPTTL);
                             Long expiredAt;
-                            if (args.hasOption("EX"))
-                                expiredAt = System.currentTimeMillis() + Integer.parseInt(args.optionWithName("EX")[0]) * 1000;
-                            else if (args.hasOption("PX"))
-                                expiredAt = System.currentTimeMillis() + Integer.parseInt(args.optionWithName("PX")[0]);
-                            else if (args.hasOption("EXAT"))
-                                expiredAt = Long.parseLong(args.optionWithName("EXAT")[0]) * 1000;
-                            else if (args.hasOption("PXAT"))
-                                expiredAt = Long.parseLong(args.optionWithName("PXAT")[0]);
-                            else if (args.hasOption("KEEPTTL"))
-                                expiredAt = Long.parseLong(args.optionWithName("PXAT")[0]);
+                            if (args.hasOptionAt(SET_EX))
+                                expiredAt = System.currentTimeMillis() + Long.parseLong(args.optionAt(SET_EX)[0]) * 1000;
+                            else if (args.hasOptionAt(SET_PX))
+                                expiredAt = System.currentTimeMillis() + Long.parseLong(args.optionAt(SET_PX)[0]);
+                            else if (args.hasOptionAt(SET_EXAT))
+                                expiredAt = Long.parseLong(args.optionAt(SET_EXAT)[0]) * 1000;
+                            else if (args.hasOptionAt(SET_PXAT))
+                                expiredAt = Long.parseLong(args.optionAt(SET_PXAT)[0]);
                             else
                                 expiredAt = null;
 
@@ -364,15 +365,15 @@ public class StringHandler extends RedisCommandHandler {
                                 last[0] = v;
                                 if (v == null) {
                                     result[0] = isNx || !isXx;
-                                    return result[0]? new ValueWithTTL(ValueWithTTL.ValueType.String, value, expiredAt) : null;
+                                    return result[0]? ValueWithTTL.ofString(value, expiredAt) : null;
                                 } else {
                                     result[0] = isXx || !isNx;
-                                    return result[0]? new ValueWithTTL(ValueWithTTL.ValueType.String, value, isKeepTtl? v.getExpiredAt() : expiredAt) : v;
+                                    return result[0]? ValueWithTTL.ofString(value, isKeepTtl? v.getExpiredAt() : expiredAt) : v;
                                 }
                             });
 
                             if (isGet) {
-                                return last[0] == null? RespType.NullBulkString() : RespType.ofBulkString(last[0].getValue().toString());
+                                return last[0] == null? RespType.NullBulkString() : RespType.ofBulkString(last[0].getValueAsBytes());
                             } else {
                                 return result[0]? RespType.OK() : RespType.NullBulkString();
                             }
@@ -391,64 +392,70 @@ public class StringHandler extends RedisCommandHandler {
                                 Command.Part.ofOptionNamedSimple("EXAT", "unix-time-seconds"),
                                 Command.Part.ofOptionNamedSimple("PXAT", "unix-time-milliseconds"),
                                 Command.Part.ofOptionNamedSimple("KEEPTTL"))
-                )
+                ).write()
+                        .valueSlots("key", "value")
+                        .optionSlots("NX", "XX", "GET", "EX", "PX", "EXAT", "PXAT", "KEEPTTL")
         );
         commands.put("SETEX",
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
                             int seconds = Integer.parseInt(args.valueWithName("seconds"));
-                            String value = args.valueWithName("value");
+                            ByteString value = args.bytesWithName("value");
                             if (seconds <= 0) {
                                 return RespType.ofError("invalid expire time");
                             } else {
-                                ctx.getStore().put(key, new ValueWithTTL(ValueWithTTL.ValueType.String, value, System.currentTimeMillis() + seconds * 1000));
-                                return RespType.ofError("not implemented");
+                                ctx.getStore().put(key, ValueWithTTL.ofString(value, System.currentTimeMillis() + seconds * 1000L));
+                                return RespType.OK();
                             }
                         },
                         "SETEX key seconds value",
                         "Sets the string value and expiration time of a key. Creates the key if it doesn't exist."
-                )
+                        , Command.Part.ofValue("key")
+                        , Command.Part.ofValue("seconds")
+                        , Command.Part.ofValue("value")
+                ).write()
         );
         commands.put("SETNX",
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
-                            String value = args.valueWithName("value");
-                            Object o = ctx.getStore().putIfAbsent(key, new ValueWithTTL(ValueWithTTL.ValueType.String, value));
+                            ByteString value = args.bytesWithName("value");
+                            Object o = ctx.getStore().putIfAbsent(key, ValueWithTTL.ofString(value));
                             return RespType.ofLong(o == null? 1L : 0L);
                         },
                         "SETNX key value",
                         "Set the string value of a key only when the key doesn't exist."
-                )
+                        , Command.Part.ofValue("key")
+                        , Command.Part.ofValue("value")
+                ).write()
         );
         commands.put("SETRANGE",
                 new Command(
                         (ctx, args) -> {
                             String key = args.valueWithName("key");
                             int offset = Integer.parseInt(args.valueWithName("offset"));
-                            String value = args.valueWithName("value");
+                            ByteString value = args.bytesWithName("value");
                             if (offset < 0) {
                                 return RespType.ofError("offset is out of range");
                             }
+                            if (value.length() == 0) {
+                                // nothing to write, the key is left alone
+                                ValueWithTTL v = ctx.getStore().get(key);
+                                assertValueType(v);
+                                return RespType.ofLong(v == null? 0L : v.getValueAsBytes().length());
+                            }
+                            if ((long) offset + value.length() > MAX_STRING_LENGTH)
+                                return RespType.ofError("string exceeds maximum allowed size (proto-max-bulk-len)");
 
                             Long[] len = new Long[1];
                             ctx.getStore().compute(key, (k, v) -> {
                                 assertValueType(v);
-                                String ret;
-                                if (v == null) {
-                                    ret = new String(new char[offset]) + value;
-                                } else {
-                                    String ov = v.toString();
-                                    if (offset > ov.length()) {
-                                        ret = ov + new String(new char[offset - ov.length()]) + value;
-                                    } else {
-                                        ret = ov.substring(0, offset) + value +
-                                                (ov.length() > offset + value.length() ? ov.substring(offset + value.length()) : "");
-                                    }
-                                }
-                                len[0] = (long) ret.length();
-                                return new ValueWithTTL(ValueWithTTL.ValueType.String, ret, v == null? null : v.getExpiredAt());
+                                byte[] ov = v == null? new byte[0] : v.getValueAsBytes().array();
+                                byte[] ret = Arrays.copyOf(ov, Math.max(ov.length, offset + value.length()));
+                                System.arraycopy(value.array(), 0, ret, offset, value.length());
+                                len[0] = (long) ret.length;
+                                return new ValueWithTTL(ValueWithTTL.ValueType.String, ByteString.wrap(ret), v == null? null : v.getExpiredAt());
                             });
                             return RespType.ofLong(len[0]);
                         },
@@ -457,14 +464,14 @@ public class StringHandler extends RedisCommandHandler {
                         , Command.Part.ofValue("key")
                         , Command.Part.ofValue("offset")
                         , Command.Part.ofValue("value")
-                )
+                ).write()
         );
         commands.put("STRLEN",
                 new Command(
                         (ctx, args) -> {
                             ValueWithTTL v = ctx.getStore().get(args.valueWithName("key"));
                             assertValueType(v);
-                            return v == null? RespType.ofLong(0L) : RespType.ofLong(v.getValue().toString().length());
+                            return v == null? RespType.ofLong(0L) : RespType.ofLong(v.getValueAsBytes().length());
                         },
                         "STRLEN key",
                         "Returns the length of a string value."
@@ -487,24 +494,44 @@ public class StringHandler extends RedisCommandHandler {
         assertValueType(ValueWithTTL.ValueType.String, value);
     }
 
-    private ValueWithTTL decrBy(Long[] v, ValueWithTTL oldV, int by) {
-        if (oldV == null)
-            oldV = new ValueWithTTL(ValueWithTTL.ValueType.String, 0);
+    // INCRBY and friends, an int encoded counter is changed in place without going through compute
+    private long incrBy(Context ctx, String key, long by) {
+        ValueWithTTL v = ctx.getStore().lookupWrite(key);
+        if (v instanceof ValueWithTTL.IntString)
+            return ((ValueWithTTL.IntString) v).incrBy(by);
+
+        long[] ret = new long[1];
+        ctx.getStore().compute(key, (k, oldV) -> {
+            assertValueType(oldV);
+            ValueWithTTL n = ValueWithTTL.ofInteger(oldV == null? 0 : parseInteger(oldV.getValueAsBytes().toString()), oldV);
+            ret[0] = ((ValueWithTTL.IntString) n).incrBy(by);
+            return n;
+        });
+        return ret[0];
+    }
+
+    private static long parseInteger(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+        }
+    }
 
-        if (oldV.getValue() instanceof Long) {
-            long nv = (Long) oldV.getValue() - by;
-            v[0] = nv;
-            return new ValueWithTTL(nv, oldV);
-        } else if (oldV.getValue() instanceof String) {
-            try {
-                long nv = Long.parseLong((String) oldV.getValue()) - by;
-                v[0] = nv;
-                return new ValueWithTTL(nv, oldV);
-            } catch (Exception e) {
-                throw new IllegalArgumentException("not an number");
-            }
-        } else {
-            throw new IllegalArgumentException("not an number");
+    private static double parseFloat(String s) {
+        try {
+            double d = Double.parseDouble(s);
+            if (!Double.isNaN(d) && !Double.isInfinite(d))
+                return d;
+        } catch (NumberFormatException ignored) {
         }
+        throw new IllegalArgumentException("value is not a valid float");
+    }
+
+    // shortest digits that read back the same, without exponent or trailing zeros, as INCRBYFLOAT replies
+    private static String formatFloat(double d) {
+        if (d == Math.rint(d) && Math.abs(d) < 1e17)
+            return Long.toString((long) d);
+        return BigDecimal.valueOf(d).stripTrailingZeros().toPlainString();
     }
 }
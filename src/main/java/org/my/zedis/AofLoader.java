@@ -0,0 +1,158 @@
+package org.my.zedis;
+
+import org.my.ByteString;
+import org.my.ClientConfig;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Replays the commands of an append only file at startup, after its RDB preamble if any.
+ * <p>
+ * The commands run on the calling thread straight through the handlers, without a connection and before the
+ * shards serve anything. A command cut short at the end of the file, as left by a crash in the middle of a write,
+ * is dropped, and {@link #load} returns where the last whole command ends so the file can be truncated there.
+ */
+@lombok.extern.slf4j.Slf4j
+final class AofLoader implements Persistence.LoadProgress {
+    private static final int BUFFER = 1 << 20;
+    private static final int MAX_LOGGED_ERRORS = 10;
+
+    private final InMemorySharedStore store;
+    private final HandlerRegistry registry;
+    private final Path path;
+    private final long from;
+    private InputStream in;
+    private volatile long totalBytes;
+    private volatile long loadedBytes;
+    private long offset;
+    private long commands;
+    private long failed;
+
+    AofLoader(InMemorySharedStore store, HandlerRegistry registry, Path path, long from) {
+        this.store = store;
+        this.registry = registry;
+        this.path = path;
+        this.from = from;
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    long getCommands() {
+        return commands;
+    }
+
+    // returns the offset after the last whole command
+    long load() throws IOException {
+        totalBytes = Files.size(path);
+        ClientConfig session = ClientConfig.defaultConfig("aof", store.getDB(0));
+        try (InputStream file = Files.newInputStream(path)) {
+            in = new BufferedInputStream(file, BUFFER);
+            offset = from;
+            for (long skipped = 0; skipped < from; )
+                skipped += in.skip(from - skipped);
+
+            while (true) {
+                long start = offset;
+                RespType[] list;
+                try {
+                    list = readCommand();
+                } catch (EOFException e) {
+                    if (offset > start)
+                        log.warn("append only file truncated at {}, dropping the last {} bytes", start, totalBytes - start);
+                    return start;
+                }
+                if (list == null)
+                    return start;
+                run(session, list);
+                loadedBytes = offset;
+            }
+        } finally {
+            if (failed > 0)
+                log.warn("{} commands of the append only file failed", failed);
+        }
+    }
+
+    private void run(ClientConfig session, RespType[] list) throws IOException {
+        HandlerRegistry.Entry entry = registry.lookup(list);
+        if (entry == null)
+            throw new IOException("unknown command " + list[0].asString() + " in the append only file at " + offset);
+
+        RespType[] args = new RespType[list.length - entry.getArgOffset()];
+        System.arraycopy(list, entry.getArgOffset(), args, 0, args.length);
+        // a blocking command finds what it found when it was logged, otherwise it just doesn't block here
+        RespType reply = entry.getHandler().handle(entry.getCommand(), args, session.getContext());
+        commands++;
+        if (reply.getType() == RespType.Type.Errors && !(reply instanceof BlockedReply) && ++failed <= MAX_LOGGED_ERRORS)
+            log.warn("{} in the append only file failed: {}", entry.getName(), reply.asError());
+    }
+
+    // null at the end of the file
+    private RespType[] readCommand() throws IOException {
+        int c = in.read();
+        if (c < 0)
+            return null;
+        offset++;
+        if (c != '*')
+            throw new IOException("bad append only file format at " + (offset - 1));
+
+        long n = readNumber();
+        if (n == 0 || n > Integer.MAX_VALUE)
+            throw new IOException("bad append only file format at " + offset);
+        RespType[] list = new RespType[(int) n];
+        for (int i = 0; i < n; i++) {
+            if (read() != '$')
+                throw new IOException("bad append only file format at " + (offset - 1));
+            long len = readNumber();
+            if (len > Integer.MAX_VALUE)
+                throw new IOException("bad append only file format at " + offset);
+            byte[] b = new byte[(int) len];
+            for (int off = 0; off < b.length; ) {
+                int k = in.read(b, off, b.length - off);
+                if (k < 0)
+                    throw new EOFException();
+                off += k;
+                offset += k;
+            }
+            if (read() != '\r' || read() != '\n')
+                throw new IOException("bad append only file format at " + (offset - 1));
+            list[i] = RespType.ofBulkString(ByteString.wrap(b));
+        }
+        return list;
+    }
+
+    // digits up to CRLF
+    private long readNumber() throws IOException {
+        long n = 0;
+        int c;
+        int digits = 0;
+        while ((c = read()) != '\r') {
+            if (c < '0' || c > '9' || ++digits > 18)
+                throw new IOException("bad append only file format at " + (offset - 1));
+            n = n * 10 + c - '0';
+        }
+        if (digits == 0 || read() != '\n')
+            throw new IOException("bad append only file format at " + (offset - 1));
+        return n;
+    }
+
+    private int read() throws IOException {
+        int c = in.read();
+        if (c < 0)
+            throw new EOFException();
+        offset++;
+        return c;
+    }
+}
@@ -0,0 +1,178 @@
+package org.my.zedis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files of a multi part append only file, as Redis 7 lays them out in its appenddirname: a base with the
+ * keyspace at some point, the incremental logs of the writes since, in order, and a manifest naming them.
+ * <p>
+ * A rewrite starts a new incremental log, writes a new base and then replaces the manifest, so whatever the
+ * manifest names is always a complete keyspace. Only one rewrite runs at a time, which is what keeps the changes
+ * to a manifest in order.
+ */
+final class AofManifest {
+    private static final String BASE = "b";
+    private static final String INCR = "i";
+
+    private final Path dir;
+    private final String prefix;
+    private String base;
+    private final LinkedHashMap<String, Long> incrs = new LinkedHashMap<>();     // names and sequence numbers
+    private long baseSeq;
+    private long incrSeq;
+
+    AofManifest(Path dir, String prefix) {
+        this.dir = dir;
+        this.prefix = prefix;
+    }
+
+    // null if there's no manifest yet
+    static AofManifest load(Path dir, String prefix) throws IOException {
+        AofManifest m = new AofManifest(dir, prefix);
+        if (!Files.exists(m.file()))
+            return null;
+
+        for (String line: Files.readAllLines(m.file(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] kv = line.split(" ");
+            String name = null;
+            String type = null;
+            long seq = -1;
+            for (int i = 0; i + 1 < kv.length; i += 2) {
+                switch (kv[i]) {
+                    case "file":
+                        name = kv[i + 1];
+                        break;
+                    case "seq":
+                        seq = parseSeq(kv[i + 1]);
+                        break;
+                    case "type":
+                        type = kv[i + 1];
+                        break;
+                }
+            }
+            if (name == null || type == null || seq < 0 || name.contains("/"))
+                throw new IOException("bad append only file manifest line: " + line);
+            if (BASE.equals(type)) {
+                m.base = name;
+                m.baseSeq = seq;
+            } else if (INCR.equals(type)) {
+                m.incrs.put(name, seq);
+                m.incrSeq = Math.max(m.incrSeq, seq);
+            }
+        }
+        return m;
+    }
+
+    private static long parseSeq(String s) throws IOException {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad append only file manifest sequence: " + s);
+        }
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    Path path(String name) {
+        return dir.resolve(name);
+    }
+
+    private Path file() {
+        return dir.resolve(prefix + ".manifest");
+    }
+
+    // null if there's none
+    String getBase() {
+        return base;
+    }
+
+    List<String> getIncrs() {
+        return new ArrayList<>(incrs.keySet());
+    }
+
+    // the name of the next base, which the manifest names once it's complete, see rebase
+    String nextBase(String suffix) {
+        return prefix + "." + (++baseSeq) + ".base" + suffix;
+    }
+
+    // adds a new incremental log after the others
+    String addIncr() {
+        String name = prefix + "." + (++incrSeq) + ".incr.aof";
+        incrs.put(name, incrSeq);
+        return name;
+    }
+
+    /**
+     * Makes base the base and drops the logs before firstIncr, all of them if it's null. Returns the files dropped.
+     */
+    List<String> rebase(String base, String firstIncr) {
+        List<String> dropped = new ArrayList<>();
+        if (this.base != null && !this.base.equals(base))
+            dropped.add(this.base);
+        this.base = base;
+        for (Iterator<String> it = incrs.keySet().iterator(); it.hasNext(); ) {
+            String incr = it.next();
+            if (incr.equals(firstIncr))
+                break;
+            dropped.add(incr);
+            it.remove();
+        }
+        return dropped;
+    }
+
+    // replaces the manifest on disk at once
+    void persist() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (base != null)
+            sb.append("file ").append(base).append(" seq ").append(baseSeq).append(" type ").append(BASE).append('\n');
+        for (Map.Entry<String, Long> e: incrs.entrySet())
+            sb.append("file ").append(e.getKey()).append(" seq ").append(e.getValue()).append(" type ").append(INCR).append('\n');
+
+        Path temp = dir.resolve("temp-" + prefix + ".manifest");
+        try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bb = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (bb.hasRemaining())
+                ch.write(bb);
+            ch.force(true);
+        }
+        try {
+            Files.move(temp, file(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDir();
+    }
+
+    // forgets the manifest on disk, so a restart doesn't load files that are out of date
+    void remove() throws IOException {
+        Files.deleteIfExists(file());
+        syncDir();
+    }
+
+    private void syncDir() {
+        // makes the rename durable where directories can be synced, Linux does
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package org.my.zedis;
+
+import org.my.Command;
+import org.my.Context;
+import org.my.ValueWithTTL;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The append only file, appending every write command in RESP to the incremental log of an {@link AofManifest}.
+ * <p>
+ * The threads running commands append them to a buffer, and a writer thread drains it with one write and at most
+ * one fsync for all the commands that arrived meanwhile: group commit. With appendfsync always a connection that
+ * wrote holds back its replies until the file is synced past its commands, see {@link #afterSync}, so the event
+ * loops never wait for the disk. everysec syncs once a second, no leaves it to the OS.
+ * <p>
+ * Commands are logged as they came, except that SPOP becomes SREM of what it popped, and a relative TTL is followed
+ * by PEXPIREAT with the deadline it gave, so a replay ends up with the same keys. Commands that replied an error
+ * are not logged, so write commands must not fail after changing anything.
+ * <p>
+ * A rewrite moves the appends to a new log with {@link #switchTo}, which only swaps buffers: the writer finishes
+ * the old log with what was appended before and closes it.
+ */
+@lombok.extern.slf4j.Slf4j
+@Component
+public class AppendOnlyFile implements DisposableBean {
+    public enum Fsync { ALWAYS, EVERYSEC, NO }
+
+    private static final long FSYNC_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // a buffer that grew past this is not kept for reuse
+    private static final int MAX_SPARE_BYTES = 4 << 20;
+    private static final Set<String> RELATIVE_TTL = new HashSet<>(Arrays.asList(
+            "EXPIRE", "PEXPIRE", "SET", "SETEX", "PSETEX", "GETEX", "RESTORE"));
+
+    private static final class Waiter {
+        final long offset;
+        final Runnable action;
+
+        Waiter(long offset, Runnable action) {
+            this.offset = offset;
+            this.action = action;
+        }
+    }
+
+    private final String filename;
+    private final String dirname;
+    private volatile boolean appendOnly;    // the setting, the file is open once it's loaded
+    private volatile Fsync fsync;
+    private volatile boolean enabled;
+
+    // guarded by this
+    private byte[] buf = new byte[BUFFER_BYTES];
+    private int size;
+    private int selectedDb = -1;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private FileChannel channel;
+    private Thread writer;
+    private volatile boolean stopping;
+    // the log to switch to once the first rotateAt bytes of the buffer are written
+    private FileChannel nextChannel;
+    private int rotateAt;
+
+    // file offsets: after the last command appended, written and synced
+    private volatile long appended;
+    private volatile long written;
+    private volatile long synced;
+    private volatile boolean lastWriteOk = true;
+    // the file offset of the log the writer writes, only touched by the writer
+    private long fileStart;
+    // the size of the whole append only file is appended + sizeOffset
+    private volatile long sizeOffset;
+    private volatile long baseSize;
+
+    public AppendOnlyFile(@Value("${zedis.appendonly:no}") String appendOnly,
+                          @Value("${zedis.appendfilename:appendonly.aof}") String filename,
+                          @Value("${zedis.appenddirname:appendonlydir}") String dirname,
+                          @Value("${zedis.appendfsync:everysec}") String fsync) {
+        this.appendOnly = parseYesNo(appendOnly);
+        this.filename = filename;
+        this.dirname = dirname;
+        setFsync(fsync);
+    }
+
+    static boolean parseYesNo(String value) {
+        switch (value.toLowerCase()) {
+            case "yes":
+                return true;
+            case "no":
+                return false;
+            default:
+                throw new IllegalArgumentException("argument must be 'yes' or 'no'");
+        }
+    }
+
+    boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    void setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getDirname() {
+        return dirname;
+    }
+
+    // where the parts go
+    Path dir(Path dir) {
+        return dir.resolve(dirname);
+    }
+
+    // the single file append only file of older versions
+    Path legacyPath(Path dir) {
+        return dir.resolve(filename);
+    }
+
+    public String getFsync() {
+        return fsync.name().toLowerCase();
+    }
+
+    public void setFsync(String value) {
+        try {
+            fsync = Fsync.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid appendfsync value: " + value);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts appending at offset end of the last log, cutting off whatever follows. The base and the logs before it
+     * take up before bytes.
+     */
+    synchronized void open(Path incr, long end, long baseSize, long before) throws IOException {
+        FileChannel ch = FileChannel.open(incr, StandardOpenOption.WRITE);
+        if (ch.size() > end)
+            ch.truncate(end);
+        start(ch, end);
+        this.baseSize = baseSize;
+        sizeOffset = before;
+    }
+
+    private void start(FileChannel ch, long end) {
+        channel = ch;
+        fileStart = 0;
+        appended = written = synced = end;
+        selectedDb = -1;
+        stopping = false;
+        enabled = true;
+        writer = new Thread(this::writeLoop, "zedis-aof");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // stops appending once everything appended is written and synced
+    public void close() {
+        Thread w;
+        synchronized (this) {
+            if (!enabled)
+                return;
+            enabled = false;
+            stopping = true;
+            w = writer;
+            notifyAll();
+        }
+        try {
+            w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        close();
+    }
+
+    /**
+     * Appends to the empty log next from now on, or starts appending to it if the file is not open. Returns the
+     * offset where next starts, for {@link #rebase}. Must run while every shard is parked.
+     */
+    synchronized long switchTo(FileChannel next) {
+        if (!enabled) {
+            start(next, 0);
+            baseSize = sizeOffset = 0;
+            return 0;
+        }
+
+        boolean interrupted = false;
+        while (nextChannel != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        nextChannel = next;
+        rotateAt = size;
+        selectedDb = -1;
+        notifyAll();
+        return appended;
+    }
+
+    // a new base of baseSize bytes replaced everything before offset from
+    synchronized void rebase(long baseSize, long from) {
+        this.baseSize = baseSize;
+        sizeOffset = baseSize - from;
+    }
+
+    public long getCurrentSize() {
+        return appended + sizeOffset;
+    }
+
+    /**
+     * Logs a write command that ran with the given reply, on the thread that ran it. Returns the reply, a blocked
+     * one wrapped so the command is logged once it is served.
+     */
+    RespType feed(Context ctx, HandlerRegistry.Entry entry, RespType[] args, RespType reply) {
+        if (reply instanceof BlockedReply)
+            return ((BlockedReply) reply).whenServed(r -> feed(ctx, entry, args, r));
+        if (!enabled)
+            return reply;
+
+        String name = entry.getName();
+        if ("MIGRATE".equals(name)) {
+            // keys may have moved even when it failed part way
+            feedMigrated(ctx, entry.getCommand(), args);
+            return reply;
+        }
+        // a write command checks everything before its first change, like LMOVE checking the destination before it
+        // pops, so one that failed changed nothing and is not logged
+        if (reply.getType() == RespType.Type.Errors)
+            return reply;
+        if ("SPOP".equals(name)) {
+            feedPopped(ctx.getDb(), args[0], reply);
+            return reply;
+        }
+
+        List<byte[]> cmd = new ArrayList<>(args.length + 1);
+        cmd.add(name.getBytes(StandardCharsets.US_ASCII));
+        for (RespType a: args)
+            cmd.add(a.asBytes().array());
+        append(ctx.getDb(), cmd);
+
+        if (RELATIVE_TTL.contains(name)) {
+            ValueWithTTL v = ctx.getStore().get(args[0].asString());
+            if (v != null && v.getExpiredAt() != null)
+                append(ctx.getDb(), Arrays.asList(bytes("PEXPIREAT"), args[0].asBytes().array(), bytes(v.getExpiredAt().toString())));
+        }
+        return reply;
+    }
+
+    // SPOP picks at random, so what it popped is logged as SREM
+    private void feedPopped(int db, RespType key, RespType reply) {
+        List<byte[]> cmd = new ArrayList<>();
+        cmd.add(bytes("SREM"));
+        cmd.add(key.asBytes().array());
+        if (reply.getType() == RespType.Type.Arrays) {
+            for (RespType m: reply.asArray())
+                cmd.add(m.asBytes().array());
+        } else if (reply.getValue() != null) {
+            cmd.add(reply.asBytes().array());
+        }
+        if (cmd.size() > 2)
+            append(db, cmd);
+    }
+
+    // the target isn't known when replaying, what MIGRATE moved away is logged as DEL
+    private void feedMigrated(Context ctx, Command command, RespType[] args) {
+        if (command.parseArguments(args).hasOption("COPY"))
+            return;
+        List<byte[]> cmd = new ArrayList<>();
+        cmd.add(bytes("DEL"));
+        for (String k: command.extractKeys(args)) {
+            if (!k.isEmpty() && !ctx.getStore().containsKey(k))
+                cmd.add(k.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if (cmd.size() > 1)
+            append(ctx.getDb(), cmd);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private synchronized void append(int db, List<byte[]> cmd) {
+        if (!enabled)
+            return;
+
+        int before = size;
+        if (db != selectedDb) {
+            writeCommand(Arrays.asList(bytes("SELECT"), bytes(Integer.toString(db))));
+            selectedDb = db;
+        }
+        writeCommand(cmd);
+        appended += size - before;
+        // the writer only waits while the buffer is empty
+        if (before == 0)
+            notifyAll();
+    }
+
+    private void writeCommand(List<byte[]> cmd) {
+        writeHeader('*', cmd.size());
+        for (byte[] b: cmd) {
+            writeHeader('$', b.length);
+            ensure(b.length + 2);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+            buf[size++] = '\r';
+            buf[size++] = '\n';
+        }
+    }
+
+    private void writeHeader(char type, int n) {
+        byte[] digits = bytes(Integer.toString(n));
+        ensure(digits.length + 3);
+        buf[size++] = (byte) type;
+        System.arraycopy(digits, 0, buf, size, digits.length);
+        size += digits.length;
+        buf[size++] = '\r';
+        buf[size++] = '\n';
+    }
+
+    private void ensure(int n) {
+        if (size + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+    }
+
+    // the file offset a connection that wrote so far waits for before replying, -1 if it needn't wait
+    long syncTarget() {
+        return enabled && fsync == Fsync.ALWAYS && synced < appended? appended : -1;
+    }
+
+    // runs action once the file is synced up to offset, on the writer thread unless that is the case already
+    void afterSync(long offset, Runnable action) {
+        synchronized (this) {
+            if (enabled && synced < offset) {
+                waiters.add(new Waiter(offset, action));
+                return;
+            }
+        }
+        action.run();
+    }
+
+    private void writeLoop() {
+        byte[] spare = new byte[BUFFER_BYTES];
+        long lastFsync = System.currentTimeMillis();
+        while (true) {
+            byte[] chunk;
+            int n;
+            long end;
+            boolean stop;
+            FileChannel next;
+            int split;
+            synchronized (this) {
+                while (size == 0 && nextChannel == null && !stopping && !isFsyncDue(lastFsync)) {
+                    // until the next fsync is due, or until woken
+                    long wait = 0;
+                    if (fsync == Fsync.EVERYSEC && synced < written)
+                        wait = Math.max(1, FSYNC_MILLIS - (System.currentTimeMillis() - lastFsync));
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        stopping = true;
+                    }
+                }
+                chunk = buf;
+                n = size;
+                end = appended;
+                stop = stopping;
+                next = nextChannel;
+                split = next != null? rotateAt : 0;
+                buf = spare;
+                size = 0;
+                if (next != null) {
+                    nextChannel = null;
+                    notifyAll();
+                }
+            }
+
+            long pos = end - n;
+            if (next != null) {
+                // the bytes appended before the switch end the old log
+                boolean ok = split == 0 || write(chunk, 0, split, pos);
+                pos += split;
+                if (ok) {
+                    written = pos;
+                    if (synced < pos && sync())
+                        synced = pos;
+                }
+                closeChannel();
+                channel = next;
+                fileStart = pos;
+                if (!ok)
+                    break;
+            }
+            if (n > split && !write(chunk, split, n - split, pos))
+                break;
+            spare = chunk.length > MAX_SPARE_BYTES? new byte[BUFFER_BYTES] : chunk;
+            written = end;
+
+            long now = System.currentTimeMillis();
+            if (synced < written && (stop || fsync == Fsync.ALWAYS || now - lastFsync >= FSYNC_MILLIS && fsync == Fsync.EVERYSEC)) {
+                if (sync()) {
+                    synced = end;
+                    lastFsync = now;
+                }
+            }
+            release();
+            if (stop)
+                break;
+        }
+
+        release();
+        closeChannel();
+    }
+
+    private boolean sync() {
+        try {
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            log.error("error syncing the append only file: ", e);
+            lastWriteOk = false;
+            return false;
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("error closing the append only file: ", e);
+        }
+    }
+
+    private boolean isFsyncDue(long lastFsync) {
+        return fsync == Fsync.EVERYSEC && synced < written && System.currentTimeMillis() - lastFsync >= FSYNC_MILLIS;
+    }
+
+    // writes at the offset, retrying until it works unless the file is being closed
+    private boolean write(byte[] b, int off, int n, long offset) {
+        while (true) {
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+                for (long pos = offset - fileStart; bb.hasRemaining(); )
+                    pos += channel.write(bb, pos);
+                if (!lastWriteOk)
+                    log.info("append only file writes work again");
+                lastWriteOk = true;
+                return true;
+            } catch (IOException e) {
+                if (lastWriteOk)
+                    log.error("error writing the append only file, retrying: ", e);
+                lastWriteOk = false;
+                if (stopping)
+                    return false;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    // runs the waiters the file is synced for, or all of them if nobody needs to wait anymore
+    private void release() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            boolean all = !enabled || fsync != Fsync.ALWAYS;
+            while (!waiters.isEmpty() && (all || waiters.peek().offset <= synced))
+                ready.add(waiters.poll().action);
+        }
+        for (Runnable r: ready)
+            r.run();
+    }
+
+    // fields of the persistence section of INFO
+    synchronized void info(Map<String, Object> m) {
+        m.put("aof_enabled", enabled? 1 : 0);
+        m.put("aof_last_write_status", lastWriteOk? "ok" : "err");
+        if (enabled) {
+            m.put("aof_current_size", getCurrentSize());
+            m.put("aof_base_size", baseSize);
+            m.put("aof_buffer_length", size);
+            m.put("aof_unsynced_bytes", appended - synced);
+        }
+    }
+}
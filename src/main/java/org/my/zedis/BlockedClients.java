@@ -0,0 +1,167 @@
+package org.my.zedis;
+
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Connections blocked by BLPOP and the like on the keys of one shard.
+ * <p>
+ * A blocked connection costs a waiter queued on each of its keys, no thread. A write to a key with waiters marks
+ * the key ready, and once the command doing the write returns {@link #reply} retries the waiters of every ready key
+ * in the order they blocked, until one of them finds nothing left. Timeouts are tasks on the executor owning the
+ * shard. Only touched by that thread, or by the coordinator while it is parked.
+ */
+@lombok.extern.slf4j.Slf4j
+public class BlockedClients {
+    private static final class Waiter {
+        final long client;
+        final BlockedReply blocked;
+        final Consumer<RespType> callback;
+        final WaitQueue[] queues;
+        ScheduledFuture<?> timeout;
+        boolean done;
+
+        Waiter(long client, BlockedReply blocked, Consumer<RespType> callback) {
+            this.client = client;
+            this.blocked = blocked;
+            this.callback = callback;
+            this.queues = new WaitQueue[blocked.getKeys().length];
+        }
+    }
+
+    // waiters of one key in FIFO order, finished ones are dropped when they reach the head
+    private static final class WaitQueue {
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        final int db;
+        final String key;
+        int live;
+        boolean ready;
+
+        WaitQueue(int db, String key) {
+            this.db = db;
+            this.key = key;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final Map<String, WaitQueue>[] keys = (Map<String, WaitQueue>[]) new Map<?, ?>[InMemorySharedStore.MAX_DB_SIZE];
+    private final Map<Long, Waiter> clients = new HashMap<>();
+    private final ArrayDeque<WaitQueue> ready = new ArrayDeque<>();
+    private boolean serving;
+
+    /**
+     * Hands the reply of a command that ran on {@code owner} to {@code callback}, or parks the connection if it is
+     * a {@link BlockedReply}, and then serves the keys the command made ready.
+     */
+    public void reply(RespType reply, EventExecutor owner, Consumer<RespType> callback) {
+        if (reply instanceof BlockedReply)
+            block((BlockedReply) reply, owner, callback);
+        else
+            callback.accept(reply);
+        serveReady();
+    }
+
+    private void block(BlockedReply blocked, EventExecutor owner, Consumer<RespType> callback) {
+        Waiter w = new Waiter(blocked.getClient(), blocked, callback);
+        int db = blocked.getDb();
+        if (keys[db] == null)
+            keys[db] = new HashMap<>();
+
+        int n = 0;
+        for (String key: blocked.getKeys()) {
+            WaitQueue q = keys[db].computeIfAbsent(key, k -> new WaitQueue(db, k));
+            // a key given twice is waited on once
+            if (q.waiters.peekLast() == w)
+                continue;
+            q.waiters.add(w);
+            q.live++;
+            w.queues[n++] = q;
+        }
+        clients.put(w.client, w);
+
+        if (blocked.getTimeoutMillis() > 0) {
+            w.timeout = owner.schedule(() -> {
+                if (!w.done) {
+                    finish(w);
+                    w.callback.accept(blocked.getTimeoutReply());
+                }
+            }, blocked.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // the connection is gone, drop its waiter without a reply
+    public void cancel(long client) {
+        Waiter w = clients.get(client);
+        if (w != null)
+            finish(w);
+    }
+
+    // called on every write of a key, so it must be cheap when nobody waits
+    void signal(int db, String key) {
+        if (clients.isEmpty() || keys[db] == null)
+            return;
+        WaitQueue q = keys[db].get(key);
+        if (q != null && !q.ready) {
+            q.ready = true;
+            ready.add(q);
+        }
+    }
+
+    /**
+     * Retries the waiters of the ready keys, first blocked first served. Serving one may write other keys, which
+     * are served in the same pass.
+     */
+    public void serveReady() {
+        if (serving)
+            return;
+
+        serving = true;
+        try {
+            WaitQueue q;
+            while ((q = ready.poll()) != null) {
+                q.ready = false;
+                Waiter w;
+                while ((w = q.waiters.peek()) != null) {
+                    if (w.done) {
+                        q.waiters.poll();
+                        continue;
+                    }
+
+                    RespType reply = retry(w);
+                    if (reply == null)
+                        break;
+                    finish(w);
+                    w.callback.accept(reply);
+                }
+            }
+        } finally {
+            serving = false;
+        }
+    }
+
+    private static RespType retry(Waiter w) {
+        try {
+            return w.blocked.getRetry().get();
+        } catch (Exception e) {
+            log.error("exception: ", e);
+            return RespType.ofError(e.getMessage() != null? e.getMessage() : e.toString());
+        }
+    }
+
+    private void finish(Waiter w) {
+        w.done = true;
+        if (w.timeout != null)
+            w.timeout.cancel(false);
+        clients.remove(w.client, w);
+        for (WaitQueue q: w.queues) {
+            if (q != null && --q.live == 0)
+                keys[q.db].remove(q.key, q);
+        }
+    }
+}
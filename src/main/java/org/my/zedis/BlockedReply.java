@@ -0,0 +1,39 @@
+package org.my.zedis;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Reply of a blocking command that found nothing to serve, asking the caller to park the connection on its keys.
+ * <p>
+ * It encodes like the timeout reply, which is what a blocking command answers where the connection can't block.
+ */
+@lombok.Getter
+public class BlockedReply extends RespType {
+    private final long client;
+    private final int db;
+    private final String[] keys;
+    private final long timeoutMillis;               // 0 blocks forever
+    private final RespType timeoutReply;
+    private final Supplier<RespType> retry;         // serves the command again, null while there is nothing yet
+
+    BlockedReply(long client, int db, String[] keys, long timeoutMillis, RespType timeoutReply, Supplier<RespType> retry) {
+        super(timeoutReply.getType(), timeoutReply.getValue());
+        this.client = client;
+        this.db = db;
+        this.keys = keys;
+        this.timeoutMillis = timeoutMillis;
+        this.timeoutReply = timeoutReply;
+        this.retry = retry;
+    }
+
+    // the same block, passing the reply to served as well once the command is served
+    BlockedReply whenServed(Consumer<RespType> served) {
+        return new BlockedReply(client, db, keys, timeoutMillis, timeoutReply, () -> {
+            RespType reply = retry.get();
+            if (reply != null)
+                served.accept(reply);
+            return reply;
+        });
+    }
+}
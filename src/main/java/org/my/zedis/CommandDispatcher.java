@@ -0,0 +1,242 @@
+package org.my.zedis;
+
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Chooses the thread running a command when the keyspace is sharded or commands run apart from the I/O threads.
+ * <p>
+ * Every shard is owned by one executor. A command whose keys all live in one shard runs on its owner, inline if
+ * that is the calling thread. Commands spanning several shards, or whose keys can't be located, run on a single
+ * coordinator thread after parking the owners of every shard they may touch, which keeps them atomic without any
+ * locking on the single key path. Connection level commands run inline as they don't touch the keyspace.
+ * <p>
+ * With a single owner every other command simply runs on it, which keeps the single threaded semantics while
+ * decoding and encoding happen on the I/O threads.
+ * <p>
+ * A blocking command that has to wait is parked in the {@link BlockedClients} of its shard and replies once a
+ * later command serves it, so it must only touch keys of a single shard.
+ */
+@lombok.extern.slf4j.Slf4j
+@Component
+public class CommandDispatcher {
+    private static final Route LOCAL = new Route(-1, null, true);
+    private static final Route ALL = new Route(-1, null, false);
+    private static final Route FIRST = new Route(0, null, false);
+
+    public static final class Route {
+        private final int shard;        // owning shard of a single shard command
+        private final BitSet shards;    // shards of an exclusive command, null means all of them
+        private final boolean local;
+
+        private Route(int shard, BitSet shards, boolean local) {
+            this.shard = shard;
+            this.shards = shards;
+            this.local = local;
+        }
+
+        // must not overlap with any other command of the same connection
+        public boolean isExclusive() {
+            return !local && shard < 0;
+        }
+    }
+
+    private final InMemorySharedStore store;
+    private EventExecutor[] owners;
+    private EventExecutorGroup io;
+    private EventExecutor coordinator;
+
+    public CommandDispatcher(InMemorySharedStore store) {
+        this.store = store;
+    }
+
+    // the threads serving the connections, only used for reporting
+    public void setIoGroup(EventExecutorGroup io) {
+        this.io = io;
+    }
+
+    // owners[i] runs every command of shard i, they may be the I/O threads themselves
+    public void start(EventExecutor[] owners) {
+        this.owners = owners;
+        if (owners.length > 1)
+            this.coordinator = new DefaultEventExecutor(new DefaultThreadFactory("zedis-coordinator"));
+    }
+
+    public void stop() {
+        if (coordinator != null)
+            coordinator.shutdownGracefully();
+    }
+
+    public boolean isEnabled() {
+        return owners != null;
+    }
+
+    public Route route(HandlerRegistry.Entry entry, RespType[] args) {
+        if ("Connection".equals(entry.getHandler().getName()))
+            return LOCAL;
+        if (owners.length == 1)
+            return FIRST;
+
+        String[] keys = entry.getCommand().extractKeys(args);
+        if (keys == null || keys.length == 0)
+            return ALL;
+
+        int first = store.shardOf(keys[0]);
+        BitSet shards = null;
+        for (int i = 1; i < keys.length; i++) {
+            int s = store.shardOf(keys[i]);
+            if (s != first) {
+                if (shards == null) {
+                    shards = new BitSet(owners.length);
+                    shards.set(first);
+                }
+                shards.set(s);
+            }
+        }
+        return shards == null? new Route(first, null, false) : new Route(-1, shards, false);
+    }
+
+    /**
+     * Runs {@code body} where {@code route} says and passes the reply to {@code callback} on {@code replyTo}.
+     * @return true if it completed synchronously, in which case the callback has already run
+     */
+    public boolean execute(Route route, Supplier<RespType> body, EventExecutor replyTo, Consumer<RespType> callback) {
+        if (route.local) {
+            callback.accept(run(body));
+            return true;
+        }
+
+        if (!route.isExclusive()) {
+            EventExecutor owner = owners[route.shard];
+            BlockedClients blocked = store.getBlockedClients(route.shard);
+            if (owner.inEventLoop()) {
+                RespType reply = run(body);
+                blocked.reply(reply, owner, callback);
+                return !(reply instanceof BlockedReply);
+            }
+
+            owner.execute(() -> blocked.reply(run(body), owner, reply -> replyTo.execute(() -> callback.accept(reply))));
+            return false;
+        }
+
+        Set<EventExecutor> parked = new LinkedHashSet<>();
+        for (int i = 0; i < owners.length; i++) {
+            if (route.shards == null || route.shards.get(i))
+                parked.add(owners[i]);
+        }
+
+        coordinator.execute(() -> {
+            CountDownLatch ready = new CountDownLatch(parked.size());
+            CountDownLatch release = new CountDownLatch(1);
+            for (EventExecutor e: parked) {
+                e.execute(() -> {
+                    ready.countDown();
+                    awaitUninterruptibly(release);
+                });
+            }
+
+            RespType reply;
+            try {
+                awaitUninterruptibly(ready);
+                RespType r = run(body);
+                reply = r instanceof BlockedReply? RespType.ofError("CROSSSLOT Keys of a blocking command must be in the same shard") : r;
+                for (int i = 0; i < owners.length; i++) {
+                    if (parked.contains(owners[i]))
+                        store.getBlockedClients(i).serveReady();
+                }
+            } finally {
+                release.countDown();
+            }
+            replyTo.execute(() -> callback.accept(reply));
+        });
+        return false;
+    }
+
+    /**
+     * Runs {@code body} like a command without keys, with every shard parked, for work the server starts itself.
+     */
+    public void executeExclusive(Runnable body) {
+        execute(owners.length == 1? FIRST : ALL, () -> {
+            body.run();
+            return RespType.ofString("OK");
+        }, owners[0], reply -> {});
+    }
+
+    // drops the waiter a connection left behind, on the thread owning the shard it blocked on
+    public void cancelBlocked(Route route, long client) {
+        if (route.isExclusive())
+            return;
+        owners[route.shard].execute(() -> store.getBlockedClients(route.shard).cancel(client));
+    }
+
+    public int getExecThreads() {
+        return owners == null? 0 : owners.length;
+    }
+
+    public int getIoThreads() {
+        int n = 0;
+        if (io != null) {
+            for (EventExecutor ignored: io)
+                n++;
+        }
+        return n;
+    }
+
+    // commands handed to an owner and not run yet
+    public int getExecQueueDepth() {
+        int n = 0;
+        if (owners != null) {
+            for (EventExecutor e: owners)
+                n += pendingTasks(e);
+        }
+        return n;
+    }
+
+    // tasks, replies included, waiting for an I/O thread
+    public int getIoQueueDepth() {
+        int n = 0;
+        if (io != null) {
+            for (EventExecutor e: io)
+                n += pendingTasks(e);
+        }
+        return n;
+    }
+
+    private static int pendingTasks(EventExecutor e) {
+        return e instanceof SingleThreadEventExecutor? ((SingleThreadEventExecutor) e).pendingTasks() : 0;
+    }
+
+    private static RespType run(Supplier<RespType> body) {
+        try {
+            return body.get();
+        } catch (Exception e) {
+            log.error("exception: ", e);
+            return RespType.ofError(e.getMessage() != null? e.getMessage() : e.toString());
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
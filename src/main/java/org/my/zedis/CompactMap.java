@@ -0,0 +1,155 @@
+package org.my.zedis;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Fields of a hash, packed into a {@link Listpack} of field and value pairs while the hash is small and moved to a
+ * {@link DictMap} for good once it has more than {@code max-listpack-entries} fields or a field or value longer
+ * than {@code max-listpack-value}, as Redis does with hash-max-listpack-entries and hash-max-listpack-value.
+ */
+public class CompactMap extends AbstractMap<String, String> {
+    private final int maxListpackEntries;
+    private final int maxListpackValue;
+    private Listpack packed = new Listpack();
+    private DictMap<String, String> dict;
+
+    public CompactMap(int maxListpackEntries, int maxListpackValue) {
+        this.maxListpackEntries = maxListpackEntries;
+        this.maxListpackValue = maxListpackValue;
+    }
+
+    // as reported by OBJECT ENCODING
+    public String encoding() {
+        return packed != null? "listpack" : "hashtable";
+    }
+
+    /**
+     * Visits the fields at {@code cursor} like {@link DictMap#scan}, all of them at once while packed.
+     * @return the next cursor, 0 when done
+     */
+    public long scan(long cursor, BiConsumer<String, String> consumer) {
+        if (packed == null)
+            return dict.scan(cursor, consumer);
+        forEach(consumer);
+        return 0;
+    }
+
+    private void convert() {
+        DictMap<String, String> d = new DictMap<>(packed.size());
+        for (int off = 0; off < packed.end(); ) {
+            int v = packed.next(off);
+            d.put(packed.get(off), packed.get(v));
+            off = packed.next(v);
+        }
+        dict = d;
+        packed = null;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (packed == null)
+            return dict.get(key);
+        if (!(key instanceof String))
+            return null;
+        int off = packed.find((String) key, 2);
+        return off < 0? null : packed.get(packed.next(off));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (packed == null)
+            return dict.containsKey(key);
+        return key instanceof String && packed.find((String) key, 2) >= 0;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (packed != null) {
+            int off = packed.find(key, 2);
+            if (key.length() > maxListpackValue || value.length() > maxListpackValue
+                    || (off < 0 && packed.size() / 2 >= maxListpackEntries)) {
+                convert();
+            } else if (off >= 0) {
+                int v = packed.next(off);
+                String old = packed.get(v);
+                packed.replace(v, value);
+                return old;
+            } else {
+                packed.add(key);
+                packed.add(value);
+                return null;
+            }
+        }
+        return dict.put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (packed == null)
+            return dict.remove(key);
+        if (!(key instanceof String))
+            return null;
+        int off = packed.find((String) key, 2);
+        if (off < 0)
+            return null;
+        String old = packed.get(packed.next(off));
+        packed.delete(off, 2);
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return packed != null? packed.size() / 2 : dict.size();
+    }
+
+    @Override
+    public void clear() {
+        packed = new Listpack();
+        dict = null;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return packed != null? new PackedIterator() : dict.entrySet().iterator();
+            }
+
+            @Override
+            public int size() {
+                return CompactMap.this.size();
+            }
+        };
+    }
+
+    private final class PackedIterator implements Iterator<Entry<String, String>> {
+        private int off;
+        private int lastOff = -1;
+
+        @Override
+        public boolean hasNext() {
+            return off < packed.end();
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            lastOff = off;
+            int v = packed.next(off);
+            off = packed.next(v);
+            return new SimpleImmutableEntry<>(packed.get(lastOff), packed.get(v));
+        }
+
+        @Override
+        public void remove() {
+            if (lastOff < 0)
+                throw new IllegalStateException();
+            packed.delete(lastOff, 2);
+            off = lastOff;
+            lastOff = -1;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.my.zedis;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Members of a set, kept in an {@link IntSet} while they are all integers and moved to a {@link DictSet} for good
+ * once a member is not or the set has more than {@code max-intset-entries} members, as Redis does with
+ * set-max-intset-entries.
+ */
+public class CompactSet extends AbstractSet<String> {
+    private final int maxIntsetEntries;
+    private IntSet ints = new IntSet();
+    private DictSet<String> dict;
+
+    public CompactSet(int maxIntsetEntries) {
+        this.maxIntsetEntries = maxIntsetEntries;
+    }
+
+    // as reported by OBJECT ENCODING
+    public String encoding() {
+        return ints != null? "intset" : "hashtable";
+    }
+
+    /**
+     * Visits the members at {@code cursor} like {@link DictSet#scan}, all of them at once while an intset.
+     * @return the next cursor, 0 when done
+     */
+    public long scan(long cursor, Consumer<String> consumer) {
+        if (ints == null)
+            return dict.scan(cursor, consumer);
+        forEach(consumer);
+        return 0;
+    }
+
+    private void convert() {
+        DictSet<String> d = new DictSet<>();
+        for (int i = 0; i < ints.size(); i++)
+            d.add(Long.toString(ints.get(i)));
+        dict = d;
+        ints = null;
+    }
+
+    @Override
+    public boolean add(String e) {
+        if (ints != null) {
+            if (IntSet.isLong(e)) {
+                long v = Long.parseLong(e);
+                if (ints.size() < maxIntsetEntries || ints.contains(v))
+                    return ints.add(v);
+            }
+            convert();
+        }
+        return dict.add(e);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (ints == null)
+            return dict.remove(o);
+        return o instanceof String && IntSet.isLong((String) o) && ints.remove(Long.parseLong((String) o));
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (ints == null)
+            return dict.contains(o);
+        return o instanceof String && IntSet.isLong((String) o) && ints.contains(Long.parseLong((String) o));
+    }
+
+    @Override
+    public int size() {
+        return ints != null? ints.size() : dict.size();
+    }
+
+    @Override
+    public void clear() {
+        ints = new IntSet();
+        dict = null;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        if (ints == null)
+            return dict.iterator();
+
+        IntSet s = ints;
+        return new Iterator<String>() {
+            private int next;
+            private boolean removable;
+
+            @Override
+            public boolean hasNext() {
+                return next < s.size();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                removable = true;
+                return Long.toString(s.get(next++));
+            }
+
+            @Override
+            public void remove() {
+                if (!removable)
+                    throw new IllegalStateException();
+                s.removeAt(--next);
+                removable = false;
+            }
+        };
+    }
+}
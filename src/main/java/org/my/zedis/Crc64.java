@@ -0,0 +1,79 @@
+package org.my.zedis;
+
+/**
+ * CRC-64 with the Jones polynomial, reflected and starting from 0, the checksum Redis puts at the end of an RDB
+ * file and of a DUMP payload. The check value of "123456789" is 0xe9c6d914c4b8d9ca.
+ */
+public final class Crc64 {
+    // 0xad93d23594c935a9 bit reversed
+    private static final long POLY = 0x95ac9329ac4bc9b5L;
+    private static final long[] TABLE = new long[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long c = i;
+            for (int k = 0; k < 8; k++)
+                c = (c & 1) != 0? (c >>> 1) ^ POLY : c >>> 1;
+            TABLE[i] = c;
+        }
+    }
+
+    private Crc64() {
+    }
+
+    public static long update(long crc, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            crc = TABLE[(int) ((crc ^ b[i]) & 0xff)] ^ (crc >>> 8);
+        return crc;
+    }
+
+    /**
+     * The checksum of two blocks one after another from the checksums of each and the length of the second, so that
+     * the blocks can be checksummed in parallel. As zlib's crc32_combine: appending len2 zero bytes to the first
+     * block is a linear map, applied by squaring the matrix of a single zero bit.
+     */
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0)
+            return crc1 ^ crc2;
+
+        long[] even = new long[64];
+        long[] odd = new long[64];
+        odd[0] = POLY;
+        long row = 1;
+        for (int n = 1; n < 64; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);      // two zero bits
+        square(odd, even);      // four zero bits
+
+        // one zero byte first, then ever longer runs of zeros for every bit set in len2
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0)
+                crc1 = times(even, crc1);
+            len2 >>>= 1;
+            if (len2 == 0)
+                break;
+            square(odd, even);
+            if ((len2 & 1) != 0)
+                crc1 = times(odd, crc1);
+            len2 >>>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0)
+                sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] mat) {
+        for (int n = 0; n < 64; n++)
+            square[n] = times(mat, mat[n]);
+    }
+}
@@ -0,0 +1,28 @@
+package org.my.zedis;
+
+import org.my.ValueWithTTL;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * One logical database as seen by the command handlers.
+ */
+public interface Database extends Map<String, ValueWithTTL> {
+    /**
+     * Passes a batch of live keys to {@code consumer}, start with cursor 0. Every key present for the whole
+     * iteration is returned at least once, keys added or removed meanwhile may or may not be.
+     * @return the cursor for the next call, 0 when done
+     */
+    long scan(long cursor, Consumer<String> consumer);
+
+    // a random live key, null if the database is empty
+    String randomKey(Random rand);
+
+    // the live value of a key that is about to be changed in place, null if there is none
+    ValueWithTTL lookupWrite(String key);
+
+    // the encoding limits new values of this database are created with
+    Encodings encodings();
+}
@@ -0,0 +1,403 @@
+package org.my.zedis;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Chained hash table that resizes incrementally, after Redis' dict.
+ * <p>
+ * A resize allocates the new table and then moves a few buckets on every write, instead of rehashing everything at
+ * once, so a table with millions of entries never stalls the thread owning it. While rehashing, lookups check both
+ * tables. {@link #scan} walks the buckets with a reverse binary cursor, which returns every entry present for the
+ * whole scan at least once even if the table grows or shrinks in between. Not thread safe.
+ */
+class Dict<K, V> {
+    static final class Entry<K, V> implements Map.Entry<K, V> {
+        final K key;
+        final int hash;
+        V value;
+        Entry<K, V> next;
+
+        Entry(K key, int hash, V value, Entry<K, V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V old = this.value;
+            this.value = value;
+            return old;
+        }
+    }
+
+    private static final int MIN_SIZE = 4;
+    // buckets moved per write while rehashing, empty ones count a tenth
+    private static final int REHASH_STEP = 1;
+
+    private Entry<K, V>[] table;
+    private Entry<K, V>[] rehashTable;      // the target table, null unless rehashing
+    private int rehashIndex;                // buckets of table below it are already moved
+    private int size;
+    private int modCount;
+    private int resizePaused;
+
+    Dict(int initialCapacity) {
+        table = newTable(capacityFor(initialCapacity));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Entry<K, V>[] newTable(int capacity) {
+        return (Entry<K, V>[]) new Entry<?, ?>[capacity];
+    }
+
+    private static int capacityFor(int n) {
+        int capacity = MIN_SIZE;
+        while (capacity < n && capacity < (1 << 30))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isRehashing() {
+        return rehashTable != null;
+    }
+
+    /**
+     * Keeps the tables as they are, neither starting a resize nor moving buckets of one in progress, so entries
+     * stay in their buckets while a snapshot walks them. Chains grow longer meanwhile. Calls nest.
+     */
+    void pauseResize() {
+        resizePaused++;
+    }
+
+    void resumeResize() {
+        resizePaused--;
+    }
+
+    private Entry<K, V> find(Object key) {
+        int h = hash(key);
+        Entry<K, V>[] t = table;
+        for (int i = 0; i < 2 && t != null; i++, t = rehashTable) {
+            for (Entry<K, V> e = t[h & (t.length - 1)]; e != null; e = e.next) {
+                if (e.hash == h && (e.key == key || e.key.equals(key)))
+                    return e;
+            }
+        }
+        return null;
+    }
+
+    V get(Object key) {
+        Entry<K, V> e = find(key);
+        return e == null? null : e.value;
+    }
+
+    boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    V put(K key, V value) {
+        rehashStep();
+        Entry<K, V> e = find(key);
+        if (e != null) {
+            V old = e.value;
+            e.value = value;
+            return old;
+        }
+
+        if (!isRehashing() && size >= table.length)
+            resize(size * 2);
+        // while rehashing new entries go straight to the new table
+        Entry<K, V>[] t = isRehashing()? rehashTable : table;
+        int h = hash(key);
+        int idx = h & (t.length - 1);
+        t[idx] = new Entry<>(key, h, value, t[idx]);
+        size++;
+        modCount++;
+        return null;
+    }
+
+    V remove(Object key) {
+        rehashStep();
+        return remove(key, true);
+    }
+
+    // without a rehash step and only shrinking if allowed, so that iterators can remove
+    private V remove(Object key, boolean shrink) {
+        int h = hash(key);
+        Entry<K, V>[] t = table;
+        for (int i = 0; i < 2 && t != null; i++, t = rehashTable) {
+            int idx = h & (t.length - 1);
+            Entry<K, V> prev = null;
+            for (Entry<K, V> e = t[idx]; e != null; prev = e, e = e.next) {
+                if (e.hash == h && (e.key == key || e.key.equals(key))) {
+                    if (prev == null)
+                        t[idx] = e.next;
+                    else
+                        prev.next = e.next;
+                    size--;
+                    modCount++;
+                    // shrink once the table is less than 10% full
+                    if (shrink && !isRehashing() && table.length > MIN_SIZE && size * 10 < table.length)
+                        resize(size);
+                    return e.value;
+                }
+            }
+        }
+        return null;
+    }
+
+    // sizes an empty table for n entries, so that filling it needs no resize
+    void presize(int n) {
+        if (size == 0 && !isRehashing())
+            table = newTable(capacityFor(n));
+    }
+
+    void clear() {
+        table = newTable(MIN_SIZE);
+        rehashTable = null;
+        rehashIndex = 0;
+        size = 0;
+        modCount++;
+    }
+
+    // start rehashing into a table of the smallest power of two holding n entries
+    private void resize(int n) {
+        if (resizePaused > 0)
+            return;
+        int capacity = capacityFor(n);
+        if (capacity == table.length)
+            return;
+        rehashTable = newTable(capacity);
+        rehashIndex = 0;
+    }
+
+    private void rehashStep() {
+        if (isRehashing())
+            rehash(REHASH_STEP);
+    }
+
+    /**
+     * Moves up to {@code buckets} non empty buckets to the new table, visiting at most ten times as many empty ones.
+     * @return true if there is more to move
+     */
+    boolean rehash(int buckets) {
+        if (!isRehashing() || resizePaused > 0)
+            return false;
+
+        int emptyVisits = buckets * 10;
+        while (buckets-- > 0 && rehashIndex < table.length) {
+            while (table[rehashIndex] == null) {
+                if (++rehashIndex == table.length || --emptyVisits == 0)
+                    return finishIfDone();
+            }
+
+            Entry<K, V>[] t = rehashTable;
+            Entry<K, V> e = table[rehashIndex];
+            while (e != null) {
+                Entry<K, V> next = e.next;
+                int idx = e.hash & (t.length - 1);
+                e.next = t[idx];
+                t[idx] = e;
+                e = next;
+            }
+            table[rehashIndex++] = null;
+        }
+        modCount++;
+        return finishIfDone();
+    }
+
+    /**
+     * Rehashes in steps of 100 buckets until done or {@code millis} have passed.
+     * @return true if there is more to move
+     */
+    boolean rehashMillis(long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        while (rehash(100)) {
+            if (System.nanoTime() > deadline)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean finishIfDone() {
+        if (rehashIndex < table.length)
+            return true;
+        table = rehashTable;
+        rehashTable = null;
+        rehashIndex = 0;
+        return false;
+    }
+
+    /**
+     * Visits the buckets at {@code cursor}, start with 0.
+     * @return the next cursor, 0 once the whole table was visited
+     */
+    long scan(long cursor, Consumer<Entry<K, V>> consumer) {
+        if (size == 0)
+            return 0;
+
+        int v = (int) cursor;
+        if (!isRehashing()) {
+            int m = table.length - 1;
+            visit(table[v & m], consumer);
+            v = nextCursor(v, m);
+        } else {
+            // the bucket of the smaller table, then every bucket it expands to in the larger one
+            Entry<K, V>[] small = table;
+            Entry<K, V>[] large = rehashTable;
+            if (small.length > large.length) {
+                small = rehashTable;
+                large = table;
+            }
+            int m0 = small.length - 1;
+            int m1 = large.length - 1;
+
+            visit(small[v & m0], consumer);
+            do {
+                visit(large[v & m1], consumer);
+                v = nextCursor(v, m1);
+            } while ((v & (m0 ^ m1)) != 0);
+        }
+        return v & 0xffffffffL;
+    }
+
+    /**
+     * Whether a scan that returned {@code cursor} has already visited the bucket of {@code key}, for a scan the
+     * tables have not changed under. Buckets are visited in the order of their reversed index in the smaller table.
+     */
+    boolean isScanned(Object key, long cursor) {
+        int m = table.length - 1;
+        if (isRehashing())
+            m = Math.min(m, rehashTable.length - 1);
+        int h = hash(key);
+        return Integer.compareUnsigned(Integer.reverse(h & m), Integer.reverse((int) cursor & m)) < 0;
+    }
+
+    // increments the bits covered by the mask starting with the highest one
+    private static int nextCursor(int v, int mask) {
+        v |= ~mask;
+        v = Integer.reverse(v);
+        v++;
+        return Integer.reverse(v);
+    }
+
+    private static <K, V> void visit(Entry<K, V> e, Consumer<Entry<K, V>> consumer) {
+        // the consumer must not modify the dict
+        for (; e != null; e = e.next)
+            consumer.accept(e);
+    }
+
+    /**
+     * A random entry, buckets are picked uniformly and then an entry in the chain, so it is close to uniform for
+     * short chains.
+     * @return null if empty
+     */
+    Entry<K, V> random(Random rand) {
+        if (size == 0)
+            return null;
+
+        Entry<K, V> head;
+        if (isRehashing()) {
+            // buckets below rehashIndex are empty
+            int moved = rehashIndex;
+            int span = table.length - moved + rehashTable.length;
+            do {
+                int i = moved + rand.nextInt(span);
+                head = i < table.length? table[i] : rehashTable[i - table.length];
+            } while (head == null);
+        } else {
+            do {
+                head = table[rand.nextInt(table.length)];
+            } while (head == null);
+        }
+
+        int len = 0;
+        for (Entry<K, V> e = head; e != null; e = e.next)
+            len++;
+        int n = rand.nextInt(len);
+        Entry<K, V> e = head;
+        while (n-- > 0)
+            e = e.next;
+        return e;
+    }
+
+    // fails fast if the dict is modified while iterating, other than through the iterator
+    Iterator<Map.Entry<K, V>> iterator() {
+        return new Iterator<Map.Entry<K, V>>() {
+            private int expectedModCount = modCount;
+            private Entry<K, V>[] t = table;
+            private int idx = rehashIndex;
+            private Entry<K, V> next = advance(null);
+            private Entry<K, V> last;
+
+            private Entry<K, V> advance(Entry<K, V> e) {
+                if (e != null && e.next != null)
+                    return e.next;
+                while (true) {
+                    while (idx < t.length) {
+                        Entry<K, V> head = t[idx++];
+                        if (head != null)
+                            return head;
+                    }
+                    if (t == rehashTable || rehashTable == null)
+                        return null;
+                    t = rehashTable;
+                    idx = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                if (next == null)
+                    throw new NoSuchElementException();
+                Entry<K, V> e = next;
+                next = advance(e);
+                last = e;
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                Dict.this.remove(last.key, false);
+                expectedModCount = modCount;
+                last = null;
+            }
+        };
+    }
+}
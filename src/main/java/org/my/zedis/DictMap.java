@@ -0,0 +1,73 @@
+package org.my.zedis;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link Map} over an incrementally rehashing {@link Dict}, used for the fields of hashes, the members of sets and
+ * the scores of sorted sets so that they can be walked with a SCAN cursor.
+ */
+public class DictMap<K, V> extends AbstractMap<K, V> {
+    private final Dict<K, V> dict;
+
+    public DictMap() {
+        this(4);
+    }
+
+    public DictMap(int initialCapacity) {
+        this.dict = new Dict<>(initialCapacity);
+    }
+
+    /**
+     * Visits the entries of the buckets at {@code cursor}, start with 0.
+     * @return the next cursor, 0 when done
+     */
+    public long scan(long cursor, BiConsumer<K, V> consumer) {
+        return dict.scan(cursor, e -> consumer.accept(e.key, e.value));
+    }
+
+    @Override
+    public V get(Object key) {
+        return dict.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return dict.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return dict.put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return dict.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return dict.size();
+    }
+
+    @Override
+    public void clear() {
+        dict.clear();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return dict.iterator();
+            }
+
+            @Override
+            public int size() {
+                return dict.size();
+            }
+        };
+    }
+}
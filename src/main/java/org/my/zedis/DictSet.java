@@ -0,0 +1,47 @@
+package org.my.zedis;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Set view of a {@link DictMap}, so that sets can be walked with a SCAN cursor.
+ */
+public class DictSet<E> extends AbstractSet<E> {
+    private final DictMap<E, Boolean> map = new DictMap<>();
+
+    // see DictMap.scan
+    public long scan(long cursor, Consumer<E> consumer) {
+        return map.scan(cursor, (k, v) -> consumer.accept(k));
+    }
+
+    @Override
+    public boolean add(E e) {
+        return map.put(e, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return map.remove(o) != null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return map.keySet().iterator();
+    }
+}
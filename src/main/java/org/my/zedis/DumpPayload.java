@@ -0,0 +1,72 @@
+package org.my.zedis;
+
+import org.my.ValueWithTTL;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The serialized values of DUMP, RESTORE and MIGRATE, in Redis' format so they move between both: the type and
+ * value as an RDB snapshot writes them, then the RDB version in two bytes and a CRC64 of everything before, both
+ * little endian. Payloads of a newer RDB version are refused, as Redis refuses them.
+ */
+public final class DumpPayload {
+    private static final int FOOTER = 2 + 8;
+
+    private DumpPayload() {
+    }
+
+    // null if the type of the value can't be serialized
+    public static byte[] dump(ValueWithTTL v) {
+        RdbWriter w = new RdbWriter();
+        if (!w.writeObject(v))
+            return null;
+        byte[] body = w.toByteArray();
+        byte[] payload = new byte[body.length + FOOTER];
+        System.arraycopy(body, 0, payload, 0, body.length);
+        payload[body.length] = (byte) RdbWriter.RDB_VERSION;
+        payload[body.length + 1] = (byte) (RdbWriter.RDB_VERSION >> 8);
+        long crc = Crc64.update(0, payload, 0, body.length + 2);
+        for (int i = 0; i < 8; i++)
+            payload[body.length + 2 + i] = (byte) (crc >>> (i * 8));
+        return payload;
+    }
+
+    /**
+     * The value a payload holds, expiring at expiredAt and created with the limits of encodings.
+     * @throws IllegalArgumentException if the payload is damaged or holds what can't be read
+     */
+    public static ValueWithTTL restore(byte[] payload, Long expiredAt, Encodings encodings) {
+        if (payload.length < FOOTER + 1)
+            throw new IllegalArgumentException("DUMP payload version or checksum are wrong");
+        int end = payload.length - 8;
+        long crc = 0;
+        for (int i = 0; i < 8; i++)
+            crc |= (payload[end + i] & 0xffL) << (i * 8);
+        int version = (payload[end - 2] & 0xff) | (payload[end - 1] & 0xff) << 8;
+        if (version > RdbWriter.RDB_VERSION || crc != Crc64.update(0, payload, 0, end))
+            throw new IllegalArgumentException("DUMP payload version or checksum are wrong");
+        return read(ByteBuffer.wrap(payload, 0, payload.length - FOOTER), expiredAt, encodings);
+    }
+
+    // a copy sharing nothing with v, for COPY into a database with the given encodings
+    public static ValueWithTTL copy(ValueWithTTL v, Encodings encodings) {
+        RdbWriter w = new RdbWriter();
+        if (!w.writeObject(v))
+            throw new IllegalArgumentException("value of type " + v.getType().getTypeName() + " can't be copied");
+        return read(ByteBuffer.wrap(w.toByteArray()), v.getExpiredAt(), encodings);
+    }
+
+    private static ValueWithTTL read(ByteBuffer body, Long expiredAt, Encodings encodings) {
+        try {
+            RdbReader r = new RdbReader(body.slice());
+            ValueWithTTL v = r.readValue(r.readByte(), expiredAt, encodings);
+            if (r.hasMore())
+                throw new IOException("trailing bytes");
+            return v;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Bad data format");
+        }
+    }
+}
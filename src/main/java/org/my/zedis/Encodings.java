@@ -0,0 +1,35 @@
+package org.my.zedis;
+
+/**
+ * Limits of the compact encodings of one store, as Redis' list-max-listpack-size, list-compress-depth,
+ * hash-max-listpack-entries and friends. A value takes them from the store it is created for and keeps them, see
+ * the factories of {@link org.my.ValueWithTTL}.
+ */
+@lombok.Getter
+public final class Encodings {
+    private final int listFill;
+    private final int listCompressDepth;
+    private final int hashMaxListpackEntries;
+    private final int hashMaxListpackValue;
+    private final int setMaxIntsetEntries;
+    private final int zsetMaxListpackEntries;
+    private final int zsetMaxListpackValue;
+
+    public Encodings(int listFill, int listCompressDepth, int hashMaxListpackEntries, int hashMaxListpackValue,
+                     int setMaxIntsetEntries, int zsetMaxListpackEntries, int zsetMaxListpackValue) {
+        QuickList.validate(listFill, listCompressDepth);
+        if (hashMaxListpackEntries < 0 || hashMaxListpackValue < 0)
+            throw new IllegalArgumentException("hash listpack limits cannot be negative");
+        if (setMaxIntsetEntries < 0)
+            throw new IllegalArgumentException("set intset limit cannot be negative");
+        if (zsetMaxListpackEntries < 0 || zsetMaxListpackValue < 0)
+            throw new IllegalArgumentException("zset listpack limits cannot be negative");
+        this.listFill = listFill;
+        this.listCompressDepth = listCompressDepth;
+        this.hashMaxListpackEntries = hashMaxListpackEntries;
+        this.hashMaxListpackValue = hashMaxListpackValue;
+        this.setMaxIntsetEntries = setMaxIntsetEntries;
+        this.zsetMaxListpackEntries = zsetMaxListpackEntries;
+        this.zsetMaxListpackValue = zsetMaxListpackValue;
+    }
+}
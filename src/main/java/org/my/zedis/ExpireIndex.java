@@ -0,0 +1,141 @@
+package org.my.zedis;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Keys carrying a TTL, ordered by deadline.
+ * <p>
+ * An indexed binary min-heap: {@code entries}/{@code deadlines} hold the heap in parallel arrays and each entry
+ * keeps its own position, so a sift step is plain array and int writes. The map is only touched once per insert,
+ * reschedule or remove, which are O(log n), and the earliest deadline is O(1). The arrays shrink again after a mass
+ * expiry. Since the heap is a plain array it also supports uniform random sampling for the sampled expiry cycle.
+ */
+class ExpireIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Entry {
+        final String key;
+        int slot;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private Entry[] entries = new Entry[MIN_CAPACITY];
+    private long[] deadlines = new long[MIN_CAPACITY];
+    private int size = 0;
+    private final HashMap<String, Entry> index = new HashMap<>();
+
+    // insert the key or move it to its new deadline
+    void set(String key, long deadline) {
+        Entry e = index.get(key);
+        if (e == null) {
+            if (size == entries.length)
+                resize(size * 2);
+            e = new Entry(key);
+            index.put(key, e);
+            place(size, e, deadline);
+            siftUp(size++);
+        } else if (deadlines[e.slot] != deadline) {
+            int slot = e.slot;
+            long old = deadlines[slot];
+            deadlines[slot] = deadline;
+            if (deadline < old)
+                siftUp(slot);
+            else
+                siftDown(slot);
+        }
+    }
+
+    void remove(String key) {
+        Entry e = index.remove(key);
+        if (e != null)
+            removeAt(e.slot);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // earliest deadline, only valid if not empty
+    long peekDeadline() {
+        return deadlines[0];
+    }
+
+    String peekKey() {
+        return entries[0].key;
+    }
+
+    String random(Random rand) {
+        return entries[rand.nextInt(size)].key;
+    }
+
+    void clear() {
+        entries = new Entry[MIN_CAPACITY];
+        deadlines = new long[MIN_CAPACITY];
+        size = 0;
+        index.clear();
+    }
+
+    private void removeAt(int slot) {
+        int last = --size;
+        if (slot != last) {
+            place(slot, entries[last], deadlines[last]);
+            entries[last] = null;
+            siftDown(slot);
+            siftUp(slot);
+        } else {
+            entries[last] = null;
+        }
+        // halve at a quarter full, so alternating inserts and removes don't resize every time
+        if (entries.length > MIN_CAPACITY && size < entries.length / 4)
+            resize(entries.length / 2);
+    }
+
+    private void resize(int capacity) {
+        entries = Arrays.copyOf(entries, capacity);
+        deadlines = Arrays.copyOf(deadlines, capacity);
+    }
+
+    private void place(int slot, Entry e, long deadline) {
+        entries[slot] = e;
+        deadlines[slot] = deadline;
+        e.slot = slot;
+    }
+
+    private void siftUp(int i) {
+        Entry e = entries[i];
+        long deadline = deadlines[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (deadlines[parent] <= deadline)
+                break;
+            place(i, entries[parent], deadlines[parent]);
+            i = parent;
+        }
+        place(i, e, deadline);
+    }
+
+    private void siftDown(int i) {
+        Entry e = entries[i];
+        long deadline = deadlines[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && deadlines[child + 1] < deadlines[child])
+                child++;
+            if (deadline <= deadlines[child])
+                break;
+            place(i, entries[child], deadlines[child]);
+            i = child;
+        }
+        place(i, e, deadline);
+    }
+}
@@ -0,0 +1,175 @@
+package org.my.zedis;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Redis glob pattern, as used by KEYS and the MATCH option of the SCAN family.
+ * <p>
+ * Supports {@code *}, {@code ?}, classes like {@code [abc]}, {@code [a-z]} and {@code [^x]}, and {@code \} escaping
+ * the next character, with the same corner cases as Redis' {@code stringmatchlen}: a trailing {@code \} is a
+ * literal, an unclosed class runs to the end of the pattern and a reversed range is swapped. The pattern is
+ * compiled once into an int program, literals are checked with a single {@code startsWith} or {@code equals}
+ * when that decides the match, and the rest runs iteratively over the string without allocating.
+ */
+public final class GlobPattern implements Predicate<String> {
+    // program ops, a non negative op is a literal char
+    private static final int ANY = -1;
+    private static final int STAR = -2;
+    private static final int CLASS = -3;    // CLASS - i is the i-th class
+    private static final int CLASS_WORDS = 5;
+
+    private enum Kind { ALL, EXACT, PREFIX, GENERAL }
+
+    private final String pattern;
+    private final int[] program;
+    private final long[] classes;           // per class 256 bits for ISO-8859-1 chars, then all ones if negated
+    private final String prefix;            // the literals the program starts with
+    private final Kind kind;
+
+    private GlobPattern(String pattern, int[] program, long[] classes) {
+        this.pattern = pattern;
+        this.program = program;
+        this.classes = classes;
+
+        int n = 0;
+        while (n < program.length && program[n] >= 0)
+            n++;
+        char[] literals = new char[n];
+        for (int i = 0; i < n; i++)
+            literals[i] = (char) program[i];
+        this.prefix = new String(literals);
+
+        if (n == program.length)
+            kind = Kind.EXACT;
+        else if (n == program.length - 1 && program[n] == STAR)
+            kind = n == 0? Kind.ALL : Kind.PREFIX;
+        else
+            kind = Kind.GENERAL;
+    }
+
+    public static GlobPattern compile(String pattern) {
+        int[] program = new int[pattern.length()];
+        long[] classes = new long[0];
+        int n = 0;
+        int len = pattern.length();
+        for (int i = 0; i < len; i++) {
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '*':
+                    // consecutive stars match the same as one
+                    if (n == 0 || program[n - 1] != STAR)
+                        program[n++] = STAR;
+                    break;
+                case '?':
+                    program[n++] = ANY;
+                    break;
+                case '[': {
+                    long[] bits = new long[CLASS_WORDS];
+                    boolean not = i + 1 < len && pattern.charAt(i + 1) == '^';
+                    if (not)
+                        i++;
+                    while (++i < len && pattern.charAt(i) != ']') {
+                        char start = pattern.charAt(i);
+                        if (start == '\\' && i + 1 < len) {
+                            set(bits, pattern.charAt(++i));
+                        } else if (i + 2 < len && pattern.charAt(i + 1) == '-') {
+                            char end = pattern.charAt(i + 2);
+                            for (int x = Math.min(start, end); x <= Math.max(start, end) && x < 256; x++)
+                                set(bits, (char) x);
+                            i += 2;
+                        } else {
+                            set(bits, start);
+                        }
+                    }
+                    if (not) {
+                        for (int w = 0; w < CLASS_WORDS; w++)
+                            bits[w] = ~bits[w];
+                    }
+
+                    int idx = classes.length / CLASS_WORDS;
+                    classes = Arrays.copyOf(classes, classes.length + CLASS_WORDS);
+                    System.arraycopy(bits, 0, classes, idx * CLASS_WORDS, CLASS_WORDS);
+                    program[n++] = CLASS - idx;
+                    break;
+                }
+                case '\\':
+                    if (i + 1 < len)
+                        c = pattern.charAt(++i);
+                    program[n++] = c;
+                    break;
+                default:
+                    program[n++] = c;
+            }
+        }
+        return new GlobPattern(pattern, Arrays.copyOf(program, n), classes);
+    }
+
+    private static void set(long[] bits, char c) {
+        if (c < 256)
+            bits[c >>> 6] |= 1L << c;
+    }
+
+    public boolean matches(String s) {
+        switch (kind) {
+            case ALL:
+                return true;
+            case EXACT:
+                return s.equals(prefix);
+            case PREFIX:
+                return s.startsWith(prefix);
+            default:
+                return s.startsWith(prefix) && matches(s, prefix.length(), prefix.length());
+        }
+    }
+
+    // a star remembers where to resume, on a mismatch it takes one more char and the rest is tried again
+    private boolean matches(String s, int p, int i) {
+        int len = s.length();
+        int starP = -1;
+        int starI = 0;
+        while (i < len) {
+            if (p < program.length) {
+                int op = program[p];
+                if (op == STAR) {
+                    starP = ++p;
+                    starI = i;
+                    continue;
+                }
+                if (matchOne(op, s.charAt(i))) {
+                    p++;
+                    i++;
+                    continue;
+                }
+            }
+            if (starP < 0)
+                return false;
+            p = starP;
+            i = ++starI;
+        }
+
+        while (p < program.length && program[p] == STAR)
+            p++;
+        return p == program.length;
+    }
+
+    private boolean matchOne(int op, char c) {
+        if (op >= 0)
+            return op == c;
+        if (op == ANY)
+            return true;
+        // a wider char is in no range, only a negated class takes it
+        int w = (CLASS - op) * CLASS_WORDS + Math.min(c >>> 6, CLASS_WORDS - 1);
+        return (classes[w] & (1L << c)) != 0;
+    }
+
+    @Override
+    public boolean test(String s) {
+        return matches(s);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
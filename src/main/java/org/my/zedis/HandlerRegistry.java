@@ -1,25 +1,120 @@
 package org.my.zedis;
 
+import org.my.ByteString;
+import org.my.Command;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 
+/**
+ * Maps a request to its command.
+ * <p>
+ * All command names are compiled at startup into a case-insensitive trie over the raw name bytes, a container
+ * command like {@code CLIENT} holds a second trie with its subcommands. A lookup walks the bytes of the first one or
+ * two arguments and returns a prebuilt {@link Entry}, without decoding, upper casing or allocating anything.
+ */
 @Component
 public class HandlerRegistry {
-    private final Map<String, RedisCommandHandler> handlers = new HashMap<>();
+    @lombok.Getter
+    public static final class Entry {
+        private final RedisCommandHandler handler;
+        private final String name;
+        private final Command command;
+        private final int argOffset;    // arguments taken by the name, 2 for a subcommand
+
+        private Entry(RedisCommandHandler handler, String name, Command command) {
+            this.handler = handler;
+            this.name = name;
+            this.command = command;
+            this.argOffset = name.indexOf(' ') < 0? 1 : 2;
+        }
+    }
+
+    private static final class Node {
+        byte[] labels = new byte[0];
+        Node[] next = new Node[0];
+        Entry entry;
+        Node subcommands;
+
+        Node child(byte b) {
+            for (int i = 0; i < labels.length; i++)
+                if (labels[i] == b)
+                    return next[i];
+            return null;
+        }
+
+        Node addChild(byte b) {
+            Node n = child(b);
+            if (n == null) {
+                n = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                next = Arrays.copyOf(next, next.length + 1);
+                labels[labels.length - 1] = b;
+                next[next.length - 1] = n;
+            }
+            return n;
+        }
+    }
+
+    private final Node root = new Node();
 
     @Autowired
     public HandlerRegistry(ApplicationContext context) {
         Map<String, RedisCommandHandler> m = context.getBeansOfType(RedisCommandHandler.class);
         for (RedisCommandHandler handler: m.values()) {
-            handler.getCommands().forEach(x -> handlers.put(x, handler));
+            for (String name: handler.getCommands())
+                add(new Entry(handler, name, handler.getCommand(name)));
         }
     }
 
-    public RedisCommandHandler getHandler(String name) {
-        return handlers.get(name.toUpperCase());
+    private void add(Entry entry) {
+        String[] words = entry.name.split(" ");
+        Node node = insert(root, words[0]);
+        if (words.length > 1) {
+            if (node.subcommands == null)
+                node.subcommands = new Node();
+            node = insert(node.subcommands, words[1]);
+        }
+        node.entry = entry;
+    }
+
+    private static Node insert(Node node, String word) {
+        for (byte b: word.toUpperCase().getBytes(StandardCharsets.ISO_8859_1))
+            node = node.addChild(b);
+        return node;
+    }
+
+    private static Node find(Node node, RespType arg) {
+        ByteString name = arg.asBytes();
+        if (name == null)
+            return null;
+
+        byte[] bytes = name.array();
+        for (int i = 0; i < bytes.length && node != null; i++) {
+            byte b = bytes[i];
+            node = node.child(b >= 'a' && b <= 'z'? (byte) (b - 32) : b);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the command named by the head of {@code list}, a subcommand wins over its container command.
+     * @return null if there is none
+     */
+    public Entry lookup(RespType[] list) {
+        Node node = find(root, list[0]);
+        if (node == null)
+            return null;
+
+        if (node.subcommands != null && list.length > 1) {
+            Node sub = find(node.subcommands, list[1]);
+            if (sub != null && sub.entry != null)
+                return sub.entry;
+        }
+        return node.entry;
     }
 }
@@ -1,6 +1,6 @@
 package org.my.zedis;
 
-import org.my.ValueWithTTL;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
@@ -9,22 +9,171 @@ import java.util.*;
 public class InMemorySharedStore {
     public static final int MAX_DB_SIZE = 16;
 
-    private final Map<String, ValueWithTTL>[] store;
+    // keys sampled per round of the active expiry cycle, another round follows if more than 25% were expired
+    private static final int EXPIRE_SAMPLES = 20;
+    // keys reclaimed from the deadline index between two checks of the time budget
+    private static final int EXPIRE_BATCH = 64;
 
-    @SuppressWarnings("unchecked")
-    public InMemorySharedStore() {
+    public enum ExpireStrategy { HEAP, SAMPLE }
+
+    // a partition of the keyspace, all its databases are only touched by the thread owning it
+    private static class Shard {
+        final KeySpace[] dbs = new KeySpace[MAX_DB_SIZE];
+        final Random rand = new Random();
+        final BlockedClients blocked = new BlockedClients();
+        int nextExpireDb = 0;
+    }
+
+    private final Shard[] shards;
+    private final Database[] store;
+    private final ServerStats stats;
+    private final Encodings encodings;
+
+    public InMemorySharedStore(ServerStats stats, @Value("${zedis.shards:1}") int shardCount,
+                               @Value("${zedis.list.max-listpack-size:-2}") int listFill,
+                               @Value("${zedis.list.compress-depth:0}") int listCompressDepth,
+                               @Value("${zedis.hash.max-listpack-entries:128}") int hashMaxEntries,
+                               @Value("${zedis.hash.max-listpack-value:64}") int hashMaxValue,
+                               @Value("${zedis.set.max-intset-entries:512}") int setMaxIntsetEntries,
+                               @Value("${zedis.zset.max-listpack-entries:128}") int zsetMaxEntries,
+                               @Value("${zedis.zset.max-listpack-value:64}") int zsetMaxValue) {
         int initiateMapSize = 20;
-        this.store= (HashMap<String, ValueWithTTL>[]) new HashMap[MAX_DB_SIZE];
-        for (int i = 0; i < store.length; i++) {
-            store[i] = new HashMap<>(initiateMapSize);
+        this.stats = stats;
+        this.encodings = new Encodings(listFill, listCompressDepth, hashMaxEntries, hashMaxValue,
+                setMaxIntsetEntries, zsetMaxEntries, zsetMaxValue);
+        this.shards = new Shard[Math.max(shardCount, 1)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            for (int db = 0; db < MAX_DB_SIZE; db++)
+                shards[i].dbs[db] = new KeySpace(initiateMapSize, stats, shards[i].blocked, db, encodings);
+        }
+
+        this.store = new Database[MAX_DB_SIZE];
+        for (int db = 0; db < MAX_DB_SIZE; db++) {
+            if (shards.length == 1) {
+                store[db] = shards[0].dbs[db];
+            } else {
+                KeySpace[] parts = new KeySpace[shards.length];
+                for (int i = 0; i < shards.length; i++)
+                    parts[i] = shards[i].dbs[db];
+                store[db] = new ShardedKeySpace(parts, this);
+            }
         }
     }
 
-    public Map<String, ValueWithTTL> getDB(int dbIdx) {
+    public Database getDB(int dbIdx) {
         return store[dbIdx];
     }
 
+    // the limits of the compact encodings, the same for every database
+    public Encodings getEncodings() {
+        return encodings;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    KeySpace getKeySpace(int shardIdx, int dbIdx) {
+        return shards[shardIdx].dbs[dbIdx];
+    }
+
+    // connections blocked on keys of a shard, only to be used by the thread owning it
+    public BlockedClients getBlockedClients(int shardIdx) {
+        return shards[shardIdx].blocked;
+    }
+
+    public int shardOf(String key) {
+        if (shards.length == 1)
+            return 0;
+
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    public int expiresSize(int dbIdx) {
+        int n = 0;
+        for (Shard s: shards)
+            n += s.dbs[dbIdx].expiresSize();
+        return n;
+    }
+
     public void flushAll() {
         Arrays.stream(store).forEach(Map::clear);
     }
+
+    /**
+     * Moves buckets of pending dict resizes of one shard for up to {@code millis} per database, must run on the
+     * thread owning the shard.
+     */
+    public void incrementalRehash(int shardIdx, long millis) {
+        for (KeySpace db: shards[shardIdx].dbs)
+            db.rehash(millis);
+    }
+
+    /**
+     * Active expiry of one shard, must run on the thread owning the shard.
+     * <p>
+     * With {@link ExpireStrategy#HEAP} every database reclaims its keys in deadline order until none is due or the
+     * time budget is used up, so a key outlives its TTL by at most one cycle period unless expiry falls behind.
+     * {@link ExpireStrategy#SAMPLE} is the Redis style adaptive sampling below.
+     */
+    public void activeExpireCycle(int shardIdx, ExpireStrategy strategy, long timeLimitMicros) {
+        Shard shard = shards[shardIdx];
+        if (strategy == ExpireStrategy.SAMPLE) {
+            activeExpireCycle(shard, timeLimitMicros);
+            return;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + timeLimitMicros * 1000;
+        long now = System.currentTimeMillis();
+
+        try {
+            for (int n = 0; n < MAX_DB_SIZE; n++) {
+                KeySpace db = shard.dbs[shard.nextExpireDb];
+                while (db.expireDue(EXPIRE_BATCH, now) == EXPIRE_BATCH) {
+                    if (System.nanoTime() > deadline)
+                        return; // resume with this database next time
+                }
+                shard.nextExpireDb = (shard.nextExpireDb + 1) % MAX_DB_SIZE;
+            }
+        } finally {
+            stats.expireCycleTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adaptive sampled expiry.
+     * <p>
+     * Walks the databases round-robin, sampling keys with a TTL and deleting the expired ones. A database is
+     * sampled again while more than a quarter of the sample was expired, and the whole cycle stops once
+     * {@code timeLimitMicros} is used up. The next cycle resumes with the database where this one stopped.
+     */
+    private void activeExpireCycle(Shard shard, long timeLimitMicros) {
+        long start = System.nanoTime();
+        long deadline = start + timeLimitMicros * 1000;
+        long now = System.currentTimeMillis();
+        int iteration = 0;
+
+        try {
+            for (int n = 0; n < MAX_DB_SIZE; n++) {
+                KeySpace db = shard.dbs[shard.nextExpireDb];
+                shard.nextExpireDb = (shard.nextExpireDb + 1) % MAX_DB_SIZE;
+
+                int expired;
+                do {
+                    if (db.expiresSize() == 0)
+                        break;
+
+                    expired = db.expireSample(EXPIRE_SAMPLES, now, shard.rand);
+                    if ((++iteration & 0xf) == 0 && System.nanoTime() > deadline)
+                        return;
+                } while (expired > EXPIRE_SAMPLES / 4);
+            }
+        } finally {
+            stats.expireCycleTime(System.nanoTime() - start);
+        }
+    }
 }
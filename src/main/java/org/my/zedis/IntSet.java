@@ -0,0 +1,84 @@
+package org.my.zedis;
+
+import java.util.Arrays;
+
+/**
+ * Sorted array of distinct longs, after Redis' intset: the compact encoding of sets whose members are all
+ * integers. Lookups are binary searches, inserts and removals shift the tail of the array. Not thread safe.
+ */
+public final class IntSet {
+    private static final long[] EMPTY = new long[0];
+
+    private long[] values = EMPTY;
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public long get(int index) {
+        return values[index];
+    }
+
+    public boolean contains(long v) {
+        return Arrays.binarySearch(values, 0, size, v) >= 0;
+    }
+
+    public boolean add(long v) {
+        int i = Arrays.binarySearch(values, 0, size, v);
+        if (i >= 0)
+            return false;
+        i = -i - 1;
+        if (size == values.length)
+            values = Arrays.copyOf(values, Math.max(4, size + (size >> 1)));
+        System.arraycopy(values, i, values, i + 1, size - i);
+        values[i] = v;
+        size++;
+        return true;
+    }
+
+    public boolean remove(long v) {
+        int i = Arrays.binarySearch(values, 0, size, v);
+        if (i < 0)
+            return false;
+        removeAt(i);
+        return true;
+    }
+
+    public void removeAt(int index) {
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+    }
+
+    public void clear() {
+        values = EMPTY;
+        size = 0;
+    }
+
+    /**
+     * Whether {@code s} is a long written the way {@link Long#toString} writes it, so that it is kept as a number
+     * and turned back into the same string: no sign but a leading minus, no leading zeros and no {@code -0}.
+     */
+    public static boolean isLong(String s) {
+        int len = s.length();
+        if (len == 0 || len > 20)
+            return false;
+
+        int i = s.charAt(0) == '-'? 1 : 0;
+        if (i == len || (s.charAt(i) == '0' && len > 1))
+            return false;
+        // accumulate negatively, the range of longs goes one further below zero
+        long limit = i == 1? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long r = 0;
+        for (; i < len; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9 || r < limit / 10)
+                return false;
+            r *= 10;
+            if (r < limit + d)
+                return false;
+            r -= d;
+        }
+        return true;
+    }
+}
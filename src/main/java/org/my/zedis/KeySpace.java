@@ -0,0 +1,301 @@
+package org.my.zedis;
+
+import org.my.ValueWithTTL;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One logical database.
+ * <p>
+ * Every access through the {@link Map} interface first drops the key if its TTL has passed (lazy expiry), and
+ * every write keeps a separate index of the keys carrying a TTL, ordered by deadline, in sync, so the active expiry
+ * cycle only has to look at volatile keys. Views returned by {@link #entrySet()} are read only for the same reason.
+ * <p>
+ * Keys are held in a {@link Dict}, which grows and shrinks incrementally instead of stalling on a full rehash.
+ * Writes storing a value tell the {@link BlockedClients} of the shard, which may be waiting for the key.
+ * <p>
+ * While a background save walks the keyspace every write first hands the value it is about to change to the
+ * {@link RdbSnapshot}, which saves it unless the walk already did, so the snapshot stays the keyspace as it was
+ * when the save started. Values changed in place must therefore be looked up with {@link #lookupWrite}.
+ */
+public class KeySpace extends AbstractMap<String, ValueWithTTL> implements Database {
+    // random picks before giving up on finding a live key
+    private static final int RANDOM_KEY_TRIES = 100;
+
+    private Dict<String, ValueWithTTL> dict;
+    private final ExpireIndex expires = new ExpireIndex();
+    private final ServerStats stats;
+    private final BlockedClients blocked;
+    private final int db;
+    private final Encodings encodings;
+    private RdbSnapshot.Part snapshot;          // the save walking this keyspace, null if none
+
+    public KeySpace(int initialCapacity, ServerStats stats, BlockedClients blocked, int db, Encodings encodings) {
+        this.dict = new Dict<>(initialCapacity);
+        this.stats = stats;
+        this.blocked = blocked;
+        this.db = db;
+        this.encodings = encodings;
+    }
+
+    private void track(String key, ValueWithTTL v) {
+        if (v != null && v.getExpiredAt() != null)
+            expires.set(key, v.getExpiredAt());
+        else if (!expires.isEmpty())
+            expires.remove(key);
+    }
+
+    // every change of a key goes through here before it happens
+    private void beforeWrite(Object key) {
+        stats.keyChanged();
+        if (snapshot != null)
+            snapshot.preserve(dict, (String) key);
+    }
+
+    // drop the key if it is expired, returns the live value or null
+    private ValueWithTTL lookup(Object key) {
+        ValueWithTTL v = dict.get(key);
+        if (v != null && v.isExpired(System.currentTimeMillis())) {
+            beforeWrite(key);
+            dict.remove(key);
+            expires.remove((String) key);
+            stats.keyExpired();
+            return null;
+        }
+        return v;
+    }
+
+    /**
+     * Samples up to {@code samples} keys with a TTL and deletes the expired ones.
+     * @return number of keys deleted
+     */
+    int expireSample(int samples, long now, Random rand) {
+        int expired = 0;
+        for (int i = 0; i < samples && !expires.isEmpty(); i++) {
+            String key = expires.random(rand);
+            ValueWithTTL v = dict.get(key);
+            if (v == null || v.isExpired(now)) {
+                beforeWrite(key);
+                dict.remove(key);
+                expires.remove(key);
+                stats.keyExpired();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Deletes up to {@code max} keys whose deadline is not after {@code now}, earliest first.
+     * @return number of keys deleted
+     */
+    int expireDue(int max, long now) {
+        int expired = 0;
+        while (expired < max && !expires.isEmpty() && expires.peekDeadline() <= now) {
+            String key = expires.peekKey();
+            beforeWrite(key);
+            dict.remove(key);
+            expires.remove(key);
+            stats.keyExpired();
+            expired++;
+        }
+        return expired;
+    }
+
+    public int expiresSize() {
+        return expires.size();
+    }
+
+    // moves buckets of a pending resize for up to millis, true if there is more to do
+    boolean rehash(long millis) {
+        return dict.rehashMillis(millis);
+    }
+
+    /**
+     * Stores a key read from a dump, before the keyspace is served: no lookup, no change counted. Callers loading
+     * in parallel lock the keyspace.
+     */
+    void load(String key, ValueWithTTL v) {
+        dict.put(key, v);
+        track(key, v);
+    }
+
+    void presize(int keys) {
+        dict.presize(keys);
+    }
+
+    Dict<String, ValueWithTTL> getDict() {
+        return dict;
+    }
+
+    void setSnapshot(RdbSnapshot.Part snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public ValueWithTTL lookupWrite(String key) {
+        ValueWithTTL v = lookup(key);
+        if (v != null)
+            beforeWrite(key);
+        return v;
+    }
+
+    @Override
+    public Encodings encodings() {
+        return encodings;
+    }
+
+    @Override
+    public long scan(long cursor, Consumer<String> consumer) {
+        // expired keys can only be dropped once the dict is no longer being walked
+        List<String> keys = new ArrayList<>();
+        long next = dict.scan(cursor, e -> keys.add(e.getKey()));
+        for (String key: keys) {
+            if (lookup(key) != null)
+                consumer.accept(key);
+        }
+        return next;
+    }
+
+    @Override
+    public String randomKey(Random rand) {
+        for (int i = 0; i < RANDOM_KEY_TRIES; i++) {
+            Dict.Entry<String, ValueWithTTL> e = dict.random(rand);
+            if (e == null)
+                return null;
+            if (lookup(e.getKey()) != null)
+                return e.getKey();
+        }
+        return null;
+    }
+
+    @Override
+    public ValueWithTTL get(Object key) {
+        return lookup(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return lookup(key) != null;
+    }
+
+    @Override
+    public ValueWithTTL put(String key, ValueWithTTL value) {
+        lookup(key);
+        beforeWrite(key);
+        ValueWithTTL old = dict.put(key, value);
+        track(key, value);
+        blocked.signal(db, key);
+        return old;
+    }
+
+    @Override
+    public ValueWithTTL putIfAbsent(String key, ValueWithTTL value) {
+        ValueWithTTL old = lookup(key);
+        if (old == null) {
+            beforeWrite(key);
+            dict.put(key, value);
+            track(key, value);
+            blocked.signal(db, key);
+        }
+        return old;
+    }
+
+    @Override
+    public ValueWithTTL remove(Object key) {
+        ValueWithTTL old = lookup(key);
+        if (old != null) {
+            beforeWrite(key);
+            dict.remove(key);
+            expires.remove((String) key);
+        }
+        return old;
+    }
+
+    // the functions may change the old value in place, so the snapshot has to see it before they run
+    private ValueWithTTL store(String key, ValueWithTTL old, ValueWithTTL v) {
+        if (v != null) {
+            dict.put(key, v);
+            track(key, v);
+            blocked.signal(db, key);
+        } else if (old != null) {
+            dict.remove(key);
+            expires.remove(key);
+        }
+        return v;
+    }
+
+    @Override
+    public ValueWithTTL compute(String key, BiFunction<? super String, ? super ValueWithTTL, ? extends ValueWithTTL> func) {
+        ValueWithTTL old = lookup(key);
+        if (old == null) {
+            // nothing to change in place, so a function leaving the key missing changed nothing
+            ValueWithTTL v = func.apply(key, null);
+            if (v != null)
+                beforeWrite(key);
+            return store(key, null, v);
+        }
+        beforeWrite(key);
+        return store(key, old, func.apply(key, old));
+    }
+
+    @Override
+    public ValueWithTTL computeIfPresent(String key, BiFunction<? super String, ? super ValueWithTTL, ? extends ValueWithTTL> func) {
+        ValueWithTTL old = lookup(key);
+        if (old == null)
+            return null;
+        beforeWrite(key);
+        return store(key, old, func.apply(key, old));
+    }
+
+    @Override
+    public ValueWithTTL computeIfAbsent(String key, Function<? super String, ? extends ValueWithTTL> func) {
+        ValueWithTTL old = lookup(key);
+        if (old != null)
+            return old;
+        beforeWrite(key);
+        return store(key, null, func.apply(key));
+    }
+
+    @Override
+    public ValueWithTTL merge(String key, ValueWithTTL value, BiFunction<? super ValueWithTTL, ? super ValueWithTTL, ? extends ValueWithTTL> func) {
+        ValueWithTTL old = lookup(key);
+        // value is never null, so a missing key is always stored
+        beforeWrite(key);
+        return store(key, old, old == null? value : func.apply(old, value));
+    }
+
+    @Override
+    public int size() {
+        return dict.size();
+    }
+
+    @Override
+    public void clear() {
+        stats.keyChanged();
+        // leave the old table to a save still walking it
+        if (snapshot != null && snapshot.walks(dict))
+            dict = new Dict<>(0);
+        else
+            dict.clear();
+        expires.clear();
+    }
+
+    @Override
+    public Set<Entry<String, ValueWithTTL>> entrySet() {
+        return Collections.unmodifiableSet(new AbstractSet<Entry<String, ValueWithTTL>>() {
+            @Override
+            public Iterator<Entry<String, ValueWithTTL>> iterator() {
+                return dict.iterator();
+            }
+
+            @Override
+            public int size() {
+                return dict.size();
+            }
+        });
+    }
+}
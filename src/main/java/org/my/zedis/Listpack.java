@@ -0,0 +1,160 @@
+package org.my.zedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Strings packed one after another into a single byte array, each as its varint length and its ISO-8859-1 bytes,
+ * after Redis' listpack. A double can be packed as its 8 raw bytes instead, the caller knowing which entries are
+ * doubles, so the scores of a sorted set are read without parsing. It is the compact encoding of small hashes and
+ * sorted sets: a few bytes of overhead per entry instead of a hash entry and a String. Entries are addressed by
+ * their byte offset, walked from 0 with {@link #next}, and lookups compare the bytes in place. Every operation is
+ * linear, so it is only meant for a few hundred entries. Not thread safe.
+ */
+public final class Listpack {
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] data = EMPTY;
+    private int used;
+    private int count;
+
+    public int size() {
+        return count;
+    }
+
+    public int bytes() {
+        return used;
+    }
+
+    // offset past the last entry
+    public int end() {
+        return used;
+    }
+
+    public int next(int off) {
+        int len = readVarint(data, off);
+        return off + varintSize(len) + len;
+    }
+
+    public String get(int off) {
+        int len = readVarint(data, off);
+        return new String(data, off + varintSize(len), len, StandardCharsets.ISO_8859_1);
+    }
+
+    // the entry at off, packed by insertDouble
+    public double getDouble(int off) {
+        int p = off + 1;
+        long bits = 0;
+        for (int i = 0; i < Double.BYTES; i++)
+            bits = (bits << 8) | (data[p + i] & 0xff);
+        return Double.longBitsToDouble(bits);
+    }
+
+    public boolean equalsAt(int off, String e) {
+        int len = readVarint(data, off);
+        if (len != e.length())
+            return false;
+        int p = off + varintSize(len);
+        for (int i = 0; i < len; i++) {
+            if ((data[p + i] & 0xff) != e.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Offset of the first entry equal to {@code e}, comparing every {@code stride}-th entry only, so that the
+     * fields of field and value pairs are searched with a stride of 2.
+     * @return -1 if not found
+     */
+    public int find(String e, int stride) {
+        int off = 0;
+        while (off < used) {
+            if (equalsAt(off, e))
+                return off;
+            for (int i = 0; i < stride; i++)
+                off = next(off);
+        }
+        return -1;
+    }
+
+    public void add(String e) {
+        insert(used, e);
+    }
+
+    public void insert(int off, String e) {
+        int len = e.length();
+        int p = open(off, len);
+        for (int i = 0; i < len; i++)
+            data[p + i] = (byte) e.charAt(i);
+    }
+
+    public void insertDouble(int off, double v) {
+        long bits = Double.doubleToRawLongBits(v);
+        int p = open(off, Double.BYTES);
+        for (int i = Double.BYTES - 1; i >= 0; i--)
+            data[p++] = (byte) (bits >>> (i * 8));
+    }
+
+    // makes room for an entry of len bytes at off and writes its length, returning where its bytes go
+    private int open(int off, int len) {
+        int sz = varintSize(len) + len;
+        if (used + sz > data.length)
+            data = Arrays.copyOf(data, Math.max(used + sz, data.length + (data.length >> 1)));
+        System.arraycopy(data, off, data, off + sz, used - off);
+        used += sz;
+        count++;
+        return writeVarint(data, off, len);
+    }
+
+    // replaces the entry at off, returning the offset past it
+    public int replace(int off, String e) {
+        delete(off, 1);
+        insert(off, e);
+        return next(off);
+    }
+
+    public void delete(int off, int n) {
+        int end = off;
+        for (int i = 0; i < n; i++)
+            end = next(end);
+        System.arraycopy(data, end, data, off, used - end);
+        used -= end - off;
+        count -= n;
+        // give back the space after a large shrink
+        if (used < data.length >> 2)
+            data = used == 0? EMPTY : Arrays.copyOf(data, used);
+    }
+
+    public void clear() {
+        data = EMPTY;
+        used = 0;
+        count = 0;
+    }
+
+    private static int varintSize(int v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+    private static int writeVarint(byte[] b, int p, int v) {
+        while ((v & ~0x7f) != 0) {
+            b[p++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        b[p++] = (byte) v;
+        return p;
+    }
+
+    private static int readVarint(byte[] b, int p) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b[p++];
+            v |= (x & 0x7f) << shift;
+            if (x >= 0)
+                return v;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.my.zedis;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends the keys of MIGRATE to the target instance as RESTORE commands.
+ * <p>
+ * Like Redis' migrate socket cache one idle connection per target is kept for a few seconds, so moving keys one
+ * MIGRATE at a time doesn't connect each time. A connection is taken out of the cache while a migration uses it,
+ * two migrations to the same target at once use two. The keys are pipelined in batches: a batch is sent before the
+ * replies to the previous one are read, so the target works while the replies travel, and neither side buffers
+ * more than two batches. The calls block the thread running the command for the round trips, as MIGRATE blocks
+ * Redis.
+ */
+@lombok.extern.slf4j.Slf4j
+@Component
+public class MigrateClient implements DisposableBean {
+    private static final long IDLE_MILLIS = 10_000;
+    private static final int MAX_IDLE = 64;
+    // payload bytes sent before the replies of the previous batch are read
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static final class Connection {
+        final String target;
+        final Socket socket;
+        final OutputStream out;
+        final InputStream in;
+        int db = -1;        // selected on the target
+        long lastUsed;
+
+        Connection(String target, Socket socket) throws IOException {
+            this.target = target;
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+            this.in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        void send(byte[]... args) throws IOException {
+            header('*', args.length);
+            for (byte[] a: args) {
+                header('$', a.length);
+                out.write(a);
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+
+        private void header(char type, int n) throws IOException {
+            out.write(type);
+            out.write(Integer.toString(n).getBytes(StandardCharsets.US_ASCII));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        // null for a status or integer reply, the message of an error
+        String readReply() throws IOException {
+            int type = in.read();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0)
+                    throw new IOException("connection closed");
+                if (c != '\r')
+                    line.write(c);
+            }
+            switch (type) {
+                case '+':
+                case ':':
+                    return null;
+                case '-':
+                    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+                default:
+                    throw new IOException("unexpected reply from the target");
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * How far a migration got: the keys the target stored and the first error it replied if any.
+     */
+    @lombok.Getter
+    public static final class Result {
+        private final BitSet stored = new BitSet();
+        private String error;
+        @lombok.Getter(lombok.AccessLevel.NONE)
+        private boolean refused;    // AUTH or SELECT failed, so does every key
+    }
+
+    private final ConcurrentHashMap<String, Connection> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Restores every key on the target, in database db there, and tells which ones it stored in result. ttls are
+     * relative in milliseconds, 0 for none.
+     * @param auth the arguments of an AUTH to send first, null for none
+     * @throws IOException if the target can't be reached or doesn't reply in time, result has the keys stored
+     * until then
+     */
+    public void migrate(String host, int port, long timeoutMillis, String[] auth, int db, boolean replace,
+                        List<String> keys, List<Long> ttls, List<byte[]> payloads, Result result) throws IOException {
+        Connection c = take(host, port, (int) timeoutMillis);
+        try {
+            int preamble = 0;
+            if (auth != null) {
+                byte[][] cmd = new byte[auth.length + 1][];
+                cmd[0] = bytes("AUTH");
+                for (int i = 0; i < auth.length; i++)
+                    cmd[i + 1] = bytes(auth[i]);
+                c.send(cmd);
+                preamble++;
+            }
+            if (c.db != db) {
+                c.send(bytes("SELECT"), bytes(Integer.toString(db)));
+                preamble++;
+            }
+
+            int sent = 0;
+            int acked = -preamble;      // the replies before the keys are counted as negative
+            while (sent < keys.size()) {
+                int batchStart = sent;
+                for (int bytes = 0; sent < keys.size() && (sent == batchStart || bytes < BATCH_BYTES); sent++) {
+                    byte[] ttl = bytes(Long.toString(ttls.get(sent)));
+                    byte[] key = bytes(keys.get(sent));
+                    if (replace)
+                        c.send(bytes("RESTORE"), key, ttl, payloads.get(sent), bytes("REPLACE"));
+                    else
+                        c.send(bytes("RESTORE"), key, ttl, payloads.get(sent));
+                    bytes += payloads.get(sent).length;
+                }
+                c.out.flush();
+                // the replies of the batch before, while the target reads this one
+                acked = readReplies(c, acked, batchStart, result, db);
+            }
+            readReplies(c, acked, sent, result, db);
+            give(c);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    // reads the replies up to key upTo, returns how many were read
+    private int readReplies(Connection c, int acked, int upTo, Result result, int db) throws IOException {
+        for (; acked < upTo; acked++) {
+            String error = c.readReply();
+            if (error != null && result.error == null)
+                result.error = error;
+            if (acked < 0) {
+                if (error != null)
+                    result.refused = true;
+                else if (acked == -1)
+                    c.db = db;
+            } else if (error == null && !result.refused) {
+                result.stored.set(acked);
+            }
+        }
+        return acked;
+    }
+
+    // keys and arguments hold a byte per char
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private Connection take(String host, int port, int timeoutMillis) throws IOException {
+        String target = host + ":" + port;
+        Connection c = idle.remove(target);
+        if (c != null && System.currentTimeMillis() - c.lastUsed > IDLE_MILLIS) {
+            c.close();
+            c = null;
+        }
+        if (c == null) {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), timeoutMillis);
+                s.setTcpNoDelay(true);
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            c = new Connection(target, s);
+        }
+        c.socket.setSoTimeout(timeoutMillis);
+        return c;
+    }
+
+    private void give(Connection c) {
+        long now = System.currentTimeMillis();
+        c.lastUsed = now;
+        for (Iterator<Connection> it = idle.values().iterator(); it.hasNext(); ) {
+            Connection old = it.next();
+            if (now - old.lastUsed > IDLE_MILLIS) {
+                it.remove();
+                old.close();
+            }
+        }
+        if (idle.size() >= MAX_IDLE || idle.putIfAbsent(c.target, c) != null)
+            c.close();
+    }
+
+    @Override
+    public void destroy() {
+        List<Connection> all = new ArrayList<>(idle.values());
+        idle.clear();
+        for (Connection c: all)
+            c.close();
+    }
+}
@@ -0,0 +1,742 @@
+package org.my.zedis;
+
+import io.netty.util.concurrent.EventExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RDB snapshots: loading the dump at startup, SAVE, BGSAVE and the automatic background saves of the {@code save}
+ * policy. Also loads and rewrites the {@link AppendOnlyFile}, which is loaded instead of the dump when it is enabled.
+ * <p>
+ * The policy is a list of seconds and changes pairs, a save starts once any pair has at least that many changes
+ * since the last save and that many seconds passed. A failed automatic save is retried after a few seconds only.
+ * Saves are started with every shard parked, see {@link RdbSnapshot}.
+ * <p>
+ * A rewrite (BGREWRITEAOF, or once the file grew by auto-aof-rewrite-percentage since the last one) creates the next
+ * incremental log off the shards, then switches the appends to it and starts an {@link RdbSnapshot} of the new base
+ * with every shard parked, which takes no I/O. Once the base is written the manifest names it and the new log only,
+ * and the older parts are deleted. Turning appendonly on at runtime is a rewrite as well. A rewrite and a background
+ * save don't run at once, whichever comes second is scheduled or refused.
+ */
+@lombok.extern.slf4j.Slf4j
+@Component
+public class Persistence {
+    private static final long CRON_MILLIS = 100;
+    private static final long BGSAVE_RETRY_MILLIS = 5000;
+    private static final long REWRITE_RETRY_MILLIS = 5000;
+
+    // what INFO reports while loading
+    interface LoadProgress {
+        long getTotalBytes();
+
+        long getLoadedBytes();
+    }
+
+    // the load before any loader started, set from the start so nothing runs before load is done
+    private static final LoadProgress STARTING = new LoadProgress() {
+        @Override
+        public long getTotalBytes() {
+            return 0;
+        }
+
+        @Override
+        public long getLoadedBytes() {
+            return 0;
+        }
+    };
+
+    private final InMemorySharedStore store;
+    private final ServerStats stats;
+    private final CommandDispatcher dispatcher;
+    private final AppendOnlyFile aof;
+    private volatile String dir;
+    private volatile String dbFilename;
+    private volatile long[] saveParams;     // pairs of seconds and changes
+    private final int loadThreads;
+    private volatile int aofRewritePercentage;
+    private volatile long aofRewriteMinSize;
+    private volatile long aofRewriteRateLimit;  // bytes per second, 0 for none
+    private EventExecutor[] owners;
+    private volatile LoadProgress loading = STARTING;
+    private long loadedCommands;
+
+    // guarded by this
+    private RdbSnapshot bgsave;
+    private boolean bgsaveScheduled;
+    private long bgsaveStart;
+    private long lastBgsaveMillis = -1;
+    private boolean lastBgsaveOk = true;
+    private long lastSave = System.currentTimeMillis();
+    private long lastSaveChanges;           // the change counter when the last good save started
+    private long loadStart = System.currentTimeMillis();
+    private long lastLoadKeys;
+    private long lastLoadExpired;
+    private AofManifest manifest;           // null until the append only file was used, or after a failed rewrite
+    private boolean rewriting;
+    private boolean rewriteScheduled;
+    private boolean rewriteCancelled;       // appendonly was turned off meanwhile
+    private long rewriteStart;
+    private long lastRewriteMillis = -1;
+    private boolean lastRewriteOk = true;
+    private long aofRewriteBaseSize;        // the size of the append only file after the last rewrite
+
+    public Persistence(InMemorySharedStore store, ServerStats stats, CommandDispatcher dispatcher, AppendOnlyFile aof,
+                       @Value("${zedis.dir:.}") String dir,
+                       @Value("${zedis.dbfilename:dump.rdb}") String dbFilename,
+                       @Value("${zedis.save:3600 1 300 100 60 10000}") String save,
+                       @Value("${zedis.load-threads:0}") int loadThreads,
+                       @Value("${zedis.auto-aof-rewrite-percentage:100}") String aofRewritePercentage,
+                       @Value("${zedis.auto-aof-rewrite-min-size:64mb}") String aofRewriteMinSize,
+                       @Value("${zedis.aof-rewrite-rate-limit:0}") String aofRewriteRateLimit) {
+        this.store = store;
+        this.stats = stats;
+        this.dispatcher = dispatcher;
+        this.aof = aof;
+        this.loadThreads = loadThreads;
+        setDir(dir);
+        setDbFilename(dbFilename);
+        setSaveParams(save);
+        setAofRewritePercentage(aofRewritePercentage);
+        setAofRewriteMinSize(aofRewriteMinSize);
+        setAofRewriteRateLimit(aofRewriteRateLimit);
+    }
+
+    /**
+     * Loads the append only file if it is enabled and exists, the dump otherwise, before the shards serve commands.
+     * An enabled append only file is started afterwards, with the keyspace as its base if it was new. The single
+     * file of older versions becomes the base of a manifest. {@link #isLoading} is set from construction until the
+     * load is done, so connections accepted before this runs get LOADING errors as well, and INFO reports the
+     * progress.
+     */
+    public void load(HandlerRegistry registry) throws IOException {
+        synchronized (this) {
+            loadStart = System.currentTimeMillis();
+        }
+        // cleared once the append only file is open, a write accepted before would be in neither the data nor the log
+        try {
+            if (aof.isAppendOnly()) {
+                AofManifest m = AofManifest.load(aof.dir(Paths.get(dir)), aof.getFilename());
+                Path legacy = aof.legacyPath(Paths.get(dir));
+                if (m != null) {
+                    loadAof(m, registry);
+                } else if (Files.exists(legacy)) {
+                    upgradeAof(legacy, registry);
+                } else {
+                    // the base is saved while no command runs
+                    loadRdb();
+                    createAof();
+                }
+            } else {
+                loadRdb();
+            }
+        } finally {
+            loading = null;
+        }
+        synchronized (this) {
+            lastSave = System.currentTimeMillis();
+            lastSaveChanges = stats.getChanges();
+            aofRewriteBaseSize = aof.getCurrentSize();
+        }
+    }
+
+    private void loadRdb() throws IOException {
+        Path path = target();
+        if (!Files.exists(path)) {
+            log.info("no dump at {}, starting with an empty keyspace", path);
+            return;
+        }
+
+        RdbLoader l = new RdbLoader(store, path, loadThreads, false);
+        loading = l;
+        l.load();
+
+        long millis = System.currentTimeMillis() - loadStart;
+        synchronized (this) {
+            lastLoadKeys = l.getKeysLoaded();
+            lastLoadExpired = l.getKeysExpired();
+        }
+        log.info("DB loaded from disk: {} keys, {} expired, in {} ms ({} MB/s)", lastLoadKeys, lastLoadExpired,
+                millis, String.format(Locale.ROOT, "%.2f", rate(l.getTotalBytes(), millis)));
+    }
+
+    // loads the base and the logs in order and appends to the last log
+    private void loadAof(AofManifest m, HandlerRegistry registry) throws IOException {
+        List<String> incrs = m.getIncrs();
+        long baseSize = 0;
+        long before = 0;
+        long end = 0;
+        if (m.getBase() != null)
+            before = baseSize = loadAofPart(m.path(m.getBase()), registry, false);
+        for (int i = 0; i < incrs.size(); i++) {
+            // only the last log may have been cut short by a crash
+            end = loadAofPart(m.path(incrs.get(i)), registry, i == incrs.size() - 1);
+            if (i < incrs.size() - 1)
+                before += end;
+        }
+        logAofLoaded(before + end);
+
+        if (incrs.isEmpty())
+            openNewIncr(m, baseSize, before);
+        else
+            aof.open(m.path(incrs.get(incrs.size() - 1)), end, baseSize, before);
+        synchronized (this) {
+            manifest = m;
+        }
+    }
+
+    // returns where the last whole command ends
+    private long loadAofPart(Path path, HandlerRegistry registry, boolean last) throws IOException {
+        long from = 0;
+        if (hasRdbPreamble(path)) {
+            RdbLoader l = new RdbLoader(store, path, loadThreads, true);
+            loading = l;
+            from = l.load();
+            synchronized (this) {
+                lastLoadKeys += l.getKeysLoaded();
+                lastLoadExpired += l.getKeysExpired();
+            }
+        }
+        AofLoader a = new AofLoader(store, registry, path, from);
+        loading = a;
+        long end = a.load();
+        loadedCommands += a.getCommands();
+        if (!last && end < Files.size(path))
+            throw new IOException("append only file " + path + " is truncated at " + end);
+        return end;
+    }
+
+    private void logAofLoaded(long bytes) {
+        long millis = System.currentTimeMillis() - loadStart;
+        log.info("DB loaded from append only file: {} keys from the base, {} commands, in {} ms ({} MB/s)",
+                lastLoadKeys, loadedCommands, millis, String.format(Locale.ROOT, "%.2f", rate(bytes, millis)));
+    }
+
+    // loads the single file of older versions and makes it the base of a manifest
+    private void upgradeAof(Path legacy, HandlerRegistry registry) throws IOException {
+        long end = loadAofPart(legacy, registry, true);
+        logAofLoaded(end);
+
+        try (FileChannel ch = FileChannel.open(legacy, StandardOpenOption.WRITE)) {
+            if (ch.size() > end)
+                ch.truncate(end);
+        }
+        AofManifest m = new AofManifest(aof.dir(Paths.get(dir)), aof.getFilename());
+        Files.createDirectories(m.getDir());
+        String base = m.nextBase(".aof");
+        Files.move(legacy, m.path(base));
+        m.rebase(base, null);
+        openNewIncr(m, end, end);
+        log.info("append only file {} moved to {} as the base", legacy, m.path(base));
+    }
+
+    private static boolean hasRdbPreamble(Path path) throws IOException {
+        byte[] magic = new byte[5];
+        try (InputStream in = Files.newInputStream(path)) {
+            return in.read(magic) == magic.length && new String(magic, StandardCharsets.US_ASCII).equals("REDIS");
+        }
+    }
+
+    // writes the keyspace as the base of a new append only file and appends to a log after it
+    private void createAof() throws IOException {
+        AofManifest m = new AofManifest(aof.dir(Paths.get(dir)), aof.getFilename());
+        Files.createDirectories(m.getDir());
+        String base = m.nextBase(".rdb");
+        RdbSnapshot.save(store, m.path(base));
+        m.rebase(base, null);
+        long size = Files.size(m.path(base));
+        openNewIncr(m, size, size);
+        log.info("append only file started in {}", m.getDir());
+    }
+
+    private void openNewIncr(AofManifest m, long baseSize, long before) throws IOException {
+        String incr = m.addIncr();
+        Files.write(m.path(incr), new byte[0]);
+        m.persist();
+        aof.open(m.path(incr), 0, baseSize, before);
+        synchronized (this) {
+            manifest = m;
+        }
+    }
+
+    public boolean isLoading() {
+        return loading != null;
+    }
+
+    public String getAppendOnly() {
+        return aof.isAppendOnly()? "yes" : "no";
+    }
+
+    public String getAppendFsync() {
+        return aof.getFsync();
+    }
+
+    public void setAppendFsync(String value) {
+        aof.setFsync(value);
+    }
+
+    public String getAppendFilename() {
+        return aof.getFilename();
+    }
+
+    public String getAppendDirname() {
+        return aof.getDirname();
+    }
+
+    /**
+     * Turns the append only file on or off. Turning it on starts a rewrite, which opens the file once the writes go
+     * to its log, turning it off stops a rewrite from replacing the manifest. Must run while every shard is parked.
+     */
+    public synchronized void setAppendOnly(String value) {
+        boolean on = AppendOnlyFile.parseYesNo(value);
+        if (on == aof.isAppendOnly())
+            return;
+        if (on) {
+            if (rewriting)
+                throw new IllegalArgumentException("Background append only file rewriting already in progress");
+            aof.setAppendOnly(true);
+            startRewrite();
+        } else {
+            rewriteCancelled = rewriting;
+            aof.close();
+            aof.setAppendOnly(false);
+        }
+    }
+
+    public int getAofRewritePercentage() {
+        return aofRewritePercentage;
+    }
+
+    // 0 disables the automatic rewrites
+    public void setAofRewritePercentage(String value) {
+        int p;
+        try {
+            p = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            p = -1;
+        }
+        if (p < 0)
+            throw new IllegalArgumentException("argument must be a non-negative integer");
+        aofRewritePercentage = p;
+    }
+
+    public long getAofRewriteMinSize() {
+        return aofRewriteMinSize;
+    }
+
+    public void setAofRewriteMinSize(String value) {
+        aofRewriteMinSize = parseMemory(value);
+    }
+
+    public long getAofRewriteRateLimit() {
+        return aofRewriteRateLimit;
+    }
+
+    // applies from the next rewrite on
+    public void setAofRewriteRateLimit(String value) {
+        aofRewriteRateLimit = parseMemory(value);
+    }
+
+    // bytes, or a number with a k, kb, m, mb, g or gb unit as Redis takes them
+    static long parseMemory(String value) {
+        String v = value.trim().toLowerCase();
+        int digits = v.length();
+        while (digits > 0 && Character.isLetter(v.charAt(digits - 1)))
+            digits--;
+        long unit;
+        switch (v.substring(digits)) {
+            case "":
+            case "b":
+                unit = 1;
+                break;
+            case "k":
+                unit = 1000;
+                break;
+            case "kb":
+                unit = 1L << 10;
+                break;
+            case "m":
+                unit = 1000_000;
+                break;
+            case "mb":
+                unit = 1L << 20;
+                break;
+            case "g":
+                unit = 1000_000_000;
+                break;
+            case "gb":
+                unit = 1L << 30;
+                break;
+            default:
+                throw new IllegalArgumentException("argument must be a memory value");
+        }
+        try {
+            long n = Long.parseLong(v.substring(0, digits));
+            if (n >= 0 && n <= Long.MAX_VALUE / unit)
+                return n * unit;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("argument must be a memory value");
+    }
+
+    /**
+     * Starts rewriting the append only file in the background.
+     * @return the status reply
+     */
+    public synchronized String bgrewriteaof() {
+        if (rewriting)
+            throw new IllegalArgumentException("Background append only file rewriting already in progress");
+        if (bgsave != null) {
+            rewriteScheduled = true;
+            return "Background append only file rewriting scheduled";
+        }
+        startRewrite();
+        return "Background append only file rewriting started";
+    }
+
+    private synchronized void startRewrite() {
+        rewriting = true;
+        rewriteScheduled = false;
+        rewriteCancelled = false;
+        rewriteStart = System.currentTimeMillis();
+        boolean turnOn = aof.isAppendOnly() && !aof.isEnabled();
+        Thread t = new Thread(() -> prepareRewrite(turnOn), "zedis-aof-rewrite");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // creates the next log off the shards, then switches to it with the shards parked
+    private void prepareRewrite(boolean turnOn) {
+        AofManifest m = null;
+        try {
+            m = manifest();
+            String incr = null;
+            FileChannel next = null;
+            if (turnOn || aof.isEnabled()) {
+                incr = m.addIncr();
+                next = FileChannel.open(m.path(incr), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                // a crash before the base is done restarts from the parts there were, and the new log if it follows
+                if (turnOn)
+                    m.remove();
+                else
+                    m.persist();
+            }
+            String base = m.nextBase(".rdb");
+            AofManifest manifest = m;
+            String firstIncr = incr;
+            FileChannel channel = next;
+            Runnable begin = () -> beginRewrite(manifest, base, firstIncr, channel, turnOn);
+            if (dispatcher.isEnabled())
+                dispatcher.executeExclusive(begin);
+            else
+                owners[0].execute(begin);
+        } catch (IOException e) {
+            log.error("background append only file rewriting failed: ", e);
+            rewriteDone(false, m, null, null, 0, turnOn);
+        }
+    }
+
+    private synchronized AofManifest manifest() throws IOException {
+        if (manifest == null) {
+            Path d = aof.dir(Paths.get(dir));
+            Files.createDirectories(d);
+            AofManifest m = AofManifest.load(d, aof.getFilename());
+            manifest = m != null? m : new AofManifest(d, aof.getFilename());
+        }
+        return manifest;
+    }
+
+    // runs while every shard is parked
+    private void beginRewrite(AofManifest m, String base, String incr, FileChannel next, boolean turnOn) {
+        synchronized (this) {
+            if (!rewriteCancelled) {
+                long from = next != null? aof.switchTo(next) : 0;
+                new RdbSnapshot(store, owners, m.path(base), aofRewriteRateLimit,
+                        ok -> rewriteDone(ok, m, base, incr, from, turnOn)).start();
+                return;
+            }
+        }
+        try {
+            if (next != null)
+                next.close();
+        } catch (IOException ignored) {
+        }
+        rewriteDone(false, m, base, incr, 0, turnOn);
+    }
+
+    // names the new base and log in the manifest and drops the older parts
+    private void rewriteDone(boolean ok, AofManifest m, String base, String incr, long from, boolean turnOn) {
+        boolean cancelled;
+        synchronized (this) {
+            cancelled = rewriteCancelled;
+        }
+        ok &= !cancelled;
+        if (ok) {
+            try {
+                long baseSize = Files.size(m.path(base));
+                List<String> dropped = m.rebase(base, incr);
+                m.persist();
+                if (incr != null)
+                    aof.rebase(baseSize, from);
+                for (String f: dropped)
+                    Files.deleteIfExists(m.path(f));
+            } catch (IOException e) {
+                log.error("background append only file rewriting failed: ", e);
+                ok = false;
+            }
+        }
+        if (!ok && base != null) {
+            try {
+                Files.deleteIfExists(m.path(base));
+            } catch (IOException ignored) {
+            }
+        }
+        // without a base the new log is no use, turning on is retried
+        if (!ok && turnOn && !cancelled)
+            aof.close();
+
+        synchronized (this) {
+            rewriting = false;
+            lastRewriteOk = ok || cancelled;
+            lastRewriteMillis = System.currentTimeMillis() - rewriteStart;
+            if (ok)
+                aofRewriteBaseSize = aof.getCurrentSize();
+            else
+                manifest = null;    // the one on disk is what counts
+        }
+        if (ok)
+            log.info("background append only file rewriting terminated with success");
+        else if (cancelled)
+            log.info("background append only file rewriting stopped, appendonly was turned off");
+    }
+
+    private static double rate(long bytes, long millis) {
+        return bytes / (1024.0 * 1024.0) / Math.max(millis, 1) * 1000;
+    }
+
+    // owners[i] runs every command of shard i, as for the dispatcher
+    public void start(EventExecutor[] owners) {
+        this.owners = owners;
+        owners[0].scheduleAtFixedRate(this::cron, CRON_MILLIS, CRON_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public void setDir(String dir) {
+        if (!Files.isDirectory(Paths.get(dir)))
+            throw new IllegalArgumentException("No such directory: " + dir);
+        this.dir = dir;
+    }
+
+    public String getDbFilename() {
+        return dbFilename;
+    }
+
+    public void setDbFilename(String dbFilename) {
+        if (dbFilename.isEmpty() || dbFilename.contains("/") || dbFilename.contains("\\"))
+            throw new IllegalArgumentException("dbfilename can't be a path, just a filename");
+        this.dbFilename = dbFilename;
+    }
+
+    public String getSaveParams() {
+        StringBuilder sb = new StringBuilder();
+        for (long p: saveParams)
+            sb.append(sb.length() == 0? "" : " ").append(p);
+        return sb.toString();
+    }
+
+    // "seconds changes [seconds changes ...]", empty disables automatic saves
+    public void setSaveParams(String save) {
+        String[] parts = save.trim().isEmpty()? new String[0] : save.trim().split("\\s+");
+        if (parts.length % 2 != 0)
+            throw new IllegalArgumentException("Invalid save parameters");
+        long[] params = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                params[i] = Long.parseLong(parts[i]);
+            } catch (NumberFormatException e) {
+                params[i] = -1;
+            }
+            if (params[i] < 0)
+                throw new IllegalArgumentException("Invalid save parameters");
+        }
+        this.saveParams = params;
+    }
+
+    private Path target() {
+        return Paths.get(dir).resolve(dbFilename);
+    }
+
+    // unix time of the last good save in seconds
+    public synchronized long getLastSave() {
+        return lastSave / 1000;
+    }
+
+    /**
+     * Writes the dump before returning, blocking every shard meanwhile. Must run while every shard is parked.
+     */
+    public synchronized void save() {
+        if (bgsave != null)
+            throw new IllegalArgumentException("Background save already in progress");
+
+        long changes = stats.getChanges();
+        try {
+            RdbSnapshot.save(store, target());
+        } catch (IOException e) {
+            log.error("save failed: ", e);
+            lastBgsaveOk = false;
+            throw new IllegalArgumentException("Failed to save: " + e.getMessage());
+        }
+        lastSave = System.currentTimeMillis();
+        lastSaveChanges = changes;
+        lastBgsaveOk = true;
+    }
+
+    /**
+     * Starts a background save. Must run while every shard is parked.
+     * @return the status reply
+     */
+    public synchronized String bgsave(boolean schedule) {
+        if (bgsave != null || rewriting) {
+            if (!schedule) {
+                throw new IllegalArgumentException(bgsave != null? "Background save already in progress"
+                        : "An AOF log rewriting in progress: can't BGSAVE right now. Use BGSAVE SCHEDULE in order to schedule a BGSAVE whenever possible.");
+            }
+            bgsaveScheduled = true;
+            return "Background saving scheduled";
+        }
+        startBgsave();
+        return "Background saving started";
+    }
+
+    private synchronized void startBgsave() {
+        long changes = stats.getChanges();
+        bgsaveScheduled = false;
+        bgsaveStart = System.currentTimeMillis();
+        bgsave = new RdbSnapshot(store, owners, target(), 0, ok -> bgsaveDone(ok, changes));
+        bgsave.start();
+    }
+
+    private synchronized void bgsaveDone(boolean ok, long changes) {
+        bgsave = null;
+        lastBgsaveOk = ok;
+        lastBgsaveMillis = System.currentTimeMillis() - bgsaveStart;
+        if (ok) {
+            lastSave = System.currentTimeMillis();
+            lastSaveChanges = changes;
+            log.info("background saving terminated with success");
+        }
+    }
+
+    private synchronized boolean isSaveDue() {
+        if (bgsave != null || rewriting)
+            return false;
+        if (bgsaveScheduled)
+            return true;
+
+        long now = System.currentTimeMillis();
+        if (!lastBgsaveOk && now - bgsaveStart < BGSAVE_RETRY_MILLIS)
+            return false;
+        long changes = stats.getChanges() - lastSaveChanges;
+        long[] params = saveParams;
+        for (int i = 0; i < params.length; i += 2) {
+            if (changes >= params[i + 1] && now - lastSave >= params[i] * 1000)
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean isRewriteDue() {
+        if (rewriting || bgsave != null)
+            return false;
+        if (rewriteScheduled)
+            return true;
+
+        if (!lastRewriteOk && System.currentTimeMillis() - rewriteStart < REWRITE_RETRY_MILLIS)
+            return false;
+        // turning appendonly on failed
+        if (aof.isAppendOnly() && !aof.isEnabled())
+            return true;
+        if (!aof.isEnabled() || aofRewritePercentage == 0)
+            return false;
+        long size = aof.getCurrentSize();
+        long base = Math.max(aofRewriteBaseSize, 1);
+        return size >= aofRewriteMinSize && (size - base) * 100 / base >= aofRewritePercentage;
+    }
+
+    // runs on the owner of shard 0
+    private void cron() {
+        synchronized (this) {
+            if (isRewriteDue()) {
+                log.info("append only file at {} bytes, {} after the last rewrite, rewriting in the background",
+                        aof.getCurrentSize(), aofRewriteBaseSize);
+                startRewrite();
+            }
+        }
+        if (!isSaveDue())
+            return;
+
+        Runnable begin = () -> {
+            synchronized (this) {
+                if (isSaveDue()) {
+                    log.info("{} changes since the last save, saving in the background", stats.getChanges() - lastSaveChanges);
+                    startBgsave();
+                }
+            }
+        };
+        if (dispatcher.isEnabled())
+            dispatcher.executeExclusive(begin);
+        else
+            begin.run();
+    }
+
+    // the persistence section of INFO
+    public synchronized Map<String, Object> info() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        LoadProgress l = loading;
+        m.put("loading", l != null? 1 : 0);
+        if (l != null) {
+            long millis = System.currentTimeMillis() - loadStart;
+            long total = l.getTotalBytes();
+            long loaded = l.getLoadedBytes();
+            double rate = rate(loaded, millis);
+            m.put("loading_start_time", loadStart / 1000);
+            m.put("loading_total_bytes", total);
+            m.put("loading_loaded_bytes", loaded);
+            m.put("loading_loaded_perc", String.format(Locale.ROOT, "%.2f", total > 0? loaded * 100.0 / total : 0));
+            m.put("loading_eta_seconds", loaded > 0? (long) ((total - loaded) / (1024.0 * 1024.0) / rate) : 1);
+            m.put("loading_rate_mb_per_sec", String.format(Locale.ROOT, "%.2f", rate));
+        }
+        m.put("rdb_changes_since_last_save", stats.getChanges() - lastSaveChanges);
+        m.put("rdb_bgsave_in_progress", bgsave != null? 1 : 0);
+        m.put("rdb_last_save_time", lastSave / 1000);
+        m.put("rdb_last_bgsave_status", lastBgsaveOk? "ok" : "err");
+        m.put("rdb_last_bgsave_time_sec", lastBgsaveMillis < 0? -1 : lastBgsaveMillis / 1000);
+        m.put("rdb_current_bgsave_time_sec", bgsave != null? (System.currentTimeMillis() - bgsaveStart) / 1000 : -1);
+        m.put("rdb_last_load_keys_loaded", lastLoadKeys);
+        m.put("rdb_last_load_keys_expired", lastLoadExpired);
+        aof.info(m);
+        m.put("aof_rewrite_in_progress", rewriting? 1 : 0);
+        m.put("aof_rewrite_scheduled", rewriteScheduled? 1 : 0);
+        m.put("aof_last_rewrite_time_sec", lastRewriteMillis < 0? -1 : lastRewriteMillis / 1000);
+        m.put("aof_current_rewrite_time_sec", rewriting? (System.currentTimeMillis() - rewriteStart) / 1000 : -1);
+        m.put("aof_last_bgrewrite_status", lastRewriteOk? "ok" : "err");
+        return m;
+    }
+}
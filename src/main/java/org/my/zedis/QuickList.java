@@ -0,0 +1,714 @@
+package org.my.zedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * List of strings kept as a doubly linked list of packed chunks, after Redis' quicklist.
+ * <p>
+ * A chunk packs its elements into one byte array: the varint length, the ISO-8859-1 bytes, and the size of both
+ * written backwards, so a chunk can be walked from either end. A small element costs two or three bytes of
+ * overhead instead of a list node and a String. Index based operations skip whole chunks by their counts and only
+ * walk the one chunk holding the index.
+ * <p>
+ * {@code fill} limits the chunks like Redis' list-max-listpack-size: a positive value caps the elements per chunk,
+ * -1 to -5 cap a chunk at 4, 8, 16, 32 or 64 KB. With a compress depth above 0 all chunks but that many at each end
+ * are kept deflated, a compressed chunk is inflated while it is used and deflated again afterwards. Not thread safe.
+ */
+public class QuickList implements Iterable<String> {
+    private static final class Node {
+        Node prev;
+        Node next;
+        byte[] data;
+        int used;               // bytes of data in use, the deflated size while compressed
+        int count;
+        int rawLength;          // inflated size while compressed, otherwise 0
+        boolean incompressible; // deflating did not pay off, until the chunk changes
+
+        Node(int capacity) {
+            data = new byte[capacity];
+        }
+
+        boolean isCompressed() {
+            return rawLength > 0;
+        }
+
+        int rawSize() {
+            return isCompressed()? rawLength : used;
+        }
+    }
+
+    // chunk size when fill caps the number of elements
+    private static final int SIZE_SAFETY_LIMIT = 8192;
+    private static final int MIN_COMPRESS_BYTES = 48;
+    private static final int MIN_COMPRESS_IMPROVE = 8;
+
+    private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    private final int fill;
+    private final int compressDepth;
+    private Node head;
+    private Node tail;
+    private int size;
+    private int nodeCount;
+    private int nodeBase;       // index of the first element of the node last returned by nodeFor
+
+    public QuickList(int fill, int compressDepth) {
+        validate(fill, compressDepth);
+        this.fill = fill;
+        this.compressDepth = compressDepth;
+    }
+
+    static void validate(int fill, int compressDepth) {
+        if (fill == 0 || fill < -5)
+            throw new IllegalArgumentException("list fill must be positive or -1 to -5");
+        if (compressDepth < 0)
+            throw new IllegalArgumentException("list compress depth cannot be negative");
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void addFirst(String e) {
+        int sz = entrySize(e.length());
+        if (allows(head, sz)) {
+            inflate(head);
+            insertEntry(head, 0, e);
+        } else {
+            Node n = newNode(sz);
+            insertEntry(n, 0, e);
+            seal(head);
+            linkAfter(null, n);
+        }
+        size++;
+        compress(head);
+    }
+
+    public void addLast(String e) {
+        int sz = entrySize(e.length());
+        if (allows(tail, sz)) {
+            inflate(tail);
+            insertEntry(tail, tail.used, e);
+        } else {
+            Node n = newNode(sz);
+            insertEntry(n, 0, e);
+            seal(tail);
+            linkAfter(tail, n);
+        }
+        size++;
+        compress(tail);
+    }
+
+    /**
+     * @return null if the list is empty
+     */
+    public String removeFirst() {
+        if (head == null)
+            return null;
+        Node n = head;
+        inflate(n);
+        String e = read(n.data, 0);
+        removeEntry(n, 0);
+        return e;
+    }
+
+    /**
+     * @return null if the list is empty
+     */
+    public String removeLast() {
+        if (tail == null)
+            return null;
+        Node n = tail;
+        inflate(n);
+        int off = prevOffset(n.data, n.used);
+        String e = read(n.data, off);
+        removeEntry(n, off);
+        return e;
+    }
+
+    public String get(int index) {
+        checkIndex(index);
+        Node n = nodeFor(index);
+        inflate(n);
+        String e = read(n.data, offsetOf(n, index - nodeBase));
+        compress(n);
+        return e;
+    }
+
+    /**
+     * @return the element replaced
+     */
+    public String set(int index, String e) {
+        checkIndex(index);
+        Node n = nodeFor(index);
+        inflate(n);
+        int off = offsetOf(n, index - nodeBase);
+        String old = read(n.data, off);
+        deleteEntry(n, off);
+        if (allows(n, entrySize(e.length()))) {
+            insertEntry(n, off, e);
+            compress(n);
+        } else {
+            // too large for the chunk now, put it back through add
+            size--;
+            add(index, e);
+        }
+        return old;
+    }
+
+    public void add(int index, String e) {
+        if (index == 0) {
+            addFirst(e);
+            return;
+        }
+        if (index == size) {
+            addLast(e);
+            return;
+        }
+        checkIndex(index);
+
+        Node n = nodeFor(index);
+        int local = index - nodeBase;
+        int sz = entrySize(e.length());
+        inflate(n);
+        if (allows(n, sz)) {
+            insertEntry(n, offsetOf(n, local), e);
+        } else if (local == 0 && allows(n.prev, sz)) {
+            Node p = n.prev;
+            inflate(p);
+            insertEntry(p, p.used, e);
+            compress(p);
+        } else if (local == 0) {
+            Node x = newNode(sz);
+            insertEntry(x, 0, e);
+            linkAfter(n.prev, x);
+            compress(x);
+        } else {
+            // the new element goes to the end of the first half or the start of the second one
+            Node m = split(n, local);
+            if (allows(n, sz)) {
+                insertEntry(n, n.used, e);
+            } else if (allows(m, sz)) {
+                insertEntry(m, 0, e);
+            } else {
+                Node x = newNode(sz);
+                insertEntry(x, 0, e);
+                linkAfter(n, x);
+                compress(x);
+            }
+            compress(m);
+        }
+        size++;
+        compress(n);
+    }
+
+    /**
+     * @return the element removed
+     */
+    public String remove(int index) {
+        checkIndex(index);
+        Node n = nodeFor(index);
+        inflate(n);
+        int off = offsetOf(n, index - nodeBase);
+        String e = read(n.data, off);
+        removeEntry(n, off);
+        return e;
+    }
+
+    /**
+     * @return the index of the first occurrence of {@code e}, -1 if there is none
+     */
+    public int indexOf(String e) {
+        int base = 0;
+        for (Node n = head; n != null; n = n.next) {
+            inflate(n);
+            int off = 0;
+            for (int i = 0; i < n.count; i++) {
+                if (equalsAt(n.data, off, e)) {
+                    compress(n);
+                    return base + i;
+                }
+                off = nextOffset(n.data, off);
+            }
+            compress(n);
+            base += n.count;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the elements from {@code from}, inclusive, to {@code to}, exclusive, dropping whole chunks at once.
+     */
+    public void removeRange(int from, int to) {
+        if (from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") of " + size);
+        if (from == to)
+            return;
+
+        int remaining = to - from;
+        Node n = nodeFor(from);
+        int local = from - nodeBase;
+        while (remaining > 0) {
+            Node next = n.next;
+            if (local == 0 && remaining >= n.count) {
+                remaining -= n.count;
+                size -= n.count;
+                unlink(n);
+            } else {
+                inflate(n);
+                int k = Math.min(remaining, n.count - local);
+                int off = offsetOf(n, local);
+                int end = off;
+                for (int i = 0; i < k; i++)
+                    end = nextOffset(n.data, end);
+                System.arraycopy(n.data, end, n.data, off, n.used - end);
+                n.used -= end - off;
+                n.count -= k;
+                n.incompressible = false;
+                remaining -= k;
+                size -= k;
+                compress(n);
+            }
+            n = next;
+            local = 0;
+        }
+        compress(null);
+    }
+
+    public void clear() {
+        head = tail = null;
+        size = 0;
+        nodeCount = 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterates from {@code index} to the tail, {@link Iterator#remove} is supported.
+     */
+    public Iterator<String> iterator(int index) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("index " + index + " of " + size);
+        return new Itr(index);
+    }
+
+    /**
+     * Iterates from the tail to the head, {@link Iterator#remove} is supported.
+     */
+    public Iterator<String> descendingIterator() {
+        return new DescendingItr();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (String e: this) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(e);
+        }
+        return sb.append(']').toString();
+    }
+
+    // per chunk from the head its count, its inflated bytes and 1 if it is deflated
+    int[][] chunks() {
+        int[][] chunks = new int[nodeCount][];
+        int i = 0;
+        for (Node n = head; n != null; n = n.next)
+            chunks[i++] = new int[]{n.count, n.rawSize(), n.isCompressed()? 1 : 0};
+        return chunks;
+    }
+
+    private class Itr implements Iterator<String> {
+        // the next element is at off in node, node is null at the end
+        private Node node;
+        private int off;
+        private Node lastNode;
+        private int lastOff;
+
+        Itr(int index) {
+            if (index < size) {
+                node = nodeFor(index);
+                inflate(node);
+                off = offsetOf(node, index - nodeBase);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return node != null;
+        }
+
+        @Override
+        public String next() {
+            if (node == null)
+                throw new NoSuchElementException();
+            inflate(node);
+            String e = read(node.data, off);
+            lastNode = node;
+            lastOff = off;
+            off = nextOffset(node.data, off);
+            if (off == node.used) {
+                Node done = node;
+                node = node.next;
+                off = 0;
+                compress(done);
+            }
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            if (lastNode == null)
+                throw new IllegalStateException();
+            inflate(lastNode);
+            if (lastNode == node)
+                off = lastOff;
+            removeEntry(lastNode, lastOff);
+            lastNode = null;
+        }
+    }
+
+    private class DescendingItr implements Iterator<String> {
+        // the next element ends at off in node, node is null at the end
+        private Node node = tail;
+        private int off;
+        private Node lastNode;
+        private int lastOff;
+
+        DescendingItr() {
+            if (node != null) {
+                inflate(node);
+                off = node.used;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return node != null;
+        }
+
+        @Override
+        public String next() {
+            if (node == null)
+                throw new NoSuchElementException();
+            inflate(node);
+            off = prevOffset(node.data, off);
+            String e = read(node.data, off);
+            lastNode = node;
+            lastOff = off;
+            if (off == 0) {
+                Node done = node;
+                node = node.prev;
+                if (node != null) {
+                    inflate(node);
+                    off = node.used;
+                }
+                compress(done);
+            }
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            if (lastNode == null)
+                throw new IllegalStateException();
+            inflate(lastNode);
+            // elements before the removed one keep their offsets
+            removeEntry(lastNode, lastOff);
+            lastNode = null;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + " of " + size);
+    }
+
+    // the node holding index, which must be valid
+    private Node nodeFor(int index) {
+        if (index < size / 2) {
+            int base = 0;
+            for (Node n = head; ; n = n.next) {
+                if (index < base + n.count) {
+                    nodeBase = base;
+                    return n;
+                }
+                base += n.count;
+            }
+        } else {
+            int base = size;
+            for (Node n = tail; ; n = n.prev) {
+                base -= n.count;
+                if (index >= base) {
+                    nodeBase = base;
+                    return n;
+                }
+            }
+        }
+    }
+
+    private boolean allows(Node n, int sz) {
+        if (n == null)
+            return false;
+        if (n.count == 0)
+            return true;
+        int limit = fill > 0? SIZE_SAFETY_LIMIT : 4096 << (-fill - 1);
+        return (fill < 0 || n.count < fill) && n.rawSize() + sz <= limit;
+    }
+
+    private Node newNode(int sz) {
+        nodeCount++;
+        return new Node(sz);
+    }
+
+    // n goes after prev, or becomes the head if prev is null
+    private void linkAfter(Node prev, Node n) {
+        n.prev = prev;
+        n.next = prev == null? head : prev.next;
+        if (n.next != null)
+            n.next.prev = n;
+        else
+            tail = n;
+        if (prev != null)
+            prev.next = n;
+        else
+            head = n;
+    }
+
+    private void unlink(Node n) {
+        if (n.prev != null)
+            n.prev.next = n.next;
+        else
+            head = n.next;
+        if (n.next != null)
+            n.next.prev = n.prev;
+        else
+            tail = n.prev;
+        nodeCount--;
+    }
+
+    // a full chunk gets no more elements from the ends, so it gives back its spare capacity
+    private static void seal(Node n) {
+        if (n != null && !n.isCompressed() && n.data.length > n.used)
+            n.data = Arrays.copyOf(n.data, n.used);
+    }
+
+    // the elements from local on move to a new node after n
+    private Node split(Node n, int local) {
+        int off = offsetOf(n, local);
+        Node m = newNode(0);
+        m.data = Arrays.copyOfRange(n.data, off, n.used);
+        m.used = n.used - off;
+        m.count = n.count - local;
+        n.used = off;
+        n.count = local;
+        n.incompressible = false;
+        linkAfter(n, m);
+        return m;
+    }
+
+    private void insertEntry(Node n, int off, String e) {
+        int sz = entrySize(e.length());
+        if (n.used + sz > n.data.length) {
+            int limit = fill > 0? SIZE_SAFETY_LIMIT : 4096 << (-fill - 1);
+            n.data = Arrays.copyOf(n.data, Math.max(n.used + sz, Math.min(n.data.length * 2, limit)));
+        }
+        System.arraycopy(n.data, off, n.data, off + sz, n.used - off);
+        writeEntry(n.data, off, e);
+        n.used += sz;
+        n.count++;
+        n.incompressible = false;
+    }
+
+    private static void deleteEntry(Node n, int off) {
+        int end = nextOffset(n.data, off);
+        System.arraycopy(n.data, end, n.data, off, n.used - end);
+        n.used -= end - off;
+        n.count--;
+        n.incompressible = false;
+    }
+
+    private void removeEntry(Node n, int off) {
+        deleteEntry(n, off);
+        size--;
+        if (n.count == 0) {
+            unlink(n);
+            compress(null);
+        } else {
+            compress(n);
+        }
+    }
+
+    // walks a raw node from the closer end
+    private static int offsetOf(Node n, int local) {
+        int off;
+        if (local <= n.count / 2) {
+            off = 0;
+            for (int i = 0; i < local; i++)
+                off = nextOffset(n.data, off);
+        } else {
+            off = n.used;
+            for (int i = n.count; i > local; i--)
+                off = prevOffset(n.data, off);
+        }
+        return off;
+    }
+
+    /*
+     * Compression, as in Redis: the compressDepth nodes at each end stay raw, the first node past them on each side
+     * and the given node, unless it is one of the end ones, are deflated.
+     */
+    private void compress(Node node) {
+        if (compressDepth == 0 || nodeCount <= compressDepth * 2)
+            return;
+
+        Node forward = head;
+        Node reverse = tail;
+        boolean atEnd = false;
+        for (int i = 0; i < compressDepth; i++) {
+            inflate(forward);
+            inflate(reverse);
+            atEnd |= forward == node || reverse == node;
+            forward = forward.next;
+            reverse = reverse.prev;
+        }
+        deflate(forward);
+        deflate(reverse);
+        if (node != null && !atEnd)
+            deflate(node);
+    }
+
+    private static void inflate(Node n) {
+        if (!n.isCompressed())
+            return;
+
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(n.data, 0, n.used);
+        byte[] raw = new byte[n.rawLength];
+        try {
+            inf.inflate(raw);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupted list chunk", e);
+        }
+        n.data = raw;
+        n.used = n.rawLength;
+        n.rawLength = 0;
+    }
+
+    private static void deflate(Node n) {
+        if (n.isCompressed() || n.incompressible || n.used < MIN_COMPRESS_BYTES)
+            return;
+
+        Deflater def = deflater.get();
+        def.reset();
+        def.setInput(n.data, 0, n.used);
+        def.finish();
+        byte[] out = new byte[n.used - MIN_COMPRESS_IMPROVE];
+        int len = def.deflate(out);
+        if (!def.finished()) {
+            n.incompressible = true;
+            return;
+        }
+        n.rawLength = n.used;
+        n.data = Arrays.copyOf(out, len);
+        n.used = len;
+    }
+
+    /*
+     * Entry encoding: the length as a varint, the bytes, then the size of both as a varint stored backwards, whose
+     * last byte holds the lowest 7 bits and the high bit set on all but the first byte.
+     */
+    private static int varintSize(int v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+    private static int entrySize(int len) {
+        int h = varintSize(len) + len;
+        return h + varintSize(h);
+    }
+
+    private static void writeEntry(byte[] b, int p, String e) {
+        int start = p;
+        int len = e.length();
+        int v = len;
+        while ((v & ~0x7f) != 0) {
+            b[p++] = (byte) (v & 0x7f | 0x80);
+            v >>>= 7;
+        }
+        b[p++] = (byte) v;
+        for (int i = 0; i < len; i++)
+            b[p++] = (byte) e.charAt(i);
+
+        int back = p - start;
+        int k = varintSize(back);
+        for (int i = k - 1; i >= 0; i--) {
+            b[p + i] = (byte) ((back & 0x7f) | (i > 0? 0x80 : 0));
+            back >>>= 7;
+        }
+    }
+
+    private static int readVarint(byte[] b, int p) {
+        int v = 0;
+        int shift = 0;
+        byte x;
+        do {
+            x = b[p++];
+            v |= (x & 0x7f) << shift;
+            shift += 7;
+        } while (x < 0);
+        return v;
+    }
+
+    private static int nextOffset(byte[] b, int p) {
+        return p + entrySize(readVarint(b, p));
+    }
+
+    // the start of the entry ending at p
+    private static int prevOffset(byte[] b, int p) {
+        int back = 0;
+        int shift = 0;
+        byte x;
+        do {
+            x = b[--p];
+            back |= (x & 0x7f) << shift;
+            shift += 7;
+        } while (x < 0);
+        return p - back;
+    }
+
+    private static String read(byte[] b, int p) {
+        int len = readVarint(b, p);
+        return new String(b, p + varintSize(len), len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean equalsAt(byte[] b, int p, String e) {
+        int len = readVarint(b, p);
+        if (len != e.length())
+            return false;
+        p += varintSize(len);
+        for (int i = 0; i < len; i++) {
+            if ((b[p + i] & 0xff) != e.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
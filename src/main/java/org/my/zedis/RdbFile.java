@@ -0,0 +1,73 @@
+package org.my.zedis;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An RDB file being written. The bytes go to a temporary file next to the target and are checksummed on the way,
+ * {@link #commit} appends the checksum, syncs and renames it over the target, so the target is always either the
+ * previous dump or the complete new one. Closing without a commit deletes the temporary file.
+ * <p>
+ * The file is synced every few MB on the way, so the kernel never holds so much of it that the final sync stalls
+ * the disk for the append only file.
+ */
+final class RdbFile implements Closeable {
+    private static final long SYNC_BYTES = 4 << 20;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private long crc;
+    private long unsynced;
+
+    RdbFile(Path target) throws IOException {
+        this.target = target;
+        this.temp = target.resolveSibling("temp-" + System.nanoTime() + ".rdb");
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+    }
+
+    void write(byte[] b) throws IOException {
+        crc = Crc64.update(crc, b, 0, b.length);
+        out.write(b);
+        unsynced += b.length;
+        if (unsynced >= SYNC_BYTES) {
+            out.flush();
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    void commit() throws IOException {
+        for (int i = 0; i < 8; i++)
+            out.write((int) (crc >>> (i * 8)));
+        out.flush();
+        channel.force(true);
+        out.close();
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
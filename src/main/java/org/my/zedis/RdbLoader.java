@@ -0,0 +1,336 @@
+package org.my.zedis;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.my.ValueWithTTL;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads an RDB file into the store at startup, decoding on several threads.
+ * <p>
+ * The calling thread walks the memory mapped file only reading lengths, cuts it at key boundaries into regions of
+ * about a megabyte and hands each to the pool, which decodes the values and inserts them per shard under the lock
+ * of the {@link KeySpace}. RESIZEDB sizes the tables before the first key arrives. The checksum is computed over
+ * segments of the file in parallel too and combined at the end. Keys already expired are dropped.
+ * <p>
+ * As the preamble of an append only file the dump is followed by commands, the load then stops after the checksum.
+ * <p>
+ * Must finish before the shards serve commands.
+ */
+@lombok.extern.slf4j.Slf4j
+final class RdbLoader implements Persistence.LoadProgress {
+    private static final long REGION_BYTES = 1 << 20;
+    private static final long MIN_CRC_SEGMENT = 16 << 20;
+    private static final long MAX_CRC_SEGMENT = 1 << 30;
+    private static final int CRC_BUFFER = 64 * 1024;
+    private static final int MAX_RDB_VERSION = 11;
+
+    private final InMemorySharedStore store;
+    private final Path path;
+    private final int threads;
+    private final boolean preamble;
+    private final long now = System.currentTimeMillis();
+    private final AtomicLong loadedBytes = new AtomicLong();
+    private final AtomicLong keysLoaded = new AtomicLong();
+    private final AtomicLong keysExpired = new AtomicLong();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile long totalBytes;
+
+    // threads <= 0 uses a thread per core
+    RdbLoader(InMemorySharedStore store, Path path, int threads, boolean preamble) {
+        this.store = store;
+        this.path = path;
+        this.threads = threads > 0? threads : Runtime.getRuntime().availableProcessors();
+        this.preamble = preamble;
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public long getLoadedBytes() {
+        return loadedBytes.get();
+    }
+
+    long getKeysLoaded() {
+        return keysLoaded.get();
+    }
+
+    long getKeysExpired() {
+        return keysExpired.get();
+    }
+
+    // returns the offset after the dump
+    long load() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("zedis-load"));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            totalBytes = channel.size();
+            RdbReader r = new RdbReader(channel);
+            int version = readVersion(r);
+            Semaphore inFlight = new Semaphore(threads * 2);
+
+            int db = 0;
+            int regionDb = 0;
+            long regionStart = -1;
+            while (true) {
+                if (error.get() != null)
+                    break;
+
+                long pos = r.position();
+                int op = r.readByte();
+                if (op == RdbWriter.OPCODE_EOF) {
+                    if (regionStart >= 0)
+                        submit(pool, inFlight, channel, regionStart, pos, regionDb);
+                    break;
+                }
+
+                if (regionStart < 0) {
+                    regionStart = pos;
+                    regionDb = db;
+                }
+                switch (op) {
+                    case RdbWriter.OPCODE_SELECTDB:
+                        db = selectDb(r);
+                        break;
+                    case RdbWriter.OPCODE_RESIZEDB:
+                        presize(db, r.readLength());
+                        r.readLength();
+                        break;
+                    case RdbWriter.OPCODE_AUX:
+                        r.skipString();
+                        r.skipString();
+                        break;
+                    default:
+                        int type = readEntryType(r, op, null);
+                        r.skipString();
+                        r.skipValue(type);
+                        break;
+                }
+                if (r.position() - regionStart >= REGION_BYTES) {
+                    submit(pool, inFlight, channel, regionStart, r.position(), regionDb);
+                    regionStart = -1;
+                }
+            }
+
+            List<Future<Long>> crcs = new ArrayList<>();
+            long checked = 0;
+            long expected = 0;
+            if (error.get() == null && version >= 5) {
+                expected = r.readLongLE();
+                checked = r.position() - 8;
+                if (expected != 0)
+                    crcs = checksum(pool, channel, checked);
+            }
+            if (error.get() == null && !preamble && r.hasMore())
+                throw new IOException("unexpected data after the end of the RDB file at " + r.position());
+
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if (error.get() != null)
+                throw new IOException("failed loading " + path + ": " + error.get().getMessage(), error.get());
+
+            if (!crcs.isEmpty()) {
+                long crc = 0;
+                long segment = segmentSize(checked);
+                for (int i = 0; i < crcs.size(); i++)
+                    crc = Crc64.combine(crc, crcs.get(i).get(), Math.min(segment, checked - i * segment));
+                if (crc != expected)
+                    throw new IOException(String.format("wrong RDB checksum expected %016x got %016x", expected, crc));
+            }
+            loadedBytes.set(r.position());
+            return r.position();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted loading " + path);
+        } catch (ExecutionException e) {
+            throw new IOException("failed checking " + path + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int readVersion(RdbReader r) throws IOException {
+        byte[] magic = new byte[9];
+        r.readFully(magic);
+        String s = new String(magic, StandardCharsets.US_ASCII);
+        int version = -1;
+        if (s.startsWith("REDIS")) {
+            try {
+                version = Integer.parseInt(s.substring(5));
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        if (version < 1 || version > MAX_RDB_VERSION)
+            throw new IOException("not an RDB file or unsupported version: " + s);
+        return version;
+    }
+
+    private static int selectDb(RdbReader r) throws IOException {
+        int db = r.readCount();
+        if (db >= InMemorySharedStore.MAX_DB_SIZE)
+            throw new IOException("RDB database " + db + " out of range");
+        return db;
+    }
+
+    // consumes the expiry and eviction hints in front of a key, returns its type
+    private static int readEntryType(RdbReader r, int op, long[] expiredAt) throws IOException {
+        while (true) {
+            switch (op) {
+                case RdbWriter.OPCODE_EXPIRETIME_MS:
+                    long ms = r.readLongLE();
+                    if (expiredAt != null)
+                        expiredAt[0] = ms;
+                    break;
+                case RdbReader.OPCODE_EXPIRETIME:
+                    long s = r.readIntLE() & 0xffffffffL;
+                    if (expiredAt != null)
+                        expiredAt[0] = s * 1000;
+                    break;
+                case RdbReader.OPCODE_IDLE:
+                    r.readLength();
+                    break;
+                case RdbReader.OPCODE_FREQ:
+                    r.readByte();
+                    break;
+                case RdbReader.OPCODE_FUNCTION2:
+                case RdbReader.OPCODE_MODULE_AUX:
+                    throw new IOException("unsupported RDB opcode " + op);
+                default:
+                    RdbReader.checkType(op);
+                    return op;
+            }
+            op = r.readByte();
+        }
+    }
+
+    // the tables of every shard are sized for their share of the keys, if still empty
+    private void presize(int db, long keys) {
+        int shards = store.getShardCount();
+        int share = (int) Math.min(Integer.MAX_VALUE, keys / shards + 1);
+        for (int s = 0; s < shards; s++) {
+            KeySpace ks = store.getKeySpace(s, db);
+            synchronized (ks) {
+                ks.presize(share);
+            }
+        }
+    }
+
+    private void submit(ExecutorService pool, Semaphore inFlight, FileChannel channel, long start, long end, int db)
+            throws InterruptedException {
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                if (error.get() == null)
+                    loadRegion(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), db);
+                loadedBytes.addAndGet(end - start);
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void loadRegion(ByteBuffer region, int db) throws IOException {
+        int shards = store.getShardCount();
+        List<List<Object>> batches = new ArrayList<>();   // key and value pairs per shard
+        for (int s = 0; s < shards; s++)
+            batches.add(new ArrayList<>());
+
+        RdbReader r = new RdbReader(region);
+        long[] expiredAt = new long[1];
+        while (r.hasMore()) {
+            int op = r.readByte();
+            switch (op) {
+                case RdbWriter.OPCODE_SELECTDB:
+                    int next = selectDb(r);
+                    if (next != db) {
+                        for (int s = 0; s < shards; s++)
+                            insert(s, db, batches.get(s));
+                        db = next;
+                    }
+                    break;
+                case RdbWriter.OPCODE_RESIZEDB:
+                    r.readLength();
+                    r.readLength();
+                    break;
+                case RdbWriter.OPCODE_AUX:
+                    r.skipString();
+                    r.skipString();
+                    break;
+                default:
+                    expiredAt[0] = -1;
+                    int type = readEntryType(r, op, expiredAt);
+                    String key = r.readKey();
+                    if (expiredAt[0] >= 0 && expiredAt[0] <= now) {
+                        r.skipValue(type);
+                        keysExpired.incrementAndGet();
+                        break;
+                    }
+                    ValueWithTTL v = r.readValue(type, expiredAt[0] >= 0? expiredAt[0] : null, store.getEncodings());
+                    List<Object> batch = batches.get(store.shardOf(key));
+                    batch.add(key);
+                    batch.add(v);
+                    break;
+            }
+        }
+        for (int s = 0; s < shards; s++)
+            insert(s, db, batches.get(s));
+    }
+
+    private void insert(int shard, int db, List<Object> batch) {
+        if (batch.isEmpty())
+            return;
+        KeySpace ks = store.getKeySpace(shard, db);
+        synchronized (ks) {
+            for (int i = 0; i < batch.size(); i += 2)
+                ks.load((String) batch.get(i), (ValueWithTTL) batch.get(i + 1));
+        }
+        keysLoaded.addAndGet(batch.size() / 2);
+        batch.clear();
+    }
+
+    private long segmentSize(long len) {
+        return Math.min(MAX_CRC_SEGMENT, Math.max(MIN_CRC_SEGMENT, (len + threads - 1) / threads));
+    }
+
+    // the checksums of consecutive segments of the first len bytes
+    private List<Future<Long>> checksum(ExecutorService pool, FileChannel channel, long len) {
+        List<Future<Long>> crcs = new ArrayList<>();
+        long segment = segmentSize(len);
+        for (long off = 0; off < len; off += segment) {
+            long start = off;
+            long n = Math.min(segment, len - off);
+            crcs.add(pool.submit(() -> {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, n);
+                byte[] b = new byte[CRC_BUFFER];
+                long crc = 0;
+                while (buf.hasRemaining()) {
+                    int k = Math.min(b.length, buf.remaining());
+                    buf.get(b, 0, k);
+                    crc = Crc64.update(crc, b, 0, k);
+                }
+                return crc;
+            }));
+        }
+        return crcs;
+    }
+}
@@ -0,0 +1,331 @@
+package org.my.zedis;
+
+import org.my.ByteString;
+import org.my.ValueWithTTL;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the RDB format {@link RdbWriter} writes, from a memory mapped file or a region of one.
+ * <p>
+ * A whole file is mapped a window at a time, so it may be larger than a single mapping. Besides the plain types it
+ * reads zsets with string scores and LZF compressed strings as written by Redis, but not Redis' packed encodings.
+ * Every value can also be skipped, which only reads the lengths.
+ */
+final class RdbReader {
+    private static final long WINDOW = 1L << 30;
+
+    static final int OPCODE_FUNCTION2 = 0xf5;
+    static final int OPCODE_MODULE_AUX = 0xf7;
+    static final int OPCODE_IDLE = 0xf8;
+    static final int OPCODE_FREQ = 0xf9;
+    static final int OPCODE_EXPIRETIME = 0xfd;
+    static final int TYPE_ZSET = 3;
+    static final int ENC_LZF = 0xc3;
+    // a back reference of 3 bytes expands to at most 264, so LZF never inflates more than this
+    private static final int LZF_MAX_RATIO = 88;
+
+    private final FileChannel channel;      // null if reading a region already in memory
+    private final long size;
+    private ByteBuffer buf;
+    private long base;                      // file offset of buf
+    private boolean encoded;                // whether the last length was a string encoding
+
+    // the whole file, mapped a window at a time
+    RdbReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        map(0);
+    }
+
+    // a region of the file
+    RdbReader(ByteBuffer region) {
+        this.channel = null;
+        this.size = region.remaining();
+        this.buf = region.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    long position() {
+        return base + buf.position();
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean hasMore() {
+        return position() < size;
+    }
+
+    private void map(long pos) throws IOException {
+        base = pos;
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() >= n)
+            return;
+        if (channel != null && position() + n <= size)
+            map(position());
+        else
+            throw new EOFException("RDB truncated at " + position());
+    }
+
+    int readByte() throws IOException {
+        ensure(1);
+        return buf.get() & 0xff;
+    }
+
+    long readLongLE() throws IOException {
+        ensure(8);
+        return buf.getLong();
+    }
+
+    int readIntLE() throws IOException {
+        ensure(4);
+        return buf.getInt();
+    }
+
+    void readFully(byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            if (!buf.hasRemaining())
+                ensure(1);
+            int n = Math.min(buf.remaining(), b.length - off);
+            buf.get(b, off, n);
+            off += n;
+        }
+    }
+
+    void skip(long n) throws IOException {
+        long to = position() + n;
+        if (to > size)
+            throw new EOFException("RDB truncated at " + position());
+        if (to - base <= buf.limit())
+            buf.position((int) (to - base));
+        else
+            map(to);
+    }
+
+    // a length, or the encoding of a string if encoded is set afterwards
+    long readLength() throws IOException {
+        int b = readByte();
+        encoded = false;
+        switch (b >> 6) {
+            case RdbWriter.LEN_6BIT:
+                return b & 0x3f;
+            case RdbWriter.LEN_14BIT:
+                return (b & 0x3f) << 8 | readByte();
+            case 3:
+                encoded = true;
+                return b;
+        }
+        int bytes = b == RdbWriter.LEN_32BIT? 4 : b == RdbWriter.LEN_64BIT? 8 : -1;
+        if (bytes < 0)
+            throw new IOException("bad RDB length " + b);
+        long len = 0;
+        for (int i = 0; i < bytes; i++)
+            len = len << 8 | readByte();
+        return len;
+    }
+
+    int readCount() throws IOException {
+        long n = readLength();
+        if (encoded || n > Integer.MAX_VALUE)
+            throw new IOException("bad RDB length " + n);
+        return (int) n;
+    }
+
+    byte[] readString() throws IOException {
+        long len = readLength();
+        if (encoded) {
+            switch ((int) len) {
+                case RdbWriter.ENC_INT8:
+                    return digits((byte) readByte());
+                case RdbWriter.ENC_INT16:
+                    return digits((short) (readByte() | readByte() << 8));
+                case RdbWriter.ENC_INT32:
+                    return digits(readIntLE());
+                case ENC_LZF:
+                    int clen = readCount();
+                    int ulen = readCount();
+                    if (clen > size - position() || ulen > (long) clen * LZF_MAX_RATIO)
+                        throw new IOException("bad LZF lengths at " + position());
+                    byte[] out = new byte[ulen];
+                    byte[] in = new byte[clen];
+                    readFully(in);
+                    lzfDecompress(in, out);
+                    return out;
+                default:
+                    throw new IOException("bad RDB string encoding " + len);
+            }
+        }
+        // checked before allocating, the length may come from a forged DUMP payload
+        if (len > size - position())
+            throw new EOFException("RDB string of " + len + " bytes truncated at " + position());
+        byte[] b = new byte[(int) len];
+        readFully(b);
+        return b;
+    }
+
+    private static byte[] digits(long n) {
+        return Long.toString(n).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    String readKey() throws IOException {
+        return new String(readString(), StandardCharsets.ISO_8859_1);
+    }
+
+    void skipString() throws IOException {
+        long len = readLength();
+        if (!encoded) {
+            skip(len);
+            return;
+        }
+        switch ((int) len) {
+            case RdbWriter.ENC_INT8:
+                skip(1);
+                break;
+            case RdbWriter.ENC_INT16:
+                skip(2);
+                break;
+            case RdbWriter.ENC_INT32:
+                skip(4);
+                break;
+            case ENC_LZF:
+                long clen = readCount();
+                readCount();
+                skip(clen);
+                break;
+            default:
+                throw new IOException("bad RDB string encoding " + len);
+        }
+    }
+
+    private double readStringScore() throws IOException {
+        int len = readByte();
+        switch (len) {
+            case 253:
+                throw new IOException("NaN zset score");
+            case 254:
+                return Double.POSITIVE_INFINITY;
+            case 255:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                byte[] b = new byte[len];
+                readFully(b);
+                return Double.parseDouble(new String(b, StandardCharsets.US_ASCII));
+        }
+    }
+
+    static void checkType(int type) throws IOException {
+        switch (type) {
+            case RdbWriter.TYPE_STRING:
+            case RdbWriter.TYPE_LIST:
+            case RdbWriter.TYPE_SET:
+            case RdbWriter.TYPE_HASH:
+            case TYPE_ZSET:
+            case RdbWriter.TYPE_ZSET_2:
+                return;
+            default:
+                throw new IOException("unsupported RDB type " + type);
+        }
+    }
+
+    void skipValue(int type) throws IOException {
+        checkType(type);
+        if (type == RdbWriter.TYPE_STRING) {
+            skipString();
+            return;
+        }
+        long n = readLength();
+        for (long i = 0; i < n; i++) {
+            skipString();
+            if (type == RdbWriter.TYPE_HASH)
+                skipString();
+            else if (type == RdbWriter.TYPE_ZSET_2)
+                skip(8);
+            else if (type == TYPE_ZSET)
+                skipStringScore();
+        }
+    }
+
+    private void skipStringScore() throws IOException {
+        int len = readByte();
+        if (len < 253)
+            skip(len);
+    }
+
+    // collections are created with the limits of encodings
+    ValueWithTTL readValue(int type, Long expiredAt, Encodings encodings) throws IOException {
+        checkType(type);
+        switch (type) {
+            case RdbWriter.TYPE_STRING:
+                return ValueWithTTL.ofString(ByteString.wrap(readString()), expiredAt);
+            case RdbWriter.TYPE_LIST: {
+                QuickList list = ValueWithTTL.getList(encodings);
+                for (int i = readCount(); i > 0; i--)
+                    list.addLast(readKey());
+                return new ValueWithTTL(ValueWithTTL.ValueType.List, list, expiredAt);
+            }
+            case RdbWriter.TYPE_SET: {
+                Set<String> set = ValueWithTTL.getSet(encodings);
+                for (int i = readCount(); i > 0; i--)
+                    set.add(readKey());
+                return new ValueWithTTL(ValueWithTTL.ValueType.Set, set, expiredAt);
+            }
+            case RdbWriter.TYPE_HASH: {
+                Map<String, String> hash = ValueWithTTL.getHash(encodings);
+                for (int i = readCount(); i > 0; i--)
+                    hash.put(readKey(), readKey());
+                return new ValueWithTTL(ValueWithTTL.ValueType.Hash, hash, expiredAt);
+            }
+            default: {
+                ValueWithTTL.ZSet zset = ValueWithTTL.getSortedSet(encodings);
+                for (int i = readCount(); i > 0; i--) {
+                    String member = readKey();
+                    zset.add(member, type == TYPE_ZSET? readStringScore() : Double.longBitsToDouble(readLongLE()));
+                }
+                return new ValueWithTTL(ValueWithTTL.ValueType.SortedSet, zset, expiredAt);
+            }
+        }
+    }
+
+    // LZF as in liblzf: a control byte below 32 starts a literal run of control + 1 bytes, anything else is a
+    // back reference of length (control >> 5) + 2, extended by a byte if that is 7
+    static void lzfDecompress(byte[] in, byte[] out) throws IOException {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int ctrl = in[ip++] & 0xff;
+                if (ctrl < 32) {
+                    ctrl++;
+                    System.arraycopy(in, ip, out, op, ctrl);
+                    ip += ctrl;
+                    op += ctrl;
+                } else {
+                    int len = ctrl >> 5;
+                    if (len == 7)
+                        len += in[ip++] & 0xff;
+                    int ref = op - ((ctrl & 0x1f) << 8) - 1 - (in[ip++] & 0xff);
+                    if (ref < 0)
+                        throw new IOException("bad LZF back reference");
+                    for (int i = 0; i < len + 2; i++)
+                        out[op++] = out[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("bad LZF data");
+        }
+        if (op != out.length)
+            throw new IOException("bad LZF length");
+    }
+}
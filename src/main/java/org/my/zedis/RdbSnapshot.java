@@ -0,0 +1,305 @@
+package org.my.zedis;
+
+import io.netty.util.concurrent.EventExecutor;
+import org.my.ValueWithTTL;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A point in time RDB dump of the whole keyspace taken while the shards keep serving, Redis' BGSAVE without fork().
+ * <p>
+ * {@link #start} runs with every shard parked. It stops the tables of every database from resizing (see
+ * {@link Dict#pauseResize}) and hooks a {@link Part} into its {@link KeySpace}. Then the owner of each shard walks
+ * its databases with the scan cursor of the dict, a slice of about a millisecond at a time between its commands.
+ * A write to a key the walk has not reached yet serializes the old value first and marks the key so the walk skips
+ * it: copy on write per key instead of per page. The serialized chunks are queued to a writer thread that does the
+ * file I/O and the checksum and renames the file into place once every shard is done.
+ * <p>
+ * A rate limit stretches the idle time after a slice so each shard serializes its share of the bytes per second
+ * at most, which keeps both the CPU the walks take from the commands and the I/O down.
+ */
+@lombok.extern.slf4j.Slf4j
+final class RdbSnapshot {
+    private static final long SLICE_NANOS = 1_000_000;
+    // idle time after a slice, a task that is always due starves the I/O of some transports (io_uring)
+    private static final long PAUSE_MICROS = 250;
+    // serialized bytes handed to the writer at once
+    private static final int CHUNK_BYTES = 64 * 1024;
+    // the walks wait while this much is queued and not yet written
+    private static final long MAX_PENDING_BYTES = 64L << 20;
+    private static final long BACKOFF_MILLIS = 10;
+    private static final byte[] SHARD_DONE = new byte[0];
+
+    /**
+     * The state of the save for one database of one shard, only touched by the thread owning the shard.
+     */
+    final class Part {
+        private final KeySpace keySpace;
+        private final Dict<String, ValueWithTTL> dict;
+        private final int db;
+        private final ShardWalk walk;
+        // keys saved or created since the start, the walk skips them
+        private final Set<String> skip = new HashSet<>();
+        private long cursor;
+        private boolean done;
+
+        Part(KeySpace keySpace, int db, ShardWalk walk) {
+            this.keySpace = keySpace;
+            this.dict = keySpace.getDict();
+            this.db = db;
+            this.walk = walk;
+            this.done = dict.size() == 0;
+            if (!done) {
+                dict.pauseResize();
+                keySpace.setSnapshot(this);
+            }
+        }
+
+        // called before key is changed in current
+        void preserve(Dict<String, ValueWithTTL> current, String key) {
+            if (!walks(current) || dict.isScanned(key, cursor) || !skip.add(key))
+                return;
+            ValueWithTTL v = dict.get(key);
+            if (v != null)
+                walk.save(db, key, v);
+        }
+
+        // false once the walk is over or the keyspace was flushed and left this dict to it
+        boolean walks(Dict<String, ValueWithTTL> current) {
+            return !done && current == dict;
+        }
+
+        private void finish() {
+            if (done)
+                return;
+            done = true;
+            dict.resumeResize();
+            keySpace.setSnapshot(null);
+        }
+    }
+
+    // walks the databases of one shard on its owner, a slice per run
+    private final class ShardWalk implements Runnable {
+        private final EventExecutor owner;
+        private final Part[] parts = new Part[InMemorySharedStore.MAX_DB_SIZE];
+        private final RdbWriter out = new RdbWriter();
+        private int next;       // the part being walked
+        private int outDb = -1; // database of the entries in out
+        private long sliceBytes;
+
+        ShardWalk(EventExecutor owner) {
+            this.owner = owner;
+        }
+
+        void save(int db, String key, ValueWithTTL v) {
+            if (v.isExpired(startMillis))
+                return;
+            if (db != outDb) {
+                out.selectDb(db);
+                outDb = db;
+            }
+            if (!out.writeEntry(key, v))
+                skippedKeys.incrementAndGet();
+            if (out.size() >= CHUNK_BYTES)
+                flush();
+        }
+
+        private void flush() {
+            if (out.size() == 0)
+                return;
+            byte[] chunk = out.toByteArray();
+            out.reset();
+            outDb = -1;
+            pendingBytes.addAndGet(chunk.length);
+            sliceBytes += chunk.length;
+            queue.add(chunk);
+        }
+
+        @Override
+        public void run() {
+            if (failed) {
+                for (Part p: parts)
+                    p.finish();
+                return;
+            }
+            if (pendingBytes.get() > MAX_PENDING_BYTES) {
+                owner.schedule(this, BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            long start = System.nanoTime();
+            long deadline = start + SLICE_NANOS;
+            sliceBytes = 0;
+            for (; next < parts.length; next++) {
+                Part p = parts[next];
+                while (!p.done) {
+                    p.cursor = p.dict.scan(p.cursor, e -> {
+                        if (!p.skip.contains(e.getKey()))
+                            save(p.db, e.getKey(), e.getValue());
+                    });
+                    if (p.cursor == 0) {
+                        p.finish();
+                    } else if (System.nanoTime() > deadline) {
+                        flush();
+                        owner.schedule(this, pause(start), TimeUnit.MICROSECONDS);
+                        return;
+                    }
+                }
+            }
+            flush();
+            queue.add(SHARD_DONE);
+        }
+
+        // until the next slice, long enough to keep under the rate limit
+        private long pause(long start) {
+            if (bytesPerSec <= 0)
+                return PAUSE_MICROS;
+            long spent = (System.nanoTime() - start) / 1000;
+            long due = sliceBytes * walks.length * 1_000_000 / bytesPerSec;
+            return Math.max(PAUSE_MICROS, due - spent);
+        }
+    }
+
+    private final ShardWalk[] walks;
+    private final long[][] dbSizes;
+    private final Path target;
+    private final Consumer<Boolean> onDone;
+    private final long bytesPerSec;
+    private final long startMillis = System.currentTimeMillis();
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong skippedKeys = new AtomicLong();
+    private volatile boolean failed;
+
+    /**
+     * Must run while every shard is parked or owned by the calling thread. {@code onDone} is called on the writer
+     * thread with whether the file was written. A positive bytesPerSec limits the rate the dump is written at.
+     */
+    RdbSnapshot(InMemorySharedStore store, EventExecutor[] owners, Path target, long bytesPerSec,
+                Consumer<Boolean> onDone) {
+        this.target = target;
+        this.bytesPerSec = bytesPerSec;
+        this.onDone = onDone;
+        this.walks = new ShardWalk[owners.length];
+        this.dbSizes = dbSizes(store);
+        for (int s = 0; s < owners.length; s++) {
+            walks[s] = new ShardWalk(owners[s]);
+            for (int db = 0; db < InMemorySharedStore.MAX_DB_SIZE; db++)
+                walks[s].parts[db] = new Part(store.getKeySpace(s, db), db, walks[s]);
+        }
+    }
+
+    void start() {
+        Thread writer = new Thread(this::write, "zedis-bgsave");
+        writer.setDaemon(true);
+        writer.start();
+        for (ShardWalk w: walks)
+            w.owner.execute(w);
+    }
+
+    private void write() {
+        boolean ok = false;
+        try (RdbFile file = new RdbFile(target)) {
+            RdbWriter head = new RdbWriter();
+            writeHeader(head);
+            for (int db = 0; db < dbSizes.length; db++) {
+                if (dbSizes[db][0] > 0) {
+                    head.selectDb(db);
+                    head.resizeDb(dbSizes[db][0], dbSizes[db][1]);
+                }
+            }
+            file.write(head.toByteArray());
+            for (int done = 0; done < walks.length; ) {
+                byte[] chunk = queue.take();
+                if (chunk == SHARD_DONE) {
+                    done++;
+                    continue;
+                }
+                pendingBytes.addAndGet(-chunk.length);
+                file.write(chunk);
+            }
+            writeEnd(file, skippedKeys.get());
+            ok = true;
+        } catch (Exception e) {
+            log.error("background save to {} failed: ", target, e);
+            failed = true;
+        }
+        onDone.accept(ok);
+    }
+
+    static void writeHeader(RdbWriter w) {
+        w.header();
+        w.aux("redis-ver", "7.0.0");
+        w.aux("redis-bits", "64");
+        w.aux("ctime", Long.toString(System.currentTimeMillis() / 1000));
+        Runtime rt = Runtime.getRuntime();
+        w.aux("used-mem", Long.toString(rt.totalMemory() - rt.freeMemory()));
+    }
+
+    // keys and keys with a TTL of every database, for RESIZEDB
+    private static long[][] dbSizes(InMemorySharedStore store) {
+        long[][] sizes = new long[InMemorySharedStore.MAX_DB_SIZE][2];
+        for (int db = 0; db < sizes.length; db++) {
+            for (int s = 0; s < store.getShardCount(); s++) {
+                sizes[db][0] += store.getKeySpace(s, db).getDict().size();
+                sizes[db][1] += store.getKeySpace(s, db).expiresSize();
+            }
+        }
+        return sizes;
+    }
+
+    private static void writeEnd(RdbFile file, long skipped) throws IOException {
+        if (skipped > 0)
+            log.warn("{} keys of types without an RDB encoding were not saved", skipped);
+        RdbWriter w = new RdbWriter();
+        w.eof();
+        file.write(w.toByteArray());
+        file.commit();
+    }
+
+    /**
+     * Writes the whole keyspace right away, for SAVE. Must run while every shard is parked or owned by the calling
+     * thread.
+     */
+    static void save(InMemorySharedStore store, Path target) throws IOException {
+        long now = System.currentTimeMillis();
+        long skipped = 0;
+        try (RdbFile file = new RdbFile(target)) {
+            RdbWriter w = new RdbWriter();
+            writeHeader(w);
+            long[][] sizes = dbSizes(store);
+            for (int db = 0; db < InMemorySharedStore.MAX_DB_SIZE; db++) {
+                boolean selected = false;
+                for (int s = 0; s < store.getShardCount(); s++) {
+                    for (Iterator<Map.Entry<String, ValueWithTTL>> it = store.getKeySpace(s, db).getDict().iterator(); it.hasNext(); ) {
+                        Map.Entry<String, ValueWithTTL> e = it.next();
+                        if (e.getValue().isExpired(now))
+                            continue;
+                        if (!selected) {
+                            w.selectDb(db);
+                            w.resizeDb(sizes[db][0], sizes[db][1]);
+                            selected = true;
+                        }
+                        if (!w.writeEntry(e.getKey(), e.getValue()))
+                            skipped++;
+                        if (w.size() >= CHUNK_BYTES) {
+                            file.write(w.toByteArray());
+                            w.reset();
+                        }
+                    }
+                }
+            }
+            file.write(w.toByteArray());
+            writeEnd(file, skipped);
+        }
+    }
+}
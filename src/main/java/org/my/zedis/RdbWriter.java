@@ -0,0 +1,243 @@
+package org.my.zedis;
+
+import org.my.ByteString;
+import org.my.ValueWithTTL;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serializes keys in Redis' RDB format into a growable buffer, which the caller drains to a file.
+ * <p>
+ * Values are written in the plain types every Redis version loads (string, list, set, hash and zset with binary
+ * scores) under version 9, the packed encodings are an in-memory matter here. Strings holding an integer of up to
+ * 32 bits use the integer encoding. Streams are not saved.
+ */
+public final class RdbWriter {
+    public static final int RDB_VERSION = 9;
+
+    static final int OPCODE_AUX = 0xfa;
+    static final int OPCODE_RESIZEDB = 0xfb;
+    static final int OPCODE_EXPIRETIME_MS = 0xfc;
+    static final int OPCODE_SELECTDB = 0xfe;
+    static final int OPCODE_EOF = 0xff;
+
+    static final int TYPE_STRING = 0;
+    static final int TYPE_LIST = 1;
+    static final int TYPE_SET = 2;
+    static final int TYPE_HASH = 4;
+    static final int TYPE_ZSET_2 = 5;
+
+    // first byte of a length, its top two bits select the format
+    static final int LEN_6BIT = 0;
+    static final int LEN_14BIT = 1;
+    static final int LEN_32BIT = 0x80;
+    static final int LEN_64BIT = 0x81;
+    static final int ENC_INT8 = 0xc0;
+    static final int ENC_INT16 = 0xc1;
+    static final int ENC_INT32 = 0xc2;
+
+    private byte[] buf = new byte[256];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public void header() {
+        writeRaw(String.format(Locale.ROOT, "REDIS%04d", RDB_VERSION).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public void aux(String key, String value) {
+        write(OPCODE_AUX);
+        writeString(key);
+        writeString(value);
+    }
+
+    public void selectDb(int db) {
+        write(OPCODE_SELECTDB);
+        writeLength(db);
+    }
+
+    // sizes of the database selected last, so that a loader can size its tables up front
+    public void resizeDb(long keys, long expires) {
+        write(OPCODE_RESIZEDB);
+        writeLength(keys);
+        writeLength(expires);
+    }
+
+    public void eof() {
+        write(OPCODE_EOF);
+    }
+
+    // the type byte of a value, -1 if it can't be saved
+    static int typeOf(ValueWithTTL v) {
+        switch (v.getType()) {
+            case String:
+                return TYPE_STRING;
+            case List:
+                return TYPE_LIST;
+            case Set:
+                return TYPE_SET;
+            case Hash:
+                return TYPE_HASH;
+            case SortedSet:
+                return TYPE_ZSET_2;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Writes a key with its TTL and value.
+     * @return false if the type of the value can't be saved, nothing is written then
+     */
+    public boolean writeEntry(String key, ValueWithTTL v) {
+        int type = typeOf(v);
+        if (type < 0)
+            return false;
+
+        if (v.getExpiredAt() != null) {
+            write(OPCODE_EXPIRETIME_MS);
+            writeLongLE(v.getExpiredAt());
+        }
+        write(type);
+        writeString(key);
+        writeValue(v);
+        return true;
+    }
+
+    /**
+     * Writes the type and the value alone, as DUMP serializes it.
+     * @return false if the type of the value can't be saved, nothing is written then
+     */
+    public boolean writeObject(ValueWithTTL v) {
+        int type = typeOf(v);
+        if (type < 0)
+            return false;
+        write(type);
+        writeValue(v);
+        return true;
+    }
+
+    private void writeValue(ValueWithTTL v) {
+        switch (v.getType()) {
+            case String:
+                if (v instanceof ValueWithTTL.IntString)
+                    writeInteger(((ValueWithTTL.IntString) v).getNumber());
+                else
+                    writeString(v.getValueAsBytes());
+                break;
+            case List:
+                QuickList list = v.getValueAsList();
+                writeLength(list.size());
+                for (String e: list)
+                    writeString(e);
+                break;
+            case Set:
+                writeLength(v.getValueAsSet().size());
+                for (String e: v.getValueAsSet())
+                    writeString(e);
+                break;
+            case Hash:
+                writeLength(v.getValueAsHash().size());
+                for (Map.Entry<String, String> e: v.getValueAsHash().entrySet()) {
+                    writeString(e.getKey());
+                    writeString(e.getValue());
+                }
+                break;
+            case SortedSet:
+                ValueWithTTL.ZSet zset = v.getValueAsSortedSet();
+                writeLength(zset.size());
+                for (ValueWithTTL.ZSet.Item e: zset) {
+                    writeString(e.getKey());
+                    writeLongLE(Double.doubleToLongBits(e.getScore()));
+                }
+                break;
+            default:
+                throw new IllegalStateException(v.getType().name());
+        }
+    }
+
+    void writeLength(long len) {
+        if (len < 1 << 6) {
+            write(LEN_6BIT << 6 | (int) len);
+        } else if (len < 1 << 14) {
+            write(LEN_14BIT << 6 | (int) (len >> 8));
+            write((int) len);
+        } else if (len <= 0xffffffffL) {
+            write(LEN_32BIT);
+            for (int i = 24; i >= 0; i -= 8)
+                write((int) (len >>> i));
+        } else {
+            write(LEN_64BIT);
+            for (int i = 56; i >= 0; i -= 8)
+                write((int) (len >>> i));
+        }
+    }
+
+    // an integer string, in the smallest integer encoding or as its digits beyond 32 bits
+    private void writeInteger(long n) {
+        if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+            write(ENC_INT8);
+            write((int) n);
+        } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+            write(ENC_INT16);
+            write((int) n);
+            write((int) (n >> 8));
+        } else if (n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE) {
+            write(ENC_INT32);
+            for (int i = 0; i < 32; i += 8)
+                write((int) (n >> i));
+        } else {
+            writeString(Long.toString(n));
+        }
+    }
+
+    // strings hold one byte per char
+    private void writeString(String s) {
+        int len = s.length();
+        writeLength(len);
+        ensure(len);
+        for (int i = 0; i < len; i++)
+            buf[size + i] = (byte) s.charAt(i);
+        size += len;
+    }
+
+    private void writeString(ByteString s) {
+        writeLength(s.length());
+        writeRaw(s.array());
+    }
+
+    private void writeLongLE(long v) {
+        ensure(8);
+        for (int i = 0; i < 8; i++)
+            buf[size++] = (byte) (v >>> (i * 8));
+    }
+
+    private void writeRaw(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, size, b.length);
+        size += b.length;
+    }
+
+    private void write(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    private void ensure(int n) {
+        if (size + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+    }
+}
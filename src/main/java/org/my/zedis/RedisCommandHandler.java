@@ -7,6 +7,9 @@ import org.my.ValueWithTTL;
 
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 @lombok.Getter
@@ -17,6 +20,14 @@ public abstract class RedisCommandHandler {
 
     protected final Map<String, Command> commands = new HashMap<>();
 
+    // value slot of the key of the hot single key commands, declared with Command#valueSlots
+    protected static final int KEY = 0;
+
+    // elements a SCAN call returns unless COUNT says otherwise
+    private static final int SCAN_DEFAULT_COUNT = 10;
+    // larger counts are clamped, so the step budgets derived from them stay within an int
+    private static final int SCAN_MAX_COUNT = Integer.MAX_VALUE / 20;
+
     protected RedisCommandHandler(String name, InMemorySharedStore store) {
         this.name = name;
         this.store = store;
@@ -29,18 +40,123 @@ public abstract class RedisCommandHandler {
         }
     }
 
+    // no pattern matches everything
+    protected static Predicate<String> globMatcher(String pattern) {
+        return GlobPattern.compile(pattern == null? "*" : pattern);
+    }
+
+    protected static long parseCursor(String cursor) {
+        try {
+            return Long.parseUnsignedLong(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+    }
+
+    /**
+     * The MATCH, COUNT and, if {@code typed}, TYPE options of the SCAN family, read from the trailing list of the
+     * grammar since Redis takes them in any order. Anything else is a syntax error.
+     */
+    protected static ScanOptions scanOptions(Argument args, boolean typed) {
+        ScanOptions o = new ScanOptions();
+        String[] opts = args.valueListDefault();
+        if (opts == null)
+            return o;
+        for (int i = 0; i < opts.length; i += 2) {
+            if (i + 1 >= opts.length)
+                throw new IllegalArgumentException("syntax error");
+            String name = opts[i].toUpperCase(Locale.ROOT);
+            String value = opts[i + 1];
+            if (name.equals("MATCH")) {
+                o.matcher = globMatcher(value);
+            } else if (name.equals("COUNT")) {
+                long count;
+                try {
+                    count = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("value is not an integer or out of range");
+                }
+                if (count < 1)
+                    throw new IllegalArgumentException("syntax error");
+                o.count = (int) Math.min(count, SCAN_MAX_COUNT);
+            } else if (typed && name.equals("TYPE")) {
+                o.type = value;
+            } else {
+                throw new IllegalArgumentException("syntax error");
+            }
+        }
+        return o;
+    }
+
+    @lombok.Getter
+    protected static final class ScanOptions {
+        private Predicate<String> matcher = globMatcher(null);
+        private int count = SCAN_DEFAULT_COUNT;
+        private String type;        // null for any
+    }
+
+    /**
+     * Advances a SCAN cursor with {@code step} until {@code out} holds {@code count} elements, the iteration is
+     * done, or ten times {@code count} steps found too little, which bounds the work of sparse tables.
+     * @return the cursor to hand back to the client
+     */
+    protected static long scanSteps(long cursor, int count, Collection<?> out, LongUnaryOperator step) {
+        long maxSteps = count * 10L;
+        do {
+            cursor = step.applyAsLong(cursor);
+        } while (cursor != 0 && --maxSteps > 0 && out.size() < count);
+        return cursor;
+    }
+
+    protected static RespType scanReply(long cursor, List<String> elements) {
+        return RespType.ofArray(RespType.ofBulkString(Long.toUnsignedString(cursor)),
+                RespType.ofArray(elements.toArray(new String[0])));
+    }
+
+    // seconds as a double, 0 blocks forever
+    protected static long parseTimeout(String timeout) {
+        double seconds;
+        try {
+            seconds = Double.parseDouble(timeout);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("timeout is not a float or out of range");
+        }
+        if (seconds < 0)
+            throw new IllegalArgumentException("timeout is negative");
+        if (Double.isNaN(seconds) || Double.isInfinite(seconds))
+            throw new IllegalArgumentException("timeout is not a float or out of range");
+        // a timeout below one millisecond must still time out
+        return seconds == 0? 0 : Math.max((long) (seconds * 1000), 1);
+    }
+
+    /**
+     * Runs {@code pop} and, if it returns null as there is nothing to serve yet, blocks the connection on
+     * {@code keys} until a write to one of them lets {@code pop} succeed or the timeout passes. {@code pop} is
+     * called again later, so it must not hold on to the {@link Argument}.
+     */
+    protected static RespType blockingPop(Context ctx, String[] keys, long timeoutMillis, RespType timeoutReply,
+                                          Supplier<RespType> pop) {
+        RespType reply = pop.get();
+        if (reply != null)
+            return reply;
+        return new BlockedReply(ctx.getSession().getId(), ctx.getDb(), keys, timeoutMillis, timeoutReply, pop);
+    }
+
     public Set<String> getCommands() {
         return commands.keySet();
     }
 
-    public RespType handle(String name, RespType[] args, String clientKey, int dbIdx) {
+    public Command getCommand(String name) {
+        return commands.get(name);
+    }
+
+    public RespType handle(Command command, RespType[] args, Context ctx) {
         try {
-            Command command = commands.get(name);
             Argument argument = command.parseArguments(args);
-            return command.getFunc().apply(new Context(clientKey, store.getDB(dbIdx)), argument);
+            return command.getFunc().apply(ctx, argument);
         } catch (Exception e) {
             log.error("exception: ", e);
-            return RespType.ofError(e.getMessage());
+            return RespType.ofError(e.getMessage() != null? e.getMessage() : e.toString());
         }
     }
 
@@ -3,48 +3,150 @@ package org.my.zedis;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import org.my.ClientConfig;
 import org.my.ConnectionManager;
+import org.my.Context;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayDeque;
+
 import static org.my.zedis.ZedisServer.buildClientKey;
 
+/**
+ * Executes decoded commands.
+ * <p>
+ * Replies are only written to the channel, the flush happens once per read batch in {@link #channelReadComplete},
+ * so a client pipelining N commands costs one write syscall instead of N. A flush is forced earlier when
+ * {@code zedis.flush.max-batch} replies are pending or the outbound buffer is above its high water mark.
+ * <p>
+ * When the {@link CommandDispatcher} is enabled commands may complete on other threads. They are queued per
+ * connection and started in order, an exclusive or blocking command waits for all earlier ones and holds back all
+ * later ones, and replies are written in request order as the head of the queue completes.
+ * <p>
+ * Otherwise commands run right away, and a connection parked by a blocking command keeps what it sends meanwhile
+ * until the command replies.
+ * <p>
+ * While the dump is loading only connection commands and INFO run, everything else gets a LOADING error.
+ * <p>
+ * Write commands go to the {@link AppendOnlyFile} on the thread running them. With appendfsync always a connection
+ * that wrote flushes its replies only once the file is synced that far.
+ */
 @lombok.extern.slf4j.Slf4j
 @Component()
 @ChannelHandler.Sharable
 public class RespChannelHandler extends ChannelInboundHandlerAdapter implements ChannelHandler {
+    private static final AttributeKey<ConnectionState> STATE = AttributeKey.valueOf("zedis.connectionState");
+    private static final RespType LOADING = RespType.ofError("LOADING Zedis is loading the dataset in memory");
+
     private final HandlerRegistry handlerRegistry;
     private final ConnectionManager connectionManager;
+    private final InMemorySharedStore store;
+    private final CommandDispatcher dispatcher;
+    private final ServerStats stats;
+    private final Persistence persistence;
+    private final AppendOnlyFile aof;
+
+    @Value("${zedis.flush.max-batch:1024}")
+    private int maxFlushBatch;
+
+    private static class ConnectionState {
+        final ClientConfig session;
+        int pendingWrites;
+        boolean wrote;          // ran a write command since the last flush
+        boolean syncWaiting;    // replies held back until the append only file is synced
+
+        // inline mode only
+        boolean blocked;
+        final ArrayDeque<Object> backlog = new ArrayDeque<>();  // read while blocked
+
+        // dispatch mode only
+        final ArrayDeque<Task> waiting = new ArrayDeque<>();   // not started yet
+        final ArrayDeque<Task> replies = new ArrayDeque<>();   // not replied yet, in request order
+        int running;
+        boolean exclusiveRunning;
+        boolean draining;
+        Task blocking;      // a running blocking command
+
+        ConnectionState(ClientConfig session) {
+            this.session = session;
+        }
+    }
+
+    private static class Task {
+        final HandlerRegistry.Entry entry;
+        final RespType[] args;
+        final CommandDispatcher.Route route;
+        final boolean barrier;      // runs alone
+        RespType reply;
+        boolean done;
+
+        Task(HandlerRegistry.Entry entry, RespType[] args, CommandDispatcher.Route route) {
+            this.entry = entry;
+            this.args = args;
+            this.route = route;
+            this.barrier = route != null && (route.isExclusive() || entry.getCommand().isBlocking());
+        }
+
+        // a command that failed to resolve, already answered
+        Task(RespType error) {
+            this(null, null, null);
+            this.reply = error;
+        }
+    }
 
-    public RespChannelHandler(HandlerRegistry handlerRegistry, ConnectionManager connectionManager) {
+    public RespChannelHandler(HandlerRegistry handlerRegistry, ConnectionManager connectionManager,
+                              InMemorySharedStore store, CommandDispatcher dispatcher, ServerStats stats,
+                              Persistence persistence, AppendOnlyFile aof) {
         this.handlerRegistry = handlerRegistry;
         this.connectionManager = connectionManager;
+        this.store = store;
+        this.dispatcher = dispatcher;
+        this.stats = stats;
+        this.persistence = persistence;
+        this.aof = aof;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         if (msg instanceof RespType) {
+            ConnectionState state = ctx.channel().attr(STATE).get();
+            if (state.blocked) {
+                state.backlog.add(msg);
+                return;
+            }
+
             RespType respType = (RespType) msg;
             if (respType.getType() == RespType.Type.Arrays) {
                 RespType[] list = respType.asArray();
                 if (list.length > 0) {
-                    int offset = 1;
-                    String name = list[0].asString().toUpperCase();
-                    RedisCommandHandler handler = handlerRegistry.getHandler(name);
-                    if (handler == null && list.length > 1) {
-                        name += " " + list[1].asString().toUpperCase();
-                        handler = handlerRegistry.getHandler(name);
-                        offset++;
+                    HandlerRegistry.Entry entry = handlerRegistry.lookup(list);
+                    RespType error = entry == null? unsupported(list) : persistence.isLoading() && !servedWhileLoading(entry)? LOADING : null;
+                    RespType[] args = null;
+                    if (error == null) {
+                        args = new RespType[list.length - entry.getArgOffset()];
+                        System.arraycopy(list, entry.getArgOffset(), args, 0, args.length);
                     }
 
-                    if (handler != null) {
-                        RespType[] args = new RespType[list.length - offset];
-                        System.arraycopy(list, offset, args, 0, args.length);
-
-                        String clientKey = buildClientKey(ctx);
-                        RespType ret = handler.handle(name, args, clientKey, connectionManager.getDb(clientKey));
-                        ctx.writeAndFlush(ret);
+                    if (dispatcher.isEnabled()) {
+                        Task task = error == null? new Task(entry, args, dispatcher.route(entry, args)) : new Task(error);
+                        state.replies.add(task);
+                        state.waiting.add(task);
+                        drain(ctx, state);
+                    } else if (error == null) {
+                        RespType ret = run(entry, args, state.session.getContext());
+                        state.wrote |= entry.getCommand().isWrite();
+                        if (ret instanceof BlockedReply)
+                            state.blocked = true;
+                        store.getBlockedClients(0).reply(ret, ctx.executor(), reply -> {
+                            if (state.blocked)
+                                unblock(ctx, state, reply);
+                            else
+                                write(ctx, reply);
+                        });
                     } else {
-                        ctx.writeAndFlush(RespType.ofError("unsupported command: " + name));
+                        write(ctx, error);
                     }
                 }
             }
@@ -53,6 +155,140 @@ public class RespChannelHandler extends ChannelInboundHandlerAdapter implements
         }
     }
 
+    private static RespType unsupported(RespType[] list) {
+        String name = list[0].asString().toUpperCase();
+        if (list.length > 1)
+            name += " " + list[1].asString().toUpperCase();
+        return RespType.ofError("unsupported command: " + name);
+    }
+
+    private RespType run(HandlerRegistry.Entry entry, RespType[] args, Context context) {
+        RespType reply = entry.getHandler().handle(entry.getCommand(), args, context);
+        return entry.getCommand().isWrite() && aof.isEnabled()? aof.feed(context, entry, args, reply) : reply;
+    }
+
+    private static boolean servedWhileLoading(HandlerRegistry.Entry entry) {
+        return "Connection".equals(entry.getHandler().getName()) || "INFO".equals(entry.getName());
+    }
+
+    // replies to the blocking command and runs what the connection sent meanwhile
+    private void unblock(ChannelHandlerContext ctx, ConnectionState state, RespType reply) {
+        state.blocked = false;
+        if (!ctx.channel().isActive()) {
+            state.backlog.clear();
+            return;
+        }
+
+        // blocking commands write, and are logged when served
+        state.wrote = true;
+        write(ctx, reply);
+        while (!state.blocked && !state.backlog.isEmpty())
+            channelRead(ctx, state.backlog.poll());
+        flush(ctx, state);
+    }
+
+    // start queued commands as far as ordering allows
+    private void drain(ChannelHandlerContext ctx, ConnectionState state) {
+        if (state.draining)
+            return;
+
+        if (!ctx.channel().isActive()) {
+            state.waiting.clear();
+            return;
+        }
+
+        state.draining = true;
+        try {
+            while (!state.waiting.isEmpty() && !state.exclusiveRunning) {
+                Task task = state.waiting.peek();
+                if (task.entry == null) {
+                    state.waiting.poll();
+                    complete(ctx, state, task, task.reply);
+                    continue;
+                }
+
+                if (task.barrier && state.running > 0)
+                    break;
+
+                state.waiting.poll();
+                state.running++;
+                state.exclusiveRunning = task.barrier;
+                if (task.entry.getCommand().isBlocking())
+                    state.blocking = task;
+
+                // the db is read when the command starts, so an earlier SELECT has already been applied
+                Context context = state.session.getContext();
+                HandlerRegistry.Entry entry = task.entry;
+                dispatcher.execute(task.route, () -> run(entry, task.args, context),
+                        ctx.executor(), reply -> {
+                            state.running--;
+                            state.wrote |= entry.getCommand().isWrite();
+                            if (task.barrier)
+                                state.exclusiveRunning = false;
+                            if (state.blocking == task)
+                                state.blocking = null;
+                            complete(ctx, state, task, reply);
+                        });
+            }
+        } finally {
+            state.draining = false;
+        }
+    }
+
+    private void complete(ChannelHandlerContext ctx, ConnectionState state, Task task, RespType reply) {
+        task.reply = reply;
+        task.done = true;
+
+        while (!state.replies.isEmpty() && state.replies.peek().done) {
+            Task t = state.replies.poll();
+            if (ctx.channel().isActive())
+                write(ctx, t.reply);
+        }
+
+        if (!state.draining) {
+            // completed asynchronously, outside of a read batch
+            drain(ctx, state);
+            flush(ctx, state);
+        }
+    }
+
+    private void write(ChannelHandlerContext ctx, RespType reply) {
+        stats.commandProcessed();
+        ctx.write(reply, ctx.voidPromise());
+
+        ConnectionState state = ctx.channel().attr(STATE).get();
+        if (++state.pendingWrites >= maxFlushBatch || !ctx.channel().isWritable())
+            flush(ctx, state);
+    }
+
+    private void flush(ChannelHandlerContext ctx, ConnectionState state) {
+        if (state.syncWaiting)
+            return;
+        if (state.wrote) {
+            state.wrote = false;
+            long offset = aof.syncTarget();
+            if (offset >= 0) {
+                state.syncWaiting = true;
+                aof.afterSync(offset, () -> ctx.executor().execute(() -> {
+                    state.syncWaiting = false;
+                    flush(ctx, state);
+                }));
+                return;
+            }
+        }
+        if (state.pendingWrites > 0) {
+            state.pendingWrites = 0;
+            stats.flushed();
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flush(ctx, ctx.channel().attr(STATE).get());
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("exception: ", cause);
@@ -61,13 +297,20 @@ public class RespChannelHandler extends ChannelInboundHandlerAdapter implements
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        connectionManager.register(buildClientKey(ctx));
+        ClientConfig session = ClientConfig.defaultConfig(buildClientKey(ctx), store.getDB(0));
+        ctx.channel().attr(STATE).set(new ConnectionState(session));
+        connectionManager.register(session);
         super.channelActive(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        connectionManager.remove(buildClientKey(ctx));
+        ConnectionState state = ctx.channel().attr(STATE).get();
+        if (state.blocked)
+            store.getBlockedClients(0).cancel(state.session.getId());
+        else if (state.blocking != null)
+            dispatcher.cancelBlocked(state.blocking.route, state.session.getId());
+        connectionManager.remove(state.session);
         super.channelInactive(ctx);
     }
 }
@@ -1,20 +1,242 @@
 package org.my.zedis;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.ByteProcessor;
+import io.netty.util.CharsetUtil;
+import org.my.ByteString;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
+/**
+ * Resumable RESP decoder.
+ * <p>
+ * The parse position (current state, pending bulk length and the stack of partially filled arrays) survives
+ * between {@link #decode} calls, so a frame split over several TCP segments is never re-parsed from its start
+ * and a message is only emitted once the whole frame is available. Bytes of a bulk payload are not scanned at
+ * all, the decoder just waits until {@code length + 2} bytes are readable and then copies them once into a
+ * {@link ByteString}.
+ */
 public class RespDecoder extends ByteToMessageDecoder {
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+    // elements allocated up front, a longer array grows as they arrive
+    private static final int INITIAL_FRAME_SIZE = 1024;
+
+    private enum State { TYPE, LINE, BULK, INLINE }
+
+    // a partially received array
+    private static class Frame {
+        final int size;
+        RespType[] elements;
+        int filled;
+
+        Frame(int size) {
+            this.size = size;
+            this.elements = new RespType[Math.min(size, INITIAL_FRAME_SIZE)];
+        }
+
+        void add(RespType value) {
+            if (filled == elements.length)
+                elements = Arrays.copyOf(elements, (int) Math.min(size, elements.length * 2L));
+            elements[filled++] = value;
+        }
+    }
+
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private State state = State.TYPE;
+    private byte prefix;
+    private int bulkLength;
+    private int scanned; // bytes already searched for LF in the current line
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
-        if (in.readableBytes() < 1) {
-            return;
+        while (in.isReadable()) {
+            RespType value;
+            switch (state) {
+                case TYPE: {
+                    byte b = in.getByte(in.readerIndex());
+                    if (isPrefix(b)) {
+                        prefix = b;
+                        in.skipBytes(1);
+                        state = State.LINE;
+                    } else if (frames.isEmpty()) {
+                        state = State.INLINE;
+                    } else {
+                        throw new DecoderException("Invalid RESP type: " + (char) b);
+                    }
+                    continue;
+                }
+                case LINE: {
+                    int lineLength = findLineLength(in, false);
+                    if (lineLength < 0) {
+                        if (in.readableBytes() > MAX_INLINE_LENGTH)
+                            throw new DecoderException("Protocol error: too big count string");
+                        return;
+                    }
+
+                    value = decodeLine(in, lineLength);
+                    if (value == null)
+                        continue;
+                    break;
+                }
+                case BULK: {
+                    if (in.readableBytes() < bulkLength + 2)
+                        return;
+
+                    int start = in.readerIndex();
+                    if (in.getByte(start + bulkLength) != '\r' || in.getByte(start + bulkLength + 1) != '\n')
+                        throw new DecoderException("Invalid RESP byte stream, bulk string size is mismatched");
+
+                    value = RespType.ofBulkString(ByteString.wrap(ByteBufUtil.getBytes(in, start, bulkLength)));
+                    in.skipBytes(bulkLength + 2);
+                    state = State.TYPE;
+                    break;
+                }
+                case INLINE: {
+                    int lineLength = findLineLength(in, true);
+                    if (lineLength < 0) {
+                        if (in.readableBytes() > MAX_INLINE_LENGTH)
+                            throw new DecoderException("Protocol error: too big inline request");
+                        return;
+                    }
+
+                    value = decodeInline(in, lineLength);
+                    state = State.TYPE;
+                    if (value == null)
+                        continue;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("unknown decoder state: " + state);
+            }
+
+            if (complete(value, out))
+                return;
+        }
+    }
+
+    // return true if a top level message was emitted
+    private boolean complete(RespType value, List<Object> out) {
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            frame.add(value);
+            if (frame.filled < frame.size)
+                return false;
+
+            frames.pop();
+            value = RespType.ofArray(frame.elements);
         }
 
-        RespType respType = RespType.decode(in);
-        out.add(respType);
+        out.add(value);
+        return true;
+    }
+
+    // returns the length of the current line without CRLF, or -1 if the line is not complete yet; an inline line
+    // may end with a bare LF as in Redis, its length then includes the CR if there is one
+    private int findLineLength(ByteBuf in, boolean inline) {
+        int readable = in.readableBytes();
+        int lf = in.forEachByte(in.readerIndex() + scanned, readable - scanned, ByteProcessor.FIND_LF);
+        if (lf < 0) {
+            scanned = readable;
+            return -1;
+        }
+
+        scanned = 0;
+        int length = lf - in.readerIndex();
+        if (inline)
+            return length;
+        if (length == 0 || in.getByte(lf - 1) != '\r')
+            throw new DecoderException("Invalid RESP byte stream, line is not terminated by CRLF");
+        return length - 1;
+    }
+
+    // returns null if the line only opened an array or a bulk string
+    private RespType decodeLine(ByteBuf in, int lineLength) {
+        int start = in.readerIndex();
+        in.skipBytes(lineLength + 2);
+        state = State.TYPE;
+
+        switch (prefix) {
+            case '+':
+                return RespType.ofString(in.toString(start, lineLength, CharsetUtil.ISO_8859_1));
+            case '-':
+                return RespType.ofError(in.toString(start, lineLength, CharsetUtil.ISO_8859_1));
+            case ':':
+                return RespType.ofLong(parseLong(in, start, lineLength));
+            case '$': {
+                long len = parseLong(in, start, lineLength);
+                if (len == -1)
+                    return RespType.NullBulkString();
+                if (len < 0 || len > MAX_BULK_LENGTH)
+                    throw new DecoderException("Protocol error: invalid bulk length");
+
+                bulkLength = (int) len;
+                state = State.BULK;
+                return null;
+            }
+            case '*': {
+                long len = parseLong(in, start, lineLength);
+                if (len == -1)
+                    return RespType.ofArray((RespType[]) null);
+                if (len < 0 || len > Integer.MAX_VALUE)
+                    throw new DecoderException("Protocol error: invalid multibulk length");
+                if (len == 0)
+                    return RespType.ofArray(new RespType[0]);
+
+                frames.push(new Frame((int) len));
+                return null;
+            }
+            default:
+                throw new DecoderException("Invalid RESP type: " + (char) prefix);
+        }
+    }
+
+    // inline command, e.g. "PING\r\n" typed in a telnet session, a CR ending the line is trimmed as white space
+    private RespType decodeInline(ByteBuf in, int lineLength) {
+        String line = in.toString(in.readerIndex(), lineLength, CharsetUtil.ISO_8859_1);
+        in.skipBytes(lineLength + 1);
+
+        List<RespType> parts = new ArrayList<>();
+        for (String s: line.trim().split("\\s+")) {
+            if (!s.isEmpty())
+                parts.add(RespType.ofBulkString(s));
+        }
+        return parts.isEmpty()? null : RespType.ofArray(parts.toArray(new RespType[0]));
+    }
+
+    private static long parseLong(ByteBuf in, int start, int length) {
+        if (length == 0)
+            throw new DecoderException("Protocol error: empty number");
+
+        int i = start;
+        int end = start + length;
+        boolean negative = in.getByte(i) == '-';
+        if (negative && ++i == end)
+            throw new DecoderException("Protocol error: invalid number");
+
+        // summed up negated, so that Long.MIN_VALUE fits too
+        long v = 0;
+        for (; i < end; i++) {
+            int d = in.getByte(i) - '0';
+            if (d < 0 || d > 9 || v < (Long.MIN_VALUE + d) / 10)
+                throw new DecoderException("Protocol error: invalid number");
+            v = v * 10 - d;
+        }
+        if (!negative && v == Long.MIN_VALUE)
+            throw new DecoderException("Protocol error: invalid number");
+        return negative? v : -v;
+    }
+
+    private static boolean isPrefix(byte b) {
+        return b == '*' || b == '$' || b == ':' || b == '+' || b == '-';
     }
 
     @Override
@@ -3,18 +3,168 @@ package org.my.zedis;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.CharsetUtil;
+import org.my.ByteString;
 
-import java.io.IOException;
-
+/**
+ * Streaming RESP encoder.
+ * <p>
+ * Walks the {@link RespType} tree and writes prefixes, lengths and payloads straight into the outbound buffer,
+ * which is allocated once with the estimated wire size of the reply. Frequent replies are written from
+ * pre-encoded constants.
+ */
 public class RespEncoder extends MessageToByteEncoder<Object> {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] OK = "+OK\r\n".getBytes(CharsetUtil.US_ASCII);
+    private static final byte[] NULL_BULK = "$-1\r\n".getBytes(CharsetUtil.US_ASCII);
+    private static final byte[] NULL_ARRAY = "*-1\r\n".getBytes(CharsetUtil.US_ASCII);
+    private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(CharsetUtil.US_ASCII);
+    private static final byte[] NULL = "_\r\n".getBytes(CharsetUtil.US_ASCII);
+
+    // ":<n>\r\n" for small integers
+    private static final int CACHED_LONGS = 1024;
+    private static final byte[][] LONGS = new byte[CACHED_LONGS][];
+
+    static {
+        for (int i = 0; i < CACHED_LONGS; i++)
+            LONGS[i] = (":" + i + "\r\n").getBytes(CharsetUtil.US_ASCII);
+    }
+
     @Override
-    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws IOException {
+    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) {
         if (msg instanceof RespType) {
-            RespType respType = (RespType) msg;
-            out.writeBytes(respType.encode());
+            write((RespType) msg, out);
         } else {
             // Handle other types accordingly
             throw new IllegalArgumentException("Unsupported message type for encoding: " + msg.getClass());
         }
     }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Object msg, boolean preferDirect) {
+        int size = msg instanceof RespType? estimateSize((RespType) msg) : 256;
+        return preferDirect? ctx.alloc().ioBuffer(size) : ctx.alloc().heapBuffer(size);
+    }
+
+    public static void write(RespType resp, ByteBuf out) {
+        Object value = resp.getValue();
+        switch (resp.getType()) {
+            case Strings:
+                if ("OK".equals(value)) {
+                    out.writeBytes(OK);
+                    return;
+                }
+                // fall through
+            case Errors:
+            case Doubles:
+            case BigNumbers:
+                assert(value != null);
+                out.writeByte(resp.getType().getLeadingByte().charAt(0));
+                out.writeCharSequence(value.toString(), CharsetUtil.ISO_8859_1);
+                out.writeBytes(CRLF);
+                return;
+            case Long: {
+                long v = ((Number) value).longValue();
+                if (v >= 0 && v < CACHED_LONGS) {
+                    out.writeBytes(LONGS[(int) v]);
+                } else {
+                    out.writeByte(':');
+                    writeDecimal(out, v);
+                    out.writeBytes(CRLF);
+                }
+                return;
+            }
+            case BulkStrings: {
+                if (value == null) {
+                    out.writeBytes(NULL_BULK);
+                } else {
+                    ByteString b = (ByteString) value;
+                    out.writeByte('$');
+                    writeDecimal(out, b.length());
+                    out.writeBytes(CRLF);
+                    out.writeBytes(b.array());
+                    out.writeBytes(CRLF);
+                }
+                return;
+            }
+            case Arrays: {
+                RespType[] elements = (RespType[]) value;
+                if (elements == null) {
+                    out.writeBytes(NULL_ARRAY);
+                } else if (elements.length == 0) {
+                    out.writeBytes(EMPTY_ARRAY);
+                } else {
+                    out.writeByte('*');
+                    writeDecimal(out, elements.length);
+                    out.writeBytes(CRLF);
+                    for (RespType e: elements)
+                        write(e, out);
+                }
+                return;
+            }
+            case Nulls:
+                out.writeBytes(NULL);
+                return;
+            case Booleans:
+                out.writeByte('#');
+                out.writeByte(((Boolean) value)? 't' : 'f');
+                out.writeBytes(CRLF);
+                return;
+            case BulkErrors:
+            case VerbatimStrings:
+            case Maps:
+            case Sets:
+            case Pushes:
+            default:
+                throw new IllegalArgumentException("Invalid RESP type");
+        }
+    }
+
+    // upper bound of the encoded size, good enough to allocate the buffer once
+    static int estimateSize(RespType resp) {
+        Object value = resp.getValue();
+        switch (resp.getType()) {
+            case BulkStrings:
+                return value == null? 5 : ((ByteString) value).length() + 16;
+            case Arrays: {
+                RespType[] elements = (RespType[]) value;
+                if (elements == null)
+                    return 5;
+
+                long size = 16;
+                for (RespType e: elements)
+                    size += estimateSize(e);
+                return (int) Math.min(size, Integer.MAX_VALUE);
+            }
+            case Long:
+                return 24;
+            default:
+                return value == null? 8 : value.toString().length() + 8;
+        }
+    }
+
+    // ASCII digits of v without going through a String
+    static void writeDecimal(ByteBuf out, long v) {
+        if (v == Long.MIN_VALUE) {
+            out.writeCharSequence(Long.toString(v), CharsetUtil.US_ASCII);
+            return;
+        }
+
+        if (v < 0) {
+            out.writeByte('-');
+            v = -v;
+        }
+
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10)
+            digits++;
+
+        out.ensureWritable(digits);
+        int end = out.writerIndex() + digits;
+        for (int i = end - 1; i >= out.writerIndex(); i--) {
+            out.setByte(i, (int) ('0' + v % 10));
+            v /= 10;
+        }
+        out.writerIndex(end);
+    }
 }
@@ -1,10 +1,7 @@
 package org.my.zedis;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.util.ByteProcessor;
+import org.my.ByteString;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Arrays;
 
 @lombok.Setter
@@ -37,8 +34,11 @@ public class RespType {
 
     private Type type;
     private Object value;
+    @lombok.Getter(lombok.AccessLevel.NONE)
+    @lombok.Setter(lombok.AccessLevel.NONE)
+    private String text; // decoded form of a bulk string, built on first use
 
-    private RespType(Type type, Object value) {
+    RespType(Type type, Object value) {
         this.type = type;
         this.value = value;
     }
@@ -51,8 +51,21 @@ public class RespType {
         return new RespType(Type.Errors, value);
     }
 
+    // replies of 0 to 9999 are shared, so replying a small count or counter allocates nothing
+    private static final int SHARED_INTEGERS = 10000;
+    private static final RespType[] sharedIntegers = new RespType[SHARED_INTEGERS];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++)
+            sharedIntegers[i] = new RespType(Type.Long, (long) i);
+    }
+
+    public static RespType ofLong(long value) {
+        return value >= 0 && value < SHARED_INTEGERS? sharedIntegers[(int) value] : new RespType(Type.Long, value);
+    }
+
     public static RespType ofLong(Long value) {
-        return new RespType(Type.Long, value);
+        return value == null? new RespType(Type.Long, null) : ofLong(value.longValue());
     }
 
     public static RespType ofLong(Integer value) {
@@ -60,6 +73,10 @@ public class RespType {
     }
 
     public static RespType ofBulkString(String value) {
+        return new RespType(Type.BulkStrings, value == null? null : ByteString.of(value));
+    }
+
+    public static RespType ofBulkString(ByteString value) {
         return new RespType(Type.BulkStrings, value);
     }
 
@@ -80,10 +97,20 @@ public class RespType {
     }
 
     public String asString() {
-        assert (type == Type.Strings);
+        if (value instanceof ByteString) {
+            if (text == null)
+                text = value.toString();
+            return text;
+        }
         return (String) value;
     }
 
+    public ByteString asBytes() {
+        if (value instanceof ByteString)
+            return (ByteString) value;
+        return value == null? null : ByteString.of(value.toString());
+    }
+
     public String asError() {
         assert (type == Type.Errors);
         return (String) value;
@@ -101,7 +128,7 @@ public class RespType {
 
     public String asBulkString() {
         assert (type == Type.BulkStrings);
-        return (String) value;
+        return asString();
     }
 
     public RespType[] asArray() {
@@ -109,53 +136,6 @@ public class RespType {
         return (RespType[]) value;
     }
 
-    public static RespType decode(ByteBuf bytes) {
-        byte prefix = bytes.readByte();
-        switch (prefix) {
-            case '+':
-                return ofString(new String(readBytesUntilCRLF(bytes, -1)));
-            case '-':
-                return ofError(new String(readBytesUntilCRLF(bytes, -1)));
-            case ':':
-                return ofLong(Long.parseLong(new String(readBytesUntilCRLF(bytes, -1))));
-            case '$':
-                int sz = Integer.parseInt(new String(readBytesUntilCRLF(bytes, -1)));
-                return ofBulkString(new String(readBytesUntilCRLF(bytes, sz)));
-            case '*':
-                int elementsCount = Integer.parseInt(new String(readBytesUntilCRLF(bytes, -1)));
-                RespType[] list = new RespType[elementsCount];
-                for (int i = 0; i < elementsCount; i++) {
-                    list[i] = decode(bytes);
-                }
-                return ofArray(list);
-            default:
-                throw new IllegalArgumentException("Invalid RESP type: " + (char) prefix);
-        }
-    }
-
-    private static byte[] readBytesUntilCRLF(ByteBuf byteBuf, int sz) {
-        int crIndex = byteBuf.forEachByte(ByteProcessor.FIND_CR);
-        if (crIndex >= 0 && crIndex + 1 < byteBuf.writerIndex() && byteBuf.getByte(crIndex + 1) == '\n') {
-            if (sz != -1 && crIndex - byteBuf.readerIndex() != sz) {
-                throw new IllegalArgumentException("Invalid RESP byte stream, bulk string size is mismatched");
-            }
-
-            byte[] bytes = new byte[crIndex - byteBuf.readerIndex()];
-            byteBuf.readBytes(bytes);
-            byteBuf.skipBytes(2); // Skip \r\n
-            return bytes;
-        } else {
-            // Handle case where CRLF is not found
-            return new byte[0];
-        }
-    }
-
-    public byte[] encode() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        outputStream.write(encodeImpl().getBytes());
-        return outputStream.toByteArray();
-    }
-
     public String encodeImpl() {
         switch (type) {
             case Strings:
@@ -169,8 +149,8 @@ public class RespType {
                 if (value == null) {
                     return type.getLeadingByte() + "-1\r\n";
                 } else {
-                    String bulkStringValue = (String) value;
-                    return type.getLeadingByte() + bulkStringValue.getBytes().length + "\r\n" + bulkStringValue + "\r\n";
+                    ByteString bulkStringValue = (ByteString) value;
+                    return type.getLeadingByte() + bulkStringValue.length() + "\r\n" + bulkStringValue + "\r\n";
                 }
             case Arrays:
                 if (value == null) {
@@ -210,7 +190,11 @@ public class RespType {
     }
 
     public static RespType NullBulkString() {
-        return ofBulkString(null);
+        return ofBulkString((ByteString) null);
+    }
+
+    public static RespType NullArray() {
+        return ofArray((RespType[]) null);
     }
 
     public static RespType emptyArray() {
@@ -0,0 +1,79 @@
+package org.my.zedis;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide counters and settings reported by INFO.
+ */
+@Component
+public class ServerStats {
+    private final LongAdder commandsProcessed = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder expiredKeys = new LongAdder();
+    private final LongAdder expireCycleNanos = new LongAdder();
+    // writes since startup, not reset, saves compare it with its value at the last save
+    private final LongAdder changes = new LongAdder();
+    private volatile String transport = "nio";
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public void commandProcessed() {
+        commandsProcessed.increment();
+    }
+
+    public void flushed() {
+        flushes.increment();
+    }
+
+    public void keyExpired() {
+        expiredKeys.increment();
+    }
+
+    public void keyChanged() {
+        changes.increment();
+    }
+
+    public long getChanges() {
+        return changes.sum();
+    }
+
+    public void expireCycleTime(long nanos) {
+        expireCycleNanos.add(nanos);
+    }
+
+    public long getCommandsProcessed() {
+        return commandsProcessed.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getExpiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    public long getExpireCycleMillis() {
+        return expireCycleNanos.sum() / 1_000_000;
+    }
+
+    public double getCommandsPerFlush() {
+        long f = flushes.sum();
+        return f == 0? 0 : (double) commandsProcessed.sum() / f;
+    }
+
+    public void reset() {
+        commandsProcessed.reset();
+        flushes.reset();
+        expiredKeys.reset();
+        expireCycleNanos.reset();
+    }
+}
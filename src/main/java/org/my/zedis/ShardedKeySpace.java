@@ -0,0 +1,145 @@
+package org.my.zedis;
+
+import org.my.ValueWithTTL;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A logical database split over several shards, each key living in the {@link KeySpace} of its shard.
+ * <p>
+ * Single key operations are routed by {@link InMemorySharedStore#shardOf(String)}, whole database operations
+ * visit every shard. It holds no state of its own, so it is only safe to use from the thread owning the shard of
+ * the key, or while all shards are parked by the coordinator.
+ */
+class ShardedKeySpace extends AbstractMap<String, ValueWithTTL> implements Database {
+    private final KeySpace[] shards;
+    private final InMemorySharedStore store;
+
+    ShardedKeySpace(KeySpace[] shards, InMemorySharedStore store) {
+        this.shards = shards;
+        this.store = store;
+    }
+
+    private KeySpace shard(Object key) {
+        return shards[store.shardOf((String) key)];
+    }
+
+    @Override
+    public ValueWithTTL get(Object key) {
+        return shard(key).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return shard(key).containsKey(key);
+    }
+
+    @Override
+    public ValueWithTTL lookupWrite(String key) {
+        return shard(key).lookupWrite(key);
+    }
+
+    @Override
+    public Encodings encodings() {
+        return store.getEncodings();
+    }
+
+    @Override
+    public ValueWithTTL put(String key, ValueWithTTL value) {
+        return shard(key).put(key, value);
+    }
+
+    @Override
+    public ValueWithTTL putIfAbsent(String key, ValueWithTTL value) {
+        return shard(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public ValueWithTTL remove(Object key) {
+        return shard(key).remove(key);
+    }
+
+    @Override
+    public ValueWithTTL compute(String key, BiFunction<? super String, ? super ValueWithTTL, ? extends ValueWithTTL> func) {
+        return shard(key).compute(key, func);
+    }
+
+    @Override
+    public ValueWithTTL computeIfPresent(String key, BiFunction<? super String, ? super ValueWithTTL, ? extends ValueWithTTL> func) {
+        return shard(key).computeIfPresent(key, func);
+    }
+
+    @Override
+    public ValueWithTTL computeIfAbsent(String key, Function<? super String, ? extends ValueWithTTL> func) {
+        return shard(key).computeIfAbsent(key, func);
+    }
+
+    @Override
+    public ValueWithTTL merge(String key, ValueWithTTL value, BiFunction<? super ValueWithTTL, ? super ValueWithTTL, ? extends ValueWithTTL> func) {
+        return shard(key).merge(key, value, func);
+    }
+
+    // the low bits of the cursor select the shard, the rest is the cursor within it
+    @Override
+    public long scan(long cursor, Consumer<String> consumer) {
+        int bits = 32 - Integer.numberOfLeadingZeros(shards.length - 1);
+        int shard = (int) (cursor & ((1L << bits) - 1));
+        if (shard >= shards.length)
+            return 0;
+
+        long next = shards[shard].scan(cursor >>> bits, consumer);
+        if (next == 0) {
+            if (++shard == shards.length)
+                return 0;
+        }
+        return (next << bits) | shard;
+    }
+
+    // picks a shard with a probability proportional to its size
+    @Override
+    public String randomKey(Random rand) {
+        int total = size();
+        if (total == 0)
+            return null;
+
+        int n = rand.nextInt(total);
+        for (KeySpace s: shards) {
+            if (n < s.size())
+                return s.randomKey(rand);
+            n -= s.size();
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        int n = 0;
+        for (KeySpace s: shards)
+            n += s.size();
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        for (KeySpace s: shards)
+            s.clear();
+    }
+
+    @Override
+    public Set<Entry<String, ValueWithTTL>> entrySet() {
+        return new AbstractSet<Entry<String, ValueWithTTL>>() {
+            @Override
+            public Iterator<Entry<String, ValueWithTTL>> iterator() {
+                return Arrays.stream(shards).flatMap(s -> s.entrySet().stream()).iterator();
+            }
+
+            @Override
+            public int size() {
+                return ShardedKeySpace.this.size();
+            }
+        };
+    }
+}
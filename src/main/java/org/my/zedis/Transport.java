@@ -0,0 +1,133 @@
+package org.my.zedis;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+
+/**
+ * Netty transports the server can run on.
+ * <p>
+ * The native ones are only available on Linux with the matching kernel support, {@link #select} falls back to
+ * the best available one. Only the native transports support {@code SO_REUSEPORT}, which lets several accept loops
+ * bind the same port.
+ */
+@lombok.extern.slf4j.Slf4j
+public enum Transport {
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannel() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> reusePort() {
+            return null;
+        }
+    },
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> reusePort() {
+            return EpollChannelOption.SO_REUSEPORT;
+        }
+    },
+    IOURING {
+        @Override
+        public boolean isAvailable() {
+            try {
+                return IOUring.isAvailable();
+            } catch (Throwable e) {
+                return false;
+            }
+        }
+
+        @Override
+        public EventLoopGroup newGroup(int threads) {
+            return new IOUringEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverChannel() {
+            return IOUringServerSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> reusePort() {
+            return IOUringChannelOption.SO_REUSEPORT;
+        }
+
+        @Override
+        public void configure(ServerBootstrap bootstrap) {
+            // a recv that fills its buffer is followed by another recv instead of channelReadComplete, which would
+            // hold back the flush of the replies until the client sends more, so complete the read after every recv.
+            // This also ends the read batch after every recv, so replies are coalesced over fewer commands than with
+            // epoll, one reason io_uring is only used when asked for
+            bootstrap.childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator().maxMessagesPerRead(1));
+        }
+    };
+
+    public abstract boolean isAvailable();
+
+    public abstract EventLoopGroup newGroup(int threads);
+
+    public abstract Class<? extends ServerSocketChannel> serverChannel();
+
+    // null if the transport can't share a port between listeners
+    public abstract ChannelOption<Boolean> reusePort();
+
+    // transport specific options
+    public void configure(ServerBootstrap bootstrap) {
+    }
+
+    /**
+     * @param name nio, epoll, iouring or auto, which picks epoll when it is available and nio otherwise
+     */
+    public static Transport select(String name) {
+        if ("auto".equalsIgnoreCase(name))
+            return EPOLL.isAvailable()? EPOLL : NIO;
+
+        Transport t = valueOf(name.toUpperCase());
+        if (t.isAvailable())
+            return t;
+
+        Transport fallback = EPOLL.isAvailable()? EPOLL : NIO;
+        log.warn("transport {} is not available, falling back to {}", t.name().toLowerCase(), fallback.name().toLowerCase());
+        return fallback;
+    }
+}
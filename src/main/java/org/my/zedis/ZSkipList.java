@@ -0,0 +1,427 @@
+package org.my.zedis;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Skiplist of sorted set members ordered by score and then member, after Redis' zskiplist.
+ * <p>
+ * Every forward link stores its span, the number of nodes it steps over, so the rank of a node is summed up on
+ * the way down and the node at a rank is found in O(log n) like a member or a score is. Level 0 is linked both
+ * ways for reverse walks. Members must be unique, the sorted set keeps the hash from member to node next to it.
+ * Not thread safe.
+ */
+public final class ZSkipList {
+    private static final int MAX_LEVEL = 32;
+    // chance of a node to reach the next level
+    private static final int P_PERCENT = 25;
+
+    public static final class Node {
+        final String member;
+        double score;
+        Node backward;
+        final Node[] forward;
+        final int[] span;
+
+        Node(int level, double score, String member) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new int[level];
+        }
+
+        public String getMember() {
+            return member;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public Node next() {
+            return forward[0];
+        }
+
+        public Node previous() {
+            return backward;
+        }
+    }
+
+    /**
+     * Range of nodes, either by score or, for members sharing the same score, by member.
+     */
+    public interface Range {
+        // not below the lower bound
+        boolean aboveMin(double score, String member);
+
+        // not above the upper bound
+        boolean belowMax(double score, String member);
+
+        default boolean aboveMin(Node n) {
+            return aboveMin(n.score, n.member);
+        }
+
+        default boolean belowMax(Node n) {
+            return belowMax(n.score, n.member);
+        }
+
+        boolean isEmpty();
+    }
+
+    private final Node header = new Node(MAX_LEVEL, 0, null);
+    private Node tail;
+    private int length;
+    private int level = 1;
+
+    public int size() {
+        return length;
+    }
+
+    public Node first() {
+        return header.forward[0];
+    }
+
+    public Node last() {
+        return tail;
+    }
+
+    private static boolean before(Node n, double score, String member) {
+        return n.score < score || (n.score == score && n.member.compareTo(member) < 0);
+    }
+
+    private static int randomLevel() {
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        int level = 1;
+        while (level < MAX_LEVEL && rand.nextInt(100) < P_PERCENT)
+            level++;
+        return level;
+    }
+
+    // the member must not be in the list yet
+    public Node insert(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1? 0 : rank[i + 1];
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+
+        int lvl = randomLevel();
+        if (lvl > level) {
+            for (int i = level; i < lvl; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.span[i] = length;
+            }
+            level = lvl;
+        }
+
+        x = new Node(lvl, score, member);
+        for (int i = 0; i < lvl; i++) {
+            x.forward[i] = update[i].forward[i];
+            update[i].forward[i] = x;
+            x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        // the levels above the new node now step over one more
+        for (int i = lvl; i < level; i++)
+            update[i].span[i]++;
+
+        x.backward = update[0] == header? null : update[0];
+        if (x.forward[0] != null)
+            x.forward[0].backward = x;
+        else
+            tail = x;
+        length++;
+        return x;
+    }
+
+    // update[i] is the last node before x on level i
+    private void unlink(Node x, Node[] update) {
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == x) {
+                update[i].span[i] += x.span[i] - 1;
+                update[i].forward[i] = x.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (x.forward[0] != null)
+            x.forward[0].backward = x.backward;
+        else
+            tail = x.backward;
+        while (level > 1 && header.forward[level - 1] == null)
+            level--;
+        length--;
+    }
+
+    private Node[] findUpdate(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && before(x.forward[i], score, member))
+                x = x.forward[i];
+            update[i] = x;
+        }
+        return update;
+    }
+
+    public boolean delete(double score, String member) {
+        Node[] update = findUpdate(score, member);
+        Node x = update[0].forward[0];
+        if (x != null && x.score == score && x.member.equals(member)) {
+            unlink(x, update);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Changes the score of a node, in place if it keeps its position.
+     * @return the node now holding the member
+     */
+    public Node updateScore(Node node, double score) {
+        Node[] update = findUpdate(node.score, node.member);
+        Node x = update[0].forward[0];
+        assert x == node;
+
+        if ((x.backward == null || x.backward.score < score) && (x.forward[0] == null || x.forward[0].score > score)) {
+            x.score = score;
+            return x;
+        }
+        unlink(x, update);
+        return insert(score, x.member);
+    }
+
+    /**
+     * Rank of a member, 0 based.
+     * @return -1 if not found
+     */
+    public long rank(double score, String member) {
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (before(x.forward[i], score, member)
+                    || (x.forward[i].score == score && x.forward[i].member.equals(member)))) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x != header && x.member.equals(member))
+                return rank - 1;
+        }
+        return -1;
+    }
+
+    public long rank(Node n) {
+        return rank(n.score, n.member);
+    }
+
+    // node at a 0 based rank, null if out of range
+    public Node byRank(long rank) {
+        if (rank < 0)
+            return null;
+        long target = rank + 1;
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= target) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == target)
+                return x;
+        }
+        return null;
+    }
+
+    // whether any node may be in the range
+    private boolean isInRange(Range range) {
+        return !range.isEmpty() && tail != null && range.aboveMin(tail) && range.belowMax(header.forward[0]);
+    }
+
+    public Node firstInRange(Range range) {
+        if (!isInRange(range))
+            return null;
+
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !range.aboveMin(x.forward[i]))
+                x = x.forward[i];
+        }
+        x = x.forward[0];
+        return x != null && range.belowMax(x)? x : null;
+    }
+
+    public Node lastInRange(Range range) {
+        if (!isInRange(range))
+            return null;
+
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && range.belowMax(x.forward[i]))
+                x = x.forward[i];
+        }
+        return x != header && range.aboveMin(x)? x : null;
+    }
+
+    /**
+     * Deletes the nodes in a range, passing each to {@code removed}.
+     * @return the number of nodes deleted
+     */
+    public long deleteRange(Range range, Consumer<Node> removed) {
+        if (range.isEmpty())
+            return 0;
+
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !range.aboveMin(x.forward[i]))
+                x = x.forward[i];
+            update[i] = x;
+        }
+
+        long n = 0;
+        x = x.forward[0];
+        while (x != null && range.belowMax(x)) {
+            Node next = x.forward[0];
+            unlink(x, update);
+            removed.accept(x);
+            n++;
+            x = next;
+        }
+        return n;
+    }
+
+    /**
+     * Deletes the nodes from rank {@code start} to {@code end}, both inclusive and 0 based.
+     * @return the number of nodes deleted
+     */
+    public long deleteRangeByRank(long start, long end, Consumer<Node> removed) {
+        Node[] update = new Node[MAX_LEVEL];
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= start) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+
+        long n = 0;
+        x = x.forward[0];
+        while (x != null && traversed <= end) {
+            Node next = x.forward[0];
+            unlink(x, update);
+            removed.accept(x);
+            n++;
+            traversed++;
+            x = next;
+        }
+        return n;
+    }
+
+    /**
+     * A range of scores in the syntax of ZRANGEBYSCORE: a bound is inclusive unless prefixed with {@code (}, and
+     * may be {@code -inf} or {@code +inf}.
+     */
+    public static Range scoreRange(String min, String max) {
+        boolean minex = min.startsWith("(");
+        boolean maxex = max.startsWith("(");
+        double lo = parseScore(minex? min.substring(1) : min);
+        double hi = parseScore(maxex? max.substring(1) : max);
+        return new Range() {
+            @Override
+            public boolean aboveMin(double score, String member) {
+                return minex? score > lo : score >= lo;
+            }
+
+            @Override
+            public boolean belowMax(double score, String member) {
+                return maxex? score < hi : score <= hi;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return lo > hi || (lo == hi && (minex || maxex));
+            }
+        };
+    }
+
+    private static double parseScore(String s) {
+        switch (s.toLowerCase()) {
+            case "inf":
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    double d = Double.parseDouble(s);
+                    if (!Double.isNaN(d))
+                        return d;
+                } catch (NumberFormatException ignored) {
+                }
+                throw new IllegalArgumentException("min or max is not a float");
+        }
+    }
+
+    // bounds of a lex range beyond every member, compared by identity
+    private static final String LEX_MIN = new String("-");
+    private static final String LEX_MAX = new String("+");
+
+    /**
+     * A range of members in the syntax of ZRANGEBYLEX: {@code [a} is inclusive, {@code (a} exclusive, and {@code -}
+     * and {@code +} are the smallest and the largest member. Only meaningful if all members have the same score.
+     */
+    public static Range lexRange(String min, String max) {
+        boolean minex = min.startsWith("(");
+        boolean maxex = max.startsWith("(");
+        String lo = parseLex(min);
+        String hi = parseLex(max);
+        return new Range() {
+            @Override
+            public boolean aboveMin(double score, String member) {
+                int c = compareLex(member, lo);
+                return minex? c > 0 : c >= 0;
+            }
+
+            @Override
+            public boolean belowMax(double score, String member) {
+                int c = compareLex(member, hi);
+                return maxex? c < 0 : c <= 0;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                int c = compareLex(lo, hi);
+                return c > 0 || (c == 0 && (minex || maxex));
+            }
+        };
+    }
+
+    private static String parseLex(String s) {
+        if (s.equals("-"))
+            return LEX_MIN;
+        if (s.equals("+"))
+            return LEX_MAX;
+        if (s.startsWith("(") || s.startsWith("["))
+            return s.substring(1);
+        throw new IllegalArgumentException("min or max not valid string range item");
+    }
+
+    private static int compareLex(String a, String b) {
+        if (a == b)
+            return 0;
+        if (a == LEX_MIN || b == LEX_MAX)
+            return -1;
+        if (a == LEX_MAX || b == LEX_MIN)
+            return 1;
+        return a.compareTo(b);
+    }
+}
@@ -4,35 +4,109 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.DefaultApplicationArguments;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 @Service
 @lombok.extern.slf4j.Slf4j
 public class ZedisServer {
     @Value("${zedis.port}")
     private int port;
 
+    // active expiry cycles per second, and the share of each period a cycle may use
+    @Value("${zedis.expire.hz:10}")
+    private int expireHz;
+    @Value("${zedis.expire.cycle-budget-percent:25}")
+    private int expireBudgetPercent;
+    @Value("${zedis.expire.strategy:heap}")
+    private String expireStrategy;
+
+    // 0 lets the shard owners serve the connections themselves
+    @Value("${zedis.io-threads:0}")
+    private int ioThreads;
+
+    // nio, epoll, iouring or auto
+    @Value("${zedis.transport:auto}")
+    private String transportName;
+    // listeners bound to the port with SO_REUSEPORT, native transports only
+    @Value("${zedis.accept-threads:1}")
+    private int acceptThreads;
+
+    @Value("${zedis.tcp.nodelay:true}")
+    private boolean tcpNoDelay;
+    // 0 keeps the OS default
+    @Value("${zedis.tcp.sndbuf:0}")
+    private int sendBuffer;
+    @Value("${zedis.tcp.rcvbuf:0}")
+    private int receiveBuffer;
+    // a channel stops being writable above the high mark until it drains below the low one
+    @Value("${zedis.tcp.write-buffer-low:32768}")
+    private int writeBufferLow;
+    @Value("${zedis.tcp.write-buffer-high:65536}")
+    private int writeBufferHigh;
+
     private final RespChannelHandler respChannelHandler;
+    private final InMemorySharedStore store;
+    private final CommandDispatcher dispatcher;
+    private final ServerStats stats;
+    private final Persistence persistence;
+    private final HandlerRegistry handlerRegistry;
 
-    public ZedisServer(RespChannelHandler respChannelHandler) {
+    public ZedisServer(RespChannelHandler respChannelHandler, InMemorySharedStore store, CommandDispatcher dispatcher,
+                       ServerStats stats, Persistence persistence, HandlerRegistry handlerRegistry) {
         this.respChannelHandler = respChannelHandler;
+        this.store = store;
+        this.dispatcher = dispatcher;
+        this.stats = stats;
+        this.persistence = persistence;
+        this.handlerRegistry = handlerRegistry;
     }
 
-    public void run(String[] args) throws InterruptedException {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup(1);  // make sure it's single thread
+    public void run(String[] args) throws InterruptedException, IOException {
+        Transport transport = Transport.select(transportName);
+        if (acceptThreads > 1 && transport.reusePort() == null) {
+            log.warn("{} transport has no SO_REUSEPORT, using a single accept thread", transport.name().toLowerCase());
+            acceptThreads = 1;
+        }
+        stats.setTransport(transport.name().toLowerCase());
+
+        EventLoopGroup bossGroup = transport.newGroup(acceptThreads);
+        // without I/O threads every worker loop owns one shard (a single thread unless zedis.shards is set),
+        // otherwise the workers only decode and encode and each shard gets a dedicated executor
+        int shards = store.getShardCount();
+        EventLoopGroup workerGroup = transport.newGroup(ioThreads > 0? ioThreads : shards);
+        EventExecutor[] owners = new EventExecutor[shards];
+        if (ioThreads > 0) {
+            DefaultThreadFactory threadFactory = new DefaultThreadFactory("zedis-exec");
+            for (int i = 0; i < shards; i++)
+                owners[i] = new DefaultEventExecutor(threadFactory);
+        } else {
+            int n = 0;
+            for (EventExecutor e: workerGroup)
+                owners[n++] = e;
+        }
+        dispatcher.setIoGroup(workerGroup);
+        if (shards > 1 || ioThreads > 0)
+            dispatcher.start(owners);
 
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap();
             serverBootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannel())
+                    .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeBufferLow, writeBufferHigh))
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -43,16 +117,49 @@ public class ZedisServer {
                         }
                     });
 
+            if (sendBuffer > 0)
+                serverBootstrap.childOption(ChannelOption.SO_SNDBUF, sendBuffer);
+            if (receiveBuffer > 0)
+                serverBootstrap.childOption(ChannelOption.SO_RCVBUF, receiveBuffer);
+            if (acceptThreads > 1)
+                serverBootstrap.option(transport.reusePort(), true);
+            transport.configure(serverBootstrap);
+
             ApplicationArguments applicationArguments = new DefaultApplicationArguments(args);
             if (applicationArguments.containsOption("zedis.port"))
                 port = Integer.parseInt(applicationArguments.getOptionValues("zedis.port").get(0));
 
-            ChannelFuture channelFuture = serverBootstrap.bind(port).sync();
-            log.info("Zedis server started on port {}", port);
-            channelFuture.channel().closeFuture().sync();
+            // every bind registers a new listener on the next accept thread
+            ChannelFuture[] listeners = new ChannelFuture[acceptThreads];
+            for (int i = 0; i < acceptThreads; i++)
+                listeners[i] = serverBootstrap.bind(port).sync();
+            log.info("Zedis server started on port {} using {} transport", port, transport.name().toLowerCase());
+
+            // the listeners are up, but every command touching the store gets a LOADING error until the load is done
+            persistence.load(handlerRegistry);
+            persistence.start(owners);
+
+            // runs on the thread owning the shard, so the store needs no locking
+            long periodMicros = 1_000_000L / expireHz;
+            long budgetMicros = periodMicros * expireBudgetPercent / 100;
+            InMemorySharedStore.ExpireStrategy strategy = InMemorySharedStore.ExpireStrategy.valueOf(expireStrategy.toUpperCase());
+            for (int i = 0; i < shards; i++) {
+                int shard = i;
+                owners[i].scheduleAtFixedRate(() -> {
+                    store.activeExpireCycle(shard, strategy, budgetMicros);
+                    store.incrementalRehash(shard, 1);
+                }, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+            }
+            for (ChannelFuture listener: listeners)
+                listener.channel().closeFuture().sync();
         } finally {
+            dispatcher.stop();
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            if (ioThreads > 0) {
+                for (EventExecutor e: owners)
+                    e.shutdownGracefully();
+            }
         }
     }
 
@@ -0,0 +1,188 @@
+package org.my.handlers;
+
+import org.junit.jupiter.api.Test;
+import org.my.zedis.Crc64;
+import org.my.zedis.RespType;
+import org.my.zedis.StoreBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// DUMP and RESTORE of every type in each of its encodings
+class DumpRestoreTest {
+    private final TestClient client = new TestClient(StoreBuilder.store()
+            .listFill(4).listCompressDepth(1)
+            .hashMaxListpackEntries(4)
+            .setMaxIntsetEntries(4)
+            .zsetMaxListpackEntries(4)
+            .build());
+
+    // the value of a key whatever its encoding, sets and hashes sorted
+    static String content(TestClient c, String key) {
+        switch (c.string("TYPE", key)) {
+            case "string":
+                return c.string("GET", key);
+            case "list":
+                return c.run("LRANGE", key, "0", "-1").toString();
+            case "hash": {
+                RespType[] a = c.run("HGETALL", key).asArray();
+                Map<String, String> m = new TreeMap<>();
+                for (int i = 0; i < a.length; i += 2)
+                    m.put(a[i].asString(), a[i + 1].asString());
+                return m.toString();
+            }
+            case "set":
+                return Arrays.toString(Arrays.stream(c.run("SMEMBERS", key).asArray()).map(RespType::asString).sorted().toArray());
+            case "zset":
+                return c.run("ZRANGE", key, "0", "-1", "WITHSCORES").toString();
+            default:
+                return "none";
+        }
+    }
+
+    private void fill() {
+        client.run("SET", "int", "-12345");
+        client.run("SET", "embstr", "hello");
+        client.run("SET", "raw", String.join("", Collections.nCopies(20, "raw value ")));
+        client.run("SET", "binary", "\u0000\r\nÿ\u0080");
+        client.run("RPUSH", "small-list", "a", "1", "");
+        for (int i = 0; i < 100; i++)
+            client.run("RPUSH", "quicklist", "element number " + i + " of a list long enough to compress");
+        client.run("HSET", "listpack-hash", "f1", "v1", "f2", "2");
+        for (int i = 0; i < 10; i++)
+            client.run("HSET", "hashtable-hash", "f" + i, "v" + i);
+        client.run("SADD", "intset", "1", "-2", "300000", "9223372036854775807");
+        client.run("SADD", "hashtable-set", "a", "b", "1");
+        client.run("ZADD", "listpack-zset", "1.5", "a", "-0.25", "b", "1e300", "c");
+        for (int i = 0; i < 10; i++)
+            client.run("ZADD", "skiplist-zset", Integer.toString(i % 3), "m" + i);
+    }
+
+    private static final String[][] KEYS = {
+            {"int", "int"}, {"embstr", "embstr"}, {"raw", "raw"}, {"binary", "embstr"},
+            {"small-list", "quicklist"}, {"quicklist", "quicklist"},
+            {"listpack-hash", "listpack"}, {"hashtable-hash", "hashtable"},
+            {"intset", "intset"}, {"hashtable-set", "hashtable"},
+            {"listpack-zset", "listpack"}, {"skiplist-zset", "skiplist"},
+    };
+
+    @Test
+    void roundTripEveryEncoding() {
+        fill();
+        for (String[] k: KEYS) {
+            String key = k[0];
+            assertEquals(k[1], client.encoding(key), key);
+            String payload = client.string("DUMP", key);
+            assertEquals("OK", client.string("RESTORE", key + ":copy", "0", payload), key);
+            assertEquals(content(client, key), content(client, key + ":copy"), key);
+            assertEquals(k[1], client.encoding(key + ":copy"), key);
+            assertEquals(-1L, client.run("PTTL", key + ":copy").getValue());
+        }
+        assertNull(client.run("DUMP", "missing").getValue());
+    }
+
+    // as Redis lays it out: the RDB type and value, the version in 2 bytes and the CRC64, little endian
+    @Test
+    void payloadFormat() {
+        client.run("SET", "k", "abc");
+        byte[] p = client.string("DUMP", "k").getBytes(StandardCharsets.ISO_8859_1);
+        assertArrayEquals(new byte[]{0, 3, 'a', 'b', 'c', 9, 0}, Arrays.copyOf(p, p.length - 8));
+        long crc = Crc64.update(0, p, 0, p.length - 8);
+        for (int i = 0; i < 8; i++)
+            assertEquals((byte) (crc >>> (i * 8)), p[p.length - 8 + i]);
+    }
+
+    private static String withChecksum(byte[] p) {
+        long crc = Crc64.update(0, p, 0, p.length - 8);
+        for (int i = 0; i < 8; i++)
+            p[p.length - 8 + i] = (byte) (crc >>> (i * 8));
+        return new String(p, StandardCharsets.ISO_8859_1);
+    }
+
+    private void assertError(String expected, RespType reply) {
+        assertEquals(RespType.Type.Errors, reply.getType(), reply.toString());
+        assertTrue(reply.asError().contains(expected), reply.asError());
+    }
+
+    @Test
+    void badChecksum() {
+        fill();
+        for (String[] k: KEYS) {
+            byte[] p = client.string("DUMP", k[0]).getBytes(StandardCharsets.ISO_8859_1);
+            // a flipped bit anywhere, in the value, the version or the checksum
+            for (int i = 0; i < p.length; i += Math.max(1, p.length / 16)) {
+                byte[] bad = p.clone();
+                bad[i] ^= 0x10;
+                assertError("DUMP payload version or checksum are wrong",
+                        client.run("RESTORE", "bad", "0", new String(bad, StandardCharsets.ISO_8859_1)));
+            }
+        }
+        assertError("DUMP payload version or checksum are wrong", client.run("RESTORE", "bad", "0", ""));
+        assertError("DUMP payload version or checksum are wrong", client.run("RESTORE", "bad", "0", "short"));
+        assertEquals(0L, client.run("EXISTS", "bad").getValue());
+    }
+
+    @Test
+    void badVersion() {
+        client.run("SET", "k", "abc");
+        byte[] p = client.string("DUMP", "k").getBytes(StandardCharsets.ISO_8859_1);
+        // a newer RDB version is refused even with a good checksum, an older one is read
+        p[p.length - 10] = 10;
+        assertError("DUMP payload version or checksum are wrong", client.run("RESTORE", "newer", "0", withChecksum(p)));
+        p[p.length - 10] = 0;
+        p[p.length - 9] = 1;
+        assertError("DUMP payload version or checksum are wrong", client.run("RESTORE", "newer", "0", withChecksum(p)));
+        p[p.length - 10] = 6;
+        p[p.length - 9] = 0;
+        assertEquals("OK", client.string("RESTORE", "older", "0", withChecksum(p)));
+        assertEquals("abc", client.string("GET", "older"));
+
+        // a good checksum over a value that can't be read
+        byte[] garbage = {(byte) 200, 1, 2, 9, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertError("Bad data format", client.run("RESTORE", "garbage", "0", withChecksum(garbage)));
+    }
+
+    @Test
+    void busyKeyAndReplace() {
+        client.run("SET", "src", "new");
+        client.run("RPUSH", "dst", "old");
+        String payload = client.string("DUMP", "src");
+        assertError("BUSYKEY", client.run("RESTORE", "dst", "0", payload));
+        assertEquals("list", client.string("TYPE", "dst"));
+
+        client.run("PEXPIRE", "dst", "100000");
+        assertEquals("OK", client.string("RESTORE", "dst", "0", payload, "REPLACE"));
+        assertEquals("new", client.string("GET", "dst"));
+        // the TTL of the replaced key goes with it
+        assertEquals(-1L, client.run("PTTL", "dst").getValue());
+    }
+
+    @Test
+    void ttlAndAbsttl() {
+        client.run("HSET", "src", "f", "v");
+        String payload = client.string("DUMP", "src");
+
+        assertEquals("OK", client.string("RESTORE", "rel", "100000", payload));
+        long pttl = (Long) client.run("PTTL", "rel").getValue();
+        assertTrue(pttl > 90_000 && pttl <= 100_000, Long.toString(pttl));
+
+        long at = System.currentTimeMillis() + 500_000;
+        assertEquals("OK", client.string("RESTORE", "abs", Long.toString(at), payload, "ABSTTL"));
+        assertEquals(at, client.run("PEXPIRETIME", "abs").getValue());
+
+        // a deadline in the past leaves no key, and replaces one if asked to
+        assertEquals("OK", client.string("RESTORE", "past", "1", payload, "ABSTTL"));
+        assertEquals(0L, client.run("EXISTS", "past").getValue());
+        assertEquals("OK", client.string("RESTORE", "rel", "1000", payload, "ABSTTL", "REPLACE"));
+        assertEquals(0L, client.run("EXISTS", "rel").getValue());
+
+        assertError("Invalid TTL value", client.run("RESTORE", "neg", "-1", payload));
+        assertEquals("OK", client.string("RESTORE", "idle", "0", payload, "IDLETIME", "10", "FREQ", "5"));
+        assertEquals("{f=v}", content(client, "idle"));
+    }
+}
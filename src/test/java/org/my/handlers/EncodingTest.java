@@ -0,0 +1,99 @@
+package org.my.handlers;
+
+import org.junit.jupiter.api.Test;
+import org.my.ValueWithTTL;
+import org.my.zedis.StoreBuilder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// each limit of the compact encodings converts the value once it is crossed, and never back
+class EncodingTest {
+    private final TestClient client = new TestClient(StoreBuilder.store()
+            .hashMaxListpackEntries(4).hashMaxListpackValue(8)
+            .setMaxIntsetEntries(4)
+            .zsetMaxListpackEntries(4).zsetMaxListpackValue(8)
+            .build());
+
+    private ValueWithTTL.ZSet zset(String key) {
+        return client.getStore().getDB(0).get(key).getValueAsSortedSet();
+    }
+
+    @Test
+    void hashEntries() {
+        for (int i = 0; i < 4; i++)
+            client.run("HSET", "h", "f" + i, "v");
+        assertEquals("listpack", client.encoding("h"));
+        client.run("HSET", "h", "f4", "v");
+        assertEquals("hashtable", client.encoding("h"));
+        client.run("HDEL", "h", "f0", "f1", "f2", "f3");
+        assertEquals("hashtable", client.encoding("h"));
+        assertEquals("v", client.string("HGET", "h", "f4"));
+    }
+
+    @Test
+    void hashValueLength() {
+        client.run("HSET", "h", "f", "12345678");
+        assertEquals("listpack", client.encoding("h"));
+        client.run("HSET", "h", "g", "123456789");
+        assertEquals("hashtable", client.encoding("h"));
+        client.run("HSET", "k", "123456789", "v");
+        assertEquals("hashtable", client.encoding("k"));
+        assertEquals("12345678", client.string("HGET", "h", "f"));
+    }
+
+    @Test
+    void setEntries() {
+        client.run("SADD", "s", "1", "2", "3", "4");
+        assertEquals("intset", client.encoding("s"));
+        client.run("SADD", "s", "5");
+        assertEquals("hashtable", client.encoding("s"));
+        assertEquals(5L, client.run("SCARD", "s").getValue());
+    }
+
+    @Test
+    void setNonInteger() {
+        client.run("SADD", "s", "1", "-2");
+        assertEquals("intset", client.encoding("s"));
+        client.run("SADD", "s", "a");
+        assertEquals("hashtable", client.encoding("s"));
+        assertEquals(1L, client.run("SISMEMBER", "s", "-2").getValue());
+    }
+
+    @Test
+    void zsetEntries() {
+        for (int i = 0; i < 4; i++)
+            client.run("ZADD", "z", Integer.toString(i), "m" + i);
+        assertEquals("listpack", client.encoding("z"));
+        client.run("ZADD", "z", "4", "m4");
+        assertEquals("skiplist", client.encoding("z"));
+        assertEquals(2L, client.run("ZRANK", "z", "m2").getValue());
+    }
+
+    @Test
+    void zsetValueLength() {
+        client.run("ZADD", "z", "1", "12345678");
+        assertEquals("listpack", client.encoding("z"));
+        client.run("ZADD", "z", "2", "123456789");
+        assertEquals("skiplist", client.encoding("z"));
+        assertEquals(1.0, zset("z").getScore("12345678"));
+    }
+
+    @Test
+    void packedScoresKeepTheirValueAndOrder() {
+        double[] scores = {1.5, -0.0, 1e300, -3, 0.1};
+        for (int i = 0; i < scores.length - 1; i++)
+            client.run("ZADD", "z", Double.toString(scores[i]), "m" + i);
+        assertEquals("listpack", client.encoding("z"));
+        for (int i = 0; i < scores.length - 1; i++)
+            assertEquals(Double.doubleToRawLongBits(scores[i]), Double.doubleToRawLongBits(zset("z").getScore("m" + i)));
+        assertEquals("m3", zset("z").first().getKey());
+        assertEquals("m2", zset("z").last().getKey());
+
+        // the converted skiplist reads the same scores
+        client.run("ZADD", "z", Double.toString(scores[4]), "m4");
+        assertEquals("skiplist", client.encoding("z"));
+        for (int i = 0; i < scores.length; i++)
+            assertEquals(scores[i], zset("z").getScore("m" + i));
+        assertEquals(1L, zset("z").rank("m4", false) - zset("z").rank("m1", false));
+    }
+}
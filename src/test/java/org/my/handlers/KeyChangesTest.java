@@ -0,0 +1,74 @@
+package org.my.handlers;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.my.ClientConfig;
+import org.my.Context;
+import org.my.zedis.InMemorySharedStore;
+import org.my.zedis.MigrateClient;
+import org.my.zedis.RedisCommandHandler;
+import org.my.zedis.RespType;
+import org.my.zedis.ServerStats;
+import org.my.zedis.StoreBuilder;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the changes counted since the last save drive the save policy, so commands changing nothing must not count
+class KeyChangesTest {
+    private ServerStats stats;
+    private ListHandler lists;
+    private SetHandler sets;
+    private HashHandler hashes;
+    private SortedSetHandler zsets;
+    private GenericHandler generic;
+    private Context ctx;
+
+    @BeforeEach
+    void setUp() {
+        stats = new ServerStats();
+        InMemorySharedStore store = StoreBuilder.store().stats(stats).build();
+        lists = new ListHandler(store);
+        sets = new SetHandler(store);
+        hashes = new HashHandler(store);
+        zsets = new SortedSetHandler(store);
+        generic = new GenericHandler(store, new MigrateClient());
+        ctx = ClientConfig.defaultConfig("test", store.getDB(0)).getContext();
+    }
+
+    private RespType run(RedisCommandHandler handler, String command, String... args) {
+        RespType[] resp = Arrays.stream(args).map(RespType::ofBulkString).toArray(RespType[]::new);
+        return handler.handle(handler.getCommand(command), resp, ctx);
+    }
+
+    @Test
+    void noOpWritesOnMissingKeysAreNotChanges() {
+        run(lists, "LPOP", "nokey");
+        run(lists, "RPOP", "nokey", "2");
+        run(lists, "LREM", "nokey", "0", "x");
+        run(lists, "LTRIM", "nokey", "0", "1");
+        run(lists, "LPUSHX", "nokey", "a");
+        run(lists, "RPOPLPUSH", "nokey", "dst");
+        run(sets, "SREM", "nokey", "x");
+        run(sets, "SMOVE", "nokey", "dst", "x");
+        run(hashes, "HDEL", "nokey", "f");
+        run(zsets, "ZPOPMIN", "nokey");
+        run(zsets, "ZREM", "nokey", "m");
+        run(zsets, "ZREMRANGEBYRANK", "nokey", "0", "-1");
+        run(generic, "EXPIRE", "nokey", "10");
+
+        assertEquals(0, stats.getChanges());
+        assertEquals(0L, run(generic, "EXISTS", "nokey", "dst").getValue());
+    }
+
+    @Test
+    void writesAreChanges() {
+        run(lists, "RPUSH", "list", "a");
+        assertEquals(1, stats.getChanges());
+        run(lists, "LPOP", "list");
+        assertEquals(2, stats.getChanges());
+        run(sets, "SADD", "set", "x");
+        assertEquals(3, stats.getChanges());
+    }
+}
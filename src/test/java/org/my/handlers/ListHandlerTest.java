@@ -0,0 +1,97 @@
+package org.my.handlers;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.my.ClientConfig;
+import org.my.Context;
+import org.my.zedis.BlockedClients;
+import org.my.zedis.BlockedReply;
+import org.my.zedis.InMemorySharedStore;
+import org.my.zedis.RedisCommandHandler;
+import org.my.zedis.RespType;
+import org.my.zedis.StoreBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListHandlerTest {
+    private InMemorySharedStore store;
+    private ListHandler lists;
+    private StringHandler strings;
+    private Context ctx;
+
+    @BeforeEach
+    void setUp() {
+        store = StoreBuilder.store().build();
+        lists = new ListHandler(store);
+        strings = new StringHandler(store);
+        ctx = ClientConfig.defaultConfig("test", store.getDB(0)).getContext();
+    }
+
+    private static RespType run(RedisCommandHandler handler, Context ctx, String command, String... args) {
+        RespType[] resp = Arrays.stream(args).map(RespType::ofBulkString).toArray(RespType[]::new);
+        return handler.handle(handler.getCommand(command), resp, ctx);
+    }
+
+    private String[] range(String key) {
+        return Arrays.stream(run(lists, ctx, "LRANGE", key, "0", "-1").asArray())
+                .map(RespType::asString).toArray(String[]::new);
+    }
+
+    @Test
+    void moveToWrongTypeKeepsSource() {
+        run(lists, ctx, "RPUSH", "src", "a", "b", "c");
+        run(strings, ctx, "SET", "dst", "str");
+
+        assertEquals(RespType.Type.Errors, run(lists, ctx, "LMOVE", "src", "dst", "LEFT", "LEFT").getType());
+        assertArrayEquals(new String[]{"a", "b", "c"}, range("src"));
+        assertEquals(RespType.Type.Errors, run(lists, ctx, "RPOPLPUSH", "src", "dst").getType());
+        assertArrayEquals(new String[]{"a", "b", "c"}, range("src"));
+    }
+
+    @Test
+    void moveFromEmptySourceIgnoresDestination() {
+        run(strings, ctx, "SET", "dst", "str");
+
+        assertNull(run(lists, ctx, "LMOVE", "src", "dst", "LEFT", "LEFT").asString());
+    }
+
+    @Test
+    void moveRotatesSameList() {
+        run(lists, ctx, "RPUSH", "src", "a", "b", "c");
+
+        assertEquals("c", run(lists, ctx, "RPOPLPUSH", "src", "src").asString());
+        assertArrayEquals(new String[]{"c", "a", "b"}, range("src"));
+        assertEquals("c", run(lists, ctx, "LMOVE", "src", "src", "LEFT", "RIGHT").asString());
+        assertArrayEquals(new String[]{"a", "b", "c"}, range("src"));
+    }
+
+    @Test
+    void blockingMoveToWrongTypeKeepsSource() {
+        run(lists, ctx, "RPUSH", "src", "a");
+        run(strings, ctx, "SET", "dst", "str");
+
+        assertEquals(RespType.Type.Errors, run(lists, ctx, "BLMOVE", "src", "dst", "LEFT", "LEFT", "0").getType());
+        assertArrayEquals(new String[]{"a"}, range("src"));
+    }
+
+    @Test
+    void servedBlockingMoveToWrongTypeKeepsSource() {
+        BlockedClients blocked = store.getBlockedClients(0);
+        List<RespType> replies = new ArrayList<>();
+        RespType reply = run(lists, ctx, "BRPOPLPUSH", "src", "dst", "0");
+        assertTrue(reply instanceof BlockedReply);
+        blocked.reply(reply, null, replies::add);
+
+        run(strings, ctx, "SET", "dst", "str");
+        run(lists, ctx, "RPUSH", "src", "a");
+        blocked.serveReady();
+
+        assertEquals(1, replies.size());
+        assertEquals(RespType.Type.Errors, replies.get(0).getType());
+        assertArrayEquals(new String[]{"a"}, range("src"));
+    }
+}
@@ -0,0 +1,181 @@
+package org.my.handlers;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.my.zedis.MigrateClient;
+import org.my.zedis.RespDecoder;
+import org.my.zedis.RespEncoder;
+import org.my.zedis.RespType;
+import org.my.zedis.StoreBuilder;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// MIGRATE to a second store served over RESP on a local port
+class MigrateTest {
+    private static final String PASSWORD = "secret";
+
+    private final MigrateClient migrateClient = new MigrateClient();
+    private final TestClient source = new TestClient(StoreBuilder.store().build(), migrateClient);
+    private final TestClient target = new TestClient(StoreBuilder.store().hashMaxListpackEntries(2).build());
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private String port;
+
+    // the target: RESTORE as the data handlers run it, SELECT of db 0 and AUTH once the password is set
+    private final class TargetHandler extends SimpleChannelInboundHandler<RespType> {
+        private boolean authenticated;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, RespType msg) {
+            String[] command = Arrays.stream(msg.asArray()).map(RespType::asString).toArray(String[]::new);
+            RespType reply;
+            if (command[0].equals("AUTH")) {
+                authenticated = command[command.length - 1].equals(PASSWORD);
+                reply = authenticated? RespType.OK() : RespType.ofError("WRONGPASS invalid password");
+            } else if (!authenticated) {
+                reply = RespType.ofError("NOAUTH Authentication required.");
+            } else if (command[0].equals("SELECT")) {
+                reply = command[1].equals("0")? RespType.OK() : RespType.ofError("ERR DB index is out of range");
+            } else {
+                reply = target.run(command);
+            }
+            ctx.writeAndFlush(reply);
+        }
+    }
+
+    @BeforeEach
+    void startTarget() throws InterruptedException {
+        Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new RespDecoder(), new RespEncoder(), new TargetHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        port = Integer.toString(((InetSocketAddress) server.localAddress()).getPort());
+    }
+
+    @AfterEach
+    void stopTarget() {
+        migrateClient.destroy();
+        group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).syncUninterruptibly();
+    }
+
+    private RespType migrate(String... args) {
+        String[] command = new String[args.length + 3];
+        command[0] = "MIGRATE";
+        command[1] = "127.0.0.1";
+        command[2] = port;
+        System.arraycopy(args, 0, command, 3, args.length);
+        return source.run(command);
+    }
+
+    private static void assertError(String expected, RespType reply) {
+        assertEquals(RespType.Type.Errors, reply.getType(), reply.toString());
+        assertTrue(reply.asError().contains(expected), reply.asError());
+    }
+
+    @Test
+    void movesAKey() {
+        for (int i = 0; i < 5; i++)
+            source.run("HSET", "h", "f" + i, "v" + i);
+        source.run("PEXPIRE", "h", "100000");
+        String content = DumpRestoreTest.content(source, "h");
+
+        assertEquals("OK", migrate("h", "0", "1000", "AUTH", PASSWORD).asString());
+        assertEquals(0L, source.run("EXISTS", "h").getValue());
+        assertEquals(content, DumpRestoreTest.content(target, "h"));
+        // restored with the limits of the target
+        assertEquals("hashtable", target.encoding("h"));
+        long pttl = (Long) target.run("PTTL", "h").getValue();
+        assertTrue(pttl > 90_000 && pttl <= 100_000, Long.toString(pttl));
+
+        assertEquals("NOKEY", migrate("h", "0", "1000", "AUTH", PASSWORD).asString());
+    }
+
+    @Test
+    void copyKeepsTheSource() {
+        source.run("RPUSH", "l", "a", "b", "c");
+        assertEquals("OK", migrate("l", "0", "1000", "COPY", "AUTH", PASSWORD).asString());
+        assertEquals("[a, b, c]", Arrays.toString(Arrays.stream(source.run("LRANGE", "l", "0", "-1").asArray()).map(RespType::asString).toArray()));
+        assertEquals(DumpRestoreTest.content(source, "l"), DumpRestoreTest.content(target, "l"));
+    }
+
+    @Test
+    void replace() {
+        source.run("SET", "k", "from source");
+        target.run("SET", "k", "on target");
+
+        // the target refuses, the source keeps its key
+        assertError("Target instance replied with error: BUSYKEY", migrate("k", "0", "1000", "AUTH", PASSWORD));
+        assertEquals("from source", source.string("GET", "k"));
+        assertEquals("on target", target.string("GET", "k"));
+
+        assertEquals("OK", migrate("k", "0", "1000", "REPLACE", "AUTH", PASSWORD).asString());
+        assertEquals(0L, source.run("EXISTS", "k").getValue());
+        assertEquals("from source", target.string("GET", "k"));
+    }
+
+    @Test
+    void keys() {
+        // large enough for several pipelined batches
+        for (int i = 0; i < 300; i++) {
+            for (int j = 0; j < 40; j++)
+                source.run("SADD", "s" + i, "member " + j + " of set " + i);
+        }
+        source.run("SET", "busy", "from source");
+        target.run("SET", "busy", "on target");
+
+        // every key but the one the target refuses moves, missing ones are skipped
+        String[] args = new String[6 + 297 + 2];
+        System.arraycopy(new String[]{"", "0", "1000", "AUTH", PASSWORD, "KEYS"}, 0, args, 0, 6);
+        for (int i = 0; i < 297; i++)
+            args[6 + i] = "s" + i;
+        args[303] = "busy";
+        args[304] = "missing";
+        assertError("BUSYKEY", migrate(args));
+        for (int i = 0; i < 297; i++) {
+            assertEquals(0L, source.run("EXISTS", "s" + i).getValue());
+            assertEquals(40L, target.run("SCARD", "s" + i).getValue());
+        }
+        assertEquals("from source", source.string("GET", "busy"));
+        assertEquals(1L, source.run("EXISTS", "s297").getValue());
+        assertEquals(0L, target.run("EXISTS", "s297").getValue());
+
+        assertEquals("NOKEY", migrate("", "0", "1000", "AUTH", PASSWORD, "KEYS", "missing", "s0").asString());
+        assertError("KEYS option", migrate("s298", "0", "1000", "KEYS", "s299"));
+    }
+
+    @Test
+    void refusedWithoutAuth() {
+        source.run("SET", "k", "v");
+        assertError("Target instance replied with error: NOAUTH", migrate("k", "0", "1000"));
+        assertError("WRONGPASS", migrate("k", "0", "1000", "AUTH", "wrong"));
+        assertEquals("v", source.string("GET", "k"));
+        assertEquals(0L, target.run("EXISTS", "k").getValue());
+    }
+
+    @Test
+    void unreachableTarget() throws InterruptedException {
+        source.run("SET", "k", "v");
+        group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).sync();
+        assertError("IOERR", migrate("k", "0", "1000", "AUTH", PASSWORD));
+        assertEquals("v", source.string("GET", "k"));
+    }
+}
@@ -0,0 +1,57 @@
+package org.my.handlers;
+
+import org.my.ClientConfig;
+import org.my.Context;
+import org.my.zedis.InMemorySharedStore;
+import org.my.zedis.MigrateClient;
+import org.my.zedis.RedisCommandHandler;
+import org.my.zedis.RespType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// runs commands of the data type handlers on a store, the way a connection does without the network
+final class TestClient {
+    private final Map<String, RedisCommandHandler> commands = new HashMap<>();
+    private final InMemorySharedStore store;
+    private final Context ctx;
+
+    TestClient(InMemorySharedStore store) {
+        this(store, new MigrateClient());
+    }
+
+    TestClient(InMemorySharedStore store, MigrateClient migrateClient) {
+        this.store = store;
+        this.ctx = ClientConfig.defaultConfig("test", store.getDB(0)).getContext();
+        for (RedisCommandHandler h: new RedisCommandHandler[]{new StringHandler(store), new ListHandler(store),
+                new HashHandler(store), new SetHandler(store), new SortedSetHandler(store),
+                new GenericHandler(store, migrateClient)}) {
+            for (String name: h.getCommands())
+                commands.put(name, h);
+        }
+    }
+
+    InMemorySharedStore getStore() {
+        return store;
+    }
+
+    // the command name and its arguments, a subcommand given as a second word
+    RespType run(String... command) {
+        int words = command.length > 1 && commands.containsKey(command[0] + " " + command[1].toUpperCase())? 2 : 1;
+        String name = words == 2? command[0] + " " + command[1].toUpperCase() : command[0];
+        RedisCommandHandler h = commands.get(name);
+        if (h == null)
+            throw new IllegalArgumentException("unknown command " + name);
+        RespType[] args = Arrays.stream(command, words, command.length).map(RespType::ofBulkString).toArray(RespType[]::new);
+        return h.handle(h.getCommand(name), args, ctx);
+    }
+
+    String string(String... command) {
+        return run(command).asString();
+    }
+
+    String encoding(String key) {
+        return string("OBJECT", "ENCODING", key);
+    }
+}
@@ -0,0 +1,55 @@
+package org.my.zedis;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Crc64Test {
+    @Test
+    void checkValue() {
+        byte[] b = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xe9c6d914c4b8d9caL, Crc64.update(0, b, 0, b.length));
+        assertEquals(0, Crc64.update(0, b, 0, 0));
+    }
+
+    @Test
+    void combineMatchesOnePass() {
+        Random rand = new Random(21);
+        byte[] b = new byte[1 << 16];
+        rand.nextBytes(b);
+        for (int n = 0; n < 500; n++) {
+            int len = rand.nextInt(b.length + 1);
+            int split = rand.nextInt(len + 1);
+            long whole = Crc64.update(0, b, 0, len);
+            long first = Crc64.update(0, b, 0, split);
+            long second = Crc64.update(0, b, split, len - split);
+            assertEquals(whole, Crc64.combine(first, second, len - split), len + " split at " + split);
+        }
+    }
+
+    @Test
+    void combineManyBlocks() {
+        // as the loader checks a file read in regions on several threads
+        Random rand = new Random(1);
+        byte[] b = new byte[300_000];
+        rand.nextBytes(b);
+        long crc = 0;
+        for (int off = 0; off < b.length; ) {
+            int len = Math.min(b.length - off, rand.nextInt(20_000));
+            crc = Crc64.combine(crc, Crc64.update(0, b, off, len), len);
+            off += len;
+        }
+        assertEquals(Crc64.update(0, b, 0, b.length), crc);
+    }
+
+    @Test
+    void combineWithEmptyBlocks() {
+        byte[] b = "zedis".getBytes(StandardCharsets.US_ASCII);
+        long crc = Crc64.update(0, b, 0, b.length);
+        assertEquals(crc, Crc64.combine(crc, 0, 0));
+        assertEquals(crc, Crc64.combine(0, crc, b.length));
+    }
+}
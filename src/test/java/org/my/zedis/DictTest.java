@@ -0,0 +1,226 @@
+package org.my.zedis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DictTest {
+    private static void assertHolds(Dict<String, Integer> dict, Map<String, Integer> oracle) {
+        assertEquals(oracle.size(), dict.size());
+        for (Map.Entry<String, Integer> e: oracle.entrySet())
+            assertEquals(e.getValue(), dict.get(e.getKey()), e.getKey());
+    }
+
+    private static void settle(Dict<String, Integer> dict) {
+        while (dict.rehash(100))
+            ;
+        assertFalse(dict.isRehashing());
+    }
+
+    @Test
+    void growsAndShrinksWhileRehashing() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        Map<String, Integer> oracle = new HashMap<>();
+        boolean rehashed = false;
+        for (int i = 0; i < 5000; i++) {
+            dict.put("k" + i, i);
+            oracle.put("k" + i, i);
+            rehashed |= dict.isRehashing();
+            if (i % 97 == 0)
+                assertHolds(dict, oracle);
+        }
+        assertTrue(rehashed);
+        assertHolds(dict, oracle);
+        assertNull(dict.get("k5000"));
+
+        rehashed = false;
+        for (int i = 0; i < 4990; i++) {
+            assertEquals(i, dict.remove("k" + i));
+            oracle.remove("k" + i);
+            rehashed |= dict.isRehashing();
+            if (i % 97 == 0)
+                assertHolds(dict, oracle);
+        }
+        assertTrue(rehashed);
+        assertNull(dict.remove("k0"));
+        assertHolds(dict, oracle);
+        settle(dict);
+        assertHolds(dict, oracle);
+    }
+
+    @Test
+    void replacesInPlace() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        for (int i = 0; i < 100; i++)
+            dict.put("k" + i, i);
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, dict.put("k" + i, -i));
+        assertEquals(100, dict.size());
+        assertEquals(-42, dict.get("k42"));
+    }
+
+    @Test
+    void pauseResizeKeepsTheTables() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        dict.pauseResize();
+        for (int i = 0; i < 1000; i++)
+            dict.put("k" + i, i);
+        assertFalse(dict.isRehashing());
+        dict.resumeResize();
+        dict.put("k1000", 1000);
+        assertTrue(dict.isRehashing());
+
+        // a resize in progress stops moving buckets while paused, and calls nest
+        dict.pauseResize();
+        dict.pauseResize();
+        assertFalse(dict.rehash(100));
+        assertTrue(dict.isRehashing());
+        dict.resumeResize();
+        assertFalse(dict.rehash(100));
+        dict.resumeResize();
+        settle(dict);
+        for (int i = 0; i <= 1000; i++)
+            assertEquals(i, dict.get("k" + i));
+    }
+
+    @Test
+    void iteratorRemovesWhileRehashing() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        Map<String, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            dict.put("k" + i, i);
+            oracle.put("k" + i, i);
+        }
+        assertTrue(dict.isRehashing());
+
+        Set<String> seen = new HashSet<>();
+        Iterator<Map.Entry<String, Integer>> it = dict.iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> e = it.next();
+            assertTrue(seen.add(e.getKey()));
+            if (e.getValue() % 2 == 0) {
+                it.remove();
+                oracle.remove(e.getKey());
+            }
+        }
+        assertEquals(3000, seen.size());
+        assertHolds(dict, oracle);
+        assertThrows(IllegalStateException.class, () -> {
+            Iterator<Map.Entry<String, Integer>> i = dict.iterator();
+            i.next();
+            i.remove();
+            i.remove();
+        });
+    }
+
+    @Test
+    void iteratorFailsFastOnOtherWrites() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        for (int i = 0; i < 10; i++)
+            dict.put("k" + i, i);
+        Iterator<Map.Entry<String, Integer>> it = dict.iterator();
+        it.next();
+        dict.put("other", 0);
+        assertThrows(ConcurrentModificationException.class, it::next);
+    }
+
+    // keys present for the whole scan are returned at least once, however the table resizes between the calls
+    @Test
+    void scanReturnsEveryKeyThroughGrowAndShrink() {
+        Random rand = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            Dict<String, Integer> dict = new Dict<>(0);
+            Set<String> stable = new HashSet<>();
+            int initial = 50 + rand.nextInt(500);
+            for (int i = 0; i < initial; i++) {
+                dict.put("s" + i, i);
+                stable.add("s" + i);
+            }
+            if (rand.nextBoolean())
+                settle(dict);
+
+            Set<String> seen = new HashSet<>();
+            List<String> transients = new ArrayList<>();
+            int n = 0;
+            long cursor = 0;
+            boolean grew = false;
+            int steps = 0;
+            do {
+                cursor = dict.scan(cursor, e -> seen.add(e.getKey()));
+                // grow for a while, then shrink, both often left half rehashed
+                int batch = rand.nextInt(200);
+                if (steps++ < 30) {
+                    for (int i = 0; i < batch; i++) {
+                        String k = "t" + n++;
+                        dict.put(k, -1);
+                        transients.add(k);
+                    }
+                    grew |= dict.isRehashing();
+                } else {
+                    for (int i = 0; i < batch && !transients.isEmpty(); i++)
+                        dict.remove(transients.remove(transients.size() - 1));
+                }
+            } while (cursor != 0);
+
+            assertTrue(seen.containsAll(stable), "round " + round);
+            assertTrue(grew, "round " + round);
+        }
+    }
+
+    @Test
+    void scanShrinkingMidScan() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        for (int i = 0; i < 4000; i++)
+            dict.put("k" + i, i);
+        settle(dict);
+
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        int removed = 0;
+        boolean shrank = false;
+        do {
+            cursor = dict.scan(cursor, e -> seen.add(e.getKey()));
+            // drop the keys above 100 in large batches
+            for (int i = 0; i < 500 && removed < 3900; i++)
+                dict.remove("k" + (100 + removed++));
+            shrank |= dict.isRehashing();
+        } while (cursor != 0);
+
+        assertTrue(shrank);
+        for (int i = 0; i < 100; i++)
+            assertTrue(seen.contains("k" + i), "k" + i);
+    }
+
+    @Test
+    void isScannedFollowsTheCursor() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        for (int i = 0; i < 300; i++)
+            dict.put("k" + i, i);
+        settle(dict);
+
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        do {
+            cursor = dict.scan(cursor, e -> seen.add(e.getKey()));
+            if (cursor == 0)
+                break;
+            for (int i = 0; i < 300; i++)
+                assertEquals(seen.contains("k" + i), dict.isScanned("k" + i, cursor), "k" + i);
+        } while (true);
+        assertEquals(300, seen.size());
+    }
+
+    @Test
+    void scanOfEmptyAndCleared() {
+        Dict<String, Integer> dict = new Dict<>(0);
+        assertEquals(0, dict.scan(0, e -> fail()));
+        for (int i = 0; i < 100; i++)
+            dict.put("k" + i, i);
+        dict.clear();
+        assertEquals(0, dict.size());
+        assertNull(dict.get("k1"));
+        assertEquals(0, dict.scan(0, e -> fail()));
+    }
+}
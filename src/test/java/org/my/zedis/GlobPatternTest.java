@@ -0,0 +1,212 @@
+package org.my.zedis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GlobPatternTest {
+    // Redis' stringmatchlen, kept close to the C to serve as the reference
+    private static boolean stringmatch(String p, int pi, String s, int si) {
+        int plen = p.length();
+        int slen = s.length();
+        while (pi < plen && si < slen) {
+            switch (p.charAt(pi)) {
+                case '*':
+                    while (pi + 1 < plen && p.charAt(pi + 1) == '*')
+                        pi++;
+                    if (pi + 1 == plen)
+                        return true;
+                    while (si < slen) {
+                        if (stringmatch(p, pi + 1, s, si))
+                            return true;
+                        si++;
+                    }
+                    return false;
+                case '?':
+                    si++;
+                    break;
+                case '[': {
+                    pi++;
+                    boolean not = pi < plen && p.charAt(pi) == '^';
+                    if (not)
+                        pi++;
+                    boolean match = false;
+                    char c = s.charAt(si);
+                    while (true) {
+                        if (pi < plen && p.charAt(pi) == '\\' && plen - pi >= 2) {
+                            pi++;
+                            if (p.charAt(pi) == c)
+                                match = true;
+                        } else if (pi < plen && p.charAt(pi) == ']') {
+                            break;
+                        } else if (pi >= plen) {
+                            pi--;
+                            break;
+                        } else if (plen - pi >= 3 && p.charAt(pi + 1) == '-') {
+                            char start = p.charAt(pi);
+                            char end = p.charAt(pi + 2);
+                            if (start > end) {
+                                char t = start;
+                                start = end;
+                                end = t;
+                            }
+                            if (c >= start && c <= end)
+                                match = true;
+                            pi += 2;
+                        } else if (p.charAt(pi) == c) {
+                            match = true;
+                        }
+                        pi++;
+                    }
+                    if (not == match)
+                        return false;
+                    si++;
+                    break;
+                }
+                case '\\':
+                    if (plen - pi >= 2)
+                        pi++;
+                    // fall through
+                default:
+                    if (p.charAt(pi) != s.charAt(si))
+                        return false;
+                    si++;
+                    break;
+            }
+            pi++;
+        }
+        while (pi < plen && p.charAt(pi) == '*')
+            pi++;
+        return pi >= plen && si >= slen;
+    }
+
+    private static void check(String pattern, String s, boolean expected) {
+        assertEquals(expected, stringmatch(pattern, 0, s, 0), "reference " + pattern + " " + s);
+        assertEquals(expected, GlobPattern.compile(pattern).matches(s), pattern + " " + s);
+    }
+
+    @Test
+    void wildcards() {
+        check("*", "", true);
+        check("*", "anything", true);
+        check("h?llo", "hello", true);
+        check("h?llo", "hllo", false);
+        check("h*llo", "hllo", true);
+        check("h*llo", "heeeello", true);
+        check("h*llo", "hellox", false);
+        check("?", "", false);
+        check("a*b*c", "axxbyyc", true);
+        check("a*b*c", "axxbyy", false);
+        check("*a*", "bab", true);
+        check("*ab", "aab", true);
+    }
+
+    @Test
+    void consecutiveStars() {
+        check("**", "", true);
+        check("a***b", "ab", true);
+        check("a***b", "axyzb", true);
+        check("***x", "yyx", true);
+        check("***x", "yyxy", false);
+        assertEquals("a***b", GlobPattern.compile("a***b").toString());
+    }
+
+    @Test
+    void classes() {
+        check("h[ae]llo", "hello", true);
+        check("h[ae]llo", "hallo", true);
+        check("h[ae]llo", "hillo", false);
+        check("h[^e]llo", "hallo", true);
+        check("h[^e]llo", "hello", false);
+        check("h[a-b]llo", "hbllo", true);
+        check("h[a-b]llo", "hcllo", false);
+        check("[^a-z]", "A", true);
+        check("[^a-z]", "q", false);
+        check("[^a-z]", "", false);
+        // a reversed range is swapped
+        check("[z-a]", "m", true);
+        check("[a-z0-9_]*", "_x", true);
+    }
+
+    @Test
+    void classCornerCases() {
+        // an empty class matches nothing and its negation any char
+        check("[]", "", false);
+        check("[]", "]", false);
+        check("a[]b", "ab", false);
+        check("[^]", "x", true);
+        check("[^]", "", false);
+        // an unclosed class runs to the end of the pattern
+        check("[abc", "b", true);
+        check("[abc", "bc", false);
+        check("[a-", "-", true);
+        check("[a-", "a", true);
+        // a range running into the end takes the ']' as its bound
+        check("[a-]", "_", true);
+        check("[a-]", "]", true);
+        check("[a-]", "b", false);
+        // escapes in a class
+        check("[\\]]", "]", true);
+        check("[\\-a]", "-", true);
+        check("[\\-a]", "b", false);
+        check("[\\", "\\", true);
+        check("[\\^a]", "^", true);
+    }
+
+    @Test
+    void escapes() {
+        check("\\*", "*", true);
+        check("\\*", "a", false);
+        check("a\\?b", "a?b", true);
+        check("a\\?b", "axb", false);
+        check("\\[a]", "[a]", true);
+        check("\\\\", "\\", true);
+        // a trailing backslash is a literal
+        check("a\\", "a\\", true);
+        check("a\\", "a", false);
+        check("\\", "\\", true);
+    }
+
+    @Test
+    void literalFastPaths() {
+        // exact, prefix and general programs must agree with the reference for keys around the literal
+        for (String p: new String[]{"user:1", "user:*", "user:\\*", "user:\\**", "*", ""}) {
+            for (String s: new String[]{"", "user:", "user:1", "user:10", "user:*", "user:*x", "use", "xuser:1"})
+                check(p, s, stringmatch(p, 0, s, 0));
+        }
+        check("user:*", "user:", true);
+        check("user:*", "use", false);
+        check("user:1", "user:10", false);
+        check("", "", true);
+        check("", "a", false);
+    }
+
+    @Test
+    void nonLatin1() {
+        check("?", "€", true);
+        check("€*", "€x", true);
+        check("[a-z]", "€", false);
+        check("[^a-z]", "€", true);
+    }
+
+    @Test
+    void randomAgainstReference() {
+        Random rand = new Random(15);
+        String patternChars = "ab*?[]^-\\";
+        String stringChars = "ab]^-\\";
+        for (int n = 0; n < 200_000; n++) {
+            StringBuilder p = new StringBuilder();
+            for (int i = rand.nextInt(8); i > 0; i--)
+                p.append(patternChars.charAt(rand.nextInt(patternChars.length())));
+            StringBuilder s = new StringBuilder();
+            for (int i = rand.nextInt(6); i > 0; i--)
+                s.append(stringChars.charAt(rand.nextInt(stringChars.length())));
+            String pattern = p.toString();
+            String str = s.toString();
+            assertEquals(stringmatch(pattern, 0, str, 0), GlobPattern.compile(pattern).matches(str),
+                    () -> "'" + pattern + "' '" + str + "'");
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.my.zedis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuickListTest {
+    private final Random rand = new Random(16);
+
+    // mostly small, compressible elements, some of them past a 4 KB chunk on their own
+    private String element() {
+        int len = rand.nextInt(20) == 0? 3000 + rand.nextInt(3000) : rand.nextInt(40);
+        StringBuilder sb = new StringBuilder(len);
+        char c = (char) ('a' + rand.nextInt(3));
+        for (int i = 0; i < len; i++)
+            sb.append(i % 7 == 0? 'é' : c);
+        return sb.toString();
+    }
+
+    private static void assertHolds(QuickList list, LinkedList<String> oracle, int fill, int compressDepth) {
+        assertEquals(oracle.size(), list.size());
+        assertEquals(oracle.isEmpty(), list.isEmpty());
+
+        int[][] chunks = list.chunks();
+        int count = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            int[] c = chunks[i];
+            assertTrue(c[0] > 0, "empty chunk " + i);
+            count += c[0];
+            if (fill > 0)
+                assertTrue(c[0] <= fill, "chunk " + i + " holds " + c[0]);
+            else if (c[0] > 1)
+                assertTrue(c[1] <= 4096 << (-fill - 1), "chunk " + i + " has " + c[1] + " bytes");
+            boolean atEnd = i < compressDepth || i >= chunks.length - compressDepth;
+            if (compressDepth == 0 || atEnd)
+                assertEquals(0, c[2], "chunk " + i + " of " + chunks.length + " is deflated");
+            else if (c[1] >= 64)
+                assertEquals(1, c[2], "chunk " + i + " of " + chunks.length + " is not deflated");
+        }
+        assertEquals(oracle.size(), count);
+
+        // reads inflate chunks on the way, the check of the compression comes before
+        assertEquals(oracle, toList(list.iterator()));
+        List<String> reversed = toList(list.descendingIterator());
+        Collections.reverse(reversed);
+        assertEquals(oracle, reversed);
+    }
+
+    private static List<String> toList(Iterator<String> it) {
+        List<String> l = new ArrayList<>();
+        it.forEachRemaining(l::add);
+        return l;
+    }
+
+    private void randomOps(QuickList list, LinkedList<String> oracle, int ops) {
+        for (int i = 0; i < ops; i++) {
+            int size = oracle.size();
+            int op = rand.nextInt(12);
+            if (size == 0 || op < 2) {
+                String e = element();
+                list.addFirst(e);
+                oracle.addFirst(e);
+            } else if (op < 4) {
+                String e = element();
+                list.addLast(e);
+                oracle.addLast(e);
+            } else if (op == 4) {
+                int index = rand.nextInt(size + 1);
+                String e = element();
+                list.add(index, e);
+                oracle.add(index, e);
+            } else if (op == 5) {
+                int index = rand.nextInt(size);
+                String e = element();
+                assertEquals(oracle.set(index, e), list.set(index, e));
+            } else if (op == 6) {
+                int index = rand.nextInt(size);
+                assertEquals(oracle.remove(index), list.remove(index));
+            } else if (op == 7) {
+                assertEquals(oracle.pollFirst(), list.removeFirst());
+            } else if (op == 8) {
+                assertEquals(oracle.pollLast(), list.removeLast());
+            } else if (op == 9) {
+                int index = rand.nextInt(size);
+                assertEquals(oracle.get(index), list.get(index));
+                String e = oracle.get(rand.nextInt(size));
+                assertEquals(oracle.indexOf(e), list.indexOf(e));
+            } else if (op == 10) {
+                int from = rand.nextInt(size + 1);
+                int to = from + rand.nextInt(Math.min(size - from, 50) + 1);
+                list.removeRange(from, to);
+                oracle.subList(from, to).clear();
+            } else {
+                // drop every third element with the iterator from a random index, or descending
+                int from = rand.nextInt(size + 1);
+                boolean descending = rand.nextBoolean();
+                Iterator<String> it = descending? list.descendingIterator() : list.iterator(from);
+                ListIterator<String> ot = descending? oracle.listIterator(size) : oracle.listIterator(from);
+                int k = 0;
+                while (it.hasNext()) {
+                    String e = it.next();
+                    assertEquals(descending? ot.previous() : ot.next(), e);
+                    if (k++ % 3 == 0) {
+                        it.remove();
+                        ot.remove();
+                    }
+                }
+                assertFalse(descending? ot.hasPrevious() : ot.hasNext());
+            }
+        }
+    }
+
+    private void randomAgainstOracle(int fill, int compressDepth) {
+        QuickList list = new QuickList(fill, compressDepth);
+        LinkedList<String> oracle = new LinkedList<>();
+        for (int round = 0; round < 60; round++) {
+            randomOps(list, oracle, 50);
+            assertHolds(list, oracle, fill, compressDepth);
+            // grow now and then so that there are chunks in the middle
+            if (round % 10 == 0) {
+                for (int i = 0; i < 300; i++) {
+                    String e = element();
+                    list.addLast(e);
+                    oracle.addLast(e);
+                }
+                assertHolds(list, oracle, fill, compressDepth);
+            }
+        }
+    }
+
+    @Test
+    void elementsPerChunk() {
+        randomAgainstOracle(4, 0);
+        randomAgainstOracle(128, 0);
+    }
+
+    @Test
+    void bytesPerChunk() {
+        for (int fill = -1; fill >= -5; fill--)
+            randomAgainstOracle(fill, 0);
+    }
+
+    @Test
+    void compressed() {
+        randomAgainstOracle(-2, 1);
+        randomAgainstOracle(-1, 2);
+        randomAgainstOracle(16, 3);
+    }
+
+    @Test
+    void indexesAcrossChunks() {
+        QuickList list = new QuickList(3, 1);
+        LinkedList<String> oracle = new LinkedList<>();
+        for (int i = 0; i < 100; i++) {
+            String e = "element " + i + " of the list, long enough to be deflated";
+            list.addLast(e);
+            oracle.addLast(e);
+        }
+        assertEquals(34, list.chunks().length);
+        for (int i = 0; i < 100; i++)
+            assertEquals(oracle.get(i), list.get(i));
+        // the chunk boundaries are at multiples of 3
+        for (int i: new int[]{0, 2, 3, 5, 6, 50, 51, 98, 99}) {
+            String e = "set " + i;
+            assertEquals(oracle.set(i, e), list.set(i, e));
+        }
+        for (int i: new int[]{99, 96, 3, 2, 0}) {
+            list.add(i, "add " + i);
+            oracle.add(i, "add " + i);
+        }
+        for (int i: new int[]{0, 3, 4, 50})
+            assertEquals(oracle.remove(i), list.remove(i));
+        assertEquals(oracle.remove(oracle.size() - 1), list.remove(list.size() - 1));
+        assertHolds(list, oracle, 3, 1);
+
+        list.removeRange(2, 40);
+        oracle.subList(2, 40).clear();
+        list.removeRange(0, 0);
+        list.removeRange(oracle.size() - 5, oracle.size());
+        oracle.subList(oracle.size() - 5, oracle.size()).clear();
+        assertHolds(list, oracle, 3, 1);
+        assertEquals(oracle, toList(list.iterator()));
+        assertEquals(oracle.subList(7, oracle.size()), toList(list.iterator(7)));
+
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(oracle.size()));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.removeRange(3, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.iterator(oracle.size() + 1));
+        list.removeRange(0, oracle.size());
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.chunks().length);
+        assertNull(list.removeFirst());
+        assertNull(list.removeLast());
+    }
+
+    @Test
+    void deflatesTheMiddle() {
+        QuickList list = new QuickList(-1, 1);
+        String e = String.join("", Collections.nCopies(100, "abc"));
+        for (int i = 0; i < 200; i++)
+            list.addLast(e + i);
+        int[][] chunks = list.chunks();
+        assertTrue(chunks.length > 4);
+        assertEquals(0, chunks[0][2]);
+        assertEquals(0, chunks[chunks.length - 1][2]);
+        for (int i = 1; i < chunks.length - 1; i++)
+            assertEquals(1, chunks[i][2], "chunk " + i);
+
+        // a read inflates the chunk for the time it needs it
+        assertEquals(e + 100, list.get(100));
+        assertEquals(e + 100, list.remove(100));
+        assertEquals(e + 101, list.get(100));
+        for (int i = 1; i < chunks.length - 1; i++)
+            assertEquals(1, list.chunks()[i][2], "chunk " + i);
+
+        // the inner chunks are inflated again as the list shrinks to the ends
+        while (list.size() > 5)
+            list.removeFirst();
+        for (int[] c: list.chunks())
+            assertEquals(0, c[2]);
+    }
+
+    @Test
+    void invalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new QuickList(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new QuickList(-6, 0));
+        assertThrows(IllegalArgumentException.class, () -> new QuickList(1, -1));
+    }
+}
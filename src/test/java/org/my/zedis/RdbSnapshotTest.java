@@ -0,0 +1,215 @@
+package org.my.zedis;
+
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.my.ByteString;
+import org.my.ValueWithTTL;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RdbSnapshotTest {
+    private static final int SHARDS = 2;
+    private static final int KEYS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    private final InMemorySharedStore store = StoreBuilder.store().shards(SHARDS).build();
+    private final EventExecutor[] owners = new EventExecutor[SHARDS];
+
+    {
+        for (int s = 0; s < SHARDS; s++)
+            owners[s] = new DefaultEventExecutor();
+    }
+
+    @AfterEach
+    void shutdown() {
+        for (EventExecutor e: owners)
+            e.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    // every key of db 0 with its type, expiry and content, in an order independent of the encoding
+    private static Map<String, String> contents(InMemorySharedStore store) {
+        Map<String, String> m = new TreeMap<>();
+        for (int s = 0; s < store.getShardCount(); s++) {
+            for (Map.Entry<String, ValueWithTTL> e: (Iterable<Map.Entry<String, ValueWithTTL>>) store.getKeySpace(s, 0).getDict()::iterator) {
+                ValueWithTTL v = e.getValue();
+                String content;
+                switch (v.getType()) {
+                    case String:
+                        content = v.getValueAsBytes().toString();
+                        break;
+                    case List:
+                        content = v.getValueAsList().toString();
+                        break;
+                    case Hash:
+                        content = new TreeMap<>(v.getValueAsHash()).toString();
+                        break;
+                    case Set:
+                        content = new TreeSet<>(v.getValueAsSet()).toString();
+                        break;
+                    default:
+                        StringBuilder sb = new StringBuilder();
+                        for (ValueWithTTL.ZSet.Item i: v.getValueAsSortedSet())
+                            sb.append(i.getKey()).append('=').append(i.getScore()).append(' ');
+                        content = sb.toString();
+                }
+                m.put(e.getKey(), v.getType() + " " + v.getExpiredAt() + " " + content);
+            }
+        }
+        return m;
+    }
+
+    // keys of every type, small and large enough for each encoding, some with a TTL
+    private void populate(Random rand) {
+        Database db = store.getDB(0);
+        Encodings enc = store.getEncodings();
+        long ttl = System.currentTimeMillis() + 3_600_000;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "k" + i;
+            int n = i % 50 == 0? 300 : 1 + rand.nextInt(5);
+            ValueWithTTL v;
+            switch (i % 5) {
+                case 0:
+                    v = ValueWithTTL.ofString(ByteString.of(i % 2 == 0? Integer.toString(i) : "value " + i),
+                            i % 3 == 0? ttl : null);
+                    break;
+                case 1:
+                    v = ValueWithTTL.ofListValue(enc);
+                    for (int j = 0; j < n; j++)
+                        v.getValueAsList().addLast("e" + j);
+                    break;
+                case 2:
+                    v = ValueWithTTL.ofHashValue(enc);
+                    for (int j = 0; j < n; j++)
+                        v.getValueAsHash().put("f" + j, "v" + j);
+                    break;
+                case 3:
+                    v = ValueWithTTL.ofSetValue(enc);
+                    for (int j = 0; j < n; j++)
+                        v.getValueAsSet().add(i % 2 == 0? Integer.toString(j) : "m" + j);
+                    break;
+                default:
+                    v = ValueWithTTL.ofSortedSetValue(enc);
+                    for (int j = 0; j < n; j++)
+                        v.getValueAsSortedSet().add("m" + j, rand.nextInt(100) / 4.0);
+            }
+            db.put(key, v);
+        }
+    }
+
+    // a write like the commands do, changing the value in place where they would, on the owner of the key
+    private void write(Random rand) {
+        Database db = store.getDB(0);
+        Encodings enc = store.getEncodings();
+        int i = rand.nextInt(KEYS + KEYS / 10);
+        String key = "k" + i;
+        switch (rand.nextInt(4)) {
+            case 0:
+                db.remove(key);
+                break;
+            case 1:
+                db.put(key, ValueWithTTL.ofString(ByteString.of("new " + rand.nextInt())));
+                break;
+            default:
+                db.compute(key, (k, v) -> {
+                    if (v == null)
+                        v = ValueWithTTL.ofHashValue(enc);
+                    switch (v.getType()) {
+                        case String:
+                            return ValueWithTTL.ofString(ByteString.of(v.getValueAsBytes() + "+"), v);
+                        case List:
+                            v.getValueAsList().addFirst("pushed");
+                            break;
+                        case Hash:
+                            v.getValueAsHash().put("f0", "changed");
+                            v.getValueAsHash().put("x" + rand.nextInt(1000), "added");
+                            break;
+                        case Set:
+                            v.getValueAsSet().add("added");
+                            break;
+                        default:
+                            v.getValueAsSortedSet().add("m0", -1);
+                            v.getValueAsSortedSet().add("added", 1e9);
+                    }
+                    return v;
+                });
+        }
+    }
+
+    private Map<String, String> load(Path path) throws Exception {
+        InMemorySharedStore loaded = StoreBuilder.store().shards(SHARDS).build();
+        RdbLoader loader = new RdbLoader(loaded, path, 3, false);
+        loader.load();
+        Map<String, String> m = contents(loaded);
+        assertEquals(m.size(), loader.getKeysLoaded());
+        return m;
+    }
+
+    @Test
+    void saveAndLoad() throws Exception {
+        populate(new Random(21));
+        Path path = dir.resolve("dump.rdb");
+        RdbSnapshot.save(store, path);
+        Map<String, String> expected = contents(store);
+        assertEquals(KEYS, expected.size());
+        assertEquals(expected, load(path));
+    }
+
+    // the dump is the keyspace as it was when the save started, whatever the shards wrote while it was walked
+    @Test
+    void backgroundSaveIsPointInTime() throws Exception {
+        populate(new Random(21));
+        Path path = dir.resolve("dump.rdb");
+
+        // park every shard while the save starts, as BGSAVE does
+        CountDownLatch parked = new CountDownLatch(SHARDS);
+        CountDownLatch release = new CountDownLatch(1);
+        for (EventExecutor owner: owners) {
+            owner.execute(() -> {
+                parked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(parked.await(10, TimeUnit.SECONDS));
+        Map<String, String> expected = contents(store);
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        // slow enough for the writes to overtake the walks many times
+        new RdbSnapshot(store, owners, path, 1 << 20, done::complete).start();
+        release.countDown();
+
+        Random rand = new Random(22);
+        AtomicInteger writes = new AtomicInteger();
+        while (!done.isDone()) {
+            // a batch per shard between the slices of its walk
+            for (int b = 0; b < 50; b++) {
+                long seed = rand.nextLong();
+                int s = store.shardOf("k" + new Random(seed).nextInt(KEYS + KEYS / 10));
+                owners[s].submit(() -> {
+                    write(new Random(seed));
+                    writes.incrementAndGet();
+                }).sync();
+            }
+        }
+        assertTrue(done.get(60, TimeUnit.SECONDS));
+        assertTrue(writes.get() > 500, "only " + writes.get() + " writes during the save");
+
+        // every write was synced, so the shards are idle
+        assertNotEquals(expected, contents(store));
+        assertEquals(expected, load(path));
+    }
+}
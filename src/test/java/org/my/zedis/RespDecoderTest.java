@@ -0,0 +1,208 @@
+package org.my.zedis;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RespDecoderTest {
+    // the frames and what each decodes to, as printed by RespType
+    private static final String[][] FRAMES = {
+            {"*3\r\n$3\r\nSET\r\n$5\r\nhello\r\n$12\r\nhello\r\nworld\r\n",
+                    "*3\\r\\n$3\\r\\nSET\\r\\n$5\\r\\nhello\\r\\n$12\\r\\nhello\\r\\nworld\\r\\n"},
+            {"+OK\r\n", "+OK\\r\\n"},
+            {"-ERR wrong\r\n", "-ERR wrong\\r\\n"},
+            {":-42\r\n", ":-42\\r\\n"},
+            {"$-1\r\n", "$-1\\r\\n"},
+            {"*-1\r\n", "*-1\\r\\n"},
+            {"*0\r\n", "*0\\r\\n"},
+            {"$0\r\n\r\n", "$0\\r\\n\\r\\n"},
+            {"*3\r\n*2\r\n:1\r\n$1\r\na\r\n*0\r\n*1\r\n*1\r\n$-1\r\n",
+                    "*3\\r\\n*2\\r\\n:1\\r\\n$1\\r\\na\\r\\n*0\\r\\n*1\\r\\n*1\\r\\n$-1\\r\\n"},
+            {"PING\r\n", "*1\\r\\n$4\\r\\nPING\\r\\n"},
+            {"  SET  k\tv \r\n", "*3\\r\\n$3\\r\\nSET\\r\\n$1\\r\\nk\\r\\n$1\\r\\nv\\r\\n"},
+            {"\r\n", null},
+            {"ECHO x\n", "*2\\r\\n$4\\r\\nECHO\\r\\n$1\\r\\nx\\r\\n"},
+            {"$3\r\néÿ\u0000\r\n", "$3\\r\\néÿ\u0000\\r\\n"},
+    };
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // writes the chunks one after another, returning the channel with the decoded messages
+    private static EmbeddedChannel write(byte[]... chunks) {
+        EmbeddedChannel ch = new EmbeddedChannel(new RespDecoder());
+        for (byte[] chunk: chunks)
+            ch.writeInbound(Unpooled.wrappedBuffer(chunk));
+        return ch;
+    }
+
+    private static List<String> read(EmbeddedChannel ch) {
+        List<String> out = new ArrayList<>();
+        for (Object o; (o = ch.readInbound()) != null; )
+            out.add(o.toString());
+        return out;
+    }
+
+    private static List<String> expected() {
+        List<String> l = new ArrayList<>();
+        for (String[] f: FRAMES) {
+            if (f[1] != null)
+                l.add(f[1]);
+        }
+        return l;
+    }
+
+    private static byte[] stream() {
+        StringBuilder sb = new StringBuilder();
+        for (String[] f: FRAMES)
+            sb.append(f[0]);
+        return bytes(sb.toString());
+    }
+
+    @Test
+    void eachFrame() {
+        for (String[] f: FRAMES)
+            assertEquals(f[1] == null? Collections.emptyList() : Collections.singletonList(f[1]), read(write(bytes(f[0]))), f[0]);
+        assertEquals(expected(), read(write(stream())));
+    }
+
+    @Test
+    void splitAtEveryByte() {
+        byte[] all = stream();
+        for (int i = 0; i <= all.length; i++) {
+            EmbeddedChannel ch = write(Arrays.copyOfRange(all, 0, i), Arrays.copyOfRange(all, i, all.length));
+            assertEquals(expected(), read(ch), "split at " + i);
+        }
+    }
+
+    @Test
+    void splitTwiceInEachFrame() {
+        for (String[] f: FRAMES) {
+            byte[] b = bytes(f[0]);
+            for (int i = 0; i <= b.length; i++) {
+                for (int j = i; j <= b.length; j++) {
+                    EmbeddedChannel ch = write(Arrays.copyOfRange(b, 0, i), Arrays.copyOfRange(b, i, j),
+                            Arrays.copyOfRange(b, j, b.length));
+                    assertEquals(f[1] == null? Collections.emptyList() : Collections.singletonList(f[1]), read(ch),
+                            f[0] + " split at " + i + " and " + j);
+                }
+            }
+        }
+    }
+
+    @Test
+    void oneByteAtATime() {
+        byte[] all = stream();
+        EmbeddedChannel ch = new EmbeddedChannel(new RespDecoder());
+        List<String> out = new ArrayList<>();
+        for (byte b: all) {
+            ch.writeInbound(Unpooled.wrappedBuffer(new byte[]{b}));
+            out.addAll(read(ch));
+        }
+        assertEquals(expected(), out);
+    }
+
+    @Test
+    void bulkPayloadOverManyReads() {
+        char[] payload = new char[200_000];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (char) (i % 251);
+        String value = new String(payload);
+        byte[] frame = bytes("*2\r\n$3\r\nSET\r\n$" + payload.length + "\r\n" + value + "\r\n");
+
+        EmbeddedChannel ch = new EmbeddedChannel(new RespDecoder());
+        for (int off = 0; off < frame.length; off += 1000) {
+            assertNull(ch.readInbound());
+            ch.writeInbound(Unpooled.wrappedBuffer(frame, off, Math.min(1000, frame.length - off)));
+        }
+        RespType msg = ch.readInbound();
+        assertEquals(value, msg.asArray()[1].asString());
+        assertNull(ch.readInbound());
+    }
+
+    @Test
+    void arrayLongerThanItsFirstAllocation() {
+        StringBuilder sb = new StringBuilder("*3000\r\n");
+        for (int i = 0; i < 3000; i++)
+            sb.append(':').append(i).append("\r\n");
+        byte[] frame = bytes(sb.toString());
+        EmbeddedChannel ch = write(Arrays.copyOfRange(frame, 0, 5000), Arrays.copyOfRange(frame, 5000, frame.length));
+        RespType[] elements = ((RespType) ch.readInbound()).asArray();
+        assertEquals(3000, elements.length);
+        for (int i = 0; i < 3000; i++)
+            assertEquals((long) i, elements[i].getValue());
+    }
+
+    @Test
+    void longLimits() {
+        assertEquals(Collections.singletonList(":9223372036854775807\\r\\n"), read(write(bytes(":9223372036854775807\r\n"))));
+        assertEquals(Collections.singletonList(":-9223372036854775808\\r\\n"), read(write(bytes(":-9223372036854775808\r\n"))));
+        assertInvalid(":9223372036854775808\r\n");
+        assertInvalid(":-9223372036854775809\r\n");
+        assertInvalid(":99999999999999999999\r\n");
+    }
+
+    // the decoder closes the connection on a protocol error
+    private static void assertInvalid(String... chunks) {
+        EmbeddedChannel ch = write(Arrays.stream(chunks).map(RespDecoderTest::bytes).toArray(byte[][]::new));
+        String frame = String.join("", chunks);
+        assertFalse(ch.isOpen(), frame.length() > 40? frame.substring(0, 40) + "..." : frame);
+        assertEquals(Collections.emptyList(), read(ch));
+    }
+
+    @Test
+    void invalidLengthsAndNumbers() {
+        assertInvalid(":\r\n");
+        assertInvalid(":-\r\n");
+        assertInvalid(":12a\r\n");
+        assertInvalid(": 1\r\n");
+        assertInvalid("$abc\r\n");
+        assertInvalid("$-2\r\n");
+        assertInvalid("*-2\r\n");
+        assertInvalid("*2147483648\r\n");
+        assertInvalid("$3\r\nabcd\r\n");
+        assertInvalid("$3\r\nab", "c\n\r");
+        // only a whole line is a frame outside of inline commands
+        assertInvalid("+OK\n");
+        assertInvalid("*1\r\n\n");
+        assertInvalid("*1\r\nPING\r\n");
+        assertInvalid("*2\r\n:1\r\n?x\r\n");
+    }
+
+    @Test
+    void bulkLimit() {
+        EmbeddedChannel ch = write(bytes("$536870912\r\n"));
+        assertTrue(ch.isOpen());
+        assertNull(ch.readInbound());
+        assertInvalid("$536870913\r\n");
+    }
+
+    @Test
+    void lineLimits() {
+        char[] filler = new char[64 * 1024];
+        Arrays.fill(filler, 'x');
+        String max = new String(filler);
+
+        // a line may take up to the limit before its end has arrived
+        EmbeddedChannel ch = write(bytes("ECHO " + max.substring(5)));
+        assertTrue(ch.isOpen());
+        ch.writeInbound(Unpooled.wrappedBuffer(bytes("\r\n")));
+        assertEquals(2, ((RespType) ch.readInbound()).asArray().length);
+        ch = write(bytes(":" + max));
+        assertTrue(ch.isOpen());
+
+        assertInvalid("ECHO " + max);
+        assertInvalid("ECHO " + max.substring(5), "x");
+        assertInvalid(":" + max + "1");
+        assertInvalid("*1\r\n+" + max + "x");
+    }
+}
@@ -0,0 +1,71 @@
+package org.my.zedis;
+
+/**
+ * Builds an {@link InMemorySharedStore} for tests and benchmarks, with the defaults of the zedis.* settings unless a
+ * setting is named.
+ */
+public final class StoreBuilder {
+    private ServerStats stats = new ServerStats();
+    private int shards = 1;
+    private int listFill = -2;
+    private int listCompressDepth = 0;
+    private int hashMaxListpackEntries = 128;
+    private int hashMaxListpackValue = 64;
+    private int setMaxIntsetEntries = 512;
+    private int zsetMaxListpackEntries = 128;
+    private int zsetMaxListpackValue = 64;
+
+    public static StoreBuilder store() {
+        return new StoreBuilder();
+    }
+
+    public StoreBuilder stats(ServerStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public StoreBuilder shards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    public StoreBuilder listFill(int listFill) {
+        this.listFill = listFill;
+        return this;
+    }
+
+    public StoreBuilder listCompressDepth(int listCompressDepth) {
+        this.listCompressDepth = listCompressDepth;
+        return this;
+    }
+
+    public StoreBuilder hashMaxListpackEntries(int hashMaxListpackEntries) {
+        this.hashMaxListpackEntries = hashMaxListpackEntries;
+        return this;
+    }
+
+    public StoreBuilder hashMaxListpackValue(int hashMaxListpackValue) {
+        this.hashMaxListpackValue = hashMaxListpackValue;
+        return this;
+    }
+
+    public StoreBuilder setMaxIntsetEntries(int setMaxIntsetEntries) {
+        this.setMaxIntsetEntries = setMaxIntsetEntries;
+        return this;
+    }
+
+    public StoreBuilder zsetMaxListpackEntries(int zsetMaxListpackEntries) {
+        this.zsetMaxListpackEntries = zsetMaxListpackEntries;
+        return this;
+    }
+
+    public StoreBuilder zsetMaxListpackValue(int zsetMaxListpackValue) {
+        this.zsetMaxListpackValue = zsetMaxListpackValue;
+        return this;
+    }
+
+    public InMemorySharedStore build() {
+        return new InMemorySharedStore(stats, shards, listFill, listCompressDepth, hashMaxListpackEntries,
+                hashMaxListpackValue, setMaxIntsetEntries, zsetMaxListpackEntries, zsetMaxListpackValue);
+    }
+}
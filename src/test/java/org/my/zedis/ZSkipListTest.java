@@ -0,0 +1,207 @@
+package org.my.zedis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZSkipListTest {
+    private static final Comparator<Map.Entry<String, Double>> ORDER =
+            Comparator.<Map.Entry<String, Double>>comparingDouble(Map.Entry::getValue).thenComparing(Map.Entry::getKey);
+
+    private final Random rand = new Random(18);
+    private final ZSkipList list = new ZSkipList();
+    private final TreeSet<Map.Entry<String, Double>> oracle = new TreeSet<>(ORDER);
+    private final Map<String, Double> scores = new HashMap<>();
+    private final Map<String, ZSkipList.Node> nodes = new HashMap<>();
+
+    private void insert(String member, double score) {
+        nodes.put(member, list.insert(score, member));
+        oracle.add(new AbstractMap.SimpleImmutableEntry<>(member, score));
+        scores.put(member, score);
+    }
+
+    private void forget(String member) {
+        oracle.remove(new AbstractMap.SimpleImmutableEntry<>(member, scores.remove(member)));
+        nodes.remove(member);
+    }
+
+    private static String member(ZSkipList.Node n) {
+        return n == null? null : n.getMember();
+    }
+
+    private static String member(Map.Entry<String, Double> e) {
+        return e == null? null : e.getKey();
+    }
+
+    // few distinct scores, so that many members share one and are ordered by name
+    private double randomScore() {
+        return rand.nextInt(20) - 10;
+    }
+
+    private void randomWrites(int ops) {
+        for (int i = 0; i < ops; i++) {
+            String member = "m" + rand.nextInt(300);
+            Double old = scores.get(member);
+            int op = rand.nextInt(10);
+            if (old == null) {
+                insert(member, randomScore());
+            } else if (op < 3) {
+                assertTrue(list.delete(old, member));
+                forget(member);
+            } else if (op < 6) {
+                double score = randomScore();
+                ZSkipList.Node n = list.updateScore(nodes.get(member), score);
+                assertEquals(member, n.getMember());
+                assertEquals(score, n.getScore());
+                forget(member);
+                nodes.put(member, n);
+                oracle.add(new AbstractMap.SimpleImmutableEntry<>(member, score));
+                scores.put(member, score);
+            }
+        }
+    }
+
+    private void assertSame() {
+        assertEquals(oracle.size(), list.size());
+        List<String> expected = oracle.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+
+        List<String> forward = new ArrayList<>();
+        for (ZSkipList.Node n = list.first(); n != null; n = n.next())
+            forward.add(n.getMember());
+        assertEquals(expected, forward);
+
+        List<String> backward = new ArrayList<>();
+        for (ZSkipList.Node n = list.last(); n != null; n = n.previous())
+            backward.add(n.getMember());
+        Collections.reverse(backward);
+        assertEquals(expected, backward);
+
+        for (int i = 0; i < expected.size(); i++) {
+            String m = expected.get(i);
+            assertEquals(i, list.rank(scores.get(m), m), m);
+            assertEquals(i, list.rank(nodes.get(m)), m);
+            assertEquals(m, member(list.byRank(i)));
+        }
+        assertNull(list.byRank(expected.size()));
+        assertNull(list.byRank(-1));
+        assertEquals(-1, list.rank(0, "absent"));
+    }
+
+    @Test
+    void insertDeleteAndUpdate() {
+        for (int round = 0; round < 50; round++) {
+            randomWrites(200);
+            assertSame();
+        }
+        assertFalse(list.delete(1, "absent"));
+    }
+
+    private static final String[] BOUNDS = {"-inf", "+inf", "-11", "-10", "-5", "-4.5", "0", "3", "9", "10"};
+
+    private String randomBound() {
+        String b = BOUNDS[rand.nextInt(BOUNDS.length)];
+        return rand.nextBoolean() && !b.endsWith("inf")? "(" + b : b;
+    }
+
+    private static double value(String bound) {
+        String b = bound.startsWith("(")? bound.substring(1) : bound;
+        return b.equals("-inf")? Double.NEGATIVE_INFINITY : b.equals("+inf")? Double.POSITIVE_INFINITY : Double.parseDouble(b);
+    }
+
+    private static List<Map.Entry<String, Double>> inScoreRange(Collection<Map.Entry<String, Double>> entries,
+                                                                String min, String max) {
+        double lo = value(min);
+        double hi = value(max);
+        return entries.stream()
+                .filter(e -> min.startsWith("(")? e.getValue() > lo : e.getValue() >= lo)
+                .filter(e -> max.startsWith("(")? e.getValue() < hi : e.getValue() <= hi)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void scoreRanges() {
+        for (int round = 0; round < 50; round++) {
+            randomWrites(100);
+            for (int q = 0; q < 50; q++) {
+                String min = randomBound();
+                String max = randomBound();
+                List<Map.Entry<String, Double>> expected = inScoreRange(oracle, min, max);
+                ZSkipList.Range range = ZSkipList.scoreRange(min, max);
+                String desc = min + " " + max;
+                assertEquals(expected.isEmpty()? null : member(expected.get(0)), member(list.firstInRange(range)), desc);
+                assertEquals(expected.isEmpty()? null : member(expected.get(expected.size() - 1)),
+                        member(list.lastInRange(range)), desc);
+            }
+        }
+    }
+
+    @Test
+    void deleteByScore() {
+        for (int round = 0; round < 100; round++) {
+            randomWrites(100);
+            String min = randomBound();
+            String max = randomBound();
+            List<Map.Entry<String, Double>> expected = inScoreRange(oracle, min, max);
+            List<String> removed = new ArrayList<>();
+            long n = list.deleteRange(ZSkipList.scoreRange(min, max), x -> removed.add(x.getMember()));
+            assertEquals(expected.size(), n);
+            assertEquals(expected.stream().map(Map.Entry::getKey).collect(Collectors.toList()), removed);
+            for (Map.Entry<String, Double> e: expected)
+                forget(e.getKey());
+            assertSame();
+        }
+    }
+
+    @Test
+    void deleteByRank() {
+        for (int round = 0; round < 100; round++) {
+            randomWrites(100);
+            int size = oracle.size();
+            int start = rand.nextInt(size + 2);
+            int end = start + rand.nextInt(size + 2) - 1;
+            List<String> expected = oracle.stream().map(Map.Entry::getKey).skip(start)
+                    .limit(Math.max(0, end - start + 1)).collect(Collectors.toList());
+            List<String> removed = new ArrayList<>();
+            long n = list.deleteRangeByRank(start, end, x -> removed.add(x.getMember()));
+            assertEquals(expected.size(), n);
+            assertEquals(expected, removed);
+            for (String m: expected)
+                forget(m);
+            assertSame();
+        }
+    }
+
+    @Test
+    void lexRanges() {
+        // members of different lengths sharing the score 0
+        while (oracle.size() < 200) {
+            String m = Integer.toString(rand.nextInt(1000) + 1000).substring(rand.nextInt(3));
+            if (!scores.containsKey(m))
+                insert(m, 0);
+        }
+        assertSame();
+        String[] bounds = {"-", "+", "[", "(", "[1", "(1", "[123", "(123", "[5", "(5", "[999", "(z"};
+        NavigableSet<String> members = new TreeSet<>(scores.keySet());
+        for (String min: bounds) {
+            for (String max: bounds) {
+                List<String> expected = members.stream()
+                        .filter(m -> min.equals("-") || !min.equals("+") && (min.startsWith("(")
+                                ? m.compareTo(min.substring(1)) > 0 : m.compareTo(min.substring(1)) >= 0))
+                        .filter(m -> max.equals("+") || !max.equals("-") && (max.startsWith("(")
+                                ? m.compareTo(max.substring(1)) < 0 : m.compareTo(max.substring(1)) <= 0))
+                        .collect(Collectors.toList());
+                ZSkipList.Range range = ZSkipList.lexRange(min, max);
+                String desc = min + " " + max;
+                assertEquals(expected.isEmpty()? null : expected.get(0), member(list.firstInRange(range)), desc);
+                assertEquals(expected.isEmpty()? null : expected.get(expected.size() - 1),
+                        member(list.lastInRange(range)), desc);
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> ZSkipList.lexRange("a", "+"));
+        assertThrows(IllegalArgumentException.class, () -> ZSkipList.scoreRange("x", "1"));
+        assertThrows(IllegalArgumentException.class, () -> ZSkipList.scoreRange("0", "nan"));
+    }
+}